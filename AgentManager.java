@@ -1,20 +1,182 @@
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Gestor de agentes de filtrado de mensajes
- * Coordina la ejecución de múltiples agentes IA
+ * Coordina la ejecución de múltiples agentes IA. El resultado de cada evaluación se
+ * emite como eventos del broker (BrokerEventBus) en lugar de escribirse en la consola.
+ *
+ * Por defecto los agentes se ejecutan en cadena, por orden de prioridad, en el hilo que
+ * publica. En el modo paralelo, los agentes baratos siguen en cadena y, si todos aceptan,
+ * los costosos (MessageFilterAgent.esCostoso) se evalúan a la vez en un pool de hilos:
+ * el primer rechazo decide y cancela las evaluaciones que quedan.
+ *
+ * En el modo de orden adaptativo, el gestor mide el coste medio y la tasa de rechazo de
+ * cada agente y reordena la cadena periódicamente por coste / probabilidad de rechazo
+ * (de menor a mayor), que es el orden que minimiza el coste esperado por mensaje si los
+ * agentes son independientes: primero los baratos que rechazan mucho. Los agentes con
+ * posición fija (MessageFilterAgent.esPosicionFija) conservan la que les da su prioridad.
+ *
+ * Cada agente puede tener un límite de tiempo de evaluación: la evaluación se ejecuta en
+ * otro hilo y, si no termina a tiempo, se abandona y el mensaje se acepta o se rechaza
+ * según la política de fallo (la misma que se aplica si el agente lanza una excepción).
+ * Cada agente tiene además un cortacircuitos (CircuitBreaker): tras varios fallos seguidos
+ * el agente deja de consultarse durante un tiempo, así que un agente colgado o roto no
+ * frena todas las publicaciones. Los veredictos con algún fallo no se guardan en caché.
+ *
+ * Al publicar en un exchange, los agentes que solo miran el contenido evalúan el mensaje
+ * una vez y los que dependen de la cola (MessageFilterAgent.dependeDeLaCola, como las
+ * reglas por canal) lo evalúan para cada cola destino.
+ *
+ * Configuración (propiedades del sistema):
+ *   mom.agentes.paralelo  true para activar el modo paralelo
+ *   mom.agentes.hilos     Número de hilos del pool de agentes (por defecto, número de núcleos)
+ *   mom.agentes.virtuales true para evaluar cada agente en un hilo virtual (Java 21+)
+ *   mom.agentes.cache     Memoria máxima en bytes de la caché de veredictos (por defecto, 8 MB; 0 la desactiva)
+ *   mom.agentes.cache.longitud Longitud máxima de los mensajes cuyo veredicto se guarda (por defecto, 4096)
+ *   mom.agentes.adaptativo true para activar el orden adaptativo
+ *   mom.agentes.adaptativo.intervalo Milisegundos entre reordenaciones (por defecto, 1000)
+ *   mom.agentes.limite    Límite de tiempo por agente en milisegundos (por defecto, 0: sin límite)
+ *   mom.agentes.fallo     abierto para aceptar o cerrado para rechazar el mensaje cuando un
+ *                         agente falla o supera su límite (por defecto, cerrado)
+ *   mom.agentes.circuito.fallos Fallos seguidos que abren el circuito de un agente (por defecto, 5; 0 lo desactiva)
+ *   mom.agentes.circuito.espera Milisegundos que un circuito abierto omite al agente (por defecto, 30000)
  */
 public class AgentManager {
+    // Peso de la última ventana en las medias móviles del orden adaptativo
+    private static final double PESO_VENTANA = 0.3;
+    // Probabilidad de rechazo mínima con la que se calcula el rango de un agente
+    private static final double PROBABILIDAD_MINIMA = 1e-4;
+    // Canal con el que se guardan en caché los veredictos de la fase de contenido de un
+    // exchange (el carácter nulo evita confundirlo con el nombre de una cola)
+    private static final String CANAL_CONTENIDO = "\0contenido";
+    
+    /**
+     * Agentes que intervienen en una evaluación: todos (publicación en una cola), solo los
+     * que no dependen de la cola o solo los que sí (publicación en un exchange)
+     */
+    private enum Fase {
+        TODOS, CONTENIDO, COLA;
+        
+        boolean incluye(MessageFilterAgent agente) {
+            return this == TODOS || (this == COLA) == agente.dependeDeLaCola();
+        }
+    }
+    
+    /**
+     * Coste y tasa de rechazo recientes de un agente (medias móviles exponenciales de las
+     * ventanas entre reordenaciones). La tasa es condicionada a los mensajes que llegan
+     * al agente, es decir, a los que han aceptado los agentes anteriores de la cadena.
+     */
+    private static final class EstadisticaAgente {
+        final LongAdder evaluaciones = new LongAdder();
+        final LongAdder rechazos = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        double costeMedio = Double.NaN;          // Nanosegundos por evaluación
+        double probabilidadRechazo = Double.NaN;
+
+        void registrar(long duracion, boolean aceptado) {
+            evaluaciones.increment();
+            nanos.add(duracion);
+            if (!aceptado) rechazos.increment();
+        }
+
+        /**
+         * Incorpora la ventana actual a las medias y empieza una nueva
+         */
+        void cerrarVentana() {
+            long n = evaluaciones.sumThenReset();
+            long r = rechazos.sumThenReset();
+            long t = nanos.sumThenReset();
+            if (n == 0) return; // Sin mensajes en esta ventana: se mantienen las medias
+            double coste = t / (double) n;
+            double probabilidad = r / (double) n;
+            if (Double.isNaN(costeMedio)) {
+                costeMedio = coste;
+                probabilidadRechazo = probabilidad;
+            } else {
+                costeMedio = PESO_VENTANA * coste + (1 - PESO_VENTANA) * costeMedio;
+                probabilidadRechazo = PESO_VENTANA * probabilidad + (1 - PESO_VENTANA) * probabilidadRechazo;
+            }
+        }
+
+        boolean tieneDatos() {
+            return !Double.isNaN(costeMedio);
+        }
+
+        /**
+         * Coste por rechazo: cuanto menor, antes debe ir el agente en la cadena
+         */
+        double rango() {
+            return costeMedio / Math.max(probabilidadRechazo, PROBABILIDAD_MINIMA);
+        }
+    }
+    
+
+    // Pool compartido por todos los gestores; se crea al evaluar en paralelo por primera vez
+    private static ExecutorService poolAgentes;
+    // Hilos de las evaluaciones con límite de tiempo; se crea al usar un límite por primera vez
+    private static ExecutorService poolLimites;
+    
     // Cada vez que se modifica la lista de agentes, se crea una nueva copia (thread-safe)
     private final CopyOnWriteArrayList<MessageFilterAgent> agentes = new CopyOnWriteArrayList<>();
-    private boolean habilitado = true;
+    // Orden en que se ejecutan los agentes: el de prioridad o el adaptativo
+    private volatile List<MessageFilterAgent> cadena = Collections.emptyList();
+    // Agentes separados para el modo paralelo, recalculados al cambiar la lista
+    private volatile List<MessageFilterAgent> agentesBaratos = Collections.emptyList();
+    private volatile List<MessageFilterAgent> agentesCostosos = Collections.emptyList();
+    // Veredictos de los mensajes repetidos; se vacía cada vez que cambia la cadena de agentes
+    private final VerdictCache cache;
+    // false si algún agente de la cadena no admite caché de veredictos
+    private volatile boolean cacheAdmitida = true;
+    // Suma de las versiones de los agentes con la que se llenó la caché de veredictos
+    private final AtomicLong versionAgentes = new AtomicLong();
+    // true si algún agente de la cadena depende de la cola destino
+    private volatile boolean hayAgentesDeCola = false;
+    private volatile boolean habilitado = true;
+    private volatile boolean paralelo = Boolean.getBoolean("mom.agentes.paralelo");
+    // Orden adaptativo: estadísticas por agente y momento de la próxima reordenación
+    private volatile boolean adaptativo = Boolean.getBoolean("mom.agentes.adaptativo");
+    private final long intervaloReordenacionNanos = 
+            Long.getLong("mom.agentes.adaptativo.intervalo", 1000) * 1_000_000L;
+    private final ConcurrentMap<MessageFilterAgent, EstadisticaAgente> estadisticas = new ConcurrentHashMap<>();
+    private final AtomicBoolean reordenando = new AtomicBoolean(false);
+    private volatile long proximaReordenacion = System.nanoTime();
+    // Límite de tiempo, política de fallo y cortacircuitos de cada agente
+    private volatile long limiteEvaluacionMs = Long.getLong("mom.agentes.limite", 0);
+    private volatile boolean falloAbierto = "abierto".equalsIgnoreCase(System.getProperty("mom.agentes.fallo"));
+    private final int fallosCircuito = Integer.getInteger("mom.agentes.circuito.fallos", 5);
+    private final long esperaCircuitoMs = Long.getLong("mom.agentes.circuito.espera", 30000);
+    private final ConcurrentMap<MessageFilterAgent, CircuitBreaker> circuitos = new ConcurrentHashMap<>();
+    private final MetricsRegistry metricas = MetricsRegistry.getInstance();
     
     /**
      * Constructor por defecto - inicializa sin agentes
      */
     public AgentManager() {
-        // Inicializar sin agentes por defecto
+        this(Long.getLong("mom.agentes.cache", 8L * 1024 * 1024));
+    }
+    
+    /**
+     * Constructor con un tamaño de caché de veredictos concreto
+     * @param bytesCache Memoria máxima de la caché de veredictos (0 la desactiva)
+     */
+    public AgentManager(long bytesCache) {
+        this.cache = new VerdictCache(bytesCache, Integer.getInteger("mom.agentes.cache.longitud", 4096));
     }
     
     /**
@@ -25,6 +187,8 @@ public class AgentManager {
         agentes.add(agente);
         // Ordenar por prioridad (mayor prioridad primero)
         agentes.sort((a1, a2) -> Integer.compare(a2.getPrioridad(), a1.getPrioridad()));
+        repartirAgentes(new ArrayList<>(agentes));
+        cache.invalidar();
         System.out.println(" Attached agent: " + agente.getNombre() + 
                          " (Priority: " + agente.getPrioridad() + ")");
         System.out.println(" Description: " + agente.getDescripcion());
@@ -36,7 +200,109 @@ public class AgentManager {
      * @return true si se eliminó correctamente
      */
     public boolean eliminarAgente(String nombreAgente) {
-        return agentes.removeIf(agente -> agente.getNombre().equals(nombreAgente));
+        boolean eliminado = agentes.removeIf(agente -> agente.getNombre().equals(nombreAgente));
+        repartirAgentes(new ArrayList<>(agentes));
+        if (eliminado) {
+            cache.invalidar();
+        }
+        return eliminado;
+    }
+    
+    /**
+     * Fija el orden de ejecución y separa los agentes baratos de los costosos en ese orden
+     * @param orden Agentes en el orden en que se deben ejecutar
+     */
+    private synchronized void repartirAgentes(List<MessageFilterAgent> orden) {
+        List<MessageFilterAgent> baratos = new ArrayList<>();
+        List<MessageFilterAgent> costosos = new ArrayList<>();
+        boolean admitida = true;
+        boolean deCola = false;
+        for (MessageFilterAgent agente : orden) {
+            (agente.esCostoso() ? costosos : baratos).add(agente);
+            admitida &= agente.admiteCacheVeredictos();
+            deCola |= agente.dependeDeLaCola();
+        }
+        estadisticas.keySet().retainAll(orden);
+        circuitos.keySet().retainAll(orden);
+        cadena = Collections.unmodifiableList(orden);
+        agentesBaratos = baratos;
+        agentesCostosos = costosos;
+        cacheAdmitida = admitida;
+        hayAgentesDeCola = deCola;
+    }
+    
+    /**
+     * Reordena la cadena si ha pasado el intervalo de reordenación (solo un hilo a la vez)
+     */
+    private void reordenarSiToca() {
+        long ahora = System.nanoTime();
+        if (ahora - proximaReordenacion < 0 || !reordenando.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            proximaReordenacion = ahora + intervaloReordenacionNanos;
+            reordenar();
+        } finally {
+            reordenando.set(false);
+        }
+    }
+    
+    /**
+     * Ordena los agentes sin posición fija por coste / probabilidad de rechazo y los coloca
+     * en los huecos que dejan los de posición fija, que siguen el orden de prioridad.
+     * No cambia nada hasta tener datos de todos los agentes que se pueden mover.
+     */
+    private synchronized void reordenar() {
+        List<MessageFilterAgent> porPrioridad = new ArrayList<>(agentes);
+        List<MessageFilterAgent> moviles = new ArrayList<>();
+        for (MessageFilterAgent agente : porPrioridad) {
+            EstadisticaAgente estadistica = estadistica(agente);
+            estadistica.cerrarVentana();
+            if (!agente.esPosicionFija()) {
+                if (!estadistica.tieneDatos()) return;
+                moviles.add(agente);
+            }
+        }
+        // sort es estable: a igual rango se mantiene el orden de prioridad
+        moviles.sort(Comparator.comparingDouble(agente -> estadistica(agente).rango()));
+        
+        List<MessageFilterAgent> orden = new ArrayList<>(porPrioridad.size());
+        Iterator<MessageFilterAgent> siguienteMovil = moviles.iterator();
+        for (MessageFilterAgent agente : porPrioridad) {
+            orden.add(agente.esPosicionFija() ? agente : siguienteMovil.next());
+        }
+        if (!orden.equals(cadena)) {
+            repartirAgentes(orden);
+            System.out.println("Agent chain reordered (adaptive): " + describirCadena(orden));
+        }
+    }
+    
+    /**
+     * Describe una cadena con el coste y la tasa de rechazo medidos de cada agente y el
+     * coste esperado por mensaje: suma de los costes ponderados por la probabilidad de que
+     * el mensaje llegue a cada agente
+     */
+    private String describirCadena(List<MessageFilterAgent> orden) {
+        StringBuilder descripcion = new StringBuilder();
+        double llega = 1;
+        double esperado = 0;
+        for (MessageFilterAgent agente : orden) {
+            EstadisticaAgente estadistica = estadistica(agente);
+            if (descripcion.length() > 0) descripcion.append(" -> ");
+            descripcion.append(agente.getNombre());
+            if (estadistica.tieneDatos()) {
+                descripcion.append(String.format(" (%s, %.0f%% rejected%s)",
+                        LatencyHistogram.formatear((long) estadistica.costeMedio),
+                        estadistica.probabilidadRechazo * 100, agente.esPosicionFija() ? ", pinned" : ""));
+                esperado += llega * estadistica.costeMedio;
+                llega *= 1 - estadistica.probabilidadRechazo;
+            }
+        }
+        return descripcion + "; expected cost " + LatencyHistogram.formatear((long) esperado) + " per message";
+    }
+    
+    private EstadisticaAgente estadistica(MessageFilterAgent agente) {
+        return estadisticas.computeIfAbsent(agente, a -> new EstadisticaAgente());
     }
     
     /**
@@ -47,45 +313,403 @@ public class AgentManager {
      * @return true si todos los agentes aceptan el mensaje
      */
     public boolean evaluarMensaje(String mensaje, String nombreCola) {
+        return motivoRechazo(mensaje, nombreCola) == null;
+    }
+    
+    /**
+     * Evalúa un mensaje con todos los agentes e indica cuál lo rechaza
+     * @param mensaje Contenido del mensaje
+     * @param nombreCola Nombre de la cola
+     * @return Nombre del agente que rechaza el mensaje, o null si todos lo aceptan
+     */
+    public String motivoRechazo(String mensaje, String nombreCola) {
         if (!habilitado) {
-            return true; // Si está deshabilitado, aceptar todos
+            return null; // Si está deshabilitado, aceptar todos
         }
         
         if (agentes.isEmpty()) {
-            System.out.println(" No agents configured, accepting default message");
-            return true;
+            BrokerEventBus.getInstance().veredicto("AGENTS", "No agents configured, accepting default message", null);
+            return null;
         }
         
-        System.out.println("\n═══════════════════════════════════════════════════════");
-        System.out.println("AGENT EVALUATION");
-        System.out.println("   Queue: " + nombreCola);
-        System.out.println("   Message: " + (mensaje.length() > 50 ? 
-                         mensaje.substring(0, 47) + "..." : mensaje));
-        System.out.println("   Active agents: " + agentes.size());
-        System.out.println("───────────────────────────────────────────────────────");
+        BrokerEventBus eventos = BrokerEventBus.getInstance();
+        eventos.evaluacion(nombreCola, mensaje, agentes.size());
         
         // Todos los agentes deben aceptar el mensaje
+        MessageFilterAgent rechazo = evaluarConCache(mensaje, nombreCola, Fase.TODOS);
+        eventos.evaluado(nombreCola, rechazo != null ? rechazo.getNombre() : null);
+        if (rechazo != null) {
+            metricas.cola(nombreCola).rechazado();
+            eventos.rechazadoPorAgente(nombreCola, mensaje, rechazo.getNombre());
+            return rechazo.getNombre();
+        }
+        return null;
+    }
+    
+    /**
+     * Evalúa un lote de mensajes destinados a la misma cola con una sola cabecera de log.
+     * Cada mensaje pasa por la cadena completa de agentes, igual que en evaluarMensaje.
+     * @param mensajes Contenidos de los mensajes
+     * @param nombreCola Nombre de la cola
+     * @return Array con true en las posiciones de los mensajes aceptados
+     */
+    public boolean[] evaluarLote(List<String> mensajes, String nombreCola) {
+        boolean[] resultados = new boolean[mensajes.size()];
+        if (!habilitado || agentes.isEmpty()) {
+            if (habilitado) {
+                BrokerEventBus.getInstance().veredicto("AGENTS", "No agents configured, accepting default messages", null);
+            }
+            Arrays.fill(resultados, true);
+            return resultados;
+        }
+        
+        BrokerEventBus eventos = BrokerEventBus.getInstance();
+        eventos.evaluacionLote(nombreCola, mensajes.size(), agentes.size());
+        
+        int aceptados = 0;
+        for (int i = 0; i < resultados.length; i++) {
+            MessageFilterAgent rechazo = evaluarConCache(mensajes.get(i), nombreCola, Fase.TODOS);
+            resultados[i] = rechazo == null;
+            if (resultados[i]) {
+                aceptados++;
+            } else {
+                metricas.cola(nombreCola).rechazado();
+                eventos.rechazadoPorAgente(nombreCola, mensajes.get(i), rechazo.getNombre());
+            }
+        }
+        
+        eventos.loteEvaluado(nombreCola, aceptados, resultados.length - aceptados);
+        return resultados;
+    }
+    
+    /**
+     * Evalúa un mensaje publicado en un exchange: los agentes que no dependen de la cola lo
+     * evalúan una sola vez y, si lo aceptan, los que sí dependen (reglas por canal) lo
+     * evalúan con cada cola destino. Un rechazo de la primera fase cuenta en las métricas
+     * del exchange; uno de la segunda, en las de la cola que lo rechaza.
+     * @param mensaje Contenido del mensaje
+     * @param nombreExchange Nombre del exchange
+     * @param colas Colas destino
+     * @return Array con true en las posiciones de las colas que aceptan el mensaje, o null
+     *         si los agentes de contenido lo rechazan para todas
+     */
+    public boolean[] evaluarEnExchange(String mensaje, String nombreExchange, List<String> colas) {
+        boolean[] aceptadas = new boolean[colas.size()];
+        Arrays.fill(aceptadas, true);
+        if (!habilitado || agentes.isEmpty()) {
+            return aceptadas;
+        }
+        
+        BrokerEventBus eventos = BrokerEventBus.getInstance();
+        eventos.evaluacion(nombreExchange, mensaje, agentes.size());
+        
+        MessageFilterAgent rechazo = evaluarConCache(mensaje, nombreExchange, Fase.CONTENIDO);
+        eventos.evaluado(nombreExchange, rechazo != null ? rechazo.getNombre() : null);
+        if (rechazo != null) {
+            metricas.exchange(nombreExchange).rechazado();
+            eventos.rechazadoPorAgente(nombreExchange, mensaje, rechazo.getNombre());
+            return null;
+        }
+        
+        if (!hayAgentesDeCola) {
+            return aceptadas;
+        }
+        for (int i = 0; i < aceptadas.length; i++) {
+            String cola = colas.get(i);
+            rechazo = evaluarConCache(mensaje, cola, Fase.COLA);
+            if (rechazo != null) {
+                aceptadas[i] = false;
+                metricas.cola(cola).rechazado();
+                eventos.rechazadoPorAgente(cola, mensaje, rechazo.getNombre());
+            }
+        }
+        return aceptadas;
+    }
+    
+    /**
+     * Obtiene el veredicto de un mensaje de la caché o, si no está, ejecutando los agentes
+     * (y lo guarda, salvo que algún agente haya fallado: un error no es un veredicto).
+     * Los veredictos de la fase de contenido se guardan con un canal propio y los de la
+     * fase de cola no se guardan, para no confundirlos con los de la cadena completa.
+     * @param mensaje Contenido del mensaje
+     * @param nombreCola Nombre de la cola
+     * @param fase Agentes que intervienen
+     * @return Agente que rechazó el mensaje o null si todos lo aceptan
+     */
+    private MessageFilterAgent evaluarConCache(String mensaje, String nombreCola, Fase fase) {
+        String canalCache = fase == Fase.TODOS ? nombreCola : fase == Fase.CONTENIDO ? CANAL_CONTENIDO : null;
+        boolean usarCache = canalCache != null && cacheAdmitida && cache.isActiva();
+        if (usarCache) {
+            comprobarVersiones();
+        }
+        long generacion = cache.getGeneracion();
+        if (usarCache) {
+            VerdictCache.Veredicto veredicto = cache.buscar(mensaje, canalCache);
+            if (veredicto != null) {
+                BrokerEventBus.getInstance().veredicto("VERDICT CACHE", "Reusing the previous verdict for ", nombreCola);
+                return veredicto.getRechazo();
+            }
+        }
+        
+        AtomicBoolean fallo = new AtomicBoolean();
+        long inicio = System.nanoTime();
+        MessageFilterAgent rechazo = agenteQueRechaza(mensaje, nombreCola, fallo, fase);
+        metricas.evaluacionCompleta(System.nanoTime() - inicio);
+        if (adaptativo) {
+            reordenarSiToca();
+        }
+        if (usarCache && !fallo.get()) {
+            cache.guardar(mensaje, canalCache, rechazo, generacion);
+        }
+        return rechazo;
+    }
+    
+    /**
+     * Vacía la caché de veredictos si algún agente ha cambiado su configuración desde que
+     * se llenó (su versión ha crecido). Se comprueba antes de leer la generación de la
+     * caché, así que un veredicto calculado con la configuración anterior no sobrevive
+     * a la siguiente consulta.
+     */
+    private void comprobarVersiones() {
+        long suma = 0;
         for (MessageFilterAgent agente : agentes) {
-            try {
-                boolean aceptado = agente.aceptarMensaje(mensaje, nombreCola);
-                if (!aceptado) {
-                    System.out.println("───────────────────────────────────────────────────────");
-                    System.out.println("MESSAGE REJECTED by " + agente.getNombre());
-                    System.out.println("═══════════════════════════════════════════════════════\n");
-                    return false;
+            suma += agente.getVersion();
+        }
+        long anterior = versionAgentes.get();
+        if (suma != anterior && versionAgentes.compareAndSet(anterior, suma)) {
+            cache.invalidar();
+        }
+    }
+    
+    /**
+     * Ejecuta los agentes hasta el primer rechazo: en cadena por orden de prioridad o,
+     * en el modo paralelo, primero los baratos en cadena y después los costosos a la vez
+     * @param mensaje Contenido del mensaje
+     * @param nombreCola Nombre de la cola
+     * @param fallo Se marca si algún agente falla (o la evaluación se interrumpe)
+     * @param fase Agentes que intervienen
+     * @return Agente que rechazó el mensaje o null si todos lo aceptan
+     */
+    private MessageFilterAgent agenteQueRechaza(String mensaje, String nombreCola, AtomicBoolean fallo, Fase fase) {
+        List<MessageFilterAgent> costosos = agentesCostosos;
+        if (!paralelo || costosos.isEmpty()) {
+            return rechazoEnCadena(cadena, mensaje, nombreCola, fallo, fase);
+        }
+        
+        MessageFilterAgent rechazo = rechazoEnCadena(agentesBaratos, mensaje, nombreCola, fallo, fase);
+        if (rechazo != null) {
+            return rechazo;
+        }
+        if (fase != Fase.TODOS) {
+            List<MessageFilterAgent> deLaFase = new ArrayList<>(costosos.size());
+            for (MessageFilterAgent agente : costosos) {
+                if (fase.incluye(agente)) deLaFase.add(agente);
+            }
+            costosos = deLaFase;
+        }
+        if (costosos.size() <= 1) {
+            return rechazoEnCadena(costosos, mensaje, nombreCola, fallo, fase);
+        }
+        return rechazoEnParalelo(costosos, mensaje, nombreCola, fallo);
+    }
+    
+    /**
+     * Ejecuta agentes uno detrás de otro hasta el primer rechazo, saltando los que no
+     * intervienen en la fase
+     */
+    private MessageFilterAgent rechazoEnCadena(List<MessageFilterAgent> cadena, String mensaje, String nombreCola,
+                                               AtomicBoolean fallo, Fase fase) {
+        for (MessageFilterAgent agente : cadena) {
+            if (!fase.incluye(agente)) continue;
+            if (!evaluarAgente(agente, mensaje, nombreCola, fallo)) {
+                return agente;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Evalúa agentes a la vez en el pool de agentes. Devuelve en cuanto uno rechaza el
+     * mensaje (o todos lo aceptan) y cancela, interrumpiendo sus hilos, las evaluaciones
+     * que siguen en curso.
+     */
+    private MessageFilterAgent rechazoEnParalelo(List<MessageFilterAgent> costosos, String mensaje, String nombreCola,
+                                                 AtomicBoolean fallo) {
+        CompletableFuture<MessageFilterAgent> primerRechazo = new CompletableFuture<>();
+        AtomicInteger pendientes = new AtomicInteger(costosos.size());
+        List<Future<?>> tareas = new ArrayList<>(costosos.size());
+        ExecutorService pool = getPoolAgentes();
+        try {
+            for (MessageFilterAgent agente : costosos) {
+                tareas.add(pool.submit(() -> {
+                    if (primerRechazo.isDone()) {
+                        return; // Otro agente ya ha rechazado el mensaje
+                    }
+                    if (!evaluarAgente(agente, mensaje, nombreCola, fallo)) {
+                        primerRechazo.complete(agente);
+                    } else if (pendientes.decrementAndGet() == 0) {
+                        primerRechazo.complete(null);
+                    }
+                }));
+            }
+            return primerRechazo.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Sin veredicto completo, ser conservador y rechazar
+            fallo.set(true);
+            return costosos.get(0);
+        } catch (ExecutionException e) {
+            System.err.println(" Error in parallel agent evaluation: " + e.getMessage());
+            fallo.set(true);
+            return costosos.get(0);
+        } finally {
+            for (Future<?> tarea : tareas) {
+                tarea.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Evalúa un mensaje con un agente, registrando su latencia. Si el circuito del agente
+     * está abierto no se le consulta y el mensaje sigue adelante; si el agente falla o
+     * supera su límite de tiempo, se aplica la política de fallo.
+     * @param fallo Se marca si el agente falla, supera su límite o se omite
+     * @return true si el agente acepta el mensaje
+     */
+    private boolean evaluarAgente(MessageFilterAgent agente, String mensaje, String nombreCola, AtomicBoolean fallo) {
+        MetricsRegistry.MetricasAgente metricasAgente = metricas.agente(agente.getNombre());
+        CircuitBreaker circuito = circuito(agente);
+        if (circuito != null && !circuito.permitir()) {
+            metricasAgente.omitido();
+            fallo.set(true); // Veredicto incompleto: no se guarda en caché
+            return true;
+        }
+        long limite = limiteMs(agente);
+        long inicio = System.nanoTime();
+        try {
+            boolean aceptado = limite > 0 
+                ? evaluarConLimite(agente, mensaje, nombreCola, limite) 
+                : agente.aceptarMensaje(mensaje, nombreCola);
+            long duracion = System.nanoTime() - inicio;
+            metricasAgente.evaluado(duracion, aceptado);
+            if (adaptativo) {
+                estadistica(agente).registrar(duracion, aceptado);
+            }
+            if (circuito != null) {
+                circuito.exito();
+            }
+            return aceptado;
+        } catch (TimeoutException e) {
+            fallo.set(true);
+            metricasAgente.limiteSuperado(System.nanoTime() - inicio);
+            System.err.println(" Error in agent " + agente.getNombre() + ": evaluation exceeded " + limite + " ms");
+        } catch (Exception e) {
+            if (e instanceof InterruptedException || Thread.currentThread().isInterrupted()) {
+                // Evaluación cancelada: el mensaje ya ha sido rechazado por otro agente. Si era
+                // la evaluación de prueba del circuito, se libera para que otra la haga
+                if (circuito != null) {
+                    circuito.cancelarPrueba();
                 }
-            } catch (Exception e) {
-                System.err.println(" Error in agent " + agente.getNombre() + ": " + e.getMessage());
-                // Si hay error, ser conservador y rechazar
-                System.out.println("═══════════════════════════════════════════════════════\n");
                 return false;
             }
+            fallo.set(true);
+            metricasAgente.error(System.nanoTime() - inicio);
+            System.err.println(" Error in agent " + agente.getNombre() + ": " + e.getMessage());
+        }
+        if (circuito != null) {
+            circuito.fallo();
+        }
+        // Sin veredicto del agente: aceptar (fallo abierto) o, por defecto, ser conservador y rechazar
+        return falloAbierto;
+    }
+    
+    /**
+     * Ejecuta la evaluación de un agente en el pool de límites y la espera como máximo el
+     * límite indicado; si no termina, interrumpe su hilo
+     * @throws TimeoutException Si el agente no termina a tiempo
+     * @throws Exception La excepción que lance el agente
+     */
+    private boolean evaluarConLimite(MessageFilterAgent agente, String mensaje, String nombreCola, long limite) 
+            throws Exception {
+        Future<Boolean> evaluacion = getPoolLimites().submit(() -> agente.aceptarMensaje(mensaje, nombreCola));
+        try {
+            return evaluacion.get(limite, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (TimeoutException | InterruptedException e) {
+            evaluacion.cancel(true);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw e;
         }
-        
-        System.out.println("───────────────────────────────────────────────────────");
-        System.out.println("MESSAGE ACCEPTED by all agents");
-        System.out.println("═══════════════════════════════════════════════════════\n");
-        return true;
+    }
+    
+    /**
+     * Límite de tiempo efectivo de un agente: el suyo o, si no tiene, el general
+     * @return Milisegundos, o 0 si su evaluación no tiene límite
+     */
+    private long limiteMs(MessageFilterAgent agente) {
+        long propio = agente.getLimiteEvaluacionMs();
+        if (propio != 0) {
+            return Math.max(0, propio);
+        }
+        return Math.max(0, limiteEvaluacionMs);
+    }
+    
+    private CircuitBreaker circuito(MessageFilterAgent agente) {
+        if (fallosCircuito <= 0) {
+            return null;
+        }
+        return circuitos.computeIfAbsent(agente, a -> 
+            new CircuitBreaker(a.getNombre(), fallosCircuito, esperaCircuitoMs, metricas.agente(a.getNombre())));
+    }
+    
+    /**
+     * Pool de hilos de las evaluaciones en paralelo. Es un pool de plataforma (o de hilos
+     * virtuales) y no un ForkJoinPool porque cancelar una ForkJoinTask no interrumpe el hilo.
+     */
+    private static synchronized ExecutorService getPoolAgentes() {
+        if (poolAgentes == null) {
+            ExecutorService virtual = Boolean.getBoolean("mom.agentes.virtuales")
+                ? DeliveryScheduler.crearExecutorVirtual() : null;
+            if (virtual != null) {
+                poolAgentes = virtual;
+            } else {
+                int hilos = Math.max(1, Integer.getInteger("mom.agentes.hilos", Runtime.getRuntime().availableProcessors()));
+                AtomicInteger contador = new AtomicInteger();
+                poolAgentes = Executors.newFixedThreadPool(hilos, r -> {
+                    Thread t = new Thread(r, "agent-" + contador.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        return poolAgentes;
+    }
+    
+    /**
+     * Pool de hilos de las evaluaciones con límite de tiempo. No tiene tamaño fijo: el hilo
+     * de un agente que no responde a la interrupción queda ocupado, y un pool fijo acabaría
+     * bloqueando a todos los agentes; el cortacircuitos deja de enviarle mensajes tras
+     * unos pocos fallos, así que el número de hilos colgados está acotado.
+     */
+    private static synchronized ExecutorService getPoolLimites() {
+        if (poolLimites == null) {
+            ExecutorService virtual = Boolean.getBoolean("mom.agentes.virtuales")
+                ? DeliveryScheduler.crearExecutorVirtual() : null;
+            if (virtual != null) {
+                poolLimites = virtual;
+            } else {
+                AtomicInteger contador = new AtomicInteger();
+                poolLimites = Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "agent-deadline-" + contador.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        return poolLimites;
     }
     
     /**
@@ -102,6 +726,7 @@ public class AgentManager {
      */
     public void setHabilitado(boolean habilitado) {
         this.habilitado = habilitado;
+        cache.invalidar();
         System.out.println("Agent system: " + (habilitado ? "ENABLED" : "DISABLED"));
     }
     
@@ -113,6 +738,115 @@ public class AgentManager {
         return habilitado;
     }
     
+    /**
+     * Activa o desactiva la evaluación en paralelo de los agentes costosos
+     * @param paralelo true para el modo paralelo, false para ejecutar todos en cadena
+     */
+    public void setParalelo(boolean paralelo) {
+        this.paralelo = paralelo;
+        System.out.println("Agent evaluation: " + (paralelo ? "PARALLEL" : "SEQUENTIAL"));
+    }
+    
+    /**
+     * Activa o desactiva el orden adaptativo de la cadena de agentes. Al desactivarlo se
+     * vuelve al orden de prioridad.
+     * @param adaptativo true para reordenar según el coste y la tasa de rechazo medidos
+     */
+    public void setAdaptativo(boolean adaptativo) {
+        this.adaptativo = adaptativo;
+        if (!adaptativo) {
+            repartirAgentes(new ArrayList<>(agentes));
+        }
+        System.out.println("Agent ordering: " + (adaptativo ? "ADAPTIVE" : "PRIORITY"));
+    }
+    
+    /**
+     * Verifica si el orden de la cadena es adaptativo
+     * @return true si está activo el orden adaptativo
+     */
+    public boolean isAdaptativo() {
+        return adaptativo;
+    }
+    
+    /**
+     * Agentes en el orden en que se ejecutan actualmente
+     * @return Lista de agentes
+     */
+    public List<MessageFilterAgent> listarCadena() {
+        return new ArrayList<>(cadena);
+    }
+    
+    /**
+     * Vacía la caché de veredictos. Los cambios de configuración de los agentes que
+     * informan de su versión (MessageFilterAgent.getVersion) la vacían solos; hace falta
+     * para los agentes que cambian sin aumentarla
+     */
+    public void invalidarCache() {
+        cache.invalidar();
+    }
+    
+    /**
+     * Fija el límite general de tiempo de evaluación de los agentes que no tienen uno propio
+     * @param milisegundos Límite en milisegundos; 0 para no limitar
+     */
+    public void setLimiteEvaluacion(long milisegundos) {
+        this.limiteEvaluacionMs = Math.max(0, milisegundos);
+        System.out.println("Agent time limit: " + describirLimite());
+    }
+    
+    /**
+     * Obtiene el límite general de tiempo de evaluación de los agentes
+     * @return Milisegundos, o 0 si no hay límite
+     */
+    public long getLimiteEvaluacion() {
+        return limiteEvaluacionMs;
+    }
+    
+    /**
+     * Fija la política cuando un agente falla o supera su límite de tiempo
+     * @param falloAbierto true para aceptar el mensaje, false para rechazarlo
+     */
+    public void setFalloAbierto(boolean falloAbierto) {
+        this.falloAbierto = falloAbierto;
+        System.out.println("Agent failure policy: " + (falloAbierto ? "ACCEPT (fail-open)" : "REJECT (fail-closed)"));
+    }
+    
+    /**
+     * Verifica si los mensajes se aceptan cuando un agente falla
+     * @return true si la política es de fallo abierto
+     */
+    public boolean isFalloAbierto() {
+        return falloAbierto;
+    }
+    
+    /**
+     * Estado del cortacircuitos de un agente
+     * @param nombreAgente Nombre del agente
+     * @return Estado del circuito, o null si no hay ningún agente con ese nombre o los
+     *         cortacircuitos están desactivados
+     */
+    public CircuitBreaker.Estado getEstadoCircuito(String nombreAgente) {
+        for (MessageFilterAgent agente : agentes) {
+            if (agente.getNombre().equals(nombreAgente)) {
+                CircuitBreaker circuito = circuito(agente);
+                return circuito != null ? circuito.getEstado() : null;
+            }
+        }
+        return null;
+    }
+    
+    private String describirLimite() {
+        return limiteEvaluacionMs > 0 ? limiteEvaluacionMs + " ms" : "none";
+    }
+    
+    /**
+     * Verifica si los agentes costosos se evalúan en paralelo
+     * @return true si está activo el modo paralelo
+     */
+    public boolean isParalelo() {
+        return paralelo;
+    }
+    
     /**
      * Obtiene el número de agentes activos
      * @return Número de agentes
@@ -126,10 +860,21 @@ public class AgentManager {
      */
     public void configurarAgentesPorDefecto() {
         System.out.println("\nConfiguring default agents...");
-        agregarAgente(new SpamFilterAgent());
+        SpamFilterAgent spam = new SpamFilterAgent();
+        String ficheroPalabras = System.getProperty("mom.spam.palabras");
+        if (ficheroPalabras != null) {
+            spam.cargarPalabrasClave(new File(ficheroPalabras));
+        }
+        agregarAgente(spam);
         agregarAgente(new ContentAnalysisAgent());
         agregarAgente(new LengthFilterAgent());
         agregarAgente(new ChannelRulesAgent());
+        System.out.println("Agent evaluation: " + (paralelo ? "PARALLEL" : "SEQUENTIAL") +
+                           " (" + agentesCostosos.size() + " expensive agents), ordering: " + 
+                           (adaptativo ? "ADAPTIVE" : "PRIORITY") + ", verdict cache: " + cache.describir());
+        System.out.println("Agent time limit: " + describirLimite() + ", on failure: " +
+                           (falloAbierto ? "ACCEPT" : "REJECT") + ", circuit breaker: " +
+                           (fallosCircuito > 0 ? fallosCircuito + " failures, " + esperaCircuitoMs + " ms open" : "off"));
         System.out.println("Agent configuration completed\n");
     }
 }
@@ -0,0 +1,474 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks de los caminos críticos del broker, sin dependencias externas:
+ * publicación, despacho y ACK de MessageQueue, evaluación de los agentes (la cadena
+ * completa y cada agente por separado) y persistencia (escritura en el journal y
+ * recuperación de la cola con distintos tamaños de backlog).
+ *
+ * Cada benchmark hace unas iteraciones de calentamiento del JIT y después varias
+ * iteraciones medidas de duración fija; se informa la media y la desviación típica del
+ * tiempo por operación entre las iteraciones medidas. La salida de eventos del broker
+ * se silencia durante las mediciones.
+ * Los ficheros del journal se crean en el directorio actual (colas "bench_*") y se
+ * eliminan al terminar.
+ *
+ * Uso: java BrokerBenchmark [filtro] [iteraciones] [msPorIteracion]
+ *   filtro          Solo ejecuta los benchmarks cuyo nombre lo contiene (por defecto, todos)
+ *   iteraciones     Iteraciones medidas (por defecto, 5; el calentamiento usa las mismas)
+ *   msPorIteracion  Duración de cada iteración en milisegundos (por defecto, 500)
+ */
+public class BrokerBenchmark {
+    private static final int[] BACKLOGS = {1_000, 10_000, 100_000};
+    private static final int MENSAJES_POR_RAFAGA = 256;
+    private static final String[] MENSAJES = {
+        "[INFO] Daily backup completed successfully on node 3",
+        "[NOTIFICACION] The system has been successfully updated",
+        "[ALERTA] High CPU usage detected on the server",
+        "Meeting moved to 4pm, please update your calendars",
+        "You won a free reward, click here to claim now!",
+        "<script>alert('xss')</script>",
+        "ok",
+        "Quarterly report attached: revenue up 12% over the previous quarter"
+    };
+    private static final String[] COLAS = {"canal_INFO", "canal_NOTIFICACION", "canal_ALERTA", "canal_GENERAL"};
+
+    private static String filtro = "";
+    private static int iteraciones = 5;
+    private static long msPorIteracion = 500;
+    // Evita que el JIT elimine el trabajo medido
+    private static long sumidero = 0;
+
+    /**
+     * Operación medida; devuelve un valor que se acumula en el sumidero
+     */
+    private interface Operacion {
+        long ejecutar(int i) throws Exception;
+    }
+
+    /**
+     * Consumidor local (sin RMI) que deja en una cola los ids que recibe
+     */
+    private static class ConsumidorLocal implements ConsumerCallback {
+        final BlockingQueue<String> recibidos = new ArrayBlockingQueue<>(1 << 16);
+
+        @Override
+        public void onMessage(Message mensaje) {
+            recibidos.add(mensaje.getId());
+        }
+
+        @Override
+        public String getId() {
+            return "bench";
+        }
+    }
+
+    /**
+     * Agente costoso simulado: ocupa la CPU durante un tiempo fijo y acepta el mensaje
+     */
+    private static class AgenteLento implements MessageFilterAgent {
+        private static final long serialVersionUID = 1L;
+        private final String nombre;
+        private final long nanos;
+        private final int prioridad;
+
+        AgenteLento(String nombre, long micros) {
+            this(nombre, micros, 0);
+        }
+
+        AgenteLento(String nombre, long micros, int prioridad) {
+            this.nombre = nombre;
+            this.nanos = TimeUnit.MICROSECONDS.toNanos(micros);
+            this.prioridad = prioridad;
+        }
+
+        @Override
+        public boolean aceptarMensaje(String mensaje, String nombreCola) {
+            long fin = System.nanoTime() + nanos;
+            while (System.nanoTime() < fin) {
+                Thread.onSpinWait();
+            }
+            return true;
+        }
+
+        @Override
+        public String getNombre() {
+            return nombre;
+        }
+
+        @Override
+        public String getDescripcion() {
+            return "Simulated expensive agent";
+        }
+
+        @Override
+        public int getPrioridad() {
+            return prioridad;
+        }
+
+        @Override
+        public boolean esCostoso() {
+            return true;
+        }
+    }
+
+    /**
+     * Agente barato que rechaza los mensajes sin etiqueta de canal ("[...]"): 5 de cada 8
+     */
+    private static class AgenteEtiqueta implements MessageFilterAgent {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean aceptarMensaje(String mensaje, String nombreCola) {
+            return mensaje.startsWith("[");
+        }
+
+        @Override
+        public String getNombre() {
+            return "TagAgent";
+        }
+
+        @Override
+        public String getDescripcion() {
+            return "Simulated cheap agent that rejects untagged messages";
+        }
+    }
+
+    /**
+     * Implementación anterior de ContentAnalysisAgent con expresiones regulares (tres
+     * recorridos del mensaje), para comparar con el analizador de una pasada
+     */
+    private static class AgenteContenidoRegex implements MessageFilterAgent {
+        private static final long serialVersionUID = 1L;
+        private static final Pattern URL_SOSPECHOSA = Pattern.compile(
+            "(http://|https://)?[a-z0-9-]+(\\.[a-z0-9-]+)*(\\.[a-z]{2,})(:[0-9]+)?(/.*)?",
+            Pattern.CASE_INSENSITIVE
+        );
+        private static final Pattern CODIGO_MALICIOSO = Pattern.compile(
+            "(eval\\(|exec\\(|<script|javascript:|onclick=|onerror=)",
+            Pattern.CASE_INSENSITIVE
+        );
+        private final boolean bloquearUrls;
+
+        AgenteContenidoRegex(boolean bloquearUrls) {
+            this.bloquearUrls = bloquearUrls;
+        }
+
+        @Override
+        public boolean aceptarMensaje(String mensaje, String nombreCola) {
+            if (CODIGO_MALICIOSO.matcher(mensaje).find()) return false;
+            if (bloquearUrls && URL_SOSPECHOSA.matcher(mensaje).find()) return false;
+            long caracteresEspeciales = mensaje.chars()
+                .filter(c -> !Character.isLetterOrDigit(c) && !Character.isWhitespace(c))
+                .count();
+            return caracteresEspeciales <= mensaje.length() * 0.3;
+        }
+
+        @Override
+        public String getNombre() {
+            return "ContentAnalysisAgent (regex)";
+        }
+
+        @Override
+        public String getDescripcion() {
+            return "Previous regex-based content analysis";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) filtro = args[0];
+        if (args.length > 1) iteraciones = Integer.parseInt(args[1]);
+        if (args.length > 2) msPorIteracion = Long.parseLong(args[2]);
+        BrokerEventBus.getInstance().setVerbosidad(BrokerEventBus.Verbosidad.SILENCIO);
+
+        List<String[]> resultados = new ArrayList<>();
+        benchmarksCola(resultados);
+        benchmarksAgentes(resultados);
+        benchmarksPersistencia(resultados);
+
+        System.out.println();
+        System.out.println("═══════════════════════════════════════════════════════════════════════════");
+        System.out.println("BROKER BENCHMARKS (" + iteraciones + " iterations of " + msPorIteracion + " ms)");
+        System.out.println("═══════════════════════════════════════════════════════════════════════════");
+        System.out.printf("%-44s %14s %10s %14s%n", "Benchmark", "ns/op", "± ns", "ops/s");
+        for (String[] fila : resultados) {
+            System.out.printf("%-44s %14s %10s %14s%n", (Object[]) fila);
+        }
+        System.out.println("(checksum " + sumidero + ")");
+    }
+
+    // --- Cola -------------------------------------------------------------------------
+
+    private static void benchmarksCola(List<String[]> resultados) throws Exception {
+        if (activo("queue.publicar")) {
+            // Sin consumidores, TTL ni journal: generación del id, encolado y despacho vacío
+            MessageQueue[] cola = {new MessageQueue("bench_publicar", false, 0)};
+            resultados.add(medir("queue.publicar (no consumers)", 1, i -> {
+                if (cola[0].contarMensajes() >= 1_000_000) {
+                    cola[0].eliminar();
+                    cola[0] = new MessageQueue("bench_publicar", false, 0);
+                }
+                cola[0].publicar(MENSAJES[i & 7], false, 0);
+                return i;
+            }));
+            cola[0].eliminar();
+        }
+
+        if (activo("queue.publicar+entrega+ack")) {
+            // Ciclo completo con ventana 1: publicar, esperar la entrega y confirmar
+            MessageQueue cola = new MessageQueue("bench_ciclo", false, 0);
+            ConsumidorLocal consumidor = new ConsumidorLocal();
+            cola.registrarConsumidor(consumidor, 1);
+            resultados.add(medir("queue.publicar+entrega+ack (prefetch 1)", 1, i -> {
+                cola.publicar(MENSAJES[i & 7], false, 0);
+                String id = consumidor.recibidos.poll(5, TimeUnit.SECONDS);
+                cola.confirmarMensaje(id, consumidor);
+                return id.length();
+            }));
+            cola.eliminar();
+        }
+
+        if (activo("queue.rafaga")) {
+            // Ráfagas con ventana ilimitada: el coste por mensaje del despacho en cadena
+            MessageQueue cola = new MessageQueue("bench_rafaga", false, 0);
+            ConsumidorLocal consumidor = new ConsumidorLocal();
+            cola.registrarConsumidor(consumidor, 0);
+            resultados.add(medir("queue.rafaga " + MENSAJES_POR_RAFAGA + " msgs + ackupto (per msg)",
+                                 MENSAJES_POR_RAFAGA, i -> {
+                for (int j = 0; j < MENSAJES_POR_RAFAGA; j++) {
+                    cola.publicar(MENSAJES[j & 7], false, 0);
+                }
+                String ultimo = null;
+                for (int j = 0; j < MENSAJES_POR_RAFAGA; j++) {
+                    ultimo = consumidor.recibidos.poll(5, TimeUnit.SECONDS);
+                }
+                return cola.confirmarHasta(ultimo, consumidor);
+            }));
+            cola.eliminar();
+        }
+    }
+
+    // --- Agentes ----------------------------------------------------------------------
+
+    private static void benchmarksAgentes(List<String[]> resultados) throws Exception {
+        for (boolean conCache : new boolean[] {false, true}) {
+            // Sin caché se mide la cadena completa; con caché, los mensajes repetidos
+            String nombre = "agents.evaluarMensaje (4 default, " + (conCache ? "cache hit" : "no cache") + ")";
+            if (!activo(nombre)) continue;
+            AgentManager manager = conCache ? new AgentManager() : new AgentManager(0);
+            manager.configurarAgentesPorDefecto();
+            resultados.add(medir(nombre, 1, i ->
+                manager.evaluarMensaje(MENSAJES[i & 7], COLAS[(i >> 3) & 3]) ? 1 : 0));
+        }
+
+        MessageFilterAgent[] agentes = {
+            new SpamFilterAgent(), new ContentAnalysisAgent(), new LengthFilterAgent(), new ChannelRulesAgent()
+        };
+        for (MessageFilterAgent agente : agentes) {
+            String nombre = "agent." + agente.getNombre();
+            if (!activo(nombre)) continue;
+            resultados.add(medir(nombre, 1, i ->
+                agente.aceptarMensaje(MENSAJES[i & 7], COLAS[(i >> 3) & 3]) ? 1 : 0));
+        }
+
+        for (boolean paralelo : new boolean[] {false, true}) {
+            // Cuatro agentes costosos independientes: en cadena suman, en paralelo se solapan
+            String nombre = "agents.costosos 4 x 50 us (" + (paralelo ? "parallel" : "sequential") + ")";
+            if (!activo(nombre)) continue;
+            AgentManager manager = new AgentManager(0);
+            for (int a = 0; a < 4; a++) {
+                manager.agregarAgente(new AgenteLento("SlowAgent" + a, 50));
+            }
+            manager.setParalelo(paralelo);
+            resultados.add(medir(nombre, 1, i ->
+                manager.evaluarMensaje(MENSAJES[i & 7], COLAS[(i >> 3) & 3]) ? 1 : 0));
+        }
+
+        for (boolean adaptativo : new boolean[] {false, true}) {
+            // Un agente lento de prioridad alta que nunca rechaza y uno barato que rechaza 5/8:
+            // el orden adaptativo debe adelantar el barato
+            String nombre = "agents.orden " + (adaptativo ? "adaptive" : "priority") + " (slow + cheap)";
+            if (!activo(nombre)) continue;
+            AgentManager manager = new AgentManager(0);
+            manager.agregarAgente(new AgenteLento("SlowAgent", 50, 10));
+            manager.agregarAgente(new AgenteEtiqueta());
+            manager.setAdaptativo(adaptativo);
+            resultados.add(medir(nombre, 1, i ->
+                manager.evaluarMensaje(MENSAJES[i & 7], COLAS[(i >> 3) & 3]) ? 1 : 0));
+        }
+
+        // Mensajes largos: texto normal (se recorre entero y se acepta) y una secuencia de
+        // caracteres de dominio sin punto con las URL bloqueadas, en la que el patrón de URL
+        // de la versión con regex retrocede en cada posición (coste cuadrático)
+        StringBuilder texto = new StringBuilder();
+        for (int m = 0; texto.length() < 16 * 1024; m++) {
+            texto.append(MENSAJES[m % 5]).append(' ');
+        }
+        String textoLargo = texto.toString();
+        String secuenciaDominio = "a-".repeat(1024);
+        for (boolean regex : new boolean[] {true, false}) {
+            String variante = "agent.ContentAnalysisAgent " + (regex ? "regex" : "scan");
+            if (activo(variante + " 16 KB text")) {
+                MessageFilterAgent agente = regex ? new AgenteContenidoRegex(false) : new ContentAnalysisAgent();
+                resultados.add(medir(variante + " 16 KB text", 1, i ->
+                    agente.aceptarMensaje(textoLargo, COLAS[i & 3]) ? 1 : 0));
+            }
+            if (activo(variante + " 2 KB a-a-a")) {
+                MessageFilterAgent agente = regex ? new AgenteContenidoRegex(true) : new ContentAnalysisAgent(true, true);
+                resultados.add(medir(variante + " 2 KB a-a-a", 1, i ->
+                    agente.aceptarMensaje(secuenciaDominio, COLAS[i & 3]) ? 1 : 0));
+            }
+        }
+
+        if (activo("agent.ChannelRulesAgent 16 KB [INFO] text")) {
+            // La regla de etiqueta solo debe mirar el prefijo, no el mensaje entero
+            ChannelRulesAgent agente = new ChannelRulesAgent();
+            resultados.add(medir("agent.ChannelRulesAgent 16 KB [INFO] text", 1, i ->
+                agente.aceptarMensaje(textoLargo, "canal_INFO") ? 1 : 0));
+        }
+
+        if (activo("agent.SpamFilterAgent 5000 keywords")) {
+            // Lista grande de palabras: el coste no debe crecer con el número de palabras
+            List<String> palabras = new ArrayList<>();
+            for (int p = 0; p < 5000; p++) {
+                palabras.add("kw" + Integer.toString(p * 7919, 36) + " offer");
+            }
+            SpamFilterAgent agente = new SpamFilterAgent(palabras);
+            resultados.add(medir("agent.SpamFilterAgent 5000 keywords", 1, i ->
+                agente.aceptarMensaje(MENSAJES[i & 7], COLAS[(i >> 3) & 3]) ? 1 : 0));
+        }
+    }
+
+    // --- Persistencia -----------------------------------------------------------------
+
+    private static void benchmarksPersistencia(List<String[]> resultados) throws Exception {
+        for (ModoDurabilidad modo : new ModoDurabilidad[] {ModoDurabilidad.NINGUNA, ModoDurabilidad.AGRUPADA}) {
+            String nombre = "journal.publicar durable (" + modo + ")";
+            if (!activo(nombre)) continue;
+            MessageQueue[] cola = {crearColaDurable("bench_journal", modo)};
+            resultados.add(medir(nombre, 1, i -> {
+                if (cola[0].contarMensajes() >= 200_000) {
+                    cola[0].eliminar();
+                    cola[0] = crearColaDurable("bench_journal", modo);
+                }
+                cola[0].publicar(MENSAJES[i & 7], true, 0);
+                return i;
+            }));
+            cola[0].eliminar();
+        }
+
+        for (int backlog : BACKLOGS) {
+            String nombre = "journal.recuperar backlog " + backlog;
+            if (!activo(nombre)) continue;
+            String nombreCola = "bench_recuperar_" + backlog;
+            prepararBacklog(nombreCola, backlog);
+            MessageQueue[] ultima = {null};
+            resultados.add(medir(nombre, 1, i -> {
+                ultima[0] = new MessageQueue(nombreCola, true, 0);
+                if (ultima[0].contarMensajes() != backlog) {
+                    throw new IllegalStateException("Recovered " + ultima[0].contarMensajes() + " of " + backlog);
+                }
+                return ultima[0].contarMensajes();
+            }));
+            if (ultima[0] != null) ultima[0].eliminar();
+        }
+    }
+
+    private static MessageQueue crearColaDurable(String nombre, ModoDurabilidad modo) {
+        MessageQueue cola = new MessageQueue(nombre, true, 0);
+        cola.setModoDurabilidad(modo);
+        return cola;
+    }
+
+    /**
+     * Escribe directamente en el journal un backlog de mensajes durables sin vencimiento
+     */
+    private static void prepararBacklog(String nombreCola, int mensajes) {
+        new MessageQueue(nombreCola, true, 0).eliminar(); // Partir de un journal vacío
+        MessageJournal journal = new MessageJournal(nombreCola);
+        long ahora = System.currentTimeMillis();
+        for (int i = 1; i <= mensajes; i++) {
+            byte[] contenido = MENSAJES[i & 7].getBytes(StandardCharsets.UTF_8);
+            journal.registrarPublicacion(Integer.toString(i), contenido, ahora, Long.MAX_VALUE, null);
+        }
+        journal.cerrar();
+    }
+
+    // --- Arnés ------------------------------------------------------------------------
+
+    private static boolean activo(String nombre) {
+        return nombre.contains(filtro);
+    }
+
+    /**
+     * Mide una operación: calentamiento y después iteraciones de duración fija
+     * @param nombre Nombre del benchmark
+     * @param mensajesPorOperacion Unidades de trabajo por llamada (para informar por unidad)
+     * @param operacion Operación a medir
+     * @return Fila de resultados
+     */
+    private static String[] medir(String nombre, int mensajesPorOperacion, Operacion operacion) throws Exception {
+        System.out.println("Running " + nombre + " ...");
+        int contador = 0;
+        for (int i = 0; i < iteraciones; i++) {
+            contador = iteracion(operacion, contador, null);
+        }
+        double[] nsPorOp = new double[iteraciones];
+        for (int i = 0; i < iteraciones; i++) {
+            long[] medida = new long[2];
+            contador = iteracion(operacion, contador, medida);
+            nsPorOp[i] = medida[0] / (double) (medida[1] * mensajesPorOperacion);
+        }
+
+        double media = 0;
+        for (double v : nsPorOp) media += v;
+        media /= nsPorOp.length;
+        double varianza = 0;
+        for (double v : nsPorOp) varianza += (v - media) * (v - media);
+        double desviacion = nsPorOp.length > 1 ? Math.sqrt(varianza / (nsPorOp.length - 1)) : 0;
+
+        return new String[] {
+            nombre,
+            String.format("%.1f", media),
+            String.format("%.1f", desviacion),
+            String.format("%.0f", 1e9 / media)
+        };
+    }
+
+    /**
+     * Ejecuta la operación durante msPorIteracion
+     * @param medida Si no es null, recibe los nanosegundos y el número de operaciones
+     * @return Contador de operaciones actualizado
+     */
+    private static int iteracion(Operacion operacion, int contador, long[] medida) throws Exception {
+        long limite = TimeUnit.MILLISECONDS.toNanos(msPorIteracion);
+        long inicio = System.nanoTime();
+        long operaciones = 0;
+        long transcurrido = 0;
+        // Se comprueba el reloj cada cierto número de operaciones para no medir System.nanoTime;
+        // el tamaño del tramo crece mientras cada tramo dure menos de 10 us
+        int tramo = 1;
+        do {
+            for (int j = 0; j < tramo; j++) {
+                sumidero += operacion.ejecutar(contador++);
+            }
+            operaciones += tramo;
+            long anterior = transcurrido;
+            transcurrido = System.nanoTime() - inicio;
+            if (transcurrido - anterior < 10_000 && tramo < 1024) {
+                tramo <<= 1;
+            }
+        } while (transcurrido < limite);
+        if (medida != null) {
+            medida[0] = transcurrido;
+            medida[1] = operaciones;
+        }
+        return contador;
+    }
+}
@@ -0,0 +1,465 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Flujo de eventos tipados del broker (publicado, rechazado por un agente, entregado,
+ * confirmado, expirado...). Los hilos de publicación, entrega y expiración solo copian
+ * referencias a una ranura de un buffer circular sin cerrojos; un hilo sumidero en
+ * segundo plano los formatea y los escribe en la consola, de modo que el camino de
+ * publicación nunca espera a la E/S. Si el buffer está lleno el evento se descarta
+ * (y se cuenta) en lugar de bloquear al productor.
+ *
+ * Configuración (propiedades del sistema):
+ *   mom.eventos.nivel     SILENCIO, EVENTOS o DETALLE (por defecto, DETALLE: salida completa de la demo)
+ *   mom.eventos.muestreo  Escribe 1 de cada N eventos de nivel EVENTOS (por defecto, 1: todos)
+ *   mom.eventos.capacidad Ranuras del buffer circular (por defecto, 16384; se redondea a potencia de 2)
+ */
+public class BrokerEventBus {
+    private static BrokerEventBus instance;
+    // Eventos que el sumidero procesa antes de volcar la salida y liberar ranuras
+    private static final int EVENTOS_POR_VOLCADO = 256;
+    private static final long ESPERA_SUMIDERO_NS = 1_000_000;
+
+    /**
+     * Nivel de detalle de la salida por consola
+     */
+    public enum Verbosidad {
+        SILENCIO,  // No se escribe ningún evento (los contadores siguen activos)
+        EVENTOS,   // Una línea por evento del broker
+        DETALLE    // Además, la evaluación de cada mensaje por los agentes
+    }
+
+    /**
+     * Tipos de evento y nivel de verbosidad a partir del cual se escriben
+     */
+    public enum Tipo {
+        PUBLICADO(Verbosidad.EVENTOS),
+        LOTE_PUBLICADO(Verbosidad.EVENTOS),
+        ALMACENADO(Verbosidad.EVENTOS),
+        RECHAZADO_POR_AGENTE(Verbosidad.EVENTOS),
+        ENTREGADO(Verbosidad.EVENTOS),
+        LOTE_ENTREGADO(Verbosidad.EVENTOS),
+        CONFIRMADO(Verbosidad.EVENTOS),
+        DEVUELTO(Verbosidad.EVENTOS),
+        EXPIRADO(Verbosidad.EVENTOS),
+        EVALUACION(Verbosidad.DETALLE),
+        VEREDICTO(Verbosidad.DETALLE),
+        EVALUADO(Verbosidad.DETALLE),
+        EVALUACION_LOTE(Verbosidad.DETALLE),
+        LOTE_EVALUADO(Verbosidad.DETALLE);
+
+        private final Verbosidad nivel;
+
+        Tipo(Verbosidad nivel) {
+            this.nivel = nivel;
+        }
+
+        public Verbosidad getNivel() {
+            return nivel;
+        }
+    }
+
+    /**
+     * Ranura del buffer circular. Se reutiliza: el productor la rellena tras reservarla
+     * y el sumidero la vacía antes de liberarla. El significado de cada campo depende del tipo.
+     */
+    private static final class Evento {
+        Tipo tipo;
+        String cola;
+        String id;
+        String texto;
+        String origen;
+        long numero;
+        long total;
+        int consumidor;
+
+        void limpiar() {
+            tipo = null;
+            cola = null;
+            id = null;
+            texto = null;
+            origen = null;
+        }
+    }
+
+    private final Evento[] ranuras;
+    private final int mascara;
+    // Secuencia publicada en cada ranura; el sumidero solo la lee cuando coincide con la esperada
+    private final AtomicLongArray publicadas;
+    private final AtomicLong escritura = new AtomicLong(); // Siguiente secuencia a reservar
+    private volatile long lectura = 0;                      // Siguiente secuencia a consumir
+    private volatile Verbosidad verbosidad;
+    private volatile int muestreo;
+    private final LongAdder[] contadores = new LongAdder[Tipo.values().length];
+    private final LongAdder descartados = new LongAdder();
+    private final StringBuilder salida = new StringBuilder(); // Solo la usa el hilo sumidero
+
+    /**
+     * Constructor
+     * @param capacidad Número de ranuras del buffer (se redondea a potencia de 2)
+     * @param verbosidad Nivel de detalle de la salida
+     * @param muestreo Escribe 1 de cada N eventos de nivel EVENTOS
+     */
+    public BrokerEventBus(int capacidad, Verbosidad verbosidad, int muestreo) {
+        int tamano = Integer.highestOneBit(Math.max(64, capacidad - 1)) << 1;
+        this.ranuras = new Evento[tamano];
+        this.publicadas = new AtomicLongArray(tamano);
+        for (int i = 0; i < tamano; i++) {
+            ranuras[i] = new Evento();
+            publicadas.set(i, -1);
+        }
+        this.mascara = tamano - 1;
+        this.verbosidad = verbosidad;
+        this.muestreo = Math.max(1, muestreo);
+        for (int i = 0; i < contadores.length; i++) {
+            contadores[i] = new LongAdder();
+        }
+
+        Thread sumidero = new Thread(this::drenar, "event-sink");
+        sumidero.setDaemon(true);
+        sumidero.start();
+        // Volcar lo pendiente al cerrar la JVM
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> vaciar(1000), "event-sink-flush"));
+        System.out.println("Event stream started: " + describir());
+    }
+
+    /**
+     * Describe la configuración del flujo de eventos
+     */
+    public String describir() {
+        return "level " + verbosidad + ", sampling 1/" + muestreo + ", " + ranuras.length + " slots";
+    }
+
+    /**
+     * Obtiene la instancia compartida por el broker (patrón Singleton)
+     */
+    public static synchronized BrokerEventBus getInstance() {
+        if (instance == null) {
+            Verbosidad verbosidad;
+            try {
+                verbosidad = Verbosidad.valueOf(System.getProperty("mom.eventos.nivel", "DETALLE").trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error in mom.eventos.nivel: " + e.getMessage() + " (using DETALLE)");
+                verbosidad = Verbosidad.DETALLE;
+            }
+            int muestreo = Integer.getInteger("mom.eventos.muestreo", 1);
+            int capacidad = Integer.getInteger("mom.eventos.capacidad", 16384);
+            instance = new BrokerEventBus(capacidad, verbosidad, muestreo);
+        }
+        return instance;
+    }
+
+    public Verbosidad getVerbosidad() {
+        return verbosidad;
+    }
+
+    /**
+     * Cambia el nivel de detalle de la salida en caliente
+     * @param verbosidad Nuevo nivel
+     */
+    public void setVerbosidad(Verbosidad verbosidad) {
+        this.verbosidad = verbosidad;
+    }
+
+    public int getMuestreo() {
+        return muestreo;
+    }
+
+    /**
+     * Cambia la tasa de muestreo de los eventos de nivel EVENTOS
+     * @param muestreo Escribe 1 de cada N eventos (1 = todos)
+     */
+    public void setMuestreo(int muestreo) {
+        this.muestreo = Math.max(1, muestreo);
+    }
+
+    /**
+     * Indica si los eventos de un tipo se escriben con la verbosidad actual. Permite
+     * evitar construir textos que luego no se usarían.
+     * @param tipo Tipo de evento
+     * @return true si el tipo se escribe
+     */
+    public boolean escribe(Tipo tipo) {
+        return tipo.nivel.compareTo(verbosidad) <= 0;
+    }
+
+    /**
+     * Número de eventos de un tipo emitidos desde el arranque (escritos o no)
+     * @param tipo Tipo de evento
+     * @return Eventos emitidos
+     */
+    public long contar(Tipo tipo) {
+        return contadores[tipo.ordinal()].sum();
+    }
+
+    /**
+     * Número de eventos descartados porque el buffer estaba lleno
+     * @return Eventos descartados
+     */
+    public long contarDescartados() {
+        return descartados.sum();
+    }
+
+    // --- Eventos del broker -------------------------------------------------------------
+
+    public void publicado(String cola, String mensaje, boolean durable, long ttlMs) {
+        emitir(Tipo.PUBLICADO, cola, null, mensaje, null, ttlMs, durable ? 1 : 0, 0);
+    }
+
+    public void lotePublicado(String cola, int aceptados, int rechazados) {
+        emitir(Tipo.LOTE_PUBLICADO, cola, null, null, null, aceptados, rechazados, 0);
+    }
+
+    /**
+     * Mensajes guardados en una cola sin consumidores
+     */
+    public void almacenado(String cola, int mensajes, long ttlMs) {
+        emitir(Tipo.ALMACENADO, cola, null, null, null, ttlMs, mensajes, 0);
+    }
+
+    public void rechazadoPorAgente(String cola, String mensaje, String agente) {
+        emitir(Tipo.RECHAZADO_POR_AGENTE, cola, null, mensaje, agente, 0, 0, 0);
+    }
+
+    public void entregado(String cola, String id, int consumidor, int enVuelo, int ventana) {
+        emitir(Tipo.ENTREGADO, cola, id, null, null, enVuelo, ventana, consumidor);
+    }
+
+    public void loteEntregado(String cola, int consumidor, int mensajes, int ventana) {
+        emitir(Tipo.LOTE_ENTREGADO, cola, null, null, null, mensajes, ventana, consumidor);
+    }
+
+    /**
+     * ACK de un mensaje (id) o de varios (id null y número de mensajes)
+     */
+    public void confirmado(String cola, String id, int mensajes) {
+        emitir(Tipo.CONFIRMADO, cola, id, null, null, mensajes, 0, 0);
+    }
+
+    /**
+     * NACK de un mensaje (id) o de varios (id null y número de mensajes)
+     */
+    public void devuelto(String cola, String id, int mensajes) {
+        emitir(Tipo.DEVUELTO, cola, id, null, null, mensajes, 0, 0);
+    }
+
+    public void expirado(String cola, String mensaje) {
+        emitir(Tipo.EXPIRADO, cola, null, mensaje, null, 0, 0, 0);
+    }
+
+    public void evaluacion(String cola, String mensaje, int agentes) {
+        emitir(Tipo.EVALUACION, cola, null, mensaje, null, agentes, 0, 0);
+    }
+
+    /**
+     * Resultado de un agente sobre un mensaje
+     * @param agente Etiqueta del agente
+     * @param motivo Texto del resultado
+     * @param detalle Texto que se añade al motivo (puede ser null)
+     */
+    public void veredicto(String agente, String motivo, String detalle) {
+        emitir(Tipo.VEREDICTO, null, detalle, motivo, agente, 0, 0, 0);
+    }
+
+    /**
+     * Fin de la evaluación de un mensaje
+     * @param agenteQueRechaza Agente que lo rechazó o null si todos lo aceptaron
+     */
+    public void evaluado(String cola, String agenteQueRechaza) {
+        emitir(Tipo.EVALUADO, cola, null, null, agenteQueRechaza, 0, 0, 0);
+    }
+
+    public void evaluacionLote(String cola, int mensajes, int agentes) {
+        emitir(Tipo.EVALUACION_LOTE, cola, null, null, null, agentes, mensajes, 0);
+    }
+
+    public void loteEvaluado(String cola, int aceptados, int rechazados) {
+        emitir(Tipo.LOTE_EVALUADO, cola, null, null, null, aceptados, rechazados, 0);
+    }
+
+    // --- Buffer circular ----------------------------------------------------------------
+
+    /**
+     * Reserva una ranura, la rellena y la publica para el sumidero. No bloquea: si el
+     * evento no se escribe con la verbosidad actual, no sale en el muestreo o el buffer
+     * está lleno, solo se cuenta.
+     */
+    private void emitir(Tipo tipo, String cola, String id, String texto, String origen,
+                        long numero, long total, int consumidor) {
+        contadores[tipo.ordinal()].increment();
+        if (!escribe(tipo)) return;
+        int tasa = muestreo;
+        if (tasa > 1 && tipo.nivel == Verbosidad.EVENTOS && ThreadLocalRandom.current().nextInt(tasa) != 0) {
+            return;
+        }
+
+        long secuencia;
+        do {
+            secuencia = escritura.get();
+            if (secuencia - lectura >= ranuras.length) {
+                descartados.increment();
+                return;
+            }
+        } while (!escritura.compareAndSet(secuencia, secuencia + 1));
+
+        int indice = (int) (secuencia & mascara);
+        Evento evento = ranuras[indice];
+        evento.tipo = tipo;
+        evento.cola = cola;
+        evento.id = id;
+        evento.texto = texto;
+        evento.origen = origen;
+        evento.numero = numero;
+        evento.total = total;
+        evento.consumidor = consumidor;
+        // Escritura con semántica release: el sumidero ve los campos al leer la secuencia
+        publicadas.lazySet(indice, secuencia);
+    }
+
+    /**
+     * Bucle del hilo sumidero: consume los eventos en orden de reserva, los formatea en
+     * un buffer y hace una sola escritura en la consola por cada tanda
+     */
+    private void drenar() {
+        long avisados = 0;
+        while (true) {
+            int procesados = 0;
+            long siguiente = lectura;
+            while (procesados < EVENTOS_POR_VOLCADO) {
+                int indice = (int) (siguiente & mascara);
+                if (publicadas.get(indice) != siguiente) break;
+                Evento evento = ranuras[indice];
+                try {
+                    formatear(evento);
+                } catch (Exception e) {
+                    System.err.println("Error formatting broker event: " + e.getMessage());
+                }
+                evento.limpiar();
+                siguiente++;
+                procesados++;
+            }
+            // Libera las ranuras consumidas
+            lectura = siguiente;
+
+            long perdidos = descartados.sum();
+            if (perdidos != avisados) {
+                salida.append("[events] ").append(perdidos - avisados)
+                      .append(" events dropped (ring buffer full)\n");
+                avisados = perdidos;
+            }
+            if (salida.length() > 0) {
+                System.out.print(salida);
+                System.out.flush();
+                salida.setLength(0);
+            }
+            if (procesados == 0) {
+                LockSupport.parkNanos(ESPERA_SUMIDERO_NS);
+            }
+        }
+    }
+
+    /**
+     * Espera a que el sumidero haya escrito los eventos emitidos hasta ahora
+     * @param maximoMs Tiempo máximo de espera en milisegundos
+     */
+    public void vaciar(long maximoMs) {
+        long objetivo = escritura.get();
+        long limite = System.currentTimeMillis() + maximoMs;
+        while (lectura < objetivo && System.currentTimeMillis() < limite) {
+            LockSupport.parkNanos(ESPERA_SUMIDERO_NS);
+        }
+    }
+
+    /**
+     * Añade a la salida las líneas de un evento. Solo lo llama el hilo sumidero.
+     */
+    private void formatear(Evento e) {
+        StringBuilder s = salida;
+        switch (e.tipo) {
+            case PUBLICADO:
+                s.append("Message published to the queue '").append(e.cola).append("' (durable: ")
+                 .append(e.total == 1).append(", TTL: ").append(MessageQueue.describirTtl(e.numero))
+                 .append("): ").append(e.texto).append('\n');
+                break;
+            case LOTE_PUBLICADO:
+                s.append("Batch published to the queue '").append(e.cola).append("': ").append(e.numero)
+                 .append(" accepted, ").append(e.total).append(" rejected by agents\n");
+                break;
+            case ALMACENADO:
+                s.append(e.total == 1 ? "Message" : e.total + " messages").append(" stored in queue '")
+                 .append(e.cola).append("'. ")
+                 .append(MessageQueue.describirCaducidad(e.numero, e.total == 1 ? "It" : "They")).append('\n');
+                break;
+            case RECHAZADO_POR_AGENTE:
+                s.append("Message rejected by ").append(e.origen)
+                 .append(" and NOT published to the queue '").append(e.cola).append("'\n");
+                break;
+            case ENTREGADO:
+                s.append("Message ").append(e.id).append(" delivered to consumer #").append(e.consumidor)
+                 .append(" of '").append(e.cola).append("' (in flight: ").append(e.numero).append('/')
+                 .append(MessageQueue.describirVentana((int) e.total)).append(").\n");
+                break;
+            case LOTE_ENTREGADO:
+                s.append("Batch of ").append(e.numero).append(" messages delivered to consumer #")
+                 .append(e.consumidor).append(" of '").append(e.cola).append("' (prefetch: ")
+                 .append(MessageQueue.describirVentana((int) e.total)).append(").\n");
+                break;
+            case CONFIRMADO:
+                if (e.id != null) {
+                    s.append("Message ").append(e.id).append(" acknowledged (ACK) by consumer.\n");
+                } else {
+                    s.append(e.numero).append(" messages acknowledged (ACK) by consumer in the queue '")
+                     .append(e.cola).append("'.\n");
+                }
+                break;
+            case DEVUELTO:
+                if (e.id != null) {
+                    s.append("Message ").append(e.id)
+                     .append(" rejected (NACK) by consumer and returned to the queue.\n");
+                } else {
+                    s.append(e.numero).append(" messages rejected (NACK) by consumer and returned to the queue '")
+                     .append(e.cola).append("'.\n");
+                }
+                break;
+            case EXPIRADO:
+                s.append("Expired message removed from the queue '").append(e.cola).append("': ")
+                 .append(e.texto).append('\n');
+                break;
+            case EVALUACION:
+                s.append("\n═══════════════════════════════════════════════════════\n")
+                 .append("AGENT EVALUATION\n")
+                 .append("   Queue: ").append(e.cola).append('\n')
+                 .append("   Message: ")
+                 .append(e.texto.length() > 50 ? e.texto.substring(0, 47) + "..." : e.texto).append('\n')
+                 .append("   Active agents: ").append(e.numero).append('\n')
+                 .append("───────────────────────────────────────────────────────\n");
+                break;
+            case VEREDICTO:
+                s.append('[').append(e.origen).append("] ").append(e.texto);
+                if (e.id != null) s.append(e.id);
+                s.append('\n');
+                break;
+            case EVALUADO:
+                s.append("───────────────────────────────────────────────────────\n")
+                 .append(e.origen != null ? "MESSAGE REJECTED by " + e.origen : "MESSAGE ACCEPTED by all agents")
+                 .append("\n═══════════════════════════════════════════════════════\n\n");
+                break;
+            case EVALUACION_LOTE:
+                s.append("\n═══════════════════════════════════════════════════════\n")
+                 .append("AGENT BATCH EVALUATION\n")
+                 .append("   Queue: ").append(e.cola).append('\n')
+                 .append("   Messages: ").append(e.total).append('\n')
+                 .append("   Active agents: ").append(e.numero).append('\n')
+                 .append("───────────────────────────────────────────────────────\n");
+                break;
+            case LOTE_EVALUADO:
+                s.append("───────────────────────────────────────────────────────\n")
+                 .append("BATCH EVALUATED: ").append(e.numero).append(" accepted, ").append(e.total)
+                 .append(" rejected\n═══════════════════════════════════════════════════════\n\n");
+                break;
+        }
+    }
+}
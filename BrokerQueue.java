@@ -0,0 +1,104 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Operaciones que el broker hace sobre una cola, sea una cola normal (MessageQueue) o
+ * una cola particionada (PartitionedQueue), que reparte sus mensajes entre varias
+ * MessageQueue.
+ */
+public interface BrokerQueue {
+
+    String getNombre();
+
+    boolean esDurable();
+
+    long getTtl();
+
+    /**
+     * Establece el TTL de los próximos mensajes sin TTL propio
+     * @param ttlMs Tiempo de vida en milisegundos (0 = no expiran)
+     */
+    void setTtl(long ttlMs);
+
+    ModoDurabilidad getModoDurabilidad();
+
+    /**
+     * Publica un mensaje
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @param ttlMs Tiempo de vida del mensaje en milisegundos (0 = no expira)
+     * @param cabeceras Cabeceras del mensaje (puede ser null)
+     */
+    void publicar(String mensaje, boolean durable, long ttlMs, Map<String, String> cabeceras);
+
+    /**
+     * Publica un mensaje con clave de enrutamiento. Las colas particionadas envían todos
+     * los mensajes con la misma clave a la misma partición, que los entrega en orden; las
+     * colas normales ignoran la clave.
+     * @param clave Clave de enrutamiento (null = sin clave)
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @param ttlMs Tiempo de vida del mensaje en milisegundos (0 = no expira)
+     * @param cabeceras Cabeceras del mensaje (puede ser null)
+     */
+    default void publicar(String clave, String mensaje, boolean durable, long ttlMs, Map<String, String> cabeceras) {
+        publicar(mensaje, durable, ttlMs, cabeceras);
+    }
+
+    /**
+     * Publica un mensaje cuyo contenido comparten varias colas (envío de un exchange)
+     * @param clave Clave de enrutamiento (null = sin clave)
+     * @param contenido Contenido compartido
+     * @param durable Si el mensaje debe persistir
+     * @param ttlMs Tiempo de vida del mensaje en milisegundos (0 = no expira)
+     * @param cabeceras Cabeceras del mensaje (puede ser null)
+     */
+    void publicarCompartido(String clave, SharedPayload contenido, boolean durable, long ttlMs, 
+                            Map<String, String> cabeceras);
+
+    void publicarLote(List<String> lote, boolean durable);
+
+    void registrarConsumidor(ConsumerCallback callback);
+
+    void registrarConsumidor(ConsumerCallback callback, int prefetch);
+
+    boolean desuscribirConsumidor(ConsumerCallback callback);
+
+    void setFairDispatch(boolean fairDispatch);
+
+    void setModoDurabilidad(ModoDurabilidad modo);
+
+    void configurarGroupCommit(long latenciaMaximaMicros, int loteMaximo);
+
+    boolean confirmarMensaje(String mensajeId, ConsumerCallback consumidor);
+
+    int confirmarMensajes(List<String> mensajeIds, ConsumerCallback consumidor);
+
+    int confirmarHasta(String mensajeId, ConsumerCallback consumidor);
+
+    boolean rechazarMensaje(String mensajeId, ConsumerCallback consumidor);
+
+    int rechazarMensajes(List<String> mensajeIds, ConsumerCallback consumidor);
+
+    int contarMensajes();
+
+    long contarExpirados();
+
+    int contarEntregasPendientes();
+
+    int contarConsumidores();
+
+    /**
+     * Elimina la cola y sus recursos asociados (journal incluido)
+     */
+    void eliminar();
+
+    /**
+     * Colas físicas que forman esta cola: ella misma, o sus particiones
+     * @return Lista de colas, para las métricas
+     */
+    default List<MessageQueue> getParticiones() {
+        return Collections.singletonList((MessageQueue) this);
+    }
+}
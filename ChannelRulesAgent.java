@@ -1,79 +1,361 @@
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
  * Agente que filtra mensajes basándose en reglas específicas por canal
+ *
+ * Las reglas se indexan por el nombre de la cola en un trie, que admite nombres exactos y
+ * patrones con comodines ("*" equivale a cualquier secuencia de caracteres, por ejemplo
+ * "canal_*"). Si varias reglas encajan con una cola, se aplica la más específica: la que
+ * coincide literalmente en más caracteres antes del primer comodín.
+ *
+ * Las reglas del tipo "el mensaje empieza por [ETIQUETA]" se comprueban comparando solo
+ * el prefijo, sin recorrer el resto del mensaje; las expresiones regulares solo se usan
+ * para las reglas que no se pueden reducir a un prefijo. Cada cambio de reglas construye
+ * un trie nuevo y lo publica de una vez, así que se pueden añadir reglas mientras el
+ * agente evalúa mensajes en otros hilos.
  */
 public class ChannelRulesAgent implements MessageFilterAgent {
     // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion
     private static final long serialVersionUID = 1L;
-    
-    // Reglas específicas por canal (pattern --> reglas regex)
-    private final Map<String, Pattern> reglasCanal = new HashMap<>();
-    
+
+    // Carácter comodín de los patrones de nombre de cola
+    private static final char COMODIN = '*';
+    // Máximo de colas cuya regla resuelta se recuerda en cada índice
+    private static final int MAXIMO_RESUELTAS = 1024;
+
+    /**
+     * Condición que debe cumplir un mensaje para publicarse en un canal
+     */
+    private abstract static class Regla implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        abstract boolean cumple(String mensaje);
+    }
+
+    /**
+     * El mensaje debe empezar por un texto fijo (por ejemplo, una etiqueta "[INFO]")
+     */
+    private static final class ReglaPrefijo extends Regla {
+        private static final long serialVersionUID = 1L;
+        private final String prefijo;           // En minúsculas si se ignoran mayúsculas
+        private final boolean ignorarMayusculas; // Solo mayúsculas ASCII, como Pattern.CASE_INSENSITIVE
+        private final boolean unaLinea;         // El resto no puede tener saltos de línea ("." sin DOTALL)
+
+        ReglaPrefijo(String prefijo, boolean ignorarMayusculas, boolean unaLinea) {
+            this.prefijo = ignorarMayusculas ? minusculasAscii(prefijo) : prefijo;
+            this.ignorarMayusculas = ignorarMayusculas;
+            this.unaLinea = unaLinea;
+        }
+
+        @Override
+        boolean cumple(String mensaje) {
+            int longitud = prefijo.length();
+            if (mensaje.length() < longitud) {
+                return false;
+            }
+            for (int i = 0; i < longitud; i++) {
+                char c = mensaje.charAt(i);
+                if ((ignorarMayusculas ? minusculaAscii(c) : c) != prefijo.charAt(i)) {
+                    return false;
+                }
+            }
+            if (unaLinea) {
+                for (int i = longitud; i < mensaje.length(); i++) {
+                    if (esFinDeLinea(mensaje.charAt(i))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * El mensaje completo debe cumplir una expresión regular
+     */
+    private static final class ReglaRegex extends Regla {
+        private static final long serialVersionUID = 1L;
+        private final Pattern patron;
+
+        ReglaRegex(Pattern patron) {
+            this.patron = patron;
+        }
+
+        @Override
+        boolean cumple(String mensaje) {
+            return patron.matcher(mensaje).matches();
+        }
+    }
+
+    /**
+     * Índice inmutable de las reglas: el trie y las reglas ya resueltas por nombre de
+     * cola, para no recorrer el trie con cada mensaje de las colas conocidas
+     */
+    private static final class Indice {
+        // Marca de las colas resueltas sin regla (ConcurrentHashMap no admite null)
+        private static final Regla SIN_REGLA = new ReglaPrefijo("", false, false);
+        private final Nodo raiz;
+        private final ConcurrentHashMap<String, Regla> resueltas = new ConcurrentHashMap<>();
+
+        Indice(Nodo raiz) {
+            this.raiz = raiz;
+        }
+
+        Regla buscar(String cola) {
+            Regla regla = resueltas.get(cola);
+            if (regla == null) {
+                Regla encontrada = raiz.buscar(cola, 0);
+                regla = encontrada != null ? encontrada : SIN_REGLA;
+                if (resueltas.size() < MAXIMO_RESUELTAS) {
+                    resueltas.put(cola, regla);
+                }
+            }
+            return regla != SIN_REGLA ? regla : null;
+        }
+    }
+
+    /**
+     * Nodo del trie de nombres de cola. Una vez construido no se modifica: los hijos se
+     * guardan en arrays ordenados por carácter y se buscan por búsqueda binaria.
+     */
+    private static final class Nodo {
+        private TreeMap<Character, Nodo> construccion = new TreeMap<>();
+        private char[] claves;
+        private Nodo[] hijos;
+        private Nodo comodin;  // Hijo que consume cualquier secuencia de caracteres
+        private Regla regla;   // Regla de las colas que terminan en este nodo
+
+        void insertar(String patronCola, Regla regla) {
+            Nodo nodo = this;
+            for (int i = 0; i < patronCola.length(); i++) {
+                char c = patronCola.charAt(i);
+                if (c == COMODIN) {
+                    if (i > 0 && patronCola.charAt(i - 1) == COMODIN) continue; // "**" equivale a "*"
+                    if (nodo.comodin == null) nodo.comodin = new Nodo();
+                    nodo = nodo.comodin;
+                } else {
+                    nodo = nodo.construccion.computeIfAbsent(c, k -> new Nodo());
+                }
+            }
+            nodo.regla = regla;
+        }
+
+        /**
+         * Pasa los hijos a arrays ordenados; después el nodo ya no admite inserciones
+         */
+        Nodo congelar() {
+            claves = new char[construccion.size()];
+            hijos = new Nodo[construccion.size()];
+            int i = 0;
+            for (Map.Entry<Character, Nodo> hijo : construccion.entrySet()) {
+                claves[i] = hijo.getKey();
+                hijos[i++] = hijo.getValue().congelar();
+            }
+            construccion = null;
+            if (comodin != null) comodin.congelar();
+            return this;
+        }
+
+        /**
+         * Busca la regla de una cola desde la posición i del nombre. Prueba antes el
+         * carácter literal que el comodín, así que gana la regla más específica.
+         */
+        Regla buscar(String cola, int i) {
+            if (i == cola.length()) {
+                if (regla != null) return regla;
+                return comodin != null ? comodin.buscar(cola, i) : null;
+            }
+            int posicion = Arrays.binarySearch(claves, cola.charAt(i));
+            if (posicion >= 0) {
+                Regla encontrada = hijos[posicion].buscar(cola, i + 1);
+                if (encontrada != null) return encontrada;
+            }
+            if (comodin != null) {
+                for (int j = i; j <= cola.length(); j++) {
+                    Regla encontrada = comodin.buscar(cola, j);
+                    if (encontrada != null) return encontrada;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Reglas por patrón de cola, en el orden en que se añadieron (se serializan)
+    private final Map<String, Regla> reglasCanal = new LinkedHashMap<>();
+    // Índice construido a partir de reglasCanal; se sustituye entero en cada cambio
+    private transient volatile Indice indice = new Indice(new Nodo().congelar());
+    // Aumenta con cada cambio de reglas, para invalidar la caché de veredictos del gestor
+    private transient volatile long version;
+
     public ChannelRulesAgent() {
         // Configurar reglas por defecto para cada canal
-        
+
         // Solo mensajes de notificaciones del sistema (da igual mayus/minus)
-        reglasCanal.put("canal_NOTIFICACION", Pattern.compile(
-            "^\\[NOTIFICACION\\].*", Pattern.CASE_INSENSITIVE
-        ));
-        
+        agregarReglaPrefijo("canal_NOTIFICACION", "[NOTIFICACION]", true);
+
         // Solo mensajes de alertas
-        reglasCanal.put("canal_ALERTA", Pattern.compile(
-            "^\\[ALERTA\\].*", Pattern.CASE_INSENSITIVE
-        ));
-        
+        agregarReglaPrefijo("canal_ALERTA", "[ALERTA]", true);
+
         // Solo mensajes de información
-        reglasCanal.put("canal_INFO", Pattern.compile(
-            "^\\[INFO\\].*", Pattern.CASE_INSENSITIVE
-        ));
-        
+        agregarReglaPrefijo("canal_INFO", "[INFO]", true);
+
         // Cualquier mensaje válido (sin restricciones) para el canal_GENERAL
     }
-    
+
     /**
-     * Agrega una regla personalizada para un canal
-     * @param nombreCola Nombre del canal
+     * Agrega una regla personalizada para un canal. Los patrones de la forma
+     * "^literal.*" (sin más opciones que CASE_INSENSITIVE o DOTALL) se comprueban como
+     * un prefijo; el resto, con la expresión regular completa (matches).
+     * @param nombreCola Nombre del canal, o patrón con comodines "*"
      * @param patron Patrón regex que debe cumplir el mensaje
      */
     public void agregarRegla(String nombreCola, Pattern patron) {
-        reglasCanal.put(nombreCola, patron);
+        String prefijo = prefijoLiteral(patron);
+        boolean ignorarMayusculas = (patron.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        boolean unaLinea = (patron.flags() & Pattern.DOTALL) == 0;
+        actualizar(nombreCola, prefijo != null
+            ? new ReglaPrefijo(prefijo, ignorarMayusculas, unaLinea)
+            : new ReglaRegex(patron));
+    }
+
+    /**
+     * Agrega una regla para un canal: el mensaje debe empezar por el prefijo indicado
+     * @param nombreCola Nombre del canal, o patrón con comodines "*"
+     * @param prefijo Texto por el que deben empezar los mensajes (por ejemplo, "[INFO]")
+     * @param ignorarMayusculas true para no distinguir mayúsculas de minúsculas (ASCII)
+     */
+    public void agregarReglaPrefijo(String nombreCola, String prefijo, boolean ignorarMayusculas) {
+        actualizar(nombreCola, new ReglaPrefijo(prefijo, ignorarMayusculas, false));
+    }
+
+    /**
+     * Sustituye la regla de un patrón de cola y publica un trie nuevo con todas las reglas
+     */
+    private synchronized void actualizar(String nombreCola, Regla regla) {
+        reglasCanal.put(nombreCola, regla);
+        indice = construirIndice();
+        version++;
     }
-    
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    private Indice construirIndice() {
+        Nodo raiz = new Nodo();
+        for (Map.Entry<String, Regla> entrada : reglasCanal.entrySet()) {
+            raiz.insertar(entrada.getKey(), entrada.getValue());
+        }
+        return new Indice(raiz.congelar());
+    }
+
+    private void readObject(ObjectInputStream entrada) throws IOException, ClassNotFoundException {
+        entrada.defaultReadObject();
+        indice = construirIndice();
+    }
+
     @Override
     public boolean aceptarMensaje(String mensaje, String nombreCola) {
+        Regla regla = indice.buscar(nombreCola);
+
         // Si no hay regla específica para este canal, aceptar
-        if (!reglasCanal.containsKey(nombreCola)) {
-            System.out.println("[CHANNEL RULES] Message accepted (no specific rules for '" + 
-                             nombreCola + "')");
+        if (regla == null) {
+            BrokerEventBus.getInstance().veredicto("CHANNEL RULES", "Message accepted, no specific rules for ", nombreCola);
             return true;
         }
-        
-        Pattern patron = reglasCanal.get(nombreCola);
-        boolean cumpleRegla = patron.matcher(mensaje).matches();
-        
+
+        boolean cumpleRegla = regla.cumple(mensaje);
+
         if (cumpleRegla) {
-            System.out.println("[CHANNEL RULES] Message accepted for '" + nombreCola + "'");
+            BrokerEventBus.getInstance().veredicto("CHANNEL RULES", "Message accepted for ", nombreCola);
         } else {
-            System.out.println("[CHANNEL RULES] Message rejected: does not comply with the rules of '" + 
-                             nombreCola + "'");
+            BrokerEventBus.getInstance().veredicto("CHANNEL RULES", "Message rejected: does not comply with the rules of ",
+                                                   nombreCola);
         }
-        
+
         return cumpleRegla;
     }
-    
+
+    /**
+     * Obtiene el texto fijo de un patrón de la forma "^literal.*" (o "literal.*"): con
+     * matches(), equivale a comprobar que el mensaje empieza por ese texto
+     * @param patron Patrón de la regla
+     * @return Texto literal, o null si el patrón no tiene esa forma
+     */
+    private static String prefijoLiteral(Pattern patron) {
+        if ((patron.flags() & ~(Pattern.CASE_INSENSITIVE | Pattern.DOTALL)) != 0) {
+            return null;
+        }
+        String fuente = patron.pattern();
+        if (!fuente.endsWith(".*")) {
+            return null;
+        }
+        int fin = fuente.length() - 2;
+        int i = fuente.startsWith("^") ? 1 : 0;
+        StringBuilder literal = new StringBuilder();
+        while (i < fin) {
+            char c = fuente.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= fin) return null;
+                char escapado = fuente.charAt(i + 1);
+                if (escapado == 'Q') {
+                    int cierre = fuente.indexOf("\\E", i + 2);
+                    if (cierre < 0 || cierre + 2 > fin) return null;
+                    literal.append(fuente, i + 2, cierre);
+                    i = cierre + 2;
+                    continue;
+                }
+                if (Character.isLetterOrDigit(escapado)) return null; // Clases (\d, \w...) o referencias
+                literal.append(escapado);
+                i += 2;
+            } else if ("[](){}.*+?^$|".indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        return literal.toString();
+    }
+
+    /**
+     * Terminadores de línea que no acepta "." sin DOTALL
+     */
+    private static boolean esFinDeLinea(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static char minusculaAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static String minusculasAscii(String texto) {
+        StringBuilder resultado = new StringBuilder(texto.length());
+        for (int i = 0; i < texto.length(); i++) {
+            resultado.append(minusculaAscii(texto.charAt(i)));
+        }
+        return resultado.toString();
+    }
+
     @Override
     public String getNombre() {
         return "ChannelRulesAgent";
     }
-    
+
     @Override
     public String getDescripcion() {
         return "Validates that messages comply with the specific rules of each channel";
     }
-    
+
     @Override
     public int getPrioridad() {
         return 7; // Prioridad alta-media
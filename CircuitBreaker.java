@@ -0,0 +1,105 @@
+/**
+ * Cortacircuitos de un agente de filtrado. Tras varios fallos seguidos (excepciones o
+ * evaluaciones que superan su límite de tiempo) se abre y el gestor deja de consultar al
+ * agente durante un tiempo de espera; después deja pasar una única evaluación de prueba
+ * (semiabierto): si va bien se cierra y, si falla, vuelve a abrirse otra espera completa.
+ *
+ * El camino normal (circuito cerrado y sin fallos) solo lee campos volátiles; las
+ * transiciones de estado, que son raras, se sincronizan.
+ */
+public class CircuitBreaker {
+    public enum Estado { CERRADO, ABIERTO, SEMIABIERTO }
+
+    private final String nombre;
+    private final int fallosParaAbrir;
+    private final long esperaNanos;
+    private final MetricsRegistry.MetricasAgente metricas;
+
+    private volatile Estado estado = Estado.CERRADO;
+    private volatile int fallosSeguidos;
+    private long reintentoNanos;     // Momento en que un circuito abierto admite una prueba
+    private boolean pruebaEnCurso;   // Semiabierto: ya hay una evaluación de prueba en marcha
+
+    /**
+     * Constructor
+     * @param nombre Nombre del agente
+     * @param fallosParaAbrir Fallos seguidos que abren el circuito
+     * @param esperaMs Milisegundos que el circuito permanece abierto antes de probar de nuevo
+     * @param metricas Métricas del agente (disparos y estado)
+     */
+    public CircuitBreaker(String nombre, int fallosParaAbrir, long esperaMs, MetricsRegistry.MetricasAgente metricas) {
+        this.nombre = nombre;
+        this.fallosParaAbrir = Math.max(1, fallosParaAbrir);
+        this.esperaNanos = Math.max(0, esperaMs) * 1_000_000L;
+        this.metricas = metricas;
+        metricas.estadoCircuito(Estado.CERRADO.ordinal());
+    }
+
+    /**
+     * Indica si se debe evaluar el mensaje con el agente
+     * @return true si el circuito está cerrado o esta evaluación es la de prueba
+     */
+    public boolean permitir() {
+        if (estado == Estado.CERRADO) return true;
+        synchronized (this) {
+            if (estado == Estado.CERRADO) return true;
+            if (estado == Estado.ABIERTO && System.nanoTime() - reintentoNanos >= 0) {
+                cambiarEstado(Estado.SEMIABIERTO);
+                pruebaEnCurso = false;
+            }
+            if (estado == Estado.SEMIABIERTO && !pruebaEnCurso) {
+                pruebaEnCurso = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Registra una evaluación correcta: reinicia la cuenta de fallos y cierra el circuito
+     */
+    public void exito() {
+        if (estado == Estado.CERRADO && fallosSeguidos == 0) return;
+        synchronized (this) {
+            fallosSeguidos = 0;
+            if (estado != Estado.CERRADO) {
+                cambiarEstado(Estado.CERRADO);
+                System.out.println("Circuit breaker CLOSED for agent " + nombre + ": it is evaluated again");
+            }
+        }
+    }
+
+    /**
+     * Registra un fallo del agente y abre el circuito si se alcanza el umbral (o si era
+     * la evaluación de prueba)
+     */
+    public synchronized void fallo() {
+        fallosSeguidos++;
+        if (estado == Estado.SEMIABIERTO || (estado == Estado.CERRADO && fallosSeguidos >= fallosParaAbrir)) {
+            reintentoNanos = System.nanoTime() + esperaNanos;
+            cambiarEstado(Estado.ABIERTO);
+            metricas.circuitoAbierto();
+            System.out.println("Circuit breaker OPEN for agent " + nombre + " after " + fallosSeguidos +
+                             " consecutive failures: bypassing it for " + (esperaNanos / 1_000_000) + " ms");
+        }
+    }
+
+    /**
+     * Libera la evaluación de prueba de un circuito semiabierto que se canceló sin
+     * veredicto, para que la siguiente evaluación pueda hacer la prueba
+     */
+    public synchronized void cancelarPrueba() {
+        if (estado == Estado.SEMIABIERTO) {
+            pruebaEnCurso = false;
+        }
+    }
+
+    public Estado getEstado() {
+        return estado;
+    }
+
+    private void cambiarEstado(Estado nuevo) {
+        estado = nuevo;
+        metricas.estadoCircuito(nuevo.ordinal());
+    }
+}
@@ -0,0 +1,15 @@
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Interfaz opcional para consumidores que aceptan la entrega de mensajes por lotes.
+ * Si el callback de un consumidor la implementa, la cola agrupa sus entregas pendientes
+ * y las envía en una sola llamada remota; en caso contrario usa onMessage mensaje a mensaje.
+ */
+public interface ConsumerBatchCallback extends ConsumerCallback {
+    /**
+     * Método llamado con un lote de mensajes disponibles, en orden de entrega.
+     * @param mensajes Mensajes recibidos
+     */
+    void onMessages(List<Message> mensajes) throws RemoteException;
+}
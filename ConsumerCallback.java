@@ -8,10 +8,11 @@ import java.rmi.RemoteException;
 public interface ConsumerCallback extends Remote {
     /**
      * Método llamado cuando hay un nuevo mensaje disponible.
-     * El mensaje contiene el ID y el contenido separados por "||".
-     * @param mensaje El mensaje recibido (formato: "ID||CONTENIDO")
+     * Los avisos del broker (por ejemplo, la eliminación de la cola) llegan también por
+     * aquí, con el flag Message.SISTEMA.
+     * @param mensaje El mensaje recibido
      */
-    void onMessage(String mensaje) throws RemoteException;
+    void onMessage(Message mensaje) throws RemoteException;
     
     /**
      * Método para obtener el ID único del consumidor
@@ -1,20 +1,37 @@
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Cliente consumidor que se conecta a un MessageBroker para recibir mensajes de una cola.
  */
-public class ConsumerImpl extends UnicastRemoteObject implements Consumer, ConsumerCallback {
+public class ConsumerImpl extends UnicastRemoteObject implements Consumer, ConsumerBatchCallback {
     // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion
     private static final long serialVersionUID = 1L;
     private final String consumerId;
     private String nombreCola; // Para almacenar el nombre de la cola de la que se están consumiendo mensajes
     private MessageBroker broker; // Referencia al broker para enviar ACKs
     private boolean autoAck = false; // Por defecto, ACK manual
+    private int prefetch = 1; // Ventana de prefetch pedida al broker (0 = ilimitada)
+    
+    // ACK automático por lotes: se confirma de forma acumulativa el último mensaje recibido
+    // de cada partición (una cola normal es su única partición)
+    private static final int LOTE_ACK_MAXIMO = 64;
+    private static final long INTERVALO_ACK_MS = 100;
+    private final Object lockAck = new Object();
+    private final Map<String, String> ultimoSinAck = new LinkedHashMap<>(); // Partición -> último mensaje sin ACK
+    private int sinAck = 0;             // Mensajes recibidos pendientes de ACK automático
+    private ScheduledExecutorService temporizadorAck;
     
     protected ConsumerImpl() throws RemoteException {
         super();
@@ -34,6 +51,26 @@ public class ConsumerImpl extends UnicastRemoteObject implements Consumer, Consu
     public void setAutoAck(boolean autoAck) {
         this.autoAck = autoAck;
         System.out.println("Confirmation mode: " + (autoAck ? "Automatic" : "Manual"));
+        
+        // Los ACK automáticos que no llenan un lote se envían periódicamente
+        if (autoAck && temporizadorAck == null) {
+            temporizadorAck = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "auto-ack");
+                t.setDaemon(true);
+                return t;
+            });
+            temporizadorAck.scheduleAtFixedRate(this::enviarAcksPendientes, 
+                INTERVALO_ACK_MS, INTERVALO_ACK_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Establece la ventana de prefetch pedida al broker; limita el tamaño de los lotes
+     * de ACK automático, ya que el broker no entrega más mensajes con la ventana llena
+     * @param prefetch Mensajes sin confirmar permitidos (0 = ilimitado)
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
     }
     
     /**
@@ -48,37 +85,35 @@ public class ConsumerImpl extends UnicastRemoteObject implements Consumer, Consu
      * Método que implementa la callback para recibir mensajes
      */
     @Override
-    public void onMessage(String mensaje) throws RemoteException {
+    public void onMessage(Message mensaje) throws RemoteException {
         // Si es un mensaje de sistema, mostrar directamente
-        if (mensaje.startsWith("SYSTEM||")) {
+        if (mensaje.esSistema()) {
             System.out.println("\n==================================================");
             System.out.println("SYSTEM MESSAGE");
-            System.out.println(mensaje.substring(8));
+            System.out.println(mensaje.getTexto());
             System.out.println("==================================================\n");
             return;
         }
         
-        // Extraer ID y contenido del mensaje
-        String[] parts = mensaje.split("\\|\\|", 2);
-        String mensajeId = parts[0];
-        String contenido = parts.length > 1 ? parts[1] : "";
+        String mensajeId = mensaje.getId();
         
         System.out.println("\n==================================================");
         System.out.println("NEW MESSAGE CONSUMED");
         System.out.println("Consumer ID: " + consumerId);
         System.out.println("Channel: " + nombreCola);
         System.out.println("Message ID: " + mensajeId);
-        System.out.println("Content: " + contenido);
+        if (mensaje.esReentregado()) {
+            System.out.println("Redelivered: delivery #" + mensaje.getEntregas());
+        }
+        if (!mensaje.getCabeceras().isEmpty()) {
+            System.out.println("Headers: " + mensaje.getCabeceras());
+        }
+        System.out.println("Content: " + mensaje.getTexto());
         System.out.println("==================================================\n");
         
-        // Si está en modo auto-ack, confirmar automáticamente
+        // Si está en modo auto-ack, confirmar automáticamente (por lotes)
         if (autoAck && broker != null) {
-            try {
-                boolean acked = broker.confirmarMensaje(nombreCola, mensajeId, this);
-                System.out.println("Message automatically confirmed: " + acked);
-            } catch (Exception e) {
-                System.err.println("Error confirming message: " + e.getMessage());
-            }
+            acumularAck(mensaje.getCola(), mensajeId);
         } else {
             // En modo manual, mostrar opciones
             System.out.println("To confirm this message, use: ack " + mensajeId);
@@ -86,6 +121,59 @@ public class ConsumerImpl extends UnicastRemoteObject implements Consumer, Consu
         }
     }
     
+    /**
+     * Método que implementa la callback para recibir mensajes por lotes
+     */
+    @Override
+    public void onMessages(List<Message> mensajes) throws RemoteException {
+        for (Message mensaje : mensajes) {
+            onMessage(mensaje);
+        }
+    }
+    
+    /**
+     * Acumula el ACK automático de un mensaje y lo envía en cuanto se llena el lote.
+     * El lote nunca supera la ventana de prefetch para no dejar al broker sin crédito.
+     * @param particion Cola física que entregó el mensaje (la partición en las colas particionadas)
+     * @param mensajeId ID del mensaje recibido
+     */
+    private void acumularAck(String particion, String mensajeId) {
+        int tamanoLote = prefetch == 0 ? LOTE_ACK_MAXIMO : Math.min(prefetch, LOTE_ACK_MAXIMO);
+        boolean lleno;
+        synchronized (lockAck) {
+            ultimoSinAck.put(particion != null ? particion : nombreCola, mensajeId);
+            sinAck++;
+            lleno = sinAck >= tamanoLote;
+        }
+        if (lleno) {
+            enviarAcksPendientes();
+        }
+    }
+    
+    /**
+     * Envía un ACK acumulativo hasta el último mensaje recibido de cada partición: los
+     * mensajes de una partición se entregan y procesan en orden, así que cubre a todos
+     * los anteriores de esa partición
+     */
+    private void enviarAcksPendientes() {
+        List<String> hasta;
+        synchronized (lockAck) {
+            if (ultimoSinAck.isEmpty()) return;
+            hasta = new ArrayList<>(ultimoSinAck.values());
+            ultimoSinAck.clear();
+            sinAck = 0;
+        }
+        try {
+            int confirmados = 0;
+            for (String mensajeId : hasta) {
+                confirmados += broker.confirmarHasta(nombreCola, mensajeId, this);
+            }
+            System.out.println(confirmados + " message(s) automatically confirmed");
+        } catch (Exception e) {
+            System.err.println("Error confirming messages: " + e.getMessage());
+        }
+    }
+    
     /**
      * Confirma un mensaje (ACK)
      * @param mensajeId ID del mensaje a confirmar
@@ -108,6 +196,60 @@ public class ConsumerImpl extends UnicastRemoteObject implements Consumer, Consu
         }
     }
     
+    /**
+     * Confirma varios mensajes con una sola llamada al broker
+     * @param mensajeIds IDs de los mensajes a confirmar
+     */
+    public void confirmarMensajes(List<String> mensajeIds) {
+        if (broker == null) {
+            System.out.println("No connection to the broker");
+            return;
+        }
+        
+        try {
+            int confirmados = broker.confirmarMensajes(nombreCola, mensajeIds, this);
+            System.out.println(confirmados + " of " + mensajeIds.size() + " messages successfully confirmed");
+        } catch (Exception e) {
+            System.err.println("Error confirming messages: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Confirma todos los mensajes recibidos hasta el indicado, inclusive
+     * @param mensajeId ID del último mensaje a confirmar
+     */
+    public void confirmarHasta(String mensajeId) {
+        if (broker == null) {
+            System.out.println("No connection to the broker");
+            return;
+        }
+        
+        try {
+            int confirmados = broker.confirmarHasta(nombreCola, mensajeId, this);
+            System.out.println(confirmados + " messages up to " + mensajeId + " successfully confirmed");
+        } catch (Exception e) {
+            System.err.println("Error confirming messages: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Rechaza varios mensajes con una sola llamada al broker
+     * @param mensajeIds IDs de los mensajes a rechazar
+     */
+    public void rechazarMensajes(List<String> mensajeIds) {
+        if (broker == null) {
+            System.out.println("No connection to the broker");
+            return;
+        }
+        
+        try {
+            int rechazados = broker.rechazarMensajes(nombreCola, mensajeIds, this);
+            System.out.println(rechazados + " of " + mensajeIds.size() + " messages successfully rejected");
+        } catch (Exception e) {
+            System.err.println("Error rejecting messages: " + e.getMessage());
+        }
+    }
+    
     /**
      * Rechaza un mensaje (NACK)
      * @param mensajeId ID del mensaje a rechazar
@@ -177,6 +319,18 @@ public class ConsumerImpl extends UnicastRemoteObject implements Consumer, Consu
             System.out.print("Do you want to use fair (balanced) distribution? (y/n): ");
             boolean fairDispatch = scanner.nextLine().trim().equalsIgnoreCase("y");
             
+            // Ventana de prefetch: mensajes sin confirmar que puede tener a la vez
+            int prefetch = fairDispatch ? 1 : 0;
+            System.out.print("Prefetch window, messages in flight without ACK (0 = unlimited) [" + prefetch + "]: ");
+            String prefetchTexto = scanner.nextLine().trim();
+            if (!prefetchTexto.isEmpty()) {
+                try {
+                    prefetch = Math.max(0, Integer.parseInt(prefetchTexto));
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid value. Using prefetch " + prefetch + ".");
+                }
+            }
+            
             // Obtener la lista de canales disponibles
             List<String> canalesDisponibles = broker.listarColas();
             
@@ -212,16 +366,18 @@ public class ConsumerImpl extends UnicastRemoteObject implements Consumer, Consu
             
             // Suscribirse a la cola para recibir mensajes
             System.out.println("Subscribing to the channel '" + canalSeleccionado + "'...");
-            broker.consumir(canalSeleccionado, consumer);
+            consumer.setPrefetch(prefetch);
+            broker.consumir(canalSeleccionado, consumer, prefetch);
             
             System.out.println("Consumer started and waiting for messages from the channel '" + canalSeleccionado + "'...");
             System.out.println("When messages are consumed, they will be displayed automatically.");
             
             if (!autoAck) {
                 System.out.println("\nAvailable commands:");
-                System.out.println("  ack ID  - Confirm a message by its ID");
-                System.out.println("  nack ID - Reject a message by its ID");
-                System.out.println("  exit    - Exit the program");
+                System.out.println("  ack ID [ID ...]  - Confirm one or more messages by their IDs");
+                System.out.println("  ackupto ID       - Confirm every message received up to ID");
+                System.out.println("  nack ID [ID ...] - Reject one or more messages by their IDs");
+                System.out.println("  exit             - Exit the program");
             }
             
             // Creamos un hilo que periódicamente mostrará un mensaje de espera
@@ -260,14 +416,24 @@ public class ConsumerImpl extends UnicastRemoteObject implements Consumer, Consu
                     String comando = scanner.nextLine().trim();
                     if (comando.equalsIgnoreCase("exit")) {
                         ejecutando = false;
+                    } else if (comando.startsWith("ackupto ")) {
+                        consumer.confirmarHasta(comando.substring(8).trim());
                     } else if (comando.startsWith("ack ")) {
-                        String mensajeId = comando.substring(4).trim();
-                        consumer.confirmarMensaje(mensajeId);
+                        List<String> ids = Arrays.asList(comando.substring(4).trim().split("\\s+"));
+                        if (ids.size() == 1) {
+                            consumer.confirmarMensaje(ids.get(0));
+                        } else {
+                            consumer.confirmarMensajes(ids);
+                        }
                     } else if (comando.startsWith("nack ")) {
-                        String mensajeId = comando.substring(5).trim();
-                        consumer.rechazarMensaje(mensajeId);
+                        List<String> ids = Arrays.asList(comando.substring(5).trim().split("\\s+"));
+                        if (ids.size() == 1) {
+                            consumer.rechazarMensaje(ids.get(0));
+                        } else {
+                            consumer.rechazarMensajes(ids);
+                        }
                     } else if (!comando.isEmpty()) {
-                        System.out.println("Command not recognized. Use 'ack ID', 'nack ID', or 'exit'");
+                        System.out.println("Command not recognized. Use 'ack ID', 'ackupto ID', 'nack ID', or 'exit'");
                     }
                 }
                 
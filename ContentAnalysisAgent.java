@@ -1,23 +1,33 @@
-import java.util.regex.Pattern;
-
 /**
  * Agente que filtra mensajes basándose en análisis de contenido
  * Detecta contenido malicioso o inapropiado
+ *
+ * El mensaje se recorre una sola vez, sin expresiones regulares ni objetos temporales:
+ * en cada carácter se comprueban los marcadores de código, la forma de URL y la cuenta
+ * de caracteres especiales, y se termina en cuanto algo decide el rechazo (en particular,
+ * en cuanto los caracteres especiales ya superan el 30 % de la longitud total).
  */
 public class ContentAnalysisAgent implements MessageFilterAgent {
     // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion
     private static final long serialVersionUID = 1L;
     
-    // Patrones regex para detectar contenido sospechoso
-    private static final Pattern URL_SOSPECHOSA = Pattern.compile(
-        "(http://|https://)?[a-z0-9-]+(\\.[a-z0-9-]+)*(\\.[a-z]{2,})(:[0-9]+)?(/.*)?",
-        Pattern.CASE_INSENSITIVE
-    );
+    // Proporción máxima de caracteres especiales (ni letras, ni dígitos, ni espacios)
+    private static final double MAXIMO_ESPECIALES = 0.3;
     
-    private static final Pattern CODIGO_MALICIOSO = Pattern.compile(
-        "(eval\\(|exec\\(|<script|javascript:|onclick=|onerror=)",
-        Pattern.CASE_INSENSITIVE
-    );
+    // Resultados del análisis
+    private static final int ACEPTADO = 0;
+    private static final int CODIGO = 1;
+    private static final int URL = 2;
+    private static final int ESPECIALES = 3;
+    
+    // Caracteres especiales ASCII precalculados; el resto se consulta a Character
+    private static final boolean[] ESPECIAL_ASCII = new boolean[128];
+    
+    static {
+        for (char c = 0; c < 128; c++) {
+            ESPECIAL_ASCII[c] = !Character.isLetterOrDigit(c) && !Character.isWhitespace(c);
+        }
+    }
     
     private final boolean bloquearUrls;
     private final boolean bloquearCodigo;
@@ -41,32 +51,95 @@ public class ContentAnalysisAgent implements MessageFilterAgent {
     
     @Override
     public boolean aceptarMensaje(String mensaje, String nombreCola) {
-        // Verificar código malicioso
-        if (bloquearCodigo && CODIGO_MALICIOSO.matcher(mensaje).find()) {
-            System.out.println("[CONTENT ANALYSIS] Message rejected: contains potentially malicious code");
-            return false;
+        switch (analizar(mensaje)) {
+            case CODIGO:
+                BrokerEventBus.getInstance().veredicto("CONTENT ANALYSIS", "Message rejected: contains potentially malicious code", null);
+                return false;
+            case URL:
+                BrokerEventBus.getInstance().veredicto("CONTENT ANALYSIS", "Message rejected: contains disallowed URLs", null);
+                return false;
+            case ESPECIALES:
+                BrokerEventBus.getInstance().veredicto("CONTENT ANALYSIS", "Message rejected: too many special characters", null);
+                return false;
+            default:
+                BrokerEventBus.getInstance().veredicto("CONTENT ANALYSIS", "Message accepted", null);
+                return true;
         }
-        
-        // Verificar URLs si está habilitado
-        if (bloquearUrls && URL_SOSPECHOSA.matcher(mensaje).find()) {
-            System.out.println("[CONTENT ANALYSIS] Message rejected: contains disallowed URLs");
-            return false;
+    }
+    
+    /**
+     * Recorre el mensaje una vez y devuelve el primer motivo de rechazo que encuentra.
+     * Detecta lo mismo que las expresiones regulares anteriores:
+     *   - Código: eval(, exec(, <script, javascript:, onclick= u onerror=, sin distinguir
+     *     mayúsculas ASCII
+     *   - URL: un carácter de nombre de dominio ([a-z0-9-]) seguido de un punto y dos
+     *     letras ASCII, que es lo mínimo que encontraba el patrón de URL
+     *   - Más del 30 % de caracteres especiales (contados por unidades UTF-16)
+     * @param mensaje Contenido del mensaje
+     * @return ACEPTADO, CODIGO, URL o ESPECIALES
+     */
+    private int analizar(String mensaje) {
+        int longitud = mensaje.length();
+        double umbral = longitud * MAXIMO_ESPECIALES;
+        int especiales = 0;
+        boolean anteriorDeDominio = false; // El carácter anterior puede formar parte de un dominio
+        for (int i = 0; i < longitud; i++) {
+            char c = mensaje.charAt(i);
+            char minuscula = minusculaAscii(c);
+            if (bloquearCodigo && empiezaCodigo(mensaje, i, minuscula)) {
+                return CODIGO;
+            }
+            if (bloquearUrls && c == '.' && anteriorDeDominio && i + 2 < longitud
+                    && esLetraAscii(mensaje.charAt(i + 1)) && esLetraAscii(mensaje.charAt(i + 2))) {
+                return URL;
+            }
+            anteriorDeDominio = (minuscula >= 'a' && minuscula <= 'z') || (c >= '0' && c <= '9') || c == '-';
+            boolean especial = c < 128 ? ESPECIAL_ASCII[c] : !Character.isLetterOrDigit(c) && !Character.isWhitespace(c);
+            if (especial && ++especiales > umbral) {
+                return ESPECIALES; // La cuenta solo puede crecer: el rechazo ya es seguro
+            }
         }
-        
-        // Verificar caracteres sospechosos en exceso
-        long caracteresEspeciales = mensaje.chars()
-            .filter(c -> !Character.isLetterOrDigit(c) && !Character.isWhitespace(c))
-            .count();
-        
-        if (caracteresEspeciales > mensaje.length() * 0.3) { // Más del 30% de caracteres especiales
-            System.out.println("[CONTENT ANALYSIS] Message rejected: too many special characters");
+        return ACEPTADO;
+    }
+    
+    /**
+     * Indica si en la posición i empieza un marcador de código malicioso
+     */
+    private static boolean empiezaCodigo(String mensaje, int i, char minuscula) {
+        switch (minuscula) {
+            case 'e': return coincide(mensaje, i, "eval(") || coincide(mensaje, i, "exec(");
+            case '<': return coincide(mensaje, i, "<script");
+            case 'j': return coincide(mensaje, i, "javascript:");
+            case 'o': return coincide(mensaje, i, "onclick=") || coincide(mensaje, i, "onerror=");
+            default:  return false;
+        }
+    }
+    
+    /**
+     * Compara el mensaje desde la posición i con un marcador en minúsculas, sin distinguir
+     * mayúsculas ASCII
+     */
+    private static boolean coincide(String mensaje, int i, String marcador) {
+        if (i + marcador.length() > mensaje.length()) {
             return false;
         }
-        
-        System.out.println("[CONTENT ANALYSIS] Message accepted");
+        for (int k = 0; k < marcador.length(); k++) {
+            if (minusculaAscii(mensaje.charAt(i + k)) != marcador.charAt(k)) {
+                return false;
+            }
+        }
         return true;
     }
     
+    private static char minusculaAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+    
+    private static boolean esLetraAscii(char c) {
+        char minuscula = minusculaAscii(c);
+        return minuscula >= 'a' && minuscula <= 'z';
+    }
+    
     @Override
     public String getNombre() {
         return "ContentAnalysisAgent";
@@ -81,4 +154,9 @@ public class ContentAnalysisAgent implements MessageFilterAgent {
     public int getPrioridad() {
         return 8; // Alta prioridad para seguridad
     }
+    
+    @Override
+    public boolean dependeDeLaCola() {
+        return false; // Solo analiza el contenido
+    }
 }
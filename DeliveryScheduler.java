@@ -0,0 +1,240 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Planificador de entregas compartido por todas las colas del broker.
+ * Sustituye el hilo nuevo por mensaje por un pool acotado de hilos (o hilos virtuales
+ * cuando la JVM los soporta) sobre el que se ejecutan carriles de entrega: cada
+ * consumidor tiene su propio carril, que entrega sus mensajes en orden y de uno en uno,
+ * mientras que carriles distintos avanzan en paralelo.
+ *
+ * Las entregas son llamadas RMI bloqueantes sin límite de tiempo, así que un consumidor
+ * colgado ocupa su hilo indefinidamente. Por eso se usan hilos virtuales siempre que la
+ * JVM los soporta y, si no, un pool dimensionado para E/S bloqueante (muchos más hilos
+ * que núcleos, creados bajo demanda) en lugar de uno por núcleo.
+ *
+ * Configuración (propiedades del sistema):
+ *   mom.entrega.hilos     Número de hilos del pool de plataforma (por defecto, 8 por núcleo y al menos 64)
+ *   mom.entrega.virtuales false para no usar hilos virtuales aunque la JVM los soporte (por defecto, true)
+ *   mom.entrega.lote      Máximo de mensajes por entrega a consumidores por lotes (por defecto, 128)
+ *   mom.entrega.espera    Microsegundos que se espera a completar un lote (por defecto, 200)
+ */
+public class DeliveryScheduler {
+    private static DeliveryScheduler instance;
+    // Número máximo de entregas seguidas de un carril antes de ceder el hilo a otros carriles
+    private static final int ENTREGAS_POR_TURNO = 64;
+    // Hilos de plataforma por defecto: las entregas bloquean en E/S, no en CPU
+    private static final int HILOS_POR_NUCLEO = 8;
+    private static final int HILOS_MINIMOS = 64;
+
+    private final ExecutorService executor;
+    private final boolean hilosVirtuales;
+    private final int hilos;
+    private final int loteMaximo;
+    private final long esperaLoteMicros;
+    // Temporizador que cierra los lotes que no se llenan a tiempo
+    private final ScheduledExecutorService temporizador;
+    private final AtomicLong entregasPendientes = new AtomicLong();
+    private final AtomicLong entregasCompletadas = new AtomicLong();
+
+    /**
+     * Carril de entrega asociado a un consumidor. Las tareas de un carril se ejecutan en
+     * el orden en que se enviaron y nunca dos a la vez, por lo que el consumidor recibe
+     * sus mensajes en orden. En el pool solo hay como mucho una tarea de drenado por
+     * carril, de modo que la cola del executor está acotada por el número de consumidores.
+     */
+    public class Carril {
+        private final ConcurrentLinkedQueue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean programado = new AtomicBoolean(false);
+        private final AtomicInteger pendientes = new AtomicInteger();
+
+        /**
+         * Encola una entrega en el carril
+         * @param tarea Entrega a ejecutar
+         */
+        public void enviar(Runnable tarea) {
+            tareas.add(tarea);
+            pendientes.incrementAndGet();
+            entregasPendientes.incrementAndGet();
+            programar();
+        }
+
+        /**
+         * Número de entregas encoladas en el carril que aún no se han completado
+         * @return Entregas pendientes
+         */
+        public int contarPendientes() {
+            return pendientes.get();
+        }
+
+        private void programar() {
+            if (!tareas.isEmpty() && programado.compareAndSet(false, true)) {
+                executor.execute(this::drenar);
+            }
+        }
+
+        private void drenar() {
+            try {
+                for (int i = 0; i < ENTREGAS_POR_TURNO; i++) {
+                    Runnable tarea = tareas.poll();
+                    if (tarea == null) break;
+                    try {
+                        tarea.run();
+                    } catch (Throwable t) {
+                        System.err.println("Error in delivery task: " + t);
+                    } finally {
+                        pendientes.decrementAndGet();
+                        entregasPendientes.decrementAndGet();
+                        entregasCompletadas.incrementAndGet();
+                    }
+                }
+            } finally {
+                programado.set(false);
+                // Si quedan tareas (o llegaron durante el drenado), volver a programar el carril
+                programar();
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param hilos Número de hilos del pool de plataforma
+     * @param virtuales true para usar un hilo virtual por tarea si la JVM lo soporta
+     * @param loteMaximo Máximo de mensajes por entrega por lotes
+     * @param esperaLoteMicros Microsegundos que se espera a completar un lote
+     */
+    public DeliveryScheduler(int hilos, boolean virtuales, int loteMaximo, long esperaLoteMicros) {
+        ExecutorService virtual = virtuales ? crearExecutorVirtual() : null;
+        this.hilosVirtuales = virtual != null;
+        this.hilos = hilosVirtuales ? 0 : Math.max(1, hilos);
+        this.executor = hilosVirtuales ? virtual : crearPoolPlataforma(this.hilos);
+        this.loteMaximo = Math.max(1, loteMaximo);
+        this.esperaLoteMicros = Math.max(0, esperaLoteMicros);
+        this.temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "delivery-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        System.out.println("Delivery scheduler started: " + describir());
+    }
+
+    /**
+     * Obtiene la instancia compartida por el broker (patrón Singleton)
+     */
+    public static synchronized DeliveryScheduler getInstance() {
+        if (instance == null) {
+            int hilos = Integer.getInteger("mom.entrega.hilos", 
+                    Math.max(HILOS_MINIMOS, HILOS_POR_NUCLEO * Runtime.getRuntime().availableProcessors()));
+            boolean virtuales = Boolean.parseBoolean(System.getProperty("mom.entrega.virtuales", "true"));
+            int lote = Integer.getInteger("mom.entrega.lote", 128);
+            long espera = Long.getLong("mom.entrega.espera", 200);
+            instance = new DeliveryScheduler(hilos, virtuales, lote, espera);
+        }
+        return instance;
+    }
+
+    /**
+     * Crea un carril de entrega nuevo (uno por consumidor)
+     * @return Carril de entrega
+     */
+    public Carril crearCarril() {
+        return new Carril();
+    }
+
+    /**
+     * Encola una tarea en un carril pasado un tiempo, o inmediatamente si el tiempo es 0
+     * @param carril Carril donde se ejecutará la tarea
+     * @param tarea Tarea a ejecutar
+     * @param micros Retardo en microsegundos
+     */
+    public void enviarDiferido(Carril carril, Runnable tarea, long micros) {
+        if (micros <= 0) {
+            carril.enviar(tarea);
+        } else {
+            temporizador.schedule(() -> carril.enviar(tarea), micros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Máximo de mensajes que se agrupan en una entrega por lotes
+     * @return Tamaño máximo del lote
+     */
+    public int getLoteMaximo() {
+        return loteMaximo;
+    }
+
+    /**
+     * Tiempo máximo que un mensaje espera a que se complete su lote
+     * @return Espera en microsegundos
+     */
+    public long getEsperaLoteMicros() {
+        return esperaLoteMicros;
+    }
+
+    /**
+     * Entregas encoladas en todos los carriles que aún no se han completado
+     * @return Entregas pendientes
+     */
+    public long contarEntregasPendientes() {
+        return entregasPendientes.get();
+    }
+
+    /**
+     * Entregas completadas desde el arranque
+     * @return Entregas completadas
+     */
+    public long contarEntregasCompletadas() {
+        return entregasCompletadas.get();
+    }
+
+    /**
+     * Descripción de la configuración del planificador
+     * @return Descripción legible
+     */
+    public String describir() {
+        return (hilosVirtuales ? "virtual threads" : hilos + " platform threads") + 
+               ", batches of up to " + loteMaximo + " messages / " + esperaLoteMicros + " us";
+    }
+
+    /**
+     * Pool de hilos de plataforma para entregas bloqueantes: los hilos se crean bajo
+     * demanda hasta el máximo y los que quedan ociosos terminan pasado un minuto
+     */
+    private static ExecutorService crearPoolPlataforma(int hilos) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(hilos, hilos, 60, TimeUnit.SECONDS, 
+                new LinkedBlockingQueue<>(), new ThreadFactory() {
+            private final AtomicInteger contador = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "delivery-" + contador.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Los hilos virtuales solo existen a partir de Java 21; se resuelven por reflexión para
+     * que el broker siga compilando y ejecutándose en versiones anteriores
+     */
+    static ExecutorService crearExecutorVirtual() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available in this JVM, using platform threads");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exchange del broker: recibe una publicación y decide a qué colas se envía según sus
+ * enlaces (cola + clave de enlace), de modo que un productor publica una sola vez para
+ * muchas colas.
+ *
+ * - DIRECTO: colas cuya clave de enlace es igual a la clave de enrutamiento.
+ * - FANOUT: todas las colas enlazadas; la clave se ignora.
+ * - TOPIC: claves formadas por palabras separadas por '.'; en la clave de enlace '*'
+ *   sustituye a exactamente una palabra y '#' a cero o más ("pedidos.*.eu", "logs.#").
+ *
+ * Como en ChannelRulesAgent, cada cambio de enlaces construye un índice inmutable nuevo y
+ * lo publica de una vez, así que se puede enlazar mientras se enruta en otros hilos.
+ */
+public class Exchange {
+    public enum Tipo { DIRECTO, FANOUT, TOPIC }
+
+    // Comodines de las claves de enlace de un exchange TOPIC
+    private static final String UNA_PALABRA = "*";
+    private static final String VARIAS_PALABRAS = "#";
+    // Máximo de claves de enrutamiento cuyas colas se recuerdan en cada índice
+    private static final int MAXIMO_RESUELTAS = 1024;
+
+    /**
+     * Índice inmutable de los enlaces y las rutas ya resueltas por clave
+     */
+    private static final class Indice {
+        final List<String> todas;                   // Colas enlazadas (FANOUT)
+        final Map<String, List<String>> porClave;   // Clave -> colas (DIRECTO)
+        final Nodo raiz;                            // Trie de palabras (TOPIC)
+        final ConcurrentHashMap<String, List<String>> resueltas = new ConcurrentHashMap<>();
+
+        Indice(List<String> todas, Map<String, List<String>> porClave, Nodo raiz) {
+            this.todas = todas;
+            this.porClave = porClave;
+            this.raiz = raiz;
+        }
+    }
+
+    /**
+     * Nodo del trie de claves de enlace TOPIC, una palabra por nivel
+     */
+    private static final class Nodo {
+        final Map<String, Nodo> hijos = new HashMap<>();
+        Nodo unaPalabra;      // Hijo '*'
+        Nodo variasPalabras;  // Hijo '#'
+        final Set<String> colas = new LinkedHashSet<>();
+
+        void insertar(String[] palabras, String cola) {
+            Nodo nodo = this;
+            for (String palabra : palabras) {
+                if (palabra.equals(UNA_PALABRA)) {
+                    if (nodo.unaPalabra == null) nodo.unaPalabra = new Nodo();
+                    nodo = nodo.unaPalabra;
+                } else if (palabra.equals(VARIAS_PALABRAS)) {
+                    if (nodo.variasPalabras == null) nodo.variasPalabras = new Nodo();
+                    nodo = nodo.variasPalabras;
+                } else {
+                    nodo = nodo.hijos.computeIfAbsent(palabra, k -> new Nodo());
+                }
+            }
+            nodo.colas.add(cola);
+        }
+
+        /**
+         * Añade a destino las colas de los enlaces que casan con las palabras desde la i
+         */
+        void buscar(String[] palabras, int i, Set<String> destino) {
+            if (variasPalabras != null) {
+                // '#' consume de cero a todas las palabras restantes
+                for (int j = i; j <= palabras.length; j++) {
+                    variasPalabras.buscar(palabras, j, destino);
+                }
+            }
+            if (i == palabras.length) {
+                destino.addAll(colas);
+                return;
+            }
+            Nodo hijo = hijos.get(palabras[i]);
+            if (hijo != null) hijo.buscar(palabras, i + 1, destino);
+            if (unaPalabra != null) unaPalabra.buscar(palabras, i + 1, destino);
+        }
+    }
+
+    private final String nombre;
+    private final Tipo tipo;
+    // Clave de enlace -> colas enlazadas con ella, en el orden de enlace (protegido por this)
+    private final Map<String, Set<String>> enlaces = new LinkedHashMap<>();
+    // Índice construido a partir de enlaces; se sustituye entero en cada cambio
+    private volatile Indice indice;
+
+    /**
+     * Constructor
+     * @param nombre Nombre del exchange
+     * @param tipo DIRECTO, FANOUT o TOPIC
+     */
+    public Exchange(String nombre, Tipo tipo) {
+        this.nombre = nombre;
+        this.tipo = tipo;
+        actualizar();
+    }
+
+    public String getNombre() {
+        return nombre;
+    }
+
+    public Tipo getTipo() {
+        return tipo;
+    }
+
+    /**
+     * Enlaza una cola con el exchange
+     * @param cola Nombre de la cola
+     * @param claveEnlace Clave de enlace (null = vacía; se ignora en FANOUT)
+     * @return true si el enlace es nuevo
+     */
+    public synchronized boolean enlazar(String cola, String claveEnlace) {
+        boolean nuevo = enlaces.computeIfAbsent(normalizar(claveEnlace), k -> new LinkedHashSet<>()).add(cola);
+        if (nuevo) actualizar();
+        return nuevo;
+    }
+
+    /**
+     * Quita un enlace
+     * @param cola Nombre de la cola
+     * @param claveEnlace Clave de enlace
+     * @return true si existía
+     */
+    public synchronized boolean desenlazar(String cola, String claveEnlace) {
+        String clave = normalizar(claveEnlace);
+        Set<String> colas = enlaces.get(clave);
+        if (colas == null || !colas.remove(cola)) return false;
+        if (colas.isEmpty()) enlaces.remove(clave);
+        actualizar();
+        return true;
+    }
+
+    /**
+     * Quita todos los enlaces de una cola (al eliminarla)
+     * @param cola Nombre de la cola
+     * @return Número de enlaces quitados
+     */
+    public synchronized int desenlazarCola(String cola) {
+        int quitados = 0;
+        for (Set<String> colas : enlaces.values()) {
+            if (colas.remove(cola)) quitados++;
+        }
+        if (quitados > 0) {
+            enlaces.values().removeIf(Set::isEmpty);
+            actualizar();
+        }
+        return quitados;
+    }
+
+    /**
+     * Colas a las que se envía un mensaje con la clave de enrutamiento indicada
+     * @param claveEnrutamiento Clave del mensaje (null = vacía)
+     * @return Nombres de las colas, sin repetidos
+     */
+    public List<String> enrutar(String claveEnrutamiento) {
+        Indice actual = indice;
+        switch (tipo) {
+            case FANOUT:
+                return actual.todas;
+            case DIRECTO:
+                return actual.porClave.getOrDefault(normalizar(claveEnrutamiento), Collections.emptyList());
+            default:
+                String clave = normalizar(claveEnrutamiento);
+                List<String> colas = actual.resueltas.get(clave);
+                if (colas == null) {
+                    Set<String> destino = new LinkedHashSet<>();
+                    actual.raiz.buscar(palabras(clave), 0, destino);
+                    colas = Collections.unmodifiableList(new ArrayList<>(destino));
+                    if (actual.resueltas.size() < MAXIMO_RESUELTAS) {
+                        actual.resueltas.put(clave, colas);
+                    }
+                }
+                return colas;
+        }
+    }
+
+    /**
+     * Describe los enlaces del exchange
+     * @return Una línea por enlace ("cola <- clave")
+     */
+    public synchronized List<String> describirEnlaces() {
+        List<String> lineas = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> enlace : enlaces.entrySet()) {
+            for (String cola : enlace.getValue()) {
+                lineas.add(tipo == Tipo.FANOUT ? cola : cola + " <- '" + enlace.getKey() + "'");
+            }
+        }
+        return lineas;
+    }
+
+    /**
+     * Reconstruye el índice a partir de los enlaces y lo publica. Requiere el monitor.
+     */
+    private void actualizar() {
+        Set<String> todas = new LinkedHashSet<>();
+        Map<String, List<String>> porClave = new HashMap<>();
+        Nodo raiz = new Nodo();
+        for (Map.Entry<String, Set<String>> enlace : enlaces.entrySet()) {
+            todas.addAll(enlace.getValue());
+            porClave.put(enlace.getKey(), Collections.unmodifiableList(new ArrayList<>(enlace.getValue())));
+            if (tipo == Tipo.TOPIC) {
+                for (String cola : enlace.getValue()) {
+                    raiz.insertar(palabras(enlace.getKey()), cola);
+                }
+            }
+        }
+        indice = new Indice(Collections.unmodifiableList(new ArrayList<>(todas)), porClave, raiz);
+    }
+
+    private static String normalizar(String clave) {
+        return clave != null ? clave : "";
+    }
+
+    /**
+     * Divide una clave TOPIC en palabras separadas por '.' (la clave vacía no tiene palabras)
+     */
+    private static String[] palabras(String clave) {
+        if (clave.isEmpty()) return new String[0];
+        List<String> palabras = new ArrayList<>();
+        int inicio = 0;
+        for (int i = 0; i < clave.length(); i++) {
+            if (clave.charAt(i) == '.') {
+                palabras.add(clave.substring(inicio, i));
+                inicio = i + 1;
+            }
+        }
+        palabras.add(clave.substring(inicio));
+        return palabras.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Autómata de Aho-Corasick para buscar a la vez un conjunto de palabras clave en un texto,
+ * sin distinguir mayúsculas de minúsculas. Se compila una vez y es inmutable, así que se
+ * puede compartir entre hilos y sustituir entero por otro (cambio atómico de la lista).
+ *
+ * El trie se convierte en un autómata determinista completo: la transición de cada estado
+ * con cada símbolo ya incluye los enlaces de fallo, de modo que la búsqueda hace un único
+ * recorrido del texto con un acceso a tabla por carácter, sin retrocesos ni copias del texto
+ * en minúsculas. El alfabeto se reduce a los caracteres que aparecen en las palabras clave
+ * (más un símbolo para "cualquier otro carácter").
+ */
+public final class KeywordAutomaton {
+    private static final int SIN_SALIDA = -1;
+
+    private final String[] palabras;
+    private final int alfabeto;           // Número de símbolos (el 0 es "cualquier otro carácter")
+    private final int[] claseAscii;       // Símbolo de cada carácter ASCII (ya en minúsculas)
+    private final char[] otrosCaracteres; // Caracteres no ASCII de las palabras, ordenados
+    private final int[] claseOtros;       // Símbolo de cada carácter de otrosCaracteres
+    private final int[] transiciones;     // estado * alfabeto + símbolo -> estado siguiente
+    private final int[] salida;           // Palabra reconocida al llegar a cada estado, o SIN_SALIDA
+
+    private KeywordAutomaton(String[] palabras, int alfabeto, int[] claseAscii, char[] otrosCaracteres,
+                             int[] claseOtros, int[] transiciones, int[] salida) {
+        this.palabras = palabras;
+        this.alfabeto = alfabeto;
+        this.claseAscii = claseAscii;
+        this.otrosCaracteres = otrosCaracteres;
+        this.claseOtros = claseOtros;
+        this.transiciones = transiciones;
+        this.salida = salida;
+    }
+
+    /**
+     * Compila un autómata para un conjunto de palabras clave. Las palabras vacías y las
+     * repetidas (sin distinguir mayúsculas) se ignoran.
+     * @param palabrasClave Palabras clave
+     * @return Autómata compilado
+     */
+    public static KeywordAutomaton compilar(Collection<String> palabrasClave) {
+        Set<String> unicas = new LinkedHashSet<>();
+        for (String palabra : palabrasClave) {
+            if (palabra == null) continue;
+            String normalizada = minusculas(palabra.trim());
+            if (!normalizada.isEmpty()) unicas.add(normalizada);
+        }
+        String[] palabras = unicas.toArray(new String[0]);
+
+        // Alfabeto reducido: un símbolo por carácter distinto de las palabras
+        int[] claseAscii = new int[128];
+        List<Character> noAscii = new ArrayList<>();
+        int simbolos = 1;
+        int totalCaracteres = 0;
+        for (String palabra : palabras) {
+            totalCaracteres += palabra.length();
+            for (int i = 0; i < palabra.length(); i++) {
+                char c = palabra.charAt(i);
+                if (c < 128) {
+                    if (claseAscii[c] == 0) claseAscii[c] = simbolos++;
+                } else if (!noAscii.contains(c)) {
+                    noAscii.add(c);
+                }
+            }
+        }
+        noAscii.sort(null);
+        char[] otrosCaracteres = new char[noAscii.size()];
+        int[] claseOtros = new int[noAscii.size()];
+        for (int i = 0; i < otrosCaracteres.length; i++) {
+            otrosCaracteres[i] = noAscii.get(i);
+            claseOtros[i] = simbolos++;
+        }
+        // Las mayúsculas ASCII comparten símbolo con su minúscula
+        for (char c = 'A'; c <= 'Z'; c++) {
+            claseAscii[c] = claseAscii[c + ('a' - 'A')];
+        }
+        int alfabeto = simbolos;
+
+        // Trie: el estado 0 es la raíz; una transición 0 significa "sin hijo"
+        int[] transiciones = new int[(totalCaracteres + 1) * alfabeto];
+        int[] salida = new int[totalCaracteres + 1];
+        Arrays.fill(salida, SIN_SALIDA);
+        int estados = 1;
+        for (int p = 0; p < palabras.length; p++) {
+            String palabra = palabras[p];
+            int estado = 0;
+            for (int i = 0; i < palabra.length(); i++) {
+                int simbolo = clase(palabra.charAt(i), claseAscii, otrosCaracteres, claseOtros);
+                int indice = estado * alfabeto + simbolo;
+                if (transiciones[indice] == 0) {
+                    transiciones[indice] = estados++;
+                }
+                estado = transiciones[indice];
+            }
+            if (salida[estado] == SIN_SALIDA) salida[estado] = p;
+        }
+
+        // Recorrido en anchura: enlaces de fallo, salidas heredadas y transiciones completas
+        int[] fallo = new int[estados];
+        ArrayDeque<Integer> pendientes = new ArrayDeque<>();
+        pendientes.add(0);
+        while (!pendientes.isEmpty()) {
+            int estado = pendientes.poll();
+            for (int simbolo = 0; simbolo < alfabeto; simbolo++) {
+                int indice = estado * alfabeto + simbolo;
+                int hijo = transiciones[indice];
+                if (hijo != 0) {
+                    int destinoFallo = estado == 0 ? 0 : transiciones[fallo[estado] * alfabeto + simbolo];
+                    fallo[hijo] = destinoFallo;
+                    if (salida[hijo] == SIN_SALIDA) salida[hijo] = salida[destinoFallo];
+                    pendientes.add(hijo);
+                } else if (estado != 0) {
+                    transiciones[indice] = transiciones[fallo[estado] * alfabeto + simbolo];
+                }
+            }
+        }
+
+        return new KeywordAutomaton(palabras, alfabeto, claseAscii, otrosCaracteres, claseOtros,
+                                    Arrays.copyOf(transiciones, estados * alfabeto), Arrays.copyOf(salida, estados));
+    }
+
+    /**
+     * Busca la primera palabra clave que aparece en el texto (la que termina antes)
+     * @param texto Texto a analizar
+     * @return Índice de la palabra encontrada (ver getPalabra) o -1 si no contiene ninguna
+     */
+    public int buscar(CharSequence texto) {
+        int estado = 0;
+        for (int i = 0, n = texto.length(); i < n; i++) {
+            estado = transiciones[estado * alfabeto + clase(texto.charAt(i), claseAscii, otrosCaracteres, claseOtros)];
+            if (salida[estado] != SIN_SALIDA) {
+                return salida[estado];
+            }
+        }
+        return SIN_SALIDA;
+    }
+
+    /**
+     * Indica si el texto contiene alguna de las palabras clave
+     * @param texto Texto a analizar
+     */
+    public boolean contiene(CharSequence texto) {
+        return buscar(texto) != SIN_SALIDA;
+    }
+
+    /**
+     * Palabra clave (en minúsculas) por su índice
+     * @param indice Índice devuelto por buscar
+     */
+    public String getPalabra(int indice) {
+        return palabras[indice];
+    }
+
+    /**
+     * Copia de las palabras clave compiladas, en minúsculas
+     */
+    public List<String> getPalabras() {
+        return new ArrayList<>(Arrays.asList(palabras));
+    }
+
+    /**
+     * Número de estados del autómata
+     */
+    public int contarEstados() {
+        return salida.length;
+    }
+
+    /**
+     * Símbolo de un carácter, sin distinguir mayúsculas de minúsculas
+     */
+    private static int clase(char c, int[] claseAscii, char[] otrosCaracteres, int[] claseOtros) {
+        if (c < 128) return claseAscii[c];
+        char minuscula = Character.toLowerCase(c);
+        if (minuscula < 128) return claseAscii[minuscula];
+        if (otrosCaracteres.length == 0) return 0;
+        int posicion = Arrays.binarySearch(otrosCaracteres, minuscula);
+        return posicion >= 0 ? claseOtros[posicion] : 0;
+    }
+
+    /**
+     * Pasa a minúsculas carácter a carácter (igual que se compara en la búsqueda)
+     */
+    private static String minusculas(String texto) {
+        char[] caracteres = texto.toCharArray();
+        for (int i = 0; i < caracteres.length; i++) {
+            caracteres[i] = Character.toLowerCase(caracteres[i]);
+        }
+        return new String(caracteres);
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias de bajo coste, seguro entre hilos y sin cerrojos.
+ * Los valores (en nanosegundos) se agrupan en cubos log-lineales: cada potencia de 2 se
+ * divide en 4 sub-cubos, así que el error relativo de un percentil es como mucho del 25 %.
+ * Registrar un valor cuesta un cálculo de bits y un incremento atómico.
+ */
+public class LatencyHistogram {
+    private static final int BITS_SUBCUBO = 2;
+    private static final int SUBCUBOS = 1 << BITS_SUBCUBO;
+    private static final int CUBOS = (64 - BITS_SUBCUBO) * SUBCUBOS;
+
+    private final AtomicLongArray cubos = new AtomicLongArray(CUBOS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder suma = new LongAdder();
+
+    /**
+     * Registra una latencia
+     * @param nanos Duración en nanosegundos (los negativos cuentan como 0)
+     */
+    public void registrar(long nanos) {
+        long valor = Math.max(0, nanos);
+        cubos.incrementAndGet(cubo(valor));
+        total.increment();
+        suma.add(valor);
+    }
+
+    /**
+     * Índice del cubo de un valor: los valores menores que SUBCUBOS tienen cubo propio;
+     * el resto se clasifica por su exponente y sus BITS_SUBCUBO bits siguientes.
+     */
+    private static int cubo(long valor) {
+        if (valor < SUBCUBOS) return (int) valor;
+        int exponente = 63 - Long.numberOfLeadingZeros(valor);
+        int mantisa = (int) (valor >>> (exponente - BITS_SUBCUBO)) & (SUBCUBOS - 1);
+        return (exponente - BITS_SUBCUBO + 1) * SUBCUBOS + mantisa;
+    }
+
+    /**
+     * Mayor valor que cae en un cubo
+     */
+    private static long limiteSuperior(int cubo) {
+        if (cubo < SUBCUBOS) return cubo;
+        int exponente = cubo / SUBCUBOS + BITS_SUBCUBO - 1;
+        long mantisa = SUBCUBOS + cubo % SUBCUBOS;
+        return ((mantisa + 1) << (exponente - BITS_SUBCUBO)) - 1;
+    }
+
+    /**
+     * Número de valores registrados
+     */
+    public long contar() {
+        return total.sum();
+    }
+
+    /**
+     * Suma de los valores registrados en nanosegundos
+     */
+    public long sumar() {
+        return suma.sum();
+    }
+
+    /**
+     * Estima un percentil (límite superior del cubo que lo contiene)
+     * @param percentil Percentil entre 0 y 100
+     * @return Latencia en nanosegundos, o 0 si no hay valores
+     */
+    public long percentil(double percentil) {
+        long[] copia = copiarCubos();
+        long registrados = 0;
+        for (long c : copia) registrados += c;
+        if (registrados == 0) return 0;
+
+        long objetivo = Math.max(1, (long) Math.ceil(registrados * percentil / 100.0));
+        long acumulado = 0;
+        for (int i = 0; i < copia.length; i++) {
+            acumulado += copia[i];
+            if (acumulado >= objetivo) return limiteSuperior(i);
+        }
+        return limiteSuperior(copia.length - 1);
+    }
+
+    /**
+     * Número de valores menores o iguales que un límite que sea potencia de 2 menos 1
+     * (límite exacto entre cubos), para exportar el histograma acumulado
+     * @param exponente Límite como 2^exponente - 1 nanosegundos (exponente >= BITS_SUBCUBO)
+     * @param copia Cubos copiados con copiarCubos()
+     * @return Valores hasta el límite
+     */
+    static long contarHasta(int exponente, long[] copia) {
+        int ultimo = (exponente - BITS_SUBCUBO + 1) * SUBCUBOS; // Primer cubo de 2^exponente
+        long acumulado = 0;
+        for (int i = 0; i < ultimo && i < copia.length; i++) {
+            acumulado += copia[i];
+        }
+        return acumulado;
+    }
+
+    /**
+     * Copia de los contadores de los cubos (no es una foto atómica del histograma)
+     */
+    long[] copiarCubos() {
+        long[] copia = new long[CUBOS];
+        for (int i = 0; i < CUBOS; i++) {
+            copia[i] = cubos.get(i);
+        }
+        return copia;
+    }
+
+    /**
+     * Resumen legible: número de valores, media y percentiles 50, 99 y 99,9
+     */
+    public String describir() {
+        long n = contar();
+        if (n == 0) return "no samples";
+        return n + " samples, avg " + formatear(sumar() / n) + ", p50 " + formatear(percentil(50)) +
+               ", p99 " + formatear(percentil(99)) + ", p99.9 " + formatear(percentil(99.9));
+    }
+
+    /**
+     * Formatea una duración en la unidad más legible
+     * @param nanos Duración en nanosegundos
+     */
+    public static String formatear(long nanos) {
+        if (nanos >= 1_000_000_000L) return String.format("%.2f s", nanos / 1e9);
+        if (nanos >= 1_000_000L) return String.format("%.2f ms", nanos / 1e6);
+        if (nanos >= 1_000L) return String.format("%.1f us", nanos / 1e3);
+        return nanos + " ns";
+    }
+}
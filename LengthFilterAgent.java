@@ -30,18 +30,22 @@ public class LengthFilterAgent implements MessageFilterAgent {
         int longitud = mensaje.length();
         
         if (longitud < longitudMinima) {
-            System.out.println("[LENGTH FILTER] Message rejected: too short (" + 
-                             longitud + " < " + longitudMinima + ")");
+            BrokerEventBus.getInstance().veredicto("LENGTH FILTER", "Message rejected: too short ", 
+                                                   "(" + longitud + " < " + longitudMinima + ")");
             return false;
         }
         
         if (longitud > longitudMaxima) {
-            System.out.println("[LENGTH FILTER] Message rejected: too long (" + 
-                             longitud + " > " + longitudMaxima + ")");
+            BrokerEventBus.getInstance().veredicto("LENGTH FILTER", "Message rejected: too long ", 
+                                                   "(" + longitud + " > " + longitudMaxima + ")");
             return false;
         }
         
-        System.out.println("[LENGTH FILTER] Message accepted (length: " + longitud + ")");
+        BrokerEventBus eventos = BrokerEventBus.getInstance();
+        // Solo se construye el texto si se va a escribir
+        if (eventos.escribe(BrokerEventBus.Tipo.VEREDICTO)) {
+            eventos.veredicto("LENGTH FILTER", "Message accepted ", "(length: " + longitud + ")");
+        }
         return true;
     }
     
@@ -60,4 +64,9 @@ public class LengthFilterAgent implements MessageFilterAgent {
     public int getPrioridad() {
         return 5; // Prioridad media
     }
+    
+    @Override
+    public boolean dependeDeLaCola() {
+        return false; // Solo analiza el contenido
+    }
 }
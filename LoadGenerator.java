@@ -0,0 +1,416 @@
+import java.nio.charset.StandardCharsets;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generador de carga de extremo a extremo. Arranca en el mismo proceso un registro RMI
+ * y el MessageBroker, crea M consumidores y N productores que se comunican con él por
+ * RMI igual que los clientes reales, y mide el rendimiento (mensajes/s) y la latencia
+ * de extremo a extremo (desde que el productor llama a publicar hasta que el consumidor
+ * recibe el mensaje) con sus percentiles 50, 99 y 99,9, además de lo que tarda la
+ * llamada de publicación en volver al productor.
+ *
+ * Uso: java LoadGenerator [opcion=valor ...]
+ *   productores=2     Hilos productores
+ *   consumidores=2    Consumidores (se reparten entre las colas)
+ *   colas=1           Colas de prueba (carga_0, carga_1...), se crean y se eliminan
+ *   particiones=0     Particiones de cada cola (0 o 1 = cola normal); con particiones los
+ *                     mensajes llevan clave de enrutamiento y se comprueba el orden por clave
+ *   mensajes=20000    Mensajes publicados en total
+ *   tamano=100        Tamaño aproximado del contenido en caracteres
+ *   durables=0.0      Fracción de mensajes durables (0 a 1)
+ *   rechazo=0.0       Fracción de mensajes que los agentes deben rechazar (0 a 1)
+ *   ack=auto          auto: ACK acumulativo por lotes; manual: un ACK por mensaje
+ *   prefetch=64       Ventana de prefetch de cada consumidor (0 = ilimitada)
+ *   lotes=false       true para que los consumidores reciban las entregas por lotes
+ *   asincrono=false   true para publicar con publicarAsincrono y contar las confirmaciones
+ *   puerto=1099       Puerto del registro RMI
+ *   nivel=SILENCIO    Verbosidad del flujo de eventos del broker
+ *   metricas=false    true para mostrar además las métricas del broker al terminar
+ *
+ * Conviene ejecutarlo en un directorio de trabajo vacío: el broker crea allí los journals
+ * de sus colas durables.
+ */
+public class LoadGenerator {
+    private static final String CABECERA_ENVIO = "load-sent-nanos";
+    private static final String CABECERA_ORDEN = "load-seq";
+    private static final int CLAVES_POR_PRODUCTOR = 16;
+    private static final long ESPERA_MAXIMA_MS = 60_000;
+
+    /**
+     * Consumidor de la prueba: registra la latencia de cada mensaje y confirma
+     */
+    private static class ConsumidorCarga extends UnicastRemoteObject implements ConsumerCallback {
+        private static final long serialVersionUID = 1L;
+        final String id;
+        final String cola;
+        final MessageBroker broker;
+        final boolean ackManual;
+        final int ackCada;        // Mensajes entre ACK acumulativos en modo auto
+        final LatencyHistogram latencias;
+        final AtomicLong recibidos;
+        final ConcurrentMap<String, Long> ordenClaves; // Última secuencia recibida de cada clave
+        final AtomicLong desordenados;
+        private int sinAck = 0;   // Mensajes recibidos sin ACK (protegido por el objeto)
+        // Último mensaje sin ACK de cada partición: el ACK acumulativo vale dentro de una partición
+        private final Map<String, String> ultimoSinAck = new HashMap<>();
+
+        ConsumidorCarga(String id, String cola, MessageBroker broker, boolean ackManual, int prefetch,
+                        LatencyHistogram latencias, AtomicLong recibidos, ConcurrentMap<String, Long> ordenClaves,
+                        AtomicLong desordenados) throws RemoteException {
+            super();
+            this.id = id;
+            this.cola = cola;
+            this.broker = broker;
+            this.ackManual = ackManual;
+            this.ackCada = prefetch == 0 ? 64 : Math.max(1, Math.min(64, prefetch / 2));
+            this.latencias = latencias;
+            this.recibidos = recibidos;
+            this.ordenClaves = ordenClaves;
+            this.desordenados = desordenados;
+        }
+
+        @Override
+        public void onMessage(Message mensaje) throws RemoteException {
+            if (mensaje.esSistema()) return;
+            recibir(mensaje, System.nanoTime());
+            if (ackManual) {
+                broker.confirmarMensaje(cola, mensaje.getId(), this);
+            } else {
+                acumularAck(mensaje.getCola(), mensaje.getId(), 1);
+            }
+        }
+
+        void recibir(Message mensaje, long ahora) {
+            String enviado = mensaje.getCabecera(CABECERA_ENVIO);
+            if (enviado != null) {
+                latencias.registrar(ahora - Long.parseLong(enviado));
+            }
+            String clave = mensaje.getCabecera(Message.CABECERA_CLAVE);
+            if (clave != null && !mensaje.esReentregado()) {
+                long secuencia = Long.parseLong(mensaje.getCabecera(CABECERA_ORDEN));
+                Long anterior = ordenClaves.put(clave, secuencia);
+                if (anterior != null && anterior > secuencia) {
+                    desordenados.incrementAndGet();
+                }
+            }
+            recibidos.incrementAndGet();
+        }
+
+        /**
+         * ACK acumulativo cada ackCada mensajes (como el auto-ack de ConsumerImpl)
+         */
+        synchronized void acumularAck(String particion, String ultimo, int mensajes) throws RemoteException {
+            sinAck += mensajes;
+            ultimoSinAck.put(particion, ultimo);
+            if (sinAck >= ackCada) {
+                enviarAcksPendientes();
+            }
+        }
+
+        synchronized void enviarAcksPendientes() throws RemoteException {
+            for (String ultimo : ultimoSinAck.values()) {
+                broker.confirmarHasta(cola, ultimo, this);
+            }
+            ultimoSinAck.clear();
+            sinAck = 0;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+    }
+
+    /**
+     * Consumidor que recibe las entregas por lotes
+     */
+    private static class ConsumidorCargaLotes extends ConsumidorCarga implements ConsumerBatchCallback {
+        private static final long serialVersionUID = 1L;
+
+        ConsumidorCargaLotes(String id, String cola, MessageBroker broker, boolean ackManual, int prefetch,
+                             LatencyHistogram latencias, AtomicLong recibidos, ConcurrentMap<String, Long> ordenClaves,
+                             AtomicLong desordenados) throws RemoteException {
+            super(id, cola, broker, ackManual, prefetch, latencias, recibidos, ordenClaves, desordenados);
+        }
+
+        @Override
+        public void onMessages(List<Message> mensajes) throws RemoteException {
+            long ahora = System.nanoTime();
+            List<String> ids = new ArrayList<>(mensajes.size());
+            for (Message mensaje : mensajes) {
+                if (mensaje.esSistema()) continue;
+                recibir(mensaje, ahora);
+                ids.add(mensaje.getId());
+            }
+            if (ids.isEmpty()) return;
+            if (ackManual) {
+                broker.confirmarMensajes(cola, ids, this);
+            } else {
+                // Un lote viene siempre de una sola partición
+                acumularAck(mensajes.get(0).getCola(), ids.get(ids.size() - 1), ids.size());
+            }
+        }
+    }
+
+    /**
+     * Productor de la prueba en modo asíncrono: cuenta las confirmaciones del broker
+     */
+    private static class ProductorCarga extends UnicastRemoteObject implements Producer {
+        private static final long serialVersionUID = 1L;
+        private final String nombre;
+        private final AtomicLong aceptados;
+        private final AtomicLong rechazados;
+
+        ProductorCarga(String nombre, AtomicLong aceptados, AtomicLong rechazados) throws RemoteException {
+            super();
+            this.nombre = nombre;
+            this.aceptados = aceptados;
+            this.rechazados = rechazados;
+        }
+
+        @Override
+        public String getName() {
+            return nombre;
+        }
+
+        @Override
+        public void onConfirmaciones(List<PublishConfirm> confirmaciones) {
+            for (PublishConfirm confirmacion : confirmaciones) {
+                (confirmacion.isAceptado() ? aceptados : rechazados).incrementAndGet();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opciones = leerOpciones(args);
+        int productores = Integer.parseInt(opciones.get("productores"));
+        int consumidores = Integer.parseInt(opciones.get("consumidores"));
+        int totalColas = Integer.parseInt(opciones.get("colas"));
+        int particiones = Integer.parseInt(opciones.get("particiones"));
+        int mensajes = Integer.parseInt(opciones.get("mensajes"));
+        int tamano = Integer.parseInt(opciones.get("tamano"));
+        double durables = Double.parseDouble(opciones.get("durables"));
+        double rechazo = Double.parseDouble(opciones.get("rechazo"));
+        boolean ackManual = opciones.get("ack").equalsIgnoreCase("manual");
+        int prefetch = Integer.parseInt(opciones.get("prefetch"));
+        boolean lotes = Boolean.parseBoolean(opciones.get("lotes"));
+        boolean asincrono = Boolean.parseBoolean(opciones.get("asincrono"));
+        int puerto = Integer.parseInt(opciones.get("puerto"));
+
+        // Sin salida por mensaje ni endpoint HTTP salvo que se pidan
+        System.setProperty("mom.eventos.nivel", opciones.get("nivel"));
+        if (System.getProperty("mom.metricas.puerto") == null) {
+            System.setProperty("mom.metricas.puerto", "0");
+        }
+
+        // Registro RMI y broker en este proceso
+        String url = "rmi://localhost:" + puerto + "/MessageBroker";
+        LocateRegistry.createRegistry(puerto);
+        Naming.rebind(url, MessageBrokerImpl.getInstance());
+        MessageBroker broker = (MessageBroker) Naming.lookup(url);
+
+        List<String> colas = new ArrayList<>();
+        for (int i = 0; i < totalColas; i++) {
+            String cola = "carga_" + i;
+            if (particiones > 1) {
+                broker.declararCola(cola, durables > 0, MessageQueue.TTL_POR_DEFECTO_MS, particiones);
+            } else {
+                broker.declararCola(cola, durables > 0);
+            }
+            colas.add(cola);
+        }
+
+        // Consumidores, repartidos en round robin entre las colas
+        LatencyHistogram latencias = new LatencyHistogram();
+        AtomicLong recibidos = new AtomicLong();
+        ConcurrentMap<String, Long> ordenClaves = new ConcurrentHashMap<>();
+        AtomicLong desordenados = new AtomicLong();
+        List<ConsumidorCarga> listaConsumidores = new ArrayList<>();
+        for (int i = 0; i < consumidores; i++) {
+            String cola = colas.get(i % colas.size());
+            ConsumidorCarga consumidor = lotes
+                    ? new ConsumidorCargaLotes("load-consumer-" + i, cola, broker, ackManual, prefetch, latencias, 
+                                               recibidos, ordenClaves, desordenados)
+                    : new ConsumidorCarga("load-consumer-" + i, cola, broker, ackManual, prefetch, latencias, 
+                                          recibidos, ordenClaves, desordenados);
+            broker.consumir(cola, consumidor, prefetch);
+            listaConsumidores.add(consumidor);
+        }
+
+        // Productores
+        String relleno = "lorem ipsum dolor sit amet ".repeat(Math.max(1, tamano / 27 + 1));
+        AtomicLong aceptados = new AtomicLong();
+        AtomicLong rechazados = new AtomicLong();
+        AtomicLong reintentos = new AtomicLong(); // Búfer de admisión lleno (modo asíncrono)
+        LatencyHistogram llamadas = new LatencyHistogram();
+        List<ProductorCarga> listaProductores = new ArrayList<>();
+        CountDownLatch fin = new CountDownLatch(productores);
+        List<Thread> hilos = new ArrayList<>();
+        for (int p = 0; p < productores; p++) {
+            final int productor = p;
+            final int cuota = mensajes / productores + (p < mensajes % productores ? 1 : 0);
+            ProductorCarga remoto = asincrono ? new ProductorCarga("load-producer-" + p, aceptados, rechazados) : null;
+            if (remoto != null) listaProductores.add(remoto);
+            Thread hilo = new Thread(() -> {
+                try {
+                    MessageBroker cliente = (MessageBroker) Naming.lookup(url);
+                    ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+                    for (int i = 0; i < cuota; i++) {
+                        String cola = colas.get((productor + i) % colas.size());
+                        String contenido = "Load message " + productor + "-" + i + " " + relleno;
+                        contenido = contenido.substring(0, Math.max(20, Math.min(contenido.length(), tamano)));
+                        if (aleatorio.nextDouble() < rechazo) {
+                            contenido = contenido + " spam"; // Lo rechaza SpamFilterAgent
+                        }
+                        Map<String, String> cabeceras = Collections.singletonMap(CABECERA_ENVIO,
+                                Long.toString(System.nanoTime()));
+                        if (particiones > 1) {
+                            // Cada productor publica sus claves en orden: el consumidor lo comprueba
+                            cabeceras = new HashMap<>(cabeceras);
+                            cabeceras.put(Message.CABECERA_CLAVE, cola + "/" + productor + "-" + (i % CLAVES_POR_PRODUCTOR));
+                            cabeceras.put(CABECERA_ORDEN, Integer.toString(i));
+                        }
+                        Message mensaje = new Message(null, cola, aleatorio.nextDouble() < durables ? Message.DURABLE : 0,
+                                System.currentTimeMillis(), 0, 0, cabeceras, contenido.getBytes(StandardCharsets.UTF_8));
+                        long llamada = System.nanoTime();
+                        if (remoto != null) {
+                            // El resultado llega en las confirmaciones; si el búfer está lleno, reintentar
+                            while (!cliente.publicarAsincrono(remoto, i, mensaje)) {
+                                reintentos.incrementAndGet();
+                                LockSupport.parkNanos(100_000);
+                            }
+                        } else if (cliente.publicar(mensaje)) {
+                            aceptados.incrementAndGet();
+                        } else {
+                            rechazados.incrementAndGet();
+                        }
+                        llamadas.registrar(System.nanoTime() - llamada);
+                    }
+                } catch (Exception e) {
+                    System.err.println("Error in load producer " + productor + ": " + e.getMessage());
+                } finally {
+                    fin.countDown();
+                }
+            }, "load-producer-" + p);
+            hilos.add(hilo);
+        }
+
+        System.out.println("Load test: " + productores + " producers, " + consumidores + " consumers, " +
+                         totalColas + " queues" + (particiones > 1 ? " of " + particiones + " partitions" : "") + 
+                         ", " + mensajes + " messages of ~" + tamano + " chars, " +
+                         (int) (durables * 100) + "% durable, " + (int) (rechazo * 100) + "% rejected, " +
+                         (ackManual ? "manual" : "auto") + " ack, prefetch " + prefetch +
+                         (lotes ? ", batch delivery" : "") + (asincrono ? ", async publish" : ""));
+        long inicio = System.nanoTime();
+        for (Thread hilo : hilos) {
+            hilo.start();
+        }
+        fin.await();
+        long finPublicacion = System.nanoTime();
+
+        // Esperar a conocer el resultado de todos los mensajes y a que lleguen los aceptados
+        long limite = System.currentTimeMillis() + ESPERA_MAXIMA_MS;
+        while ((aceptados.get() + rechazados.get() < mensajes || recibidos.get() < aceptados.get()) 
+               && System.currentTimeMillis() < limite) {
+            Thread.sleep(1);
+        }
+        long finEntrega = System.nanoTime();
+        for (ConsumidorCarga consumidor : listaConsumidores) {
+            consumidor.enviarAcksPendientes();
+        }
+
+        double segundosPublicacion = (finPublicacion - inicio) / 1e9;
+        double segundosTotal = (finEntrega - inicio) / 1e9;
+        System.out.println();
+        System.out.println("═══════════════════════════════════════════════════════");
+        System.out.println("LOAD TEST RESULTS");
+        System.out.println("═══════════════════════════════════════════════════════");
+        System.out.printf("Published:  %d accepted, %d rejected by agents in %.2f s (%.0f msg/s)%n",
+                          aceptados.get(), rechazados.get(), segundosPublicacion, mensajes / segundosPublicacion);
+        if (asincrono) {
+            System.out.println("Confirms:   " + (aceptados.get() + rechazados.get()) + " of " + mensajes +
+                             ", intake full " + reintentos.get() + " times");
+        }
+        System.out.println("Publish call: p50 " + LatencyHistogram.formatear(llamadas.percentil(50)) +
+                         ", p99 " + LatencyHistogram.formatear(llamadas.percentil(99)) +
+                         ", max " + LatencyHistogram.formatear(llamadas.percentil(100)));
+        System.out.printf("Delivered:  %d of %d in %.2f s (%.0f msg/s end to end)%n",
+                          recibidos.get(), aceptados.get(), segundosTotal, recibidos.get() / segundosTotal);
+        System.out.println("Latency:    p50 " + LatencyHistogram.formatear(latencias.percentil(50)) +
+                         ", p99 " + LatencyHistogram.formatear(latencias.percentil(99)) +
+                         ", p99.9 " + LatencyHistogram.formatear(latencias.percentil(99.9)) +
+                         ", max " + LatencyHistogram.formatear(latencias.percentil(100)));
+        if (particiones > 1) {
+            System.out.println("Key order:  " + ordenClaves.size() + " keys, " + desordenados.get() + 
+                             " messages out of order");
+        }
+        if (recibidos.get() < aceptados.get()) {
+            System.out.println("WARNING: " + (aceptados.get() - recibidos.get()) + " messages not delivered within " +
+                             (ESPERA_MAXIMA_MS / 1000) + " s");
+        }
+        if (Boolean.parseBoolean(opciones.get("metricas"))) {
+            System.out.println("\nBROKER METRICS:");
+            System.out.println(broker.getMetricas());
+        }
+
+        // Limpieza: bajar los consumidores y eliminar las colas de prueba (y sus journals)
+        for (ConsumidorCarga consumidor : listaConsumidores) {
+            broker.desuscribir(consumidor.cola, consumidor);
+            UnicastRemoteObject.unexportObject(consumidor, true);
+        }
+        for (ProductorCarga productor : listaProductores) {
+            UnicastRemoteObject.unexportObject(productor, true);
+        }
+        for (String cola : colas) {
+            broker.eliminarCola(cola);
+        }
+        BrokerEventBus.getInstance().vaciar(1000);
+        System.exit(recibidos.get() < aceptados.get() ? 1 : 0);
+    }
+
+    /**
+     * Lee las opciones "clave=valor" sobre los valores por defecto
+     */
+    private static Map<String, String> leerOpciones(String[] args) {
+        Map<String, String> opciones = new LinkedHashMap<>();
+        opciones.put("productores", "2");
+        opciones.put("consumidores", "2");
+        opciones.put("colas", "1");
+        opciones.put("particiones", "0");
+        opciones.put("mensajes", "20000");
+        opciones.put("tamano", "100");
+        opciones.put("durables", "0.0");
+        opciones.put("rechazo", "0.0");
+        opciones.put("ack", "auto");
+        opciones.put("prefetch", "64");
+        opciones.put("lotes", "false");
+        opciones.put("asincrono", "false");
+        opciones.put("puerto", "1099");
+        opciones.put("nivel", "SILENCIO");
+        opciones.put("metricas", "false");
+        for (String arg : args) {
+            int igual = arg.indexOf('=');
+            if (igual <= 0 || !opciones.containsKey(arg.substring(0, igual))) {
+                System.err.println("Unknown option: " + arg + " (valid: " + opciones.keySet() + ")");
+                System.exit(1);
+            }
+            opciones.put(arg.substring(0, igual), arg.substring(igual + 1));
+        }
+        return opciones;
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mapa de claves long primitivas con direccionamiento abierto (sondeo lineal), sin
+ * objetos Long ni nodos por entrada: las claves y los valores se guardan en dos arrays
+ * paralelos. El borrado desplaza hacia atrás las entradas del mismo grupo, así que no
+ * deja lápidas. La clave 0 está reservada para marcar las ranuras vacías.
+ *
+ * No es thread-safe: el llamante debe sincronizar los accesos.
+ * @param <V> Tipo de los valores
+ */
+public class LongObjectMap<V> {
+    private static final int CAPACIDAD_MINIMA = 16;
+    private static final long VACIA = 0;
+
+    private long[] claves;
+    private Object[] valores;
+    private int mascara;
+    private int tamano = 0;
+    private int umbral; // Tamaño a partir del cual se duplica la tabla (factor de carga 0,5)
+
+    public LongObjectMap() {
+        this(CAPACIDAD_MINIMA);
+    }
+
+    /**
+     * Constructor
+     * @param capacidadEsperada Número de entradas previsto
+     */
+    public LongObjectMap(int capacidadEsperada) {
+        int capacidad = CAPACIDAD_MINIMA;
+        while (capacidad < capacidadEsperada * 2) {
+            capacidad <<= 1;
+        }
+        reservar(capacidad);
+    }
+
+    private void reservar(int capacidad) {
+        claves = new long[capacidad];
+        valores = new Object[capacidad];
+        mascara = capacidad - 1;
+        umbral = capacidad / 2;
+    }
+
+    /**
+     * Mezcla los bits de la clave para que secuencias consecutivas no formen grupos
+     */
+    private int ranura(long clave) {
+        long h = clave * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mascara;
+    }
+
+    /**
+     * Obtiene el valor asociado a una clave
+     * @param clave Clave (distinta de 0)
+     * @return Valor o null si no existe
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long clave) {
+        if (clave == VACIA) return null;
+        for (int i = ranura(clave); ; i = (i + 1) & mascara) {
+            long actual = claves[i];
+            if (actual == clave) return (V) valores[i];
+            if (actual == VACIA) return null;
+        }
+    }
+
+    /**
+     * Asocia un valor a una clave
+     * @param clave Clave (distinta de 0)
+     * @param valor Valor
+     * @return Valor anterior o null si no existía
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long clave, V valor) {
+        if (clave == VACIA) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+        int i = ranura(clave);
+        while (claves[i] != VACIA) {
+            if (claves[i] == clave) {
+                V anterior = (V) valores[i];
+                valores[i] = valor;
+                return anterior;
+            }
+            i = (i + 1) & mascara;
+        }
+        claves[i] = clave;
+        valores[i] = valor;
+        if (++tamano > umbral) {
+            redimensionar();
+        }
+        return null;
+    }
+
+    /**
+     * Elimina una clave
+     * @param clave Clave
+     * @return Valor eliminado o null si no existía
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long clave) {
+        if (clave == VACIA) return null;
+        int i = ranura(clave);
+        while (claves[i] != clave) {
+            if (claves[i] == VACIA) return null;
+            i = (i + 1) & mascara;
+        }
+        V anterior = (V) valores[i];
+        borrarRanura(i);
+        tamano--;
+        return anterior;
+    }
+
+    /**
+     * Vacía la ranura i y desplaza hacia atrás las entradas siguientes del grupo que
+     * dejarían de ser alcanzables desde su ranura ideal
+     */
+    private void borrarRanura(int i) {
+        int hueco = i;
+        for (int j = (i + 1) & mascara; claves[j] != VACIA; j = (j + 1) & mascara) {
+            int ideal = ranura(claves[j]);
+            // La entrada j puede ocupar el hueco si su ranura ideal no está entre el hueco y j
+            boolean mover = hueco <= j ? (ideal <= hueco || ideal > j) : (ideal <= hueco && ideal > j);
+            if (mover) {
+                claves[hueco] = claves[j];
+                valores[hueco] = valores[j];
+                hueco = j;
+            }
+        }
+        claves[hueco] = VACIA;
+        valores[hueco] = null;
+    }
+
+    private void redimensionar() {
+        long[] clavesAnteriores = claves;
+        Object[] valoresAnteriores = valores;
+        reservar(claves.length * 2);
+        for (int i = 0; i < clavesAnteriores.length; i++) {
+            long clave = clavesAnteriores[i];
+            if (clave == VACIA) continue;
+            int j = ranura(clave);
+            while (claves[j] != VACIA) {
+                j = (j + 1) & mascara;
+            }
+            claves[j] = clave;
+            valores[j] = valoresAnteriores[i];
+        }
+    }
+
+    /**
+     * Número de entradas
+     */
+    public int size() {
+        return tamano;
+    }
+
+    public boolean isEmpty() {
+        return tamano == 0;
+    }
+
+    /**
+     * Copia de los valores, en orden arbitrario
+     * @return Lista con los valores
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> valores() {
+        List<V> lista = new ArrayList<>(tamano);
+        for (int i = 0; i < claves.length; i++) {
+            if (claves[i] != VACIA) {
+                lista.add((V) valores[i]);
+            }
+        }
+        return lista;
+    }
+
+    /**
+     * Elimina todas las entradas
+     */
+    public void clear() {
+        Arrays.fill(claves, VACIA);
+        Arrays.fill(valores, null);
+        tamano = 0;
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sobre binario de un mensaje: identificador, cola, flags, marcas de tiempo, número de
+ * entregas, cabeceras y contenido en bytes. Es el formato con el que el broker entrega
+ * los mensajes a los consumidores y el que se guarda en el journal.
+ *
+ * Formato (versión 1):
+ *   byte version | bool+UTF id | bool+UTF cola | int flags | long timestamp | long vencimiento |
+ *   int entregas | int nCabeceras (UTF clave, UTF valor)* | int longitud | byte[] contenido
+ */
+public class Message implements Externalizable {
+    private static final long serialVersionUID = 1L;
+    private static final byte VERSION = 1;
+
+    // Flags
+    public static final int DURABLE = 1;      // El mensaje se publicó como durable
+    public static final int REENTREGADO = 2;  // Ya se entregó antes sin ACK
+    public static final int SISTEMA = 4;      // Aviso del broker, no un mensaje de la cola
+    public static final int SIN_VENCIMIENTO = 8; // Al publicar: no expira (sin él, vencimiento 0 = TTL de la cola)
+
+    // Cabecera con la clave de enrutamiento de las colas particionadas
+    public static final String CABECERA_CLAVE = "routing-key";
+
+    private static final Map<String, String> SIN_CABECERAS = Collections.emptyMap();
+
+    private String id;
+    private String cola;
+    private int flags;
+    private long timestamp;    // Momento de creación (epoch millis)
+    private long vencimiento;  // Instante de expiración (epoch millis); 0 = sin vencimiento propio
+    private int entregas;      // Número de veces que se ha entregado (1 = primera entrega)
+    private Map<String, String> cabeceras = SIN_CABECERAS;
+    private byte[] contenido;
+
+    /**
+     * Constructor vacío requerido por Externalizable
+     */
+    public Message() {
+    }
+
+    /**
+     * Constructor completo
+     * @param id Identificador del mensaje (null si aún no se ha publicado)
+     * @param cola Cola de origen o destino (puede ser null)
+     * @param flags Combinación de DURABLE, REENTREGADO, SISTEMA y SIN_VENCIMIENTO
+     * @param timestamp Momento de creación (epoch millis)
+     * @param vencimiento Instante de expiración (epoch millis); 0 = sin vencimiento propio:
+     *        al publicarlo se aplica el TTL de la cola, salvo que lleve SIN_VENCIMIENTO
+     * @param entregas Número de veces que se ha entregado
+     * @param cabeceras Cabeceras del mensaje (puede ser null)
+     * @param contenido Contenido en bytes (no se copia)
+     */
+    public Message(String id, String cola, int flags, long timestamp, long vencimiento, int entregas,
+                   Map<String, String> cabeceras, byte[] contenido) {
+        this.id = id;
+        this.cola = cola;
+        this.flags = flags;
+        this.timestamp = timestamp;
+        this.vencimiento = vencimiento;
+        this.entregas = entregas;
+        this.cabeceras = cabeceras == null || cabeceras.isEmpty() ? SIN_CABECERAS : cabeceras;
+        this.contenido = contenido;
+    }
+
+    /**
+     * Crea un mensaje de texto para publicar
+     * @param cola Cola destino
+     * @param texto Contenido del mensaje
+     * @param cabeceras Cabeceras del mensaje (puede ser null)
+     */
+    public static Message texto(String cola, String texto, Map<String, String> cabeceras) {
+        return new Message(null, cola, 0, System.currentTimeMillis(), 0, 0, cabeceras,
+                           texto.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Crea un aviso del broker para los consumidores de una cola
+     * @param cola Cola afectada
+     * @param texto Texto del aviso
+     */
+    public static Message sistema(String cola, String texto) {
+        return new Message("SYSTEM", cola, SISTEMA, System.currentTimeMillis(), 0, 0, null,
+                           texto.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCola() {
+        return cola;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean esDurable() {
+        return (flags & DURABLE) != 0;
+    }
+
+    public boolean esReentregado() {
+        return (flags & REENTREGADO) != 0;
+    }
+
+    public boolean esSistema() {
+        return (flags & SISTEMA) != 0;
+    }
+
+    public boolean esSinVencimiento() {
+        return (flags & SIN_VENCIMIENTO) != 0;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getVencimiento() {
+        return vencimiento;
+    }
+
+    public int getEntregas() {
+        return entregas;
+    }
+
+    public Map<String, String> getCabeceras() {
+        return cabeceras;
+    }
+
+    public String getCabecera(String clave) {
+        return cabeceras.get(clave);
+    }
+
+    /**
+     * Contenido en bytes (sin copia)
+     */
+    public byte[] getContenido() {
+        return contenido;
+    }
+
+    /**
+     * Contenido decodificado como texto UTF-8
+     */
+    public String getTexto() {
+        return new String(contenido, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Escribe el mensaje en el formato binario del sobre
+     * @param salida Destino
+     */
+    public void escribir(DataOutput salida) throws IOException {
+        salida.writeByte(VERSION);
+        escribirOpcional(salida, id);
+        escribirOpcional(salida, cola);
+        salida.writeInt(flags);
+        salida.writeLong(timestamp);
+        salida.writeLong(vencimiento);
+        salida.writeInt(entregas);
+        salida.writeInt(cabeceras.size());
+        for (Map.Entry<String, String> cabecera : cabeceras.entrySet()) {
+            salida.writeUTF(cabecera.getKey());
+            salida.writeUTF(cabecera.getValue());
+        }
+        salida.writeInt(contenido.length);
+        salida.write(contenido);
+    }
+
+    /**
+     * Lee un mensaje escrito con escribir()
+     * @param entrada Origen
+     * @return Mensaje leído
+     */
+    public static Message leer(DataInput entrada) throws IOException {
+        Message mensaje = new Message();
+        mensaje.leerCampos(entrada);
+        return mensaje;
+    }
+
+    private void leerCampos(DataInput entrada) throws IOException {
+        byte version = entrada.readByte();
+        if (version > VERSION) {
+            throw new IOException("Unsupported message envelope version: " + version);
+        }
+        id = entrada.readBoolean() ? entrada.readUTF() : null;
+        cola = entrada.readBoolean() ? entrada.readUTF() : null;
+        flags = entrada.readInt();
+        timestamp = entrada.readLong();
+        vencimiento = entrada.readLong();
+        entregas = entrada.readInt();
+        int totalCabeceras = entrada.readInt();
+        if (totalCabeceras > 0) {
+            cabeceras = new LinkedHashMap<>();
+            for (int i = 0; i < totalCabeceras; i++) {
+                cabeceras.put(entrada.readUTF(), entrada.readUTF());
+            }
+        } else {
+            cabeceras = SIN_CABECERAS;
+        }
+        contenido = new byte[entrada.readInt()];
+        entrada.readFully(contenido);
+    }
+
+    private static void escribirOpcional(DataOutput salida, String valor) throws IOException {
+        salida.writeBoolean(valor != null);
+        if (valor != null) {
+            salida.writeUTF(valor);
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput salida) throws IOException {
+        escribir(salida);
+    }
+
+    @Override
+    public void readExternal(ObjectInput entrada) throws IOException {
+        leerCampos(entrada);
+    }
+
+    @Override
+    public String toString() {
+        return id + " [" + cola + "] " + getTexto();
+    }
+}
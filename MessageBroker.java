@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.util.List;
+import java.util.Map;
 import java.rmi.RemoteException;
 
 /**
@@ -7,6 +8,9 @@ import java.rmi.RemoteException;
  */
 public interface MessageBroker extends Remote {
     
+    // Resultado de publicarEnExchange cuando los agentes rechazan el mensaje
+    int RECHAZADO_POR_AGENTES = -2;
+    
     /**
      * Crea una nueva cola si no existe (operación idempotente)
      * @param nombreCola Identificador único de la cola
@@ -22,6 +26,30 @@ public interface MessageBroker extends Remote {
      */
     void declararCola(String nombreCola, boolean durable) throws RemoteException;
     
+    /**
+     * Crea una nueva cola con opciones de durabilidad y TTL de los mensajes.
+     * Si la cola ya existe, actualiza su TTL para los próximos mensajes.
+     * @param nombreCola Identificador único de la cola
+     * @param durable Si la cola debe persistir
+     * @param ttlMs Tiempo de vida de los mensajes en milisegundos (0 = no expiran)
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    void declararCola(String nombreCola, boolean durable, long ttlMs) throws RemoteException;
+    
+    /**
+     * Crea una cola particionada: sus mensajes se reparten entre varias particiones que se
+     * despachan y persisten por separado, y cada partición se asigna a un consumidor. Los
+     * mensajes con la misma clave de enrutamiento van a la misma partición y se entregan en
+     * orden. Si la cola ya existe como particionada, conserva sus particiones y actualiza su TTL.
+     * @param nombreCola Identificador único de la cola (sin '#')
+     * @param durable Si la cola debe persistir
+     * @param ttlMs Tiempo de vida de los mensajes en milisegundos (0 = no expiran)
+     * @param particiones Número de particiones (de 2 a 256; 1 o menos crea una cola normal)
+     * @throws RemoteException Si ocurre un error en la comunicación remota o la cola ya
+     *                         existe como cola normal
+     */
+    void declararCola(String nombreCola, boolean durable, long ttlMs, int particiones) throws RemoteException;
+    
     /**
      * Elimina una cola existente
      * @param nombreCola Nombre de la cola a eliminar
@@ -49,6 +77,88 @@ public interface MessageBroker extends Remote {
      */
     boolean publicar(String nombreCola, String mensaje, boolean durable) throws RemoteException;
     
+    /**
+     * Publica un mensaje en una cola con su propio TTL, que sustituye al de la cola
+     * @param nombreCola Cola destino
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @param ttlMs Tiempo de vida del mensaje en milisegundos (0 = no expira)
+     * @return true si el mensaje fue aceptado, false si la cola no existe
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    boolean publicar(String nombreCola, String mensaje, boolean durable, long ttlMs) throws RemoteException;
+    
+    /**
+     * Publica un mensaje con clave de enrutamiento. En una cola particionada todos los
+     * mensajes con la misma clave van a la misma partición y se entregan en orden; en una
+     * cola normal la clave se ignora. En un sobre, la clave va en la cabecera
+     * Message.CABECERA_CLAVE.
+     * @param nombreCola Cola destino
+     * @param clave Clave de enrutamiento (null = reparto round robin)
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @return true si el mensaje fue aceptado, false si la cola no existe
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    boolean publicar(String nombreCola, String clave, String mensaje, boolean durable) throws RemoteException;
+    
+    /**
+     * Publica un mensaje a partir de su sobre: la cola destino, el flag DURABLE, las
+     * cabeceras y el contenido salen del propio sobre. Si el sobre tiene vencimiento,
+     * el TTL del mensaje es la diferencia con su timestamp; si no, se usa el de la cola.
+     * @param mensaje Sobre del mensaje (el broker le asigna un identificador nuevo)
+     * @return true si el mensaje fue aceptado, false si la cola no existe
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    boolean publicar(Message mensaje) throws RemoteException;
+    
+    /**
+     * Publica un mensaje de forma asíncrona: el broker lo admite en su búfer y vuelve sin
+     * esperar a los agentes ni al almacenamiento; el resultado llega después al productor
+     * por Producer.onConfirmaciones con el número de secuencia indicado
+     * @param productor Objeto remoto del productor que recibirá la confirmación
+     * @param secuencia Número de secuencia del mensaje, elegido por el productor
+     * @param mensaje Sobre del mensaje (cola destino, flag DURABLE, vencimiento y cabeceras)
+     * @return true si el mensaje se admitió; false si la cola no existe o el búfer de
+     *         admisión está lleno (el productor debe reintentarlo más tarde)
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    boolean publicarAsincrono(Producer productor, long secuencia, Message mensaje) throws RemoteException;
+    
+    /**
+     * Publica un mensaje de texto de forma asíncrona (ver publicarAsincrono con sobre)
+     * @param productor Objeto remoto del productor que recibirá la confirmación
+     * @param secuencia Número de secuencia del mensaje, elegido por el productor
+     * @param nombreCola Cola destino
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @return true si el mensaje se admitió; false si la cola no existe o el búfer está lleno
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    boolean publicarAsincrono(Producer productor, long secuencia, String nombreCola, String mensaje, boolean durable) 
+            throws RemoteException;
+    
+    /**
+     * Publica un lote de mensajes en una cola con una sola llamada remota.
+     * El lote se evalúa con los agentes y se añade a la cola (y al journal) en una pasada.
+     * @param nombreCola Cola destino
+     * @param mensajes Contenidos de los mensajes, en orden
+     * @param durable Si los mensajes deben persistir
+     * @return Resultado de cada mensaje en el mismo orden: true si fue aceptado,
+     *         false si lo rechazaron los agentes o la cola no existe
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    List<Boolean> publicarLote(String nombreCola, List<String> mensajes, boolean durable) throws RemoteException;
+    
+    /**
+     * Publica lotes de mensajes en varias colas con una sola llamada remota
+     * @param mensajesPorCola Mensajes a publicar agrupados por cola destino
+     * @param durable Si los mensajes deben persistir
+     * @return Resultado de cada mensaje por cola, en el mismo orden que la entrada
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    Map<String, List<Boolean>> publicarLote(Map<String, List<String>> mensajesPorCola, boolean durable) throws RemoteException;
+    
     /**
      * Registra un consumidor para recibir mensajes de una cola
      * @param nombreCola Cola a suscribirse
@@ -57,6 +167,17 @@ public interface MessageBroker extends Remote {
      */
     void consumir(String nombreCola, ConsumerCallback callback) throws RemoteException;
     
+    /**
+     * Registra un consumidor con su propia ventana de prefetch (crédito): el broker le
+     * entrega mensajes mientras tenga menos de prefetch sin confirmar, y cada ACK/NACK
+     * le devuelve una unidad de crédito
+     * @param nombreCola Cola a suscribirse
+     * @param callback Función de procesamiento de mensajes
+     * @param prefetch Máximo de mensajes sin confirmar (0 = ilimitado)
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    void consumir(String nombreCola, ConsumerCallback callback, int prefetch) throws RemoteException;
+    
     /**
      * Desuscribe un consumidor de una cola
      * @param nombreCola Cola a desuscribirse
@@ -74,6 +195,23 @@ public interface MessageBroker extends Remote {
      */
     void setFairDispatch(String nombreCola, boolean fair) throws RemoteException;
     
+    /**
+     * Establece el modo de durabilidad del journal de una cola durable
+     * @param nombreCola Nombre de la cola
+     * @param modo NINGUNA, AGRUPADA (group commit) o POR_MENSAJE
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    void setModoDurabilidad(String nombreCola, ModoDurabilidad modo) throws RemoteException;
+    
+    /**
+     * Configura el group commit de una cola durable
+     * @param nombreCola Nombre de la cola
+     * @param latenciaMaximaMicros Tiempo máximo que una escritura espera a formar lote
+     * @param loteMaximo Número de registros que dispara la escritura inmediata
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    void configurarGroupCommit(String nombreCola, long latenciaMaximaMicros, int loteMaximo) throws RemoteException;
+    
     /**
      * Confirma el procesamiento de un mensaje (ACK)
      * @param nombreCola Nombre de la cola
@@ -94,6 +232,37 @@ public interface MessageBroker extends Remote {
      */
     boolean rechazarMensaje(String nombreCola, String mensajeId, ConsumerCallback callback) throws RemoteException;
 
+    /**
+     * Confirma varios mensajes en una sola llamada (un único registro de persistencia)
+     * @param nombreCola Nombre de la cola
+     * @param mensajeIds IDs de los mensajes
+     * @param callback Consumidor que confirma
+     * @return Número de mensajes confirmados
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    int confirmarMensajes(String nombreCola, List<String> mensajeIds, ConsumerCallback callback) throws RemoteException;
+    
+    /**
+     * Confirma de forma acumulativa todos los mensajes entregados a este consumidor
+     * hasta el indicado, inclusive
+     * @param nombreCola Nombre de la cola
+     * @param mensajeId ID del último mensaje a confirmar
+     * @param callback Consumidor que confirma
+     * @return Número de mensajes confirmados
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    int confirmarHasta(String nombreCola, String mensajeId, ConsumerCallback callback) throws RemoteException;
+    
+    /**
+     * Rechaza varios mensajes en una sola llamada, devolviéndolos a la cola
+     * @param nombreCola Nombre de la cola
+     * @param mensajeIds IDs de los mensajes
+     * @param callback Consumidor que rechaza
+     * @return Número de mensajes rechazados
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    int rechazarMensajes(String nombreCola, List<String> mensajeIds, ConsumerCallback callback) throws RemoteException;
+
     /**
      * Retorna una lista con los nombres de todas las colas disponibles
      * @return Lista de nombres de colas
@@ -109,6 +278,84 @@ public interface MessageBroker extends Remote {
      */
     String getInfoCola(String nombreCola) throws RemoteException;
     
+    /**
+     * Crea un exchange si no existe (operación idempotente)
+     * @param nombreExchange Identificador único del exchange
+     * @param tipo DIRECTO, FANOUT o TOPIC
+     * @throws RemoteException Si ocurre un error en la comunicación remota o el exchange
+     *                         ya existe con otro tipo
+     */
+    void declararExchange(String nombreExchange, Exchange.Tipo tipo) throws RemoteException;
+    
+    /**
+     * Elimina un exchange y sus enlaces (las colas no se modifican)
+     * @param nombreExchange Nombre del exchange
+     * @return true si se eliminó correctamente
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    boolean eliminarExchange(String nombreExchange) throws RemoteException;
+    
+    /**
+     * Enlaza una cola con un exchange
+     * @param nombreExchange Nombre del exchange
+     * @param nombreCola Nombre de la cola
+     * @param claveEnlace Clave de enlace: la clave exacta en DIRECTO, un patrón con '*' (una
+     *                    palabra) y '#' (cero o más palabras) en TOPIC; se ignora en FANOUT
+     * @return true si el exchange y la cola existen
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    boolean enlazarCola(String nombreExchange, String nombreCola, String claveEnlace) throws RemoteException;
+    
+    /**
+     * Quita el enlace de una cola con un exchange
+     * @param nombreExchange Nombre del exchange
+     * @param nombreCola Nombre de la cola
+     * @param claveEnlace Clave de enlace con la que se enlazó
+     * @return true si el enlace existía
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    boolean desenlazarCola(String nombreExchange, String nombreCola, String claveEnlace) throws RemoteException;
+    
+    /**
+     * Publica un mensaje en un exchange, que lo envía a todas las colas cuyos enlaces casan
+     * con la clave de enrutamiento. Los agentes que solo analizan el contenido evalúan el
+     * mensaje una sola vez; las reglas de cada cola (por ejemplo, las de ChannelRulesAgent)
+     * se aplican por separado a cada cola destino, y una cola que lo rechaza no lo recibe.
+     * El contenido se guarda una sola vez para todas las colas (también en disco, si el
+     * mensaje y las colas son durables).
+     * @param nombreExchange Exchange destino
+     * @param clave Clave de enrutamiento (también elige la partición en las colas particionadas)
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @return Número de colas a las que se envió, -1 si el exchange no existe o
+     *         RECHAZADO_POR_AGENTES si los agentes rechazaron el mensaje para todas las colas
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    int publicarEnExchange(String nombreExchange, String clave, String mensaje, boolean durable) throws RemoteException;
+    
+    /**
+     * Retorna una lista con los nombres de todos los exchanges
+     * @return Lista de nombres de exchanges
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    List<String> listarExchanges() throws RemoteException;
+    
+    /**
+     * Obtiene información sobre un exchange: su tipo y sus enlaces
+     * @param nombreExchange Nombre del exchange
+     * @return Información formateada como string
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    String getInfoExchange(String nombreExchange) throws RemoteException;
+    
+    /**
+     * Obtiene las métricas del broker: contadores por cola y por agente y latencias
+     * de entrega, de confirmación y de evaluación de los agentes
+     * @return Métricas formateadas como string
+     * @throws RemoteException Si ocurre un error en la comunicación remota
+     */
+    String getMetricas() throws RemoteException;
+    
     /**
      * Agrega un agente de filtrado al sistema
      * @param agente Agente a agregar
@@ -6,8 +6,15 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.io.Serializable;
 import java.io.File;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import com.sun.net.httpserver.HttpServer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Implementación del broker de mensajes que utiliza RMI para comunicación remota.
@@ -17,13 +24,22 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
     // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion    
     private static final long serialVersionUID = 1L;
     private static MessageBroker instance;
-    // Mapa concurrente para gestionar las colas de mensajes (multi thread safe)
-    private final ConcurrentMap<String, MessageQueue> queues = new ConcurrentHashMap<>();
+    // Mapa concurrente para gestionar las colas de mensajes (multi thread safe);
+    // una cola particionada ocupa una sola entrada con su nombre
+    private final ConcurrentMap<String, BrokerQueue> queues = new ConcurrentHashMap<>();
+    // Exchanges: enrutan una publicación a varias colas según sus enlaces
+    private final ConcurrentMap<String, Exchange> exchanges = new ConcurrentHashMap<>();
     // Crea un pool de un hilo dedicado a ejecutar tareas periódicas o con retraso
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
     
     // Sistema de agentes para filtrado de mensajes
     private final AgentManager agentManager = new AgentManager();
+    // Flujo de eventos: la publicación no escribe en la consola, lo hace el hilo sumidero
+    private final BrokerEventBus eventos = BrokerEventBus.getInstance();
+    // Contadores e histogramas de latencia, consultables por RMI y por HTTP
+    private final MetricsRegistry metricas = MetricsRegistry.getInstance();
+    // Búfer y filtradores de la publicación asíncrona; se crean con la primera publicación asíncrona
+    private PublishIntake admision;
     
     // Canales predeterminados
     private static final String[] CANALES_PREDETERMINADOS = {
@@ -41,30 +57,47 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     protected MessageBrokerImpl() throws RemoteException {
         super();
-        // Programa limpieza periódica de mensajes expirados cada 30 segundos
-        scheduler.scheduleAtFixedRate(this::cleanExpiredMessages, 0, 30, TimeUnit.SECONDS);
+        // Programa un informe periódico del estado de las colas cada 30 segundos
+        // (los mensajes expiran en su fecha límite mediante la rueda de temporización)
+        scheduler.scheduleAtFixedRate(this::informarColas, 0, 30, TimeUnit.SECONDS);
         
         // Inicializa las colas predeterminadas
         inicializarColasPredeteminadas();
         
-        // Recuperar colas durables
+        // Recuperar colas durables y liberar los contenidos compartidos que ya no usa ninguna
         recuperarColasDurables();
+        PayloadStore.getInstance().purgarNoReferenciados();
         
         // Configurar agentes por defecto
         agentManager.configurarAgentesPorDefecto();
+        
+        // Endpoint HTTP local con las métricas en formato Prometheus
+        iniciarEndpointMetricas();
+    }
+    
+    /**
+     * Informa en el informe periódico del estado del planificador de entregas
+     */
+    private void informarEntregas() {
+        DeliveryScheduler entregas = DeliveryScheduler.getInstance();
+        System.out.println("Delivery scheduler (" + entregas.describir() + "): " + 
+                         entregas.contarEntregasPendientes() + " pending, " + 
+                         entregas.contarEntregasCompletadas() + " completed");
     }
 
-    // Limpia mensajes expirados en todas las colas
-    private void cleanExpiredMessages() {
+    // Informa del estado de todas las colas
+    private void informarColas() {
         System.out.println("");
         System.out.println("-----------------------------------");
         queues.forEach((nombre, cola) -> {
-            System.out.println("Checking queue '" + nombre + 
+            System.out.println("Queue '" + nombre + 
                             "' (Messages: " + cola.contarMensajes() + 
-                            ", Consumers: " + cola.contarConsumidores() + ")");
-            cola.eliminarMensajesExpirados();
+                            ", Consumers: " + cola.contarConsumidores() + 
+                            ", Expired: " + cola.contarExpirados() + ")");
             System.out.println("-----------------------------------");
         });
+        informarEntregas();
+        System.out.println("Expiration timers scheduled: " + TimingWheel.getInstance().contarProgramados());
     }
     
     /**
@@ -87,7 +120,10 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     private void recuperarColasDurables() {
         File dir = new File(".");
-        File[] files = dir.listFiles((d, name) -> name.startsWith("queue_") && name.endsWith(".dat"));
+        // Segmentos del journal (queue_NOMBRE.N.journal), snapshots antiguos (queue_NOMBRE.dat)
+        // o número de particiones de una cola particionada (queue_NOMBRE.particiones)
+        File[] files = dir.listFiles((d, name) -> MessageJournal.nombreColaDeFichero(name) != null
+                                                 || PartitionedQueue.colaDeFichero(name) != null);
         
         if (files == null || files.length == 0) {
             System.out.println("No durable queue files found to recover.");
@@ -96,11 +132,26 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
         
         for (File file : files) {
             try {
-                String nombreCola = file.getName().substring(6, file.getName().length() - 4);
+                String nombreCola = MessageJournal.nombreColaDeFichero(file.getName());
+                if (nombreCola == null) {
+                    nombreCola = PartitionedQueue.colaDeFichero(file.getName());
+                }
+                
+                // Los journals de las particiones (cola#3) pertenecen a su cola particionada
+                int particiones = PartitionedQueue.leerNumParticiones(nombreCola);
+                String colaParticionada = PartitionedQueue.colaDeParticion(nombreCola);
+                if (particiones == 0 && colaParticionada != null) {
+                    particiones = PartitionedQueue.leerNumParticiones(colaParticionada);
+                    if (particiones > 0) nombreCola = colaParticionada;
+                }
                 
                 // Si la cola no existe ya en memoria, crearla
                 if (!queues.containsKey(nombreCola)) {
-                    declararCola(nombreCola, true);
+                    if (particiones > 0) {
+                        declararCola(nombreCola, true, MessageQueue.TTL_POR_DEFECTO_MS, particiones);
+                    } else {
+                        declararCola(nombreCola, true);
+                    }
                     System.out.println("Durable queue '" + nombreCola + "' recovered from disk");
                 }
             } catch (Exception e) {
@@ -140,6 +191,51 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
         System.out.println("Queue declared: " + nombreCola + " (durable: " + durable + ")");
     }
     
+    /**
+     * Crea una nueva cola con opciones de durabilidad y TTL de los mensajes
+     * @param nombreCola Identificador único de la cola
+     * @param durable Si la cola debe persistir
+     * @param ttlMs Tiempo de vida de los mensajes en milisegundos (0 = no expiran)
+     */
+    @Override
+    public void declararCola(String nombreCola, boolean durable, long ttlMs) throws RemoteException {
+        BrokerQueue queue = queues.computeIfAbsent(nombreCola, k -> new MessageQueue(nombreCola, durable, ttlMs));
+        // Si ya existía, el nuevo TTL se aplica a los próximos mensajes
+        queue.setTtl(ttlMs);
+        System.out.println("Queue declared: " + nombreCola + " (durable: " + durable + 
+                         ", TTL: " + MessageQueue.describirTtl(ttlMs) + ")");
+    }
+    
+    /**
+     * Crea una cola particionada con opciones de durabilidad y TTL de los mensajes
+     * @param nombreCola Identificador único de la cola
+     * @param durable Si la cola debe persistir
+     * @param ttlMs Tiempo de vida de los mensajes en milisegundos (0 = no expiran)
+     * @param particiones Número de particiones (1 o menos = cola normal)
+     */
+    @Override
+    public void declararCola(String nombreCola, boolean durable, long ttlMs, int particiones) throws RemoteException {
+        if (particiones <= 1) {
+            declararCola(nombreCola, durable, ttlMs);
+            return;
+        }
+        
+        BrokerQueue queue;
+        try {
+            queue = queues.computeIfAbsent(nombreCola, k -> new PartitionedQueue(nombreCola, durable, ttlMs, particiones));
+        } catch (IllegalArgumentException e) {
+            throw new RemoteException("Cannot declare queue '" + nombreCola + "': " + e.getMessage());
+        }
+        if (!(queue instanceof PartitionedQueue)) {
+            throw new RemoteException("Queue '" + nombreCola + "' already exists and is not partitioned");
+        }
+        // Si ya existía, conserva sus particiones y el nuevo TTL se aplica a los próximos mensajes
+        queue.setTtl(ttlMs);
+        System.out.println("Queue declared: " + nombreCola + " (durable: " + durable + 
+                         ", TTL: " + MessageQueue.describirTtl(ttlMs) + 
+                         ", partitions: " + ((PartitionedQueue) queue).contarParticiones() + ")");
+    }
+    
     /**
      * Elimina una cola existente
      * @param nombreCola Nombre de la cola a eliminar
@@ -147,9 +243,15 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     @Override
     public boolean eliminarCola(String nombreCola) throws RemoteException {
-        MessageQueue cola = queues.remove(nombreCola);
+        BrokerQueue cola = queues.remove(nombreCola);
         if (cola != null) {
             cola.eliminar();
+            for (MessageQueue particion : cola.getParticiones()) {
+                metricas.eliminarCola(particion.getNombre());
+            }
+            for (Exchange exchange : exchanges.values()) {
+                exchange.desenlazarCola(nombreCola);
+            }
             System.out.println("Queue '" + nombreCola + "' removed from the broker");
             return true;
         }
@@ -164,17 +266,16 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     @Override
     public boolean publicar(String nombreCola, String mensaje) throws RemoteException {
-        MessageQueue queue = queues.get(nombreCola);
+        BrokerQueue queue = queues.get(nombreCola);
         if (queue == null) return false;
         
         // Evaluar mensaje con agentes IA
         if (!agentManager.evaluarMensaje(mensaje, nombreCola)) {
-            System.out.println("Message rejected by agents and NOT published to the queue '" + nombreCola + "'");
             return false;
         }
         
-        queue.publicar(mensaje);
-        System.out.println("Message published to the queue '" + nombreCola + "': " + mensaje);
+        queue.publicar(mensaje, queue.esDurable(), queue.getTtl(), null);
+        eventos.publicado(nombreCola, mensaje, queue.esDurable(), queue.getTtl());
         return true;
     }
     
@@ -187,20 +288,191 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     @Override
     public boolean publicar(String nombreCola, String mensaje, boolean durable) throws RemoteException {
-        MessageQueue queue = queues.get(nombreCola);
+        BrokerQueue queue = queues.get(nombreCola);
         if (queue == null) return false;
         
         // Evaluar mensaje con agentes IA
         if (!agentManager.evaluarMensaje(mensaje, nombreCola)) {
-            System.out.println("Message rejected by agents and NOT published to the queue '" + nombreCola + "'");
             return false;
         }
         
-        queue.publicar(mensaje, durable);
-        System.out.println("Message published to the queue '" + nombreCola + "' (durable: " + durable + "): " + mensaje);
+        queue.publicar(mensaje, durable, queue.getTtl(), null);
+        eventos.publicado(nombreCola, mensaje, durable, queue.getTtl());
         return true;
     }
+    
+    /**
+     * Publica un mensaje en una cola con su propio TTL
+     * @param nombreCola Cola destino
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @param ttlMs Tiempo de vida del mensaje en milisegundos (0 = no expira)
+     * @return true si el mensaje fue aceptado, false si la cola no existe
+     */
+    @Override
+    public boolean publicar(String nombreCola, String mensaje, boolean durable, long ttlMs) throws RemoteException {
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue == null) return false;
+        
+        // Evaluar mensaje con agentes IA
+        if (!agentManager.evaluarMensaje(mensaje, nombreCola)) {
+            return false;
+        }
+        
+        queue.publicar(mensaje, durable, Math.max(0, ttlMs), null);
+        eventos.publicado(nombreCola, mensaje, durable, ttlMs);
+        return true;
+    }
+    
+    /**
+     * Publica un mensaje con clave de enrutamiento
+     * @param nombreCola Cola destino
+     * @param clave Clave de enrutamiento (null = reparto round robin)
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @return true si el mensaje fue aceptado, false si la cola no existe
+     */
+    @Override
+    public boolean publicar(String nombreCola, String clave, String mensaje, boolean durable) throws RemoteException {
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue == null) return false;
+        
+        // Evaluar mensaje con agentes IA
+        if (!agentManager.evaluarMensaje(mensaje, nombreCola)) {
+            return false;
+        }
+        
+        queue.publicar(clave, mensaje, durable, queue.getTtl(), null);
+        eventos.publicado(nombreCola, mensaje, durable, queue.getTtl());
+        return true;
+    }
+    
+    /**
+     * Publica un mensaje a partir de su sobre
+     * @param mensaje Sobre del mensaje
+     * @return true si el mensaje fue aceptado, false si la cola no existe
+     */
+    @Override
+    public boolean publicar(Message mensaje) throws RemoteException {
+        return publicarSobre(mensaje) == null;
+    }
+    
+    /**
+     * Evalúa un sobre con los agentes y, si lo aceptan, lo guarda en su cola
+     * @param mensaje Sobre del mensaje
+     * @return null si se publicó, o el motivo del rechazo (agente o cola inexistente)
+     */
+    private String publicarSobre(Message mensaje) {
+        String nombreCola = mensaje.getCola();
+        BrokerQueue queue = nombreCola != null ? queues.get(nombreCola) : null;
+        if (queue == null) return "queue not found";
+        
+        // Evaluar mensaje con agentes IA
+        String contenido = mensaje.getTexto();
+        String rechazo = agentManager.motivoRechazo(contenido, nombreCola);
+        if (rechazo != null) {
+            return rechazo;
+        }
+        
+        long ttlMs = mensaje.esSinVencimiento() ? 0
+                : mensaje.getVencimiento() > 0 ? Math.max(1, mensaje.getVencimiento() - mensaje.getTimestamp()) 
+                : queue.getTtl();
+        queue.publicar(mensaje.getCabecera(Message.CABECERA_CLAVE), contenido, mensaje.esDurable(), ttlMs, 
+                       mensaje.getCabeceras());
+        eventos.publicado(nombreCola, contenido, mensaje.esDurable(), ttlMs);
+        return null;
+    }
+    
+    /**
+     * Publica un mensaje de forma asíncrona: lo deja en el búfer de admisión y el
+     * resultado se confirma después al productor
+     * @param productor Productor que recibirá la confirmación
+     * @param secuencia Número de secuencia del mensaje para el productor
+     * @param mensaje Sobre del mensaje
+     * @return true si se admitió, false si la cola no existe o el búfer está lleno
+     */
+    @Override
+    public boolean publicarAsincrono(Producer productor, long secuencia, Message mensaje) throws RemoteException {
+        if (productor == null || mensaje.getCola() == null || !queues.containsKey(mensaje.getCola())) {
+            return false;
+        }
+        return getAdmision().admitir(productor, secuencia, mensaje);
+    }
+    
+    /**
+     * Publica un mensaje de texto de forma asíncrona
+     * @param productor Productor que recibirá la confirmación
+     * @param secuencia Número de secuencia del mensaje para el productor
+     * @param nombreCola Cola destino
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @return true si se admitió, false si la cola no existe o el búfer está lleno
+     */
+    @Override
+    public boolean publicarAsincrono(Producer productor, long secuencia, String nombreCola, String mensaje, 
+                                     boolean durable) throws RemoteException {
+        Message sobre = new Message(null, nombreCola, durable ? Message.DURABLE : 0, System.currentTimeMillis(), 
+                                    0, 0, null, mensaje.getBytes(StandardCharsets.UTF_8));
+        return publicarAsincrono(productor, secuencia, sobre);
+    }
+    
+    /**
+     * Búfer de admisión de la publicación asíncrona (se crea la primera vez)
+     */
+    private synchronized PublishIntake getAdmision() {
+        if (admision == null) {
+            int hilos = Integer.getInteger("mom.admision.hilos", Runtime.getRuntime().availableProcessors());
+            int capacidad = Integer.getInteger("mom.admision.capacidad", 65536);
+            admision = new PublishIntake(hilos, capacidad, this::publicarSobre);
+        }
+        return admision;
+    }
 
+    /**
+     * Publica un lote de mensajes en una cola con una sola llamada remota
+     * @param nombreCola Cola destino
+     * @param mensajes Contenidos de los mensajes, en orden
+     * @param durable Si los mensajes deben persistir
+     * @return Resultado de cada mensaje en el mismo orden
+     */
+    @Override
+    public List<Boolean> publicarLote(String nombreCola, List<String> mensajes, boolean durable) throws RemoteException {
+        List<Boolean> resultados = new ArrayList<>(mensajes.size());
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue == null) {
+            for (int i = 0; i < mensajes.size(); i++) resultados.add(false);
+            return resultados;
+        }
+        
+        // Evaluar el lote completo con agentes IA
+        boolean[] aceptados = agentManager.evaluarLote(mensajes, nombreCola);
+        List<String> lote = new ArrayList<>(mensajes.size());
+        for (int i = 0; i < aceptados.length; i++) {
+            resultados.add(aceptados[i]);
+            if (aceptados[i]) lote.add(mensajes.get(i));
+        }
+        
+        queue.publicarLote(lote, durable);
+        eventos.lotePublicado(nombreCola, lote.size(), mensajes.size() - lote.size());
+        return resultados;
+    }
+    
+    /**
+     * Publica lotes de mensajes en varias colas con una sola llamada remota
+     * @param mensajesPorCola Mensajes a publicar agrupados por cola destino
+     * @param durable Si los mensajes deben persistir
+     * @return Resultado de cada mensaje por cola, en el mismo orden que la entrada
+     */
+    @Override
+    public Map<String, List<Boolean>> publicarLote(Map<String, List<String>> mensajesPorCola, boolean durable) 
+            throws RemoteException {
+        Map<String, List<Boolean>> resultados = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entrada : mensajesPorCola.entrySet()) {
+            resultados.put(entrada.getKey(), publicarLote(entrada.getKey(), entrada.getValue(), durable));
+        }
+        return resultados;
+    }
+    
     /**
      * Registra un consumidor para recibir mensajes de una cola
      * @param nombreCola Cola a suscribirse
@@ -208,7 +480,7 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     @Override
     public void consumir(String nombreCola, ConsumerCallback callback) throws RemoteException {
-        MessageQueue queue = queues.get(nombreCola);
+        BrokerQueue queue = queues.get(nombreCola);
         if (queue != null) {
             queue.registrarConsumidor(callback);
             System.out.println("Consumer registered for queue: " + nombreCola);
@@ -217,6 +489,23 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
         }
     }
     
+    /**
+     * Registra un consumidor con su propia ventana de prefetch
+     * @param nombreCola Cola a suscribirse
+     * @param callback Función de procesamiento de mensajes
+     * @param prefetch Máximo de mensajes sin confirmar (0 = ilimitado)
+     */
+    @Override
+    public void consumir(String nombreCola, ConsumerCallback callback, int prefetch) throws RemoteException {
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue != null) {
+            queue.registrarConsumidor(callback, Math.max(0, prefetch));
+            System.out.println("Consumer registered for queue: " + nombreCola + " (prefetch: " + prefetch + ")");
+        } else {
+            System.out.println("Error: attempt to consume from non-existent queue: " + nombreCola);
+        }
+    }
+    
     /**
      * Desuscribe un consumidor de una cola
      * @param nombreCola Cola a desuscribirse
@@ -225,7 +514,7 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     @Override
     public boolean desuscribir(String nombreCola, ConsumerCallback callback) throws RemoteException {
-        MessageQueue queue = queues.get(nombreCola);
+        BrokerQueue queue = queues.get(nombreCola);
         if (queue != null) {
             boolean result = queue.desuscribirConsumidor(callback);
             if (result) {
@@ -243,7 +532,7 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     @Override
     public void setFairDispatch(String nombreCola, boolean fair) throws RemoteException {
-        MessageQueue queue = queues.get(nombreCola);
+        BrokerQueue queue = queues.get(nombreCola);
         if (queue != null) {
             queue.setFairDispatch(fair);
         } else {
@@ -251,6 +540,38 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
         }
     }
     
+    /**
+     * Establece el modo de durabilidad del journal de una cola durable
+     * @param nombreCola Nombre de la cola
+     * @param modo NINGUNA, AGRUPADA (group commit) o POR_MENSAJE
+     */
+    @Override
+    public void setModoDurabilidad(String nombreCola, ModoDurabilidad modo) throws RemoteException {
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue != null) {
+            queue.setModoDurabilidad(modo);
+        } else {
+            System.out.println("Error: attempt to configure non-existent queue: " + nombreCola);
+        }
+    }
+    
+    /**
+     * Configura el group commit de una cola durable
+     * @param nombreCola Nombre de la cola
+     * @param latenciaMaximaMicros Tiempo máximo que una escritura espera a formar lote
+     * @param loteMaximo Número de registros que dispara la escritura inmediata
+     */
+    @Override
+    public void configurarGroupCommit(String nombreCola, long latenciaMaximaMicros, int loteMaximo) 
+            throws RemoteException {
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue != null) {
+            queue.configurarGroupCommit(latenciaMaximaMicros, loteMaximo);
+        } else {
+            System.out.println("Error: attempt to configure non-existent queue: " + nombreCola);
+        }
+    }
+    
     /**
      * Confirma el procesamiento de un mensaje (ACK)
      * @param nombreCola Nombre de la cola
@@ -261,7 +582,7 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
     @Override
     public boolean confirmarMensaje(String nombreCola, String mensajeId, ConsumerCallback callback) 
             throws RemoteException {
-        MessageQueue queue = queues.get(nombreCola);
+        BrokerQueue queue = queues.get(nombreCola);
         if (queue != null) {
             return queue.confirmarMensaje(mensajeId, callback);
         }
@@ -278,13 +599,64 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
     @Override
     public boolean rechazarMensaje(String nombreCola, String mensajeId, ConsumerCallback callback) 
             throws RemoteException {
-        MessageQueue queue = queues.get(nombreCola);
+        BrokerQueue queue = queues.get(nombreCola);
         if (queue != null) {
             return queue.rechazarMensaje(mensajeId, callback);
         }
         return false;
     }
     
+    /**
+     * Confirma varios mensajes en una sola llamada
+     * @param nombreCola Nombre de la cola
+     * @param mensajeIds IDs de los mensajes
+     * @param callback Consumidor que confirma
+     * @return Número de mensajes confirmados
+     */
+    @Override
+    public int confirmarMensajes(String nombreCola, List<String> mensajeIds, ConsumerCallback callback) 
+            throws RemoteException {
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue != null) {
+            return queue.confirmarMensajes(mensajeIds, callback);
+        }
+        return 0;
+    }
+    
+    /**
+     * Confirma de forma acumulativa hasta el mensaje indicado
+     * @param nombreCola Nombre de la cola
+     * @param mensajeId ID del último mensaje a confirmar
+     * @param callback Consumidor que confirma
+     * @return Número de mensajes confirmados
+     */
+    @Override
+    public int confirmarHasta(String nombreCola, String mensajeId, ConsumerCallback callback) 
+            throws RemoteException {
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue != null) {
+            return queue.confirmarHasta(mensajeId, callback);
+        }
+        return 0;
+    }
+    
+    /**
+     * Rechaza varios mensajes en una sola llamada
+     * @param nombreCola Nombre de la cola
+     * @param mensajeIds IDs de los mensajes
+     * @param callback Consumidor que rechaza
+     * @return Número de mensajes rechazados
+     */
+    @Override
+    public int rechazarMensajes(String nombreCola, List<String> mensajeIds, ConsumerCallback callback) 
+            throws RemoteException {
+        BrokerQueue queue = queues.get(nombreCola);
+        if (queue != null) {
+            return queue.rechazarMensajes(mensajeIds, callback);
+        }
+        return 0;
+    }
+    
     /**
      * Retorna una lista con los nombres de todas las colas disponibles
      * @return Lista de nombres de colas
@@ -301,7 +673,7 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
      */
     @Override
     public String getInfoCola(String nombreCola) throws RemoteException {
-        MessageQueue queue = queues.get(nombreCola);
+        BrokerQueue queue = queues.get(nombreCola);
         if (queue == null) {
             return "Queue '" + nombreCola + "' does not exist";
         }
@@ -309,12 +681,214 @@ public class MessageBrokerImpl extends UnicastRemoteObject implements MessageBro
         StringBuilder info = new StringBuilder();
         info.append("Queue: ").append(nombreCola).append("\n");
         info.append("Durable: ").append(queue.esDurable()).append("\n");
+        if (queue.esDurable()) {
+            info.append("Durability mode: ").append(queue.getModoDurabilidad()).append("\n");
+        }
+        if (queue instanceof PartitionedQueue) {
+            info.append("Partitions: ").append(((PartitionedQueue) queue).contarParticiones()).append("\n");
+        }
+        info.append("Message TTL: ").append(MessageQueue.describirTtl(queue.getTtl())).append("\n");
         info.append("Messages: ").append(queue.contarMensajes()).append("\n");
         info.append("Consumers: ").append(queue.contarConsumidores()).append("\n");
+        info.append("Pending deliveries: ").append(queue.contarEntregasPendientes()).append("\n");
+        info.append("Expired messages: ").append(queue.contarExpirados()).append("\n");
+        
+        return info.toString();
+    }
+    
+    /**
+     * Crea un exchange si no existe
+     * @param nombreExchange Identificador único del exchange
+     * @param tipo DIRECTO, FANOUT o TOPIC
+     */
+    @Override
+    public void declararExchange(String nombreExchange, Exchange.Tipo tipo) throws RemoteException {
+        Exchange exchange = exchanges.computeIfAbsent(nombreExchange, k -> new Exchange(nombreExchange, tipo));
+        if (exchange.getTipo() != tipo) {
+            throw new RemoteException("Exchange '" + nombreExchange + "' already exists with type " + exchange.getTipo());
+        }
+        System.out.println("Exchange declared: " + nombreExchange + " (type: " + tipo + ")");
+    }
+    
+    /**
+     * Elimina un exchange
+     * @param nombreExchange Nombre del exchange
+     * @return true si se eliminó correctamente
+     */
+    @Override
+    public boolean eliminarExchange(String nombreExchange) throws RemoteException {
+        if (exchanges.remove(nombreExchange) != null) {
+            metricas.eliminarExchange(nombreExchange);
+            System.out.println("Exchange '" + nombreExchange + "' removed from the broker");
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Enlaza una cola con un exchange
+     * @param nombreExchange Nombre del exchange
+     * @param nombreCola Nombre de la cola
+     * @param claveEnlace Clave de enlace
+     * @return true si el exchange y la cola existen
+     */
+    @Override
+    public boolean enlazarCola(String nombreExchange, String nombreCola, String claveEnlace) throws RemoteException {
+        Exchange exchange = exchanges.get(nombreExchange);
+        if (exchange == null || !queues.containsKey(nombreCola)) {
+            return false;
+        }
+        exchange.enlazar(nombreCola, claveEnlace);
+        System.out.println("Queue '" + nombreCola + "' bound to exchange '" + nombreExchange + "'" + 
+                         (exchange.getTipo() != Exchange.Tipo.FANOUT ? " with key '" + claveEnlace + "'" : ""));
+        return true;
+    }
+    
+    /**
+     * Quita el enlace de una cola con un exchange
+     * @param nombreExchange Nombre del exchange
+     * @param nombreCola Nombre de la cola
+     * @param claveEnlace Clave de enlace
+     * @return true si el enlace existía
+     */
+    @Override
+    public boolean desenlazarCola(String nombreExchange, String nombreCola, String claveEnlace) throws RemoteException {
+        Exchange exchange = exchanges.get(nombreExchange);
+        return exchange != null && exchange.desenlazar(nombreCola, claveEnlace);
+    }
+    
+    /**
+     * Publica un mensaje en un exchange: los agentes de contenido lo evalúan una vez, las
+     * reglas de cada cola se aplican a cada destino y las colas que lo aceptan comparten
+     * su contenido
+     * @param nombreExchange Exchange destino
+     * @param clave Clave de enrutamiento
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @return Número de colas a las que se envió, -1 si el exchange no existe o
+     *         RECHAZADO_POR_AGENTES si los agentes lo rechazaron para todas las colas
+     */
+    @Override
+    public int publicarEnExchange(String nombreExchange, String clave, String mensaje, boolean durable) 
+            throws RemoteException {
+        Exchange exchange = exchanges.get(nombreExchange);
+        if (exchange == null) return -1;
         
+        List<String> destinos = exchange.enrutar(clave);
+        if (destinos.isEmpty()) return 0;
+        
+        // Contenido una sola vez; reglas por canal con cada cola destino
+        boolean[] aceptadas = agentManager.evaluarEnExchange(mensaje, nombreExchange, destinos);
+        if (aceptadas == null) {
+            return RECHAZADO_POR_AGENTES;
+        }
+        
+        // La referencia del propio envío evita que el contenido se libere entre dos colas
+        SharedPayload contenido = new SharedPayload(mensaje);
+        contenido.retener();
+        int enviados = 0;
+        int rechazados = 0;
+        try {
+            for (int i = 0; i < destinos.size(); i++) {
+                String destino = destinos.get(i);
+                BrokerQueue queue = queues.get(destino);
+                if (queue == null) continue;
+                if (!aceptadas[i]) {
+                    rechazados++;
+                    continue;
+                }
+                queue.publicarCompartido(clave, contenido, durable, queue.getTtl(), null);
+                eventos.publicado(destino, mensaje, durable, queue.getTtl());
+                enviados++;
+            }
+        } finally {
+            contenido.liberar();
+        }
+        return enviados == 0 && rechazados > 0 ? RECHAZADO_POR_AGENTES : enviados;
+    }
+    
+    /**
+     * Retorna una lista con los nombres de todos los exchanges
+     * @return Lista de nombres de exchanges
+     */
+    @Override
+    public List<String> listarExchanges() throws RemoteException {
+        return new ArrayList<>(exchanges.keySet());
+    }
+    
+    /**
+     * Obtiene información sobre un exchange
+     * @param nombreExchange Nombre del exchange
+     * @return Información formateada como string
+     */
+    @Override
+    public String getInfoExchange(String nombreExchange) throws RemoteException {
+        Exchange exchange = exchanges.get(nombreExchange);
+        if (exchange == null) {
+            return "Exchange '" + nombreExchange + "' does not exist";
+        }
+        
+        List<String> enlaces = exchange.describirEnlaces();
+        StringBuilder info = new StringBuilder();
+        info.append("Exchange: ").append(nombreExchange).append("\n");
+        info.append("Type: ").append(exchange.getTipo()).append("\n");
+        info.append("Bindings: ").append(enlaces.size()).append("\n");
+        for (String enlace : enlaces) {
+            info.append("  - ").append(enlace).append("\n");
+        }
         return info.toString();
     }
     
+    /**
+     * Obtiene las métricas del broker
+     * @return Métricas formateadas como string
+     */
+    @Override
+    public String getMetricas() throws RemoteException {
+        return metricas.describir(colasFisicas());
+    }
+    
+    /**
+     * Colas que se despachan por separado: las normales y las particiones de las
+     * particionadas, para las métricas
+     */
+    private List<MessageQueue> colasFisicas() {
+        List<MessageQueue> colas = new ArrayList<>(queues.size());
+        for (BrokerQueue cola : queues.values()) {
+            colas.addAll(cola.getParticiones());
+        }
+        return colas;
+    }
+    
+    /**
+     * Publica las métricas en formato Prometheus en http://127.0.0.1:puerto/metrics.
+     * El puerto se configura con la propiedad mom.metricas.puerto (0 = desactivado).
+     */
+    private void iniciarEndpointMetricas() {
+        int puerto = Integer.getInteger("mom.metricas.puerto", 9404);
+        if (puerto <= 0) return;
+        try {
+            HttpServer servidor = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto), 0);
+            servidor.createContext("/metrics", intercambio -> {
+                byte[] cuerpo = metricas.exportarPrometheus(colasFisicas()).getBytes(StandardCharsets.UTF_8);
+                intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                intercambio.sendResponseHeaders(200, cuerpo.length);
+                try (OutputStream salida = intercambio.getResponseBody()) {
+                    salida.write(cuerpo);
+                }
+            });
+            servidor.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metrics-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            servidor.start();
+            System.out.println("Metrics endpoint: http://127.0.0.1:" + puerto + "/metrics");
+        } catch (Exception e) {
+            System.err.println("Error starting metrics endpoint: " + e.getMessage());
+        }
+    }
+    
     /**
      * Agrega un agente de filtrado al sistema
      * @param agente Agente a agregar
@@ -37,4 +37,72 @@ public interface MessageFilterAgent extends Serializable {
     default int getPrioridad() {
         return 0;
     }
+    
+    /**
+     * Indica si la evaluación del agente es costosa (consultas externas, modelos, etc.).
+     * En el modo paralelo del gestor de agentes, los agentes costosos se evalúan a la vez
+     * en un pool de hilos después de los baratos, que siguen ejecutándose en cadena.
+     * El agente debe ser independiente del resto y, a ser posible, terminar pronto si
+     * su hilo se interrumpe (otro agente ya ha rechazado el mensaje).
+     * @return true si el agente es costoso
+     */
+    default boolean esCostoso() {
+        return false;
+    }
+    
+    /**
+     * Indica si el veredicto del agente depende solo del mensaje y de la cola, de modo que
+     * el gestor de agentes puede reutilizarlo cuando el mismo mensaje se publica otra vez en
+     * la misma cola. Los agentes con estado (límites de frecuencia, horarios, consultas
+     * externas que cambian) deben devolver false: mientras estén en la cadena no se usa la
+     * caché de veredictos.
+     * @return true si el veredicto se puede guardar en caché
+     */
+    default boolean admiteCacheVeredictos() {
+        return true;
+    }
+    
+    /**
+     * Versión de la configuración del agente. Los agentes que se pueden reconfigurar en
+     * caliente (palabras clave, reglas) deben aumentarla en cada cambio que altere sus
+     * veredictos: el gestor de agentes la compara antes de usar la caché de veredictos y,
+     * si ha cambiado, la vacía.
+     * @return Número que solo crece con cada cambio de configuración
+     */
+    default long getVersion() {
+        return 0;
+    }
+    
+    /**
+     * Indica si el agente conserva su posición en la cadena en el modo de orden adaptativo
+     * del gestor de agentes (la que le da su prioridad). Los agentes que deben ejecutarse
+     * siempre antes o después que otros, por ejemplo porque dependen de ellos, deben
+     * devolver true; el resto se reordena según su coste y su tasa de rechazo.
+     * @return true si la posición del agente es fija
+     */
+    default boolean esPosicionFija() {
+        return false;
+    }
+    
+    /**
+     * Tiempo máximo que el gestor de agentes espera la evaluación de un mensaje. Si se
+     * supera, la evaluación se abandona (se interrumpe su hilo) y el mensaje se acepta o
+     * se rechaza según la política de fallo del gestor.
+     * @return Milisegundos; 0 para usar el límite general del gestor, negativo para no
+     *         limitar la evaluación de este agente
+     */
+    default long getLimiteEvaluacionMs() {
+        return 0;
+    }
+    
+    /**
+     * Indica si el veredicto del agente depende de la cola destino. Al publicar en un
+     * exchange, los agentes que no dependen de ella evalúan el mensaje una sola vez y los
+     * que sí (reglas por canal) lo evalúan para cada cola destino.
+     * @return true si el agente usa el nombre de la cola (por defecto, para no saltarse
+     *         las reglas de los agentes que no lo indican)
+     */
+    default boolean dependeDeLaCola() {
+        return true;
+    }
 }
@@ -0,0 +1,103 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Compara el formato anterior de entrega ("ID||CONTENIDO" como String) con el sobre
+ * binario Message: tamaño serializado y tiempo de CPU por mensaje del ciclo completo
+ * que hace una entrega por RMI (construir, serializar, deserializar y leer id y contenido).
+ * Cada entrega RMI usa su propio ObjectOutputStream, así que se mide igual.
+ *
+ * Uso: java MessageFormatBenchmark [iteraciones]
+ */
+public class MessageFormatBenchmark {
+    private static final int[] TAMANOS = {32, 256, 4096};
+
+    // Evita que el JIT elimine el trabajo medido
+    private static long sumidero = 0;
+
+    public static void main(String[] args) throws Exception {
+        int iteraciones = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        String id = UUID.randomUUID().toString();
+
+        System.out.println("═══════════════════════════════════════════════════════");
+        System.out.println("MESSAGE FORMAT BENCHMARK (" + iteraciones + " iterations)");
+        System.out.println("═══════════════════════════════════════════════════════");
+        System.out.printf("%-8s %-10s %12s %12s%n", "Content", "Format", "Bytes", "ns/msg");
+
+        for (int tamano : TAMANOS) {
+            char[] relleno = new char[tamano];
+            Arrays.fill(relleno, 'x');
+            String contenido = new String(relleno);
+            byte[] bytes = contenido.getBytes(StandardCharsets.UTF_8);
+
+            int tamanoString = serializarString(id, contenido).length;
+            int tamanoSobre = serializarSobre(id, bytes).length;
+
+            // Calentamiento del JIT
+            medirString(id, contenido, iteraciones / 4);
+            medirSobre(id, bytes, iteraciones / 4);
+
+            double nsString = medirString(id, contenido, iteraciones);
+            double nsSobre = medirSobre(id, bytes, iteraciones);
+
+            System.out.printf("%-8d %-10s %12d %12.0f%n", tamano, "String", tamanoString, nsString);
+            System.out.printf("%-8d %-10s %12d %12.0f%n", tamano, "Message", tamanoSobre, nsSobre);
+        }
+        System.out.println("(checksum " + sumidero + ")");
+    }
+
+    private static byte[] serializarString(String id, String contenido) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream salida = new ObjectOutputStream(buffer)) {
+            salida.writeObject(id + "||" + contenido);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static byte[] serializarSobre(String id, byte[] contenido) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream salida = new ObjectOutputStream(buffer)) {
+            salida.writeObject(new Message(id, "canal_INFO", Message.DURABLE, System.currentTimeMillis(),
+                                           0, 1, null, contenido));
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Ciclo completo con el formato anterior: concatenar, serializar, deserializar y separar
+     * @return Nanosegundos por mensaje
+     */
+    private static double medirString(String id, String contenido, int iteraciones) throws Exception {
+        long inicio = System.nanoTime();
+        for (int i = 0; i < iteraciones; i++) {
+            byte[] datos = serializarString(id, contenido);
+            try (ObjectInputStream entrada = new ObjectInputStream(new ByteArrayInputStream(datos))) {
+                String[] partes = ((String) entrada.readObject()).split("\\|\\|", 2);
+                sumidero += partes[0].length() + partes[1].length();
+            }
+        }
+        return (System.nanoTime() - inicio) / (double) iteraciones;
+    }
+
+    /**
+     * Ciclo completo con el sobre: construir, serializar, deserializar y leer id y contenido
+     * @return Nanosegundos por mensaje
+     */
+    private static double medirSobre(String id, byte[] contenido, int iteraciones) throws Exception {
+        long inicio = System.nanoTime();
+        for (int i = 0; i < iteraciones; i++) {
+            byte[] datos = serializarSobre(id, contenido);
+            try (ObjectInputStream entrada = new ObjectInputStream(new ByteArrayInputStream(datos))) {
+                Message mensaje = (Message) entrada.readObject();
+                sumidero += mensaje.getId().length() + mensaje.getTexto().length();
+            }
+        }
+        return (System.nanoTime() - inicio) / (double) iteraciones;
+    }
+}
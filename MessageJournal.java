@@ -0,0 +1,894 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Journal segmentado de solo escritura al final (write-ahead log) para colas durables.
+ * Cada operación sobre un mensaje durable (publicación, entrega, ACK, NACK, expiración)
+ * se añade como un registro al segmento activo, por lo que persistir cuesta O(1)
+ * independientemente del tamaño del backlog. Al arrancar, los segmentos se reproducen
+ * en orden para reconstruir el estado de la cola.
+ *
+ * Los registros se reservan bajo un cerrojo breve y se escriben en disco por lotes:
+ * según el ModoDurabilidad de la cola, el propio llamante vuelca lo pendiente, o un
+ * hilo escritor agrupa los registros de muchos hilos en un único write + force
+ * (group commit) acotado por latencia máxima y tamaño de lote.
+ *
+ * Si una escritura en disco falla, el journal queda marcado como fallido: los tickets no
+ * avanzan y quienes esperan la durabilidad de un registro no escrito reciben una
+ * UncheckedIOException en lugar de una confirmación.
+ */
+public class MessageJournal {
+    // Tipos de registro
+    public static final byte PUBLICAR = 1;
+    public static final byte ENTREGAR = 2;
+    public static final byte CONFIRMAR = 3;
+    public static final byte RECHAZAR = 4;
+    public static final byte EXPIRAR = 5;
+    // Registros de lote: un único registro en disco que se reproduce como un
+    // CONFIRMAR/RECHAZAR por cada identificador que contiene
+    private static final byte CONFIRMAR_LOTE = 6;
+    private static final byte RECHAZAR_LOTE = 7;
+    // Publicaciones con vencimiento propio (8) y en el formato del sobre Message (9);
+    // se reproducen como un PUBLICAR
+    private static final byte PUBLICAR_CON_VENCIMIENTO = 8;
+    private static final byte PUBLICAR_SOBRE = 9;
+    // Publicación cuyo contenido está en el PayloadStore (sobre sin contenido + referencia);
+    // se reproduce como un PUBLICAR con la referencia y sin contenido
+    private static final byte PUBLICAR_REFERENCIA = 10;
+
+    private static final String PREFIJO = "queue_";
+    private static final String EXTENSION = ".journal";
+    private static final String EXTENSION_LEGACY = ".dat";
+    // Al superar este tamaño se abre un segmento nuevo
+    private static final long TAMANO_MAXIMO_SEGMENTO = 4L * 1024 * 1024;
+    // Cota de seguridad para detectar longitudes corruptas al reproducir
+    private static final int TAMANO_MAXIMO_REGISTRO = 64 * 1024 * 1024;
+    // Valores por defecto del group commit (modo AGRUPADA)
+    private static final long LATENCIA_MAXIMA_DEFECTO_MICROS = 2000;
+    private static final int LOTE_MAXIMO_DEFECTO = 256;
+    private static final Map<String, String> SIN_CABECERAS = Collections.emptyMap();
+    private static final byte[] SIN_CONTENIDO = new byte[0];
+
+    /**
+     * Registro leído del journal durante la reproducción
+     */
+    public static class Registro {
+        public final byte tipo;
+        public final String id;
+        public final String contenido;  // Solo en registros PUBLICAR
+        public final long timestamp;    // Solo en registros PUBLICAR (epoch millis)
+        public final long vencimiento;  // Solo en registros PUBLICAR (epoch millis); -1 si no se registró
+        public final Map<String, String> cabeceras; // Solo en registros PUBLICAR (vacío si no tiene)
+        public final long segmento;     // Segmento en el que se encontró el registro
+        public final long referencia;   // Contenido compartido en el PayloadStore (0 = contenido propio)
+
+        Registro(byte tipo, String id, String contenido, long timestamp, long vencimiento,
+                 Map<String, String> cabeceras, long segmento) {
+            this(tipo, id, contenido, timestamp, vencimiento, cabeceras, segmento, 0);
+        }
+
+        Registro(byte tipo, String id, String contenido, long timestamp, long vencimiento,
+                 Map<String, String> cabeceras, long segmento, long referencia) {
+            this.tipo = tipo;
+            this.id = id;
+            this.contenido = contenido;
+            this.timestamp = timestamp;
+            this.vencimiento = vencimiento;
+            this.cabeceras = cabeceras;
+            this.segmento = segmento;
+            this.referencia = referencia;
+        }
+    }
+
+    /**
+     * Buffer que expone su array interno para calcular el CRC sin copiarlo
+     */
+    private static class BufferRegistro extends ByteArrayOutputStream {
+        BufferRegistro() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Registro ya codificado ([longitud][crc][datos]) pendiente de escribir en disco
+     */
+    private static class RegistroPendiente {
+        final byte[] bytes;
+        final long segmento;
+        final long ticket;
+
+        RegistroPendiente(byte[] bytes, long segmento, long ticket) {
+            this.bytes = bytes;
+            this.segmento = segmento;
+            this.ticket = ticket;
+        }
+    }
+
+    private final String nombreCola;
+    private final String prefijo;
+
+    // --- Estado lógico, protegido por el monitor del journal ---
+    // Mensajes vivos (publicados y aún no confirmados ni expirados) por segmento
+    private final TreeMap<Long, Integer> vivosPorSegmento = new TreeMap<>();
+    // Segmento y tamaño asignados a los registros nuevos (pueden ir por delante del disco)
+    private long segmentoReservado = 0;
+    private long tamanoReservado = 0;
+    private List<RegistroPendiente> pendientes = new ArrayList<>();
+    private long primerPendienteNanos;
+    private long ultimoTicket = 0;
+    private int esperandoGrupo = 0;  // Hilos bloqueados esperando un group commit
+    private boolean cerrado = false;
+    private Thread escritor;
+
+    // Buffer reutilizable para serializar cada registro y calcular su CRC
+    private final BufferRegistro buffer = new BufferRegistro();
+    private final DataOutputStream datos = new DataOutputStream(buffer);
+    private final CRC32 crc = new CRC32();
+
+    // --- Escritura en disco, protegida por lockEscritura ---
+    // Orden de adquisición: lockEscritura y después el monitor del journal, nunca al revés
+    private final Object lockEscritura = new Object();
+    private FileOutputStream fichero;
+    private BufferedOutputStream salida;
+    private long segmentoEnDisco = 0;
+    private volatile long ticketEscrito = 0;  // Último registro entregado al sistema operativo
+    private volatile long ticketForzado = 0;  // Último registro sincronizado con el disco (force)
+    // Primer error de escritura: a partir de él ningún registro se da por escrito
+    private volatile IOException errorEscritura;
+
+    // Configuración de durabilidad y group commit
+    private volatile ModoDurabilidad modo = ModoDurabilidad.NINGUNA;
+    private volatile long latenciaMaximaNanos = LATENCIA_MAXIMA_DEFECTO_MICROS * 1000;
+    private volatile int loteMaximo = LOTE_MAXIMO_DEFECTO;
+
+    /**
+     * Constructor
+     * @param nombreCola Nombre de la cola a la que pertenece el journal
+     */
+    public MessageJournal(String nombreCola) {
+        this(nombreCola, PREFIJO);
+    }
+
+    /**
+     * Constructor de un journal que no es de una cola (sus ficheros no se confunden con
+     * los de las colas durables al recuperarlas)
+     * @param nombre Nombre del journal
+     * @param prefijo Prefijo de sus ficheros
+     */
+    MessageJournal(String nombre, String prefijo) {
+        this.nombreCola = nombre;
+        this.prefijo = prefijo;
+    }
+
+    /**
+     * Obtiene el nombre de la cola a partir del nombre de un fichero de persistencia
+     * (segmento de journal o snapshot antiguo .dat)
+     * @param nombreFichero Nombre del fichero
+     * @return Nombre de la cola o null si el fichero no es de persistencia
+     */
+    public static String nombreColaDeFichero(String nombreFichero) {
+        if (!nombreFichero.startsWith(PREFIJO)) return null;
+
+        if (nombreFichero.endsWith(EXTENSION_LEGACY)) {
+            return nombreFichero.substring(PREFIJO.length(), nombreFichero.length() - EXTENSION_LEGACY.length());
+        }
+        if (nombreFichero.endsWith(EXTENSION)) {
+            String sinExtension = nombreFichero.substring(PREFIJO.length(), nombreFichero.length() - EXTENSION.length());
+            int punto = sinExtension.lastIndexOf('.');
+            if (punto > 0 && esNumero(sinExtension.substring(punto + 1))) {
+                return sinExtension.substring(0, punto);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Devuelve el fichero del snapshot antiguo (formato previo al journal)
+     * @return Fichero .dat de la cola
+     */
+    public File ficheroLegacy() {
+        return new File(prefijo + nombreCola + EXTENSION_LEGACY);
+    }
+
+    /**
+     * Establece cuándo llegan los registros al disco
+     * @param modo NINGUNA (sin force), AGRUPADA (group commit) o POR_MENSAJE (force por registro)
+     */
+    public void setModoDurabilidad(ModoDurabilidad modo) {
+        synchronized (this) {
+            this.modo = modo;
+            if (modo == ModoDurabilidad.AGRUPADA && escritor == null && !cerrado) {
+                escritor = new Thread(this::bucleEscritor, "journal-" + nombreCola);
+                escritor.setDaemon(true);
+                escritor.start();
+            }
+            // Despertar al escritor y a quien espere un group commit para que reevalúen el modo
+            notifyAll();
+        }
+    }
+
+    /**
+     * Modo de durabilidad actual
+     * @return Modo de durabilidad
+     */
+    public ModoDurabilidad getModoDurabilidad() {
+        return modo;
+    }
+
+    /**
+     * Configura el group commit del modo AGRUPADA
+     * @param latenciaMaximaMicros Tiempo máximo que un registro espera a formar lote
+     * @param loteMaximo Número de registros que fuerza la escritura sin esperar más
+     */
+    public void configurarGroupCommit(long latenciaMaximaMicros, int loteMaximo) {
+        this.latenciaMaximaNanos = Math.max(0, latenciaMaximaMicros) * 1000;
+        this.loteMaximo = Math.max(1, loteMaximo);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reproduce todos los segmentos en orden, entregando cada registro válido al procesador.
+     * Un registro truncado o corrupto (escritura interrumpida por una caída) termina la
+     * lectura de su segmento. Tras la reproducción, las nuevas escrituras van a un
+     * segmento nuevo para no añadir nunca datos detrás de una cola corrupta.
+     * @param procesador Función que recibe cada registro
+     */
+    public void reproducir(Consumer<Registro> procesador) {
+        synchronized (lockEscritura) {
+            synchronized (this) {
+                Map<String, Long> segmentoDeVivos = new HashMap<>();
+                long ultimoSegmento = 0;
+
+                for (long segmento : listarSegmentos()) {
+                    vivosPorSegmento.putIfAbsent(segmento, 0);
+                    ultimoSegmento = Math.max(ultimoSegmento, segmento);
+                    leerSegmento(segmento, registro -> {
+                        if (registro.tipo == PUBLICAR) {
+                            segmentoDeVivos.put(registro.id, registro.segmento);
+                        } else if (registro.tipo == CONFIRMAR || registro.tipo == EXPIRAR) {
+                            segmentoDeVivos.remove(registro.id);
+                        }
+                        procesador.accept(registro);
+                    });
+                }
+
+                for (Long segmento : segmentoDeVivos.values()) {
+                    vivosPorSegmento.merge(segmento, 1, Integer::sum);
+                }
+
+                segmentoReservado = ultimoSegmento + 1;
+                tamanoReservado = 0;
+                vivosPorSegmento.putIfAbsent(segmentoReservado, 0);
+                try {
+                    abrirSegmento(segmentoReservado);
+                } catch (IOException e) {
+                    System.err.println("Error opening journal segment for the queue '" + nombreCola + "': " + e.getMessage());
+                }
+                liberarSegmentos();
+            }
+        }
+    }
+
+    /**
+     * Registra la publicación de un mensaje durable
+     * @param id Identificador del mensaje
+     * @param contenido Contenido del mensaje codificado en UTF-8
+     * @param timestamp Momento de creación (epoch millis)
+     * @param vencimiento Instante de expiración (epoch millis)
+     * @param cabeceras Cabeceras del mensaje (puede ser null)
+     * @return Segmento en el que quedó registrada la publicación
+     */
+    public long registrarPublicacion(String id, byte[] contenido, long timestamp, long vencimiento,
+                                     Map<String, String> cabeceras) {
+        RegistroPendiente registro;
+        synchronized (this) {
+            registro = encolarPublicacion(id, contenido, timestamp, vencimiento, cabeceras);
+            if (registro == null) return segmentoReservado;
+        }
+        esperarDurabilidad(registro.ticket);
+        return registro.segmento;
+    }
+
+    /**
+     * Registra la publicación de un mensaje durable cuyo contenido ya está guardado en el
+     * PayloadStore: el registro solo lleva la referencia, no el contenido
+     * @param id Identificador del mensaje
+     * @param referencia Identificador del contenido en el PayloadStore
+     * @param timestamp Momento de creación (epoch millis)
+     * @param vencimiento Instante de expiración (epoch millis)
+     * @param cabeceras Cabeceras del mensaje (puede ser null)
+     * @return Segmento en el que quedó registrada la publicación
+     */
+    public long registrarPublicacionReferencia(String id, long referencia, long timestamp, long vencimiento,
+                                               Map<String, String> cabeceras) {
+        RegistroPendiente registro;
+        synchronized (this) {
+            try {
+                buffer.reset();
+                datos.writeByte(PUBLICAR_REFERENCIA);
+                datos.writeLong(referencia);
+                new Message(id, null, 0, timestamp, vencimiento, 0, cabeceras, SIN_CONTENIDO).escribir(datos);
+            } catch (IOException e) {
+                System.err.println("Error encoding journal record for the queue '" + nombreCola + "': " + e.getMessage());
+                return segmentoReservado;
+            }
+            registro = encolar();
+            if (registro == null) return segmentoReservado;
+            vivosPorSegmento.merge(registro.segmento, 1, Integer::sum);
+        }
+        esperarDurabilidad(registro.ticket);
+        return registro.segmento;
+    }
+
+    /**
+     * Registra la publicación de un lote de mensajes durables: todos los registros se
+     * reservan en una sola pasada y el llamante espera una única vez a que el último
+     * cumpla el modo de durabilidad
+     * @param ids Identificadores de los mensajes
+     * @param contenidos Contenidos de los mensajes (mismo orden que ids)
+     * @param timestamp Momento de creación común (epoch millis)
+     * @param vencimiento Instante de expiración común (epoch millis)
+     * @return Segmento en el que quedó registrada cada publicación
+     */
+    public long[] registrarPublicaciones(List<String> ids, List<String> contenidos, long timestamp, long vencimiento) {
+        long[] segmentos = new long[ids.size()];
+        RegistroPendiente ultimo = null;
+        synchronized (this) {
+            for (int i = 0; i < segmentos.length; i++) {
+                RegistroPendiente registro = encolarPublicacion(ids.get(i), 
+                        contenidos.get(i).getBytes(StandardCharsets.UTF_8), timestamp, vencimiento, null);
+                segmentos[i] = registro != null ? registro.segmento : segmentoReservado;
+                if (registro != null) ultimo = registro;
+            }
+        }
+        if (ultimo != null) {
+            esperarDurabilidad(ultimo.ticket);
+        }
+        return segmentos;
+    }
+
+    /**
+     * Registra la entrega de un mensaje a un consumidor. No espera a que el registro llegue
+     * al disco: si se pierde en una caída, el mensaje simplemente se vuelve a entregar.
+     * @param id Identificador del mensaje
+     */
+    public void registrarEntrega(String id) {
+        registrarSimple(ENTREGAR, id, -1, false);
+    }
+
+    /**
+     * Registra el rechazo (NACK) de un mensaje. Como la entrega, no espera al disco.
+     * @param id Identificador del mensaje
+     */
+    public void registrarRechazo(String id) {
+        registrarSimple(RECHAZAR, id, -1, false);
+    }
+
+    /**
+     * Registra la confirmación (ACK) de un mensaje
+     * @param id Identificador del mensaje
+     * @param segmento Segmento en el que se publicó el mensaje
+     */
+    public void registrarConfirmacion(String id, long segmento) {
+        registrarSimple(CONFIRMAR, id, segmento, true);
+    }
+
+    /**
+     * Registra la confirmación (ACK) de varios mensajes con un único registro
+     * y una única espera de durabilidad
+     * @param ids Identificadores de los mensajes
+     * @param segmentos Segmento en el que se publicó cada mensaje (mismo orden que ids)
+     */
+    public void registrarConfirmaciones(List<String> ids, long[] segmentos) {
+        registrarLote(CONFIRMAR_LOTE, ids, segmentos, true);
+    }
+
+    /**
+     * Registra el rechazo (NACK) de varios mensajes con un único registro
+     * @param ids Identificadores de los mensajes
+     */
+    public void registrarRechazos(List<String> ids) {
+        registrarLote(RECHAZAR_LOTE, ids, null, false);
+    }
+
+    /**
+     * Registra la expiración de un mensaje. No espera a que sea durable: si se pierde,
+     * el mensaje vuelve a expirar al recuperar la cola.
+     * @param id Identificador del mensaje
+     * @param segmento Segmento en el que se publicó el mensaje
+     */
+    public void registrarExpiracion(String id, long segmento) {
+        registrarSimple(EXPIRAR, id, segmento, false);
+    }
+
+    /**
+     * Sincroniza con el disco todos los registros encolados hasta ahora, sea cual sea el
+     * modo de durabilidad. Sirve para endurecer registros escritos en un modo más laxo.
+     * @throws UncheckedIOException Si algún registro no llegó al disco por un error de escritura
+     */
+    public void sincronizar() {
+        long ticket;
+        synchronized (this) {
+            ticket = ultimoTicket;
+        }
+        volcar(ticket, true);
+        IOException error = errorEscritura;
+        if (error != null && ticketForzado < ticket) {
+            throw new UncheckedIOException("Journal of the queue '" + nombreCola + "' failed to write the record", error);
+        }
+    }
+
+    /**
+     * Cierra el journal y elimina todos sus segmentos
+     */
+    public void eliminar() {
+        cerrar();
+        synchronized (lockEscritura) {
+            synchronized (this) {
+                for (long segmento : listarSegmentos()) {
+                    fichero(segmento).delete();
+                }
+                vivosPorSegmento.clear();
+            }
+        }
+        System.out.println("Journal deleted for the queue '" + nombreCola + "'");
+    }
+
+    /**
+     * Escribe lo pendiente, cierra el segmento activo y detiene el escritor de group commit
+     */
+    public void cerrar() {
+        synchronized (lockEscritura) {
+            escribirPendientes(true);
+            cerrarSegmento();
+            synchronized (this) {
+                cerrado = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Número de segmentos en disco
+     * @return Número de segmentos
+     */
+    public synchronized int contarSegmentos() {
+        return vivosPorSegmento.size();
+    }
+
+    /**
+     * Codifica y encola una publicación con el formato del sobre Message.
+     * Requiere el monitor del journal.
+     * @return Registro encolado o null si no se pudo encolar
+     */
+    private RegistroPendiente encolarPublicacion(String id, byte[] contenido, long timestamp, long vencimiento,
+                                                 Map<String, String> cabeceras) {
+        try {
+            buffer.reset();
+            datos.writeByte(PUBLICAR_SOBRE);
+            new Message(id, null, 0, timestamp, vencimiento, 0, cabeceras, contenido).escribir(datos);
+        } catch (IOException e) {
+            System.err.println("Error encoding journal record for the queue '" + nombreCola + "': " + e.getMessage());
+            return null;
+        }
+        RegistroPendiente registro = encolar();
+        if (registro != null) {
+            vivosPorSegmento.merge(registro.segmento, 1, Integer::sum);
+        }
+        return registro;
+    }
+
+    private void registrarLote(byte tipo, List<String> ids, long[] segmentosLiberados, boolean esperar) {
+        if (ids.isEmpty()) return;
+        RegistroPendiente registro;
+        synchronized (this) {
+            try {
+                buffer.reset();
+                datos.writeByte(tipo);
+                datos.writeInt(ids.size());
+                for (String id : ids) {
+                    datos.writeUTF(id);
+                }
+            } catch (IOException e) {
+                System.err.println("Error encoding journal record for the queue '" + nombreCola + "': " + e.getMessage());
+                return;
+            }
+            registro = encolar();
+            if (registro == null) return;
+            if (segmentosLiberados != null) {
+                for (long segmento : segmentosLiberados) {
+                    vivosPorSegmento.computeIfPresent(segmento, (s, vivos) -> vivos - 1);
+                }
+            }
+        }
+        if (esperar) {
+            esperarDurabilidad(registro.ticket);
+        } else {
+            entregarSinEsperar(registro.ticket);
+        }
+    }
+
+    private void registrarSimple(byte tipo, String id, long segmentoLiberado, boolean esperar) {
+        RegistroPendiente registro;
+        synchronized (this) {
+            try {
+                buffer.reset();
+                datos.writeByte(tipo);
+                datos.writeUTF(id);
+            } catch (IOException e) {
+                System.err.println("Error encoding journal record for the queue '" + nombreCola + "': " + e.getMessage());
+                return;
+            }
+            registro = encolar();
+            if (registro == null) return;
+            // Los segmentos sin mensajes vivos se borran en la siguiente escritura a disco
+            if (segmentoLiberado >= 0) {
+                vivosPorSegmento.computeIfPresent(segmentoLiberado, (s, vivos) -> vivos - 1);
+            }
+        }
+        if (esperar) {
+            esperarDurabilidad(registro.ticket);
+        } else {
+            entregarSinEsperar(registro.ticket);
+        }
+    }
+
+    /**
+     * Convierte el contenido del buffer en un registro [longitud][crc][datos] y lo deja
+     * pendiente de escritura en el segmento reservado. Requiere el monitor del journal.
+     * @return Registro encolado o null si el journal está cerrado
+     */
+    private RegistroPendiente encolar() {
+        if (cerrado) return null;
+
+        int longitud = buffer.size();
+        crc.reset();
+        crc.update(buffer.array(), 0, longitud);
+        byte[] bytes = ByteBuffer.allocate(8 + longitud)
+            .putInt(longitud)
+            .putInt((int) crc.getValue())
+            .put(buffer.array(), 0, longitud)
+            .array();
+
+        if (tamanoReservado >= TAMANO_MAXIMO_SEGMENTO) {
+            segmentoReservado++;
+            tamanoReservado = 0;
+            vivosPorSegmento.putIfAbsent(segmentoReservado, 0);
+        }
+        tamanoReservado += bytes.length;
+
+        RegistroPendiente registro = new RegistroPendiente(bytes, segmentoReservado, ++ultimoTicket);
+        pendientes.add(registro);
+        if (pendientes.size() == 1) {
+            primerPendienteNanos = System.nanoTime();
+            notifyAll();
+        } else if (pendientes.size() >= loteMaximo) {
+            notifyAll();
+        }
+        return registro;
+    }
+
+    /**
+     * Bloquea al llamante hasta que su registro cumple el modo de durabilidad de la cola
+     * @param ticket Ticket del registro
+     * @throws UncheckedIOException Si el registro no llegó al disco por un error de escritura
+     */
+    private void esperarDurabilidad(long ticket) {
+        ModoDurabilidad modoRegistro = modo;
+        switch (modoRegistro) {
+            case AGRUPADA:
+                synchronized (this) {
+                    esperandoGrupo++;
+                    notifyAll();
+                    try {
+                        while (ticketForzado < ticket && modo == ModoDurabilidad.AGRUPADA && !cerrado 
+                                && errorEscritura == null) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } finally {
+                        esperandoGrupo--;
+                    }
+                }
+                // Si el modo cambió mientras esperaba, sincronizar por cuenta propia
+                volcar(ticket, true);
+                break;
+            case POR_MENSAJE:
+                volcar(ticket, true);
+                break;
+            default:
+                volcar(ticket, false);
+                break;
+        }
+        IOException error = errorEscritura;
+        long alcanzado = modoRegistro == ModoDurabilidad.NINGUNA ? ticketEscrito : ticketForzado;
+        if (error != null && alcanzado < ticket) {
+            throw new UncheckedIOException("Journal of the queue '" + nombreCola + "' failed to write the record", error);
+        }
+    }
+
+    /**
+     * Entrega al sistema operativo un registro por el que nadie espera. En el modo AGRUPADA
+     * lo escribe el hilo escritor con el siguiente lote; en los demás no hay escritor, así
+     * que se escribe ya para que una cola inactiva no deje sus expiraciones (y los segmentos
+     * que liberan) pendientes hasta la próxima publicación.
+     * @param ticket Ticket del registro
+     */
+    private void entregarSinEsperar(long ticket) {
+        if (modo != ModoDurabilidad.AGRUPADA) {
+            volcar(ticket, false);
+        }
+    }
+
+    /**
+     * Escribe (y opcionalmente sincroniza) todos los registros pendientes si el del ticket
+     * aún no lo está. Los llamantes concurrentes que llegan detrás encuentran su registro
+     * ya escrito por el primero, de modo que también aquí se agrupan escrituras.
+     */
+    private void volcar(long ticket, boolean forzar) {
+        if ((forzar ? ticketForzado : ticketEscrito) >= ticket || errorEscritura != null) return;
+        synchronized (lockEscritura) {
+            if ((forzar ? ticketForzado : ticketEscrito) >= ticket || errorEscritura != null) return;
+            escribirPendientes(forzar);
+        }
+    }
+
+    /**
+     * Bucle del escritor de group commit: espera a que haya registros pendientes y escribe
+     * el lote en cuanto alcanza el tamaño máximo, el más antiguo agota la latencia máxima
+     * o todos los hilos con registros pendientes ya están bloqueados esperando (esperar
+     * más solo añadiría latencia, porque ninguno de ellos puede aportar otro registro)
+     */
+    private void bucleEscritor() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while ((pendientes.isEmpty() || modo != ModoDurabilidad.AGRUPADA) && !cerrado) {
+                        wait();
+                    }
+                    if (cerrado) return;
+
+                    long limite = primerPendienteNanos + latenciaMaximaNanos;
+                    while (pendientes.size() < loteMaximo && pendientes.size() > esperandoGrupo && !cerrado) {
+                        long restante = limite - System.nanoTime();
+                        if (restante <= 0) break;
+                        wait(restante / 1_000_000, (int) (restante % 1_000_000));
+                    }
+                }
+                synchronized (lockEscritura) {
+                    escribirPendientes(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Escribe en disco todos los registros pendientes con una sola llamada a flush y,
+     * si se pide, una sola sincronización (force). Si falla, los tickets no avanzan, el
+     * journal queda marcado como fallido y se despierta a quienes esperan. Requiere
+     * lockEscritura.
+     */
+    private void escribirPendientes(boolean forzar) {
+        List<RegistroPendiente> lote;
+        synchronized (this) {
+            if (pendientes.isEmpty()) return;
+            lote = pendientes;
+            pendientes = new ArrayList<>();
+            // Tras un error el segmento puede tener un registro a medias: no se escribe más
+            if (errorEscritura != null) {
+                notifyAll();
+                return;
+            }
+        }
+
+        try {
+            for (RegistroPendiente registro : lote) {
+                if (salida == null || registro.segmento != segmentoEnDisco) {
+                    abrirSegmento(registro.segmento);
+                }
+                salida.write(registro.bytes);
+            }
+            salida.flush();
+            if (forzar) {
+                fichero.getChannel().force(false);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing to the journal of the queue '" + nombreCola + "': " + e.getMessage());
+            synchronized (this) {
+                errorEscritura = e;
+                notifyAll();
+            }
+            return;
+        }
+
+        long ultimo = lote.get(lote.size() - 1).ticket;
+        ticketEscrito = ultimo;
+        if (forzar) {
+            ticketForzado = ultimo;
+        }
+
+        synchronized (this) {
+            liberarSegmentos();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Abre un segmento para añadir registros. Requiere lockEscritura.
+     */
+    private void abrirSegmento(long segmento) throws IOException {
+        cerrarSegmento();
+        fichero = new FileOutputStream(fichero(segmento), true);
+        salida = new BufferedOutputStream(fichero, 64 * 1024);
+        segmentoEnDisco = segmento;
+    }
+
+    /**
+     * Sincroniza y cierra el segmento abierto, de modo que un segmento cerrado siempre
+     * está completo en disco. Requiere lockEscritura.
+     */
+    private void cerrarSegmento() {
+        if (salida == null) return;
+        try {
+            salida.flush();
+            fichero.getChannel().force(false);
+            salida.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the journal of the queue '" + nombreCola + "': " + e.getMessage());
+        }
+        salida = null;
+        fichero = null;
+    }
+
+    /**
+     * Solo se borran segmentos en orden desde el más antiguo y ya cerrados: un segmento
+     * posterior puede contener los ACK de mensajes publicados en uno anterior todavía vivo.
+     * Requiere lockEscritura y el monitor del journal.
+     */
+    private void liberarSegmentos() {
+        while (!vivosPorSegmento.isEmpty()) {
+            Map.Entry<Long, Integer> primero = vivosPorSegmento.firstEntry();
+            if (primero.getKey() >= segmentoEnDisco || primero.getValue() > 0) break;
+            vivosPorSegmento.pollFirstEntry();
+            fichero(primero.getKey()).delete();
+        }
+    }
+
+    /**
+     * Lee los registros válidos de un segmento
+     */
+    private void leerSegmento(long segmento, Consumer<Registro> procesador) {
+        try (DataInputStream entrada = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(fichero(segmento))))) {
+            while (true) {
+                int longitud;
+                try {
+                    longitud = entrada.readInt();
+                } catch (EOFException e) {
+                    break; // Fin normal del segmento
+                }
+                int crcEsperado = entrada.readInt();
+                if (longitud <= 0 || longitud > TAMANO_MAXIMO_REGISTRO) {
+                    System.err.println("Corrupted record length in " + fichero(segmento).getName() + ", ignoring the rest of the segment");
+                    break;
+                }
+
+                byte[] registro = new byte[longitud];
+                entrada.readFully(registro);
+                crc.reset();
+                crc.update(registro, 0, longitud);
+                if ((int) crc.getValue() != crcEsperado) {
+                    System.err.println("Checksum mismatch in " + fichero(segmento).getName() + ", ignoring the rest of the segment");
+                    break;
+                }
+
+                decodificar(registro, segmento, procesador);
+            }
+        } catch (EOFException e) {
+            System.err.println("Truncated record at the end of " + fichero(segmento).getName() + " ignored");
+        } catch (IOException e) {
+            System.err.println("Error reading journal segment " + fichero(segmento).getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void decodificar(byte[] registro, long segmento, Consumer<Registro> procesador) throws IOException {
+        DataInputStream entrada = new DataInputStream(new ByteArrayInputStream(registro));
+        byte tipo = entrada.readByte();
+        if (tipo == CONFIRMAR_LOTE || tipo == RECHAZAR_LOTE) {
+            byte tipoIndividual = tipo == CONFIRMAR_LOTE ? CONFIRMAR : RECHAZAR;
+            int total = entrada.readInt();
+            for (int i = 0; i < total; i++) {
+                procesador.accept(new Registro(tipoIndividual, entrada.readUTF(), null, 0, -1, SIN_CABECERAS, segmento));
+            }
+            return;
+        }
+
+        if (tipo == PUBLICAR_SOBRE) {
+            Message mensaje = Message.leer(entrada);
+            procesador.accept(new Registro(PUBLICAR, mensaje.getId(), mensaje.getTexto(), mensaje.getTimestamp(),
+                                           mensaje.getVencimiento(), mensaje.getCabeceras(), segmento));
+            return;
+        }
+
+        if (tipo == PUBLICAR_REFERENCIA) {
+            long referencia = entrada.readLong();
+            Message mensaje = Message.leer(entrada);
+            procesador.accept(new Registro(PUBLICAR, mensaje.getId(), null, mensaje.getTimestamp(),
+                                           mensaje.getVencimiento(), mensaje.getCabeceras(), segmento, referencia));
+            return;
+        }
+
+        String id = entrada.readUTF();
+        if (tipo == PUBLICAR || tipo == PUBLICAR_CON_VENCIMIENTO) {
+            long timestamp = entrada.readLong();
+            long vencimiento = tipo == PUBLICAR_CON_VENCIMIENTO ? entrada.readLong() : -1;
+            byte[] contenido = new byte[entrada.readInt()];
+            entrada.readFully(contenido);
+            procesador.accept(new Registro(PUBLICAR, id, new String(contenido, StandardCharsets.UTF_8), 
+                                           timestamp, vencimiento, SIN_CABECERAS, segmento));
+        } else {
+            procesador.accept(new Registro(tipo, id, null, 0, -1, SIN_CABECERAS, segmento));
+        }
+    }
+
+    private File fichero(long segmento) {
+        return new File(prefijo + nombreCola + "." + String.format("%08d", segmento) + EXTENSION);
+    }
+
+    /**
+     * Lista los números de segmento existentes en disco, ordenados
+     */
+    private List<Long> listarSegmentos() {
+        String inicio = prefijo + nombreCola + ".";
+        File[] ficheros = new File(".").listFiles((d, name) -> name.startsWith(inicio) && name.endsWith(EXTENSION));
+        List<Long> segmentos = new ArrayList<>();
+        if (ficheros == null) return segmentos;
+
+        for (File f : ficheros) {
+            String numero = f.getName().substring(inicio.length(), f.getName().length() - EXTENSION.length());
+            if (esNumero(numero)) {
+                segmentos.add(Long.parseLong(numero));
+            }
+        }
+        Collections.sort(segmentos);
+        return segmentos;
+    }
+
+    private static boolean esNumero(String texto) {
+        if (texto.isEmpty()) return false;
+        for (int i = 0; i < texto.length(); i++) {
+            if (!Character.isDigit(texto.charAt(i))) return false;
+        }
+        return true;
+    }
+}
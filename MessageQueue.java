@@ -2,21 +2,27 @@ import java.rmi.RemoteException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.time.Instant;
-import java.time.Duration;
 import java.io.Serializable;
-import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
 import java.io.FileInputStream;
 import java.io.ObjectInputStream;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementación de una cola de mensajes en el broker
  */
-public class MessageQueue implements Serializable {
+public class MessageQueue implements BrokerQueue, Serializable {
 // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion
     private static final long serialVersionUID = 1L;
     
@@ -24,43 +30,215 @@ public class MessageQueue implements Serializable {
     private static class MensajeTimestamp implements Serializable {
         private static final long serialVersionUID = 1L;
         
-        String id;           // Identificador único para ACK
+        String id;           // Identificador del formato anterior (UUID); null en los mensajes nuevos
+        long secuencia;      // Identificador del mensaje en la cola (época + contador), para ACK
         String contenido;    // Contenido del mensaje
         Instant timestamp;   // Momento de creación
         boolean durable;     // Si el mensaje es durable
         boolean entregado;   // Si ya fue entregado a algún consumidor
         boolean acked;       // Si fue confirmado por el consumidor
+        boolean expirado;    // Si expiró esperando en la cola (se descarta al llegar a la cabeza)
+        long vencimiento;    // Instante de expiración (milisegundos desde epoch)
+        long segmento;       // Segmento del journal donde se registró la publicación
+        int entregas;        // Número de veces que se ha entregado
+        Map<String, String> cabeceras;     // Cabeceras del mensaje (null si no tiene)
+        transient byte[] bytes;            // Contenido codificado en UTF-8, compartido por todas las entregas
+        transient SharedPayload compartido;    // Contenido retenido en el PayloadStore (solo mensajes durables de exchange)
+        transient TimingWheel.Temporizador temporizador; // Expiración programada en la rueda
+        transient EstadoConsumidor consumidor; // Consumidor que lo tiene en vuelo (sin ACK)
+        transient long etiqueta;               // Etiqueta de la última entrega (delivery tag)
+        transient long publicadoNanos;         // System.nanoTime de la publicación (0 = recuperado del disco)
+        transient long entregadoNanos;         // System.nanoTime de la última entrega, para la latencia del ACK
         
-        MensajeTimestamp(String contenido, boolean durable) {
-            this.id = UUID.randomUUID().toString();
+        MensajeTimestamp(long secuencia, String contenido, Instant timestamp, boolean durable, long ttlMs) {
+            this.secuencia = secuencia;
             this.contenido = contenido;
-            this.timestamp = Instant.now();
+            this.timestamp = timestamp;
             this.durable = durable;
             this.entregado = false;
             this.acked = false;
+            this.vencimiento = calcularVencimiento(timestamp.toEpochMilli(), ttlMs);
         }
         
         boolean estaExpirado() {
-            // Expiración después de 5 minutos (300 segundos)
-            return Instant.now().isAfter(timestamp.plusSeconds(300));
+            return System.currentTimeMillis() > vencimiento;
         }
         
-        long tiempoRestante() {
-            Instant limite = timestamp.plusSeconds(300);
-            Duration duracion = Duration.between(Instant.now(), limite);
-            return Math.max(0, duracion.getSeconds());
+        boolean expira() {
+            return vencimiento != SIN_VENCIMIENTO;
+        }
+        
+        /**
+         * Identificador externo del mensaje (entregas, ACK y journal)
+         */
+        String idTexto() {
+            return id != null ? id : Long.toString(secuencia);
+        }
+        
+        byte[] bytes() {
+            if (bytes == null) {
+                bytes = contenido.getBytes(StandardCharsets.UTF_8);
+            }
+            return bytes;
+        }
+    }
+    
+    // Tiempo de vida por defecto de los mensajes: 5 minutos (300 segundos)
+    public static final long TTL_POR_DEFECTO_MS = 300_000;
+    // Vencimiento de los mensajes con TTL 0, que no expiran nunca
+    private static final long SIN_VENCIMIENTO = Long.MAX_VALUE;
+    // Identificadores: época (milisegundos desde INICIO_EPOCAS) en los bits altos y contador
+    // en los 22 bits bajos. Al agotarse el contador se pasa a la época siguiente, de modo que
+    // la secuencia es monótona y una cola reiniciada no reutiliza identificadores anteriores.
+    private static final int BITS_CONTADOR = 22;
+    private static final long INICIO_EPOCAS = 1_700_000_000_000L;
+    // Máximo de particiones de una cola particionada. Cada partición genera solo los
+    // identificadores cuyo resto módulo este valor es su índice, así que el identificador
+    // de un mensaje indica de qué partición es (el contador salta de época sin perderlo).
+    static final int MAXIMO_PARTICIONES = 256;
+    
+    /**
+     * Primer valor de la secuencia tras arrancar: época actual, o la siguiente a la del
+     * último identificador recuperado si el reloj no la ha superado
+     * @param ultimaRecuperada Último identificador recuperado (0 si no hay)
+     * @return Valor inicial de la secuencia (el primer identificador es el siguiente)
+     */
+    private static long inicioSecuencia(long ultimaRecuperada) {
+        long epoca = Math.max(System.currentTimeMillis() - INICIO_EPOCAS, (ultimaRecuperada >> BITS_CONTADOR) + 1);
+        return epoca << BITS_CONTADOR;
+    }
+    
+    /**
+     * Convierte un identificador externo en la secuencia del mensaje
+     * @param mensajeId Identificador recibido
+     * @return Secuencia, o 0 si no es un identificador de secuencia
+     */
+    private static long parsearSecuencia(String mensajeId) {
+        try {
+            return Math.max(0, Long.parseLong(mensajeId));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Obtiene la partición que generó un identificador de mensaje
+     * @param mensajeId Identificador recibido
+     * @return Índice de la partición, o -1 si no es un identificador de secuencia
+     */
+    static int particionDeMensaje(String mensajeId) {
+        long secuencia = parsearSecuencia(mensajeId);
+        return secuencia > 0 ? (int) (secuencia & (MAXIMO_PARTICIONES - 1)) : -1;
+    }
+    
+    /**
+     * Genera el identificador del siguiente mensaje
+     */
+    private long siguienteSecuencia() {
+        return ultimaSecuencia.addAndGet(pasoSecuencia);
+    }
+    
+    /**
+     * Calcula el vencimiento de un mensaje a partir de su creación y su TTL
+     * @param creadoMs Momento de creación (epoch millis)
+     * @param ttlMs Tiempo de vida en milisegundos (0 = no expira)
+     * @return Instante de expiración (epoch millis)
+     */
+    private static long calcularVencimiento(long creadoMs, long ttlMs) {
+        return ttlMs > 0 ? creadoMs + ttlMs : SIN_VENCIMIENTO;
+    }
+    
+    /**
+     * Entrega registrada en la lista ordenada de un consumidor. Deja de estar pendiente
+     * cuando el mensaje se confirma, se rechaza o se vuelve a entregar con otra etiqueta.
+     */
+    private static class Entrega {
+        final long etiqueta;
+        final MensajeTimestamp mensaje;
+        
+        Entrega(long etiqueta, MensajeTimestamp mensaje) {
+            this.etiqueta = etiqueta;
+            this.mensaje = mensaje;
+        }
+        
+        boolean pendiente(EstadoConsumidor consumidor) {
+            return mensaje.consumidor == consumidor && mensaje.etiqueta == etiqueta;
+        }
+    }
+    
+    /**
+     * Estado de un consumidor suscrito: su ventana de prefetch (crédito) y su carril de entrega
+     */
+    private class EstadoConsumidor {
+        final ConsumerCallback callback;
+        int prefetch;        // Ventana propia (0 = ilimitada); -1 = usar la de la cola (protegido por el cerrojo)
+        final DeliveryScheduler.Carril carril = DeliveryScheduler.getInstance().crearCarril();
+        int enVuelo = 0;     // Mensajes entregados sin ACK/NACK (protegido por el cerrojo de la cola)
+        // Entregas en orden de etiqueta, para el ACK acumulativo (protegido por el cerrojo de la cola)
+        final ArrayDeque<Entrega> entregas = new ArrayDeque<>();
+        // Si el callback acepta lotes, mensajes asignados que esperan a completar su lote
+        final boolean porLotes;
+        final List<MensajeTimestamp> lote = new ArrayList<>(); // Protegido por el propio lote
+        volatile boolean activo = true;
+        
+        EstadoConsumidor(ConsumerCallback callback, int prefetch) {
+            this.callback = callback;
+            this.prefetch = prefetch;
+            this.porLotes = callback instanceof ConsumerBatchCallback;
+        }
+        
+        int ventana() {
+            return prefetch >= 0 ? prefetch : prefetchPorDefecto;
+        }
+        
+        boolean tieneCredito() {
+            int ventana = ventana();
+            return activo && (ventana == 0 || enVuelo < ventana);
+        }
+        
+        /**
+         * Descarta de la cabeza las entregas ya liquidadas
+         */
+        void purgarEntregas() {
+            while (!entregas.isEmpty() && !entregas.peekFirst().pendiente(this)) {
+                entregas.pollFirst();
+            }
         }
     }
     
     private String nombre;   // Nombre de la cola
     private boolean durable; // Si la cola es durable
+    private volatile long ttlMs = TTL_POR_DEFECTO_MS; // TTL de los mensajes sin TTL propio (0 = no expiran)
     private final ConcurrentLinkedQueue<MensajeTimestamp> mensajes = new ConcurrentLinkedQueue<>(); // FIFO
-    private final CopyOnWriteArrayList<ConsumerCallback> consumidores = new CopyOnWriteArrayList<>();
-    private final Map<String, MensajeTimestamp> mensajesNoConfirmados = new ConcurrentHashMap<>();
-    // Rond robin --> igualdad de distribución entre consumidores
-    // Fair dispatch --> un consumidor no recibe otro mensaje hasta confirmar el anterior (optimo)
+    // Mensajes vivos en la cola: los expirados siguen en ella hasta llegar a la cabeza, pero no cuentan
+    private final AtomicInteger mensajesEnCola = new AtomicInteger();
+    // Expirados que siguen en la cola a la espera de retirarse (protegido por el cerrojo de la cola)
+    private int expiradosEnCola = 0;
+    // Mensajes devueltos sin ACK (NACK o consumidor que sale), por secuencia: se entregan antes
+    // que los de la cola para conservar el orden de publicación (protegido por el cerrojo de la cola)
+    private final PriorityQueue<MensajeTimestamp> devueltos = 
+        new PriorityQueue<>(Comparator.comparingLong(m -> m.secuencia));
+    private final AtomicLong mensajesExpirados = new AtomicLong(); // Expirados desde el arranque
+    private boolean eliminada = false; // Protegido por el cerrojo de la cola
+    private final CopyOnWriteArrayList<EstadoConsumidor> consumidores = new CopyOnWriteArrayList<>();
+    // Mensajes entregados sin ACK por secuencia (protegido por el cerrojo de la cola)
+    private final LongObjectMap<MensajeTimestamp> mensajesNoConfirmados = new LongObjectMap<>();
+    private final AtomicLong ultimaSecuencia = new AtomicLong(inicioSecuencia(0)); // Generador de identificadores
+    // Incremento y resto de los identificadores: 1 y 0, o MAXIMO_PARTICIONES y el índice de la partición
+    private int pasoSecuencia = 1;
+    private int restoSecuencia = 0;
+    // Aviso cuando se quita un consumidor que no responde (lo usan las colas particionadas)
+    private transient volatile java.util.function.Consumer<ConsumerCallback> alPerderConsumidor;
+    // Journal append-only para los mensajes durables (solo en colas durables)
+    private transient MessageJournal journal;
+    private transient MetricsRegistry.MetricasCola metricas;
+    // Rond robin --> igualdad de distribución entre los consumidores con crédito libre
+    // Prefetch --> cada consumidor tiene como mucho N mensajes sin confirmar (como basic.qos);
+    // fair dispatch equivale a una ventana de 1: no recibe otro mensaje hasta confirmar el anterior
     private int currentConsumerIndex = 0; // Índice para round robin
     private boolean fairDispatch = true;  // Por defecto, activamos fair dispatch
+    private int prefetchPorDefecto = 1;   // Ventana de los consumidores sin ventana propia (0 = ilimitada)
+    private long ultimaEtiqueta = 0;      // Generador de etiquetas de entrega (protegido por el cerrojo)
     
     /**
      * Constructor básico
@@ -74,11 +252,36 @@ public class MessageQueue implements Serializable {
      * Constructor con nombre y durabilidad
      */
     public MessageQueue(String nombre, boolean durable) {
+        this(nombre, durable, TTL_POR_DEFECTO_MS);
+    }
+    
+    /**
+     * Constructor con nombre, durabilidad y TTL de los mensajes
+     * @param ttlMs Tiempo de vida de los mensajes en milisegundos (0 = no expiran)
+     */
+    public MessageQueue(String nombre, boolean durable, long ttlMs) {
+        this(nombre, durable, ttlMs, -1);
+    }
+    
+    /**
+     * Constructor de una partición de una cola particionada (PartitionedQueue)
+     * @param ttlMs Tiempo de vida de los mensajes en milisegundos (0 = no expiran)
+     * @param particion Índice de la partición (menor que MAXIMO_PARTICIONES), o negativo
+     *                  si es una cola normal
+     */
+    MessageQueue(String nombre, boolean durable, long ttlMs, int particion) {
         this.nombre = nombre;
         this.durable = durable;
+        this.ttlMs = Math.max(0, ttlMs);
+        if (particion >= 0) {
+            this.pasoSecuencia = MAXIMO_PARTICIONES;
+            this.restoSecuencia = particion;
+            ultimaSecuencia.set(inicioSecuencia(0) + particion);
+        }
         
         // Si la cola es durable, tratar de recuperar mensajes
         if (durable) {
+            this.journal = new MessageJournal(nombre);
             recuperarMensajesPersistentes();
         }
     }
@@ -88,9 +291,64 @@ public class MessageQueue implements Serializable {
      * @param fairDispatch true para activar fair dispatch
      */
     public void setFairDispatch(boolean fairDispatch) {
-        this.fairDispatch = fairDispatch;
+        synchronized (this) {
+            this.fairDispatch = fairDispatch;
+            this.prefetchPorDefecto = fairDispatch ? 1 : 0;
+        }
         System.out.println("Queue '" + nombre + "': Fair dispatch " + 
                           (fairDispatch ? "enabled" : "disabled"));
+        // Al ampliar la ventana puede haber consumidores con crédito nuevo
+        despachar();
+    }
+    
+    /**
+     * Establece cuándo se sincronizan con el disco las escrituras del journal
+     * @param modo Modo de durabilidad (NINGUNA, AGRUPADA o POR_MENSAJE)
+     */
+    public void setModoDurabilidad(ModoDurabilidad modo) {
+        if (!durable) {
+            System.out.println("Queue '" + nombre + "' is not durable; durability mode ignored");
+            return;
+        }
+        journal.setModoDurabilidad(modo);
+        System.out.println("Queue '" + nombre + "': durability mode " + modo);
+    }
+    
+    /**
+     * Configura el group commit del journal (modo AGRUPADA)
+     * @param latenciaMaximaMicros Tiempo máximo que una escritura espera a formar lote
+     * @param loteMaximo Número de registros que dispara la escritura inmediata
+     */
+    public void configurarGroupCommit(long latenciaMaximaMicros, int loteMaximo) {
+        if (!durable) return;
+        journal.configurarGroupCommit(latenciaMaximaMicros, loteMaximo);
+        System.out.println("Queue '" + nombre + "': group commit every " + latenciaMaximaMicros + 
+                         " us or " + loteMaximo + " records");
+    }
+    
+    /**
+     * Devuelve el modo de durabilidad del journal
+     * @return Modo de durabilidad, o null si la cola no es durable
+     */
+    public ModoDurabilidad getModoDurabilidad() {
+        return durable ? journal.getModoDurabilidad() : null;
+    }
+    
+    /**
+     * Establece el TTL de los mensajes publicados sin TTL propio. No afecta a los
+     * mensajes que ya están en la cola.
+     * @param ttlMs Tiempo de vida en milisegundos (0 = no expiran)
+     */
+    public void setTtl(long ttlMs) {
+        this.ttlMs = Math.max(0, ttlMs);
+    }
+    
+    /**
+     * Obtiene el TTL de los mensajes publicados sin TTL propio
+     * @return Tiempo de vida en milisegundos (0 = no expiran)
+     */
+    public long getTtl() {
+        return ttlMs;
     }
     
     /**
@@ -123,85 +381,319 @@ public class MessageQueue implements Serializable {
      * @param durable Si el mensaje debe persistir
      */
     public void publicar(String mensaje, boolean durable) {
-        MensajeTimestamp mensajeTS = new MensajeTimestamp(mensaje, durable);
-        
-        // Si hay consumidores disponibles, enviar directamente
-        if (!consumidores.isEmpty()) {
-            enviarMensajeAConsumidor(mensajeTS);
-        } else {
-            // Si no hay consumidores, guardar en la cola
-            mensajes.add(mensajeTS);
-            System.out.println("Message stored in queue '" + nombre + 
-                             "'. It will be deleted in 5 minutes if there is no consumer.");
-            
-            // Si es durable, persistir cambios
-            if (durable && this.durable) {
-                persistirMensajes();
+        publicar(mensaje, durable, ttlMs);
+    }
+    
+    /**
+     * Publica un mensaje en la cola con su propio TTL
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @param ttlMs Tiempo de vida del mensaje en milisegundos (0 = no expira)
+     */
+    public void publicar(String mensaje, boolean durable, long ttlMs) {
+        publicar(mensaje, durable, ttlMs, null);
+    }
+    
+    /**
+     * Publica un mensaje con cabeceras en la cola con su propio TTL
+     * @param mensaje Contenido del mensaje
+     * @param durable Si el mensaje debe persistir
+     * @param ttlMs Tiempo de vida del mensaje en milisegundos (0 = no expira)
+     * @param cabeceras Cabeceras que se entregan con el mensaje (puede ser null)
+     */
+    public void publicar(String mensaje, boolean durable, long ttlMs, Map<String, String> cabeceras) {
+        publicarMensaje(mensaje, null, durable, ttlMs, cabeceras);
+    }
+    
+    /**
+     * Publica un mensaje cuyo contenido comparte con otras colas (envío de un exchange).
+     * Si el mensaje y la cola son durables, el journal solo registra la referencia al
+     * contenido guardado en el PayloadStore.
+     * @param clave Clave de enrutamiento (la cola normal la ignora)
+     * @param contenido Contenido compartido
+     * @param durable Si el mensaje debe persistir
+     * @param ttlMs Tiempo de vida del mensaje en milisegundos (0 = no expira)
+     * @param cabeceras Cabeceras del mensaje (puede ser null)
+     */
+    @Override
+    public void publicarCompartido(String clave, SharedPayload contenido, boolean durable, long ttlMs, 
+                                   Map<String, String> cabeceras) {
+        publicarMensaje(contenido.getTexto(), contenido, durable, ttlMs, cabeceras);
+    }
+    
+    private void publicarMensaje(String mensaje, SharedPayload compartido, boolean durable, long ttlMs, 
+                                 Map<String, String> cabeceras) {
+        MensajeTimestamp mensajeTS = new MensajeTimestamp(siguienteSecuencia(), mensaje, 
+                                                          Instant.now(), durable, ttlMs);
+        mensajeTS.publicadoNanos = System.nanoTime();
+        if (cabeceras != null && !cabeceras.isEmpty()) {
+            mensajeTS.cabeceras = new LinkedHashMap<>(cabeceras);
+        }
+        if (compartido != null) {
+            mensajeTS.bytes = compartido.getBytes();
+        }
+        
+        // Si es durable, registrar la publicación en el journal antes de entregarlo
+        if (durable && this.durable && compartido != null) {
+            compartido.retener();
+            mensajeTS.compartido = compartido;
+            try {
+                long referencia = compartido.persistir(journal.getModoDurabilidad());
+                mensajeTS.segmento = journal.registrarPublicacionReferencia(mensajeTS.idTexto(), referencia, 
+                        mensajeTS.timestamp.toEpochMilli(), mensajeTS.vencimiento, mensajeTS.cabeceras);
+            } catch (RuntimeException e) {
+                // Error de escritura del journal: el mensaje no se encola
+                compartido.liberar();
+                throw e;
             }
+        } else if (durable && this.durable) {
+            mensajeTS.segmento = journal.registrarPublicacion(mensajeTS.idTexto(), mensajeTS.bytes(), 
+                    mensajeTS.timestamp.toEpochMilli(), mensajeTS.vencimiento, mensajeTS.cabeceras);
+        }
+        
+        encolar(mensajeTS);
+        metricas().publicados(1);
+        if (consumidores.isEmpty()) {
+            BrokerEventBus.getInstance().almacenado(nombre, 1, ttlMs);
         }
+        
+        // Entregarlo si algún consumidor tiene crédito libre
+        despachar();
     }
     
     /**
-     * Envía un mensaje a un consumidor usando round robin
-     * @param mensaje Mensaje a enviar
+     * Publica un lote de mensajes en una sola pasada: un único registro en el journal
+     * para todo el lote (una sola espera de durabilidad) y un único despacho al final
+     * @param lote Contenidos de los mensajes, en orden
+     * @param durable Si los mensajes deben persistir
      */
-    private void enviarMensajeAConsumidor(MensajeTimestamp mensaje) {
+    public void publicarLote(List<String> lote, boolean durable) {
+        if (lote.isEmpty()) return;
+        
+        List<MensajeTimestamp> mensajesLote = new ArrayList<>(lote.size());
+        Instant ahora = Instant.now();
+        long ahoraNanos = System.nanoTime();
+        long ttlLote = ttlMs;
+        for (String contenido : lote) {
+            MensajeTimestamp mensaje = new MensajeTimestamp(siguienteSecuencia(), contenido, ahora, durable, ttlLote);
+            mensaje.publicadoNanos = ahoraNanos;
+            mensajesLote.add(mensaje);
+        }
+        
+        if (durable && this.durable) {
+            List<String> ids = new ArrayList<>(lote.size());
+            for (MensajeTimestamp mensaje : mensajesLote) {
+                ids.add(mensaje.idTexto());
+            }
+            long[] segmentos = journal.registrarPublicaciones(ids, lote, ahora.toEpochMilli(), 
+                                                              mensajesLote.get(0).vencimiento);
+            for (int i = 0; i < segmentos.length; i++) {
+                mensajesLote.get(i).segmento = segmentos[i];
+            }
+        }
+        
+        for (MensajeTimestamp mensaje : mensajesLote) {
+            encolar(mensaje);
+        }
+        metricas().publicados(mensajesLote.size());
         if (consumidores.isEmpty()) {
-            // Si no hay consumidores, guardar en la cola
-            mensajes.add(mensaje);
-            return;
+            BrokerEventBus.getInstance().almacenado(nombre, lote.size(), ttlLote);
         }
         
-        // Garantizar que el índice esté dentro del rango
-        synchronized (this) {
-            if (currentConsumerIndex >= consumidores.size()) {
-                currentConsumerIndex = 0;
+        despachar();
+    }
+    
+    /**
+     * Entrega mensajes de la cola mientras haya algún consumidor con crédito libre.
+     * Recorre los consumidores en round robin saltando los que tienen la ventana llena,
+     * de modo que un consumidor lento no bloquea a los demás. Si nadie tiene crédito,
+     * los mensajes esperan en la cola hasta el próximo ACK/NACK. Los mensajes devueltos
+     * salen antes que los nuevos, en orden de secuencia.
+     */
+    private synchronized void despachar() {
+        while (!devueltos.isEmpty() || !mensajes.isEmpty()) {
+            EstadoConsumidor consumidor = siguienteConCredito();
+            if (consumidor == null) return;
+            
+            MensajeTimestamp mensaje = !devueltos.isEmpty() ? devueltos.poll() : mensajes.poll();
+            if (mensaje == null) return;
+            // Ya expirado por la rueda de temporización: solo quedaba retirarlo
+            if (mensaje.expirado) {
+                if (expiradosEnCola > 0) expiradosEnCola--;
+                continue;
             }
+            mensajesEnCola.decrementAndGet();
             
-            ConsumerCallback consumer = consumidores.get(currentConsumerIndex);
-            // Guardar mensaje en mapa de no confirmados
-            mensajesNoConfirmados.put(mensaje.id, mensaje);
-            mensaje.entregado = true;
+            // Vencido pero su temporizador aún no ha saltado (resolución de la rueda)
+            if (mensaje.estaExpirado()) {
+                marcarExpirado(mensaje);
+                BrokerEventBus.getInstance().expirado(nombre, mensaje.contenido);
+                registrarExpiracion(mensaje);
+                continue;
+            }
             
-            // Para fair dispatch, solo incrementamos después de ACK
-            if (!fairDispatch) {
-                // Si no es fair dispatch, round robin inmediato
-                currentConsumerIndex = (currentConsumerIndex + 1) % consumidores.size();
+            enviarMensajeAConsumidor(mensaje, consumidor);
+        }
+    }
+    
+    /**
+     * Busca, en round robin desde el índice actual, el siguiente consumidor con crédito.
+     * Requiere el cerrojo de la cola.
+     * @return Consumidor con crédito o null si todos tienen la ventana llena
+     */
+    private EstadoConsumidor siguienteConCredito() {
+        int total = consumidores.size();
+        for (int i = 0; i < total; i++) {
+            int indice = (currentConsumerIndex + i) % total;
+            EstadoConsumidor consumidor = consumidores.get(indice);
+            if (consumidor.tieneCredito()) {
+                currentConsumerIndex = (indice + 1) % total;
+                return consumidor;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Envía un mensaje a un consumidor a través de su carril de entrega, consumiendo
+     * una unidad de su crédito. Requiere el cerrojo de la cola.
+     * @param mensaje Mensaje a enviar
+     * @param consumidor Consumidor destino
+     */
+    private void enviarMensajeAConsumidor(MensajeTimestamp mensaje, EstadoConsumidor consumidor) {
+        // Guardar mensaje en mapa de no confirmados
+        mensajesNoConfirmados.put(mensaje.secuencia, mensaje);
+        mensaje.entregado = true;
+        mensaje.consumidor = consumidor;
+        mensaje.etiqueta = ++ultimaEtiqueta;
+        consumidor.enVuelo++;
+        consumidor.entregas.addLast(new Entrega(mensaje.etiqueta, mensaje));
+        mensaje.entregas++;
+        mensaje.entregadoNanos = System.nanoTime();
+        if (mensaje.durable && this.durable) {
+            journal.registrarEntrega(mensaje.idTexto());
+        }
+        
+        if (consumidor.porLotes) {
+            agregarALote(mensaje, consumidor);
+            return;
+        }
+        
+        int consumerNum = consumidores.indexOf(consumidor);
+        int enVuelo = consumidor.enVuelo;
+        Message sobre = crearSobre(mensaje);
+        BrokerEventBus eventos = BrokerEventBus.getInstance();
+        // La latencia de publicación a entrega solo se mide en la primera entrega
+        long publicadoNanos = mensaje.entregas == 1 ? mensaje.publicadoNanos : 0;
+        
+        // Enviar mensaje al consumidor a través de su carril en el planificador de entregas
+        consumidor.carril.enviar(() -> {
+            // Si se desuscribió mientras tanto, el mensaje ya volvió a la cola
+            if (!consumidor.activo) return;
+            try {
+                consumidor.callback.onMessage(sobre);
+                metricas().entregado(publicadoNanos, System.nanoTime());
+                eventos.entregado(nombre, sobre.getId(), consumerNum, enVuelo, consumidor.ventana());
+            } catch (RemoteException e) {
+                System.err.println("Error notifying the consumer: " + e.getMessage());
+                perderConsumidor(consumidor);
+            }
+        });
+    }
+    
+    /**
+     * Añade un mensaje al lote en curso de un consumidor por lotes. El lote se envía
+     * en cuanto se llena o, si no, cuando pasa el tiempo de espera del planificador.
+     * @param mensaje Mensaje a enviar
+     * @param consumidor Consumidor destino
+     */
+    private void agregarALote(MensajeTimestamp mensaje, EstadoConsumidor consumidor) {
+        DeliveryScheduler planificador = DeliveryScheduler.getInstance();
+        int tamano;
+        synchronized (consumidor.lote) {
+            consumidor.lote.add(mensaje);
+            tamano = consumidor.lote.size();
+        }
+        
+        if (tamano == planificador.getLoteMaximo()) {
+            consumidor.carril.enviar(() -> enviarLote(consumidor));
+        } else if (tamano == 1) {
+            planificador.enviarDiferido(consumidor.carril, () -> enviarLote(consumidor), 
+                                        planificador.getEsperaLoteMicros());
+        }
+    }
+    
+    /**
+     * Envía al consumidor, en una sola llamada remota, los mensajes acumulados en su lote
+     * (como mucho el tamaño máximo de lote; el resto sale en la siguiente tarea del carril).
+     * Se ejecuta en el carril del consumidor.
+     * @param consumidor Consumidor destino
+     */
+    private void enviarLote(EstadoConsumidor consumidor) {
+        int loteMaximo = DeliveryScheduler.getInstance().getLoteMaximo();
+        List<Message> sobres;
+        long[] publicados; // Instantes de publicación, para la latencia de entrega
+        boolean quedan;
+        synchronized (consumidor.lote) {
+            if (consumidor.lote.isEmpty()) return;
+            // Si se desuscribió mientras tanto, los mensajes ya volvieron a la cola
+            if (!consumidor.activo) {
+                consumidor.lote.clear();
+                return;
             }
             
-            // Enviar mensaje al consumidor en un hilo separado
-            new Thread(() -> {
-                try {
-                    int consumerNum = currentConsumerIndex;
-                    // Enviar ID junto con el mensaje para ACK
-                    String mensajeConId = mensaje.id + "||" + mensaje.contenido;
-                    consumer.onMessage(mensajeConId);
-                    System.out.println("Message delivered to consumer #" + consumerNum + 
-                                     " using distribution " + (fairDispatch ? "fair" : "round robin") + ".");
-                } catch (RemoteException e) {
-                    System.err.println("Error notifying the consumer: " + e.getMessage());
-                    
-                    // Remover consumidor si no está disponible
-                    try {
-                        consumidores.remove(consumer);
-                        System.out.println("Consumer removed due to communication error.");
-                    } catch (Exception ex) {
-                        // Ignorar errores al remover
-                    }
-                    
-                    // Si hay error, intentar con otro consumidor o guardar de nuevo
-                    if (!consumidores.isEmpty()) {
-                        // Intenta con el siguiente consumidor
-                        enviarMensajeAConsumidor(mensaje);
-                    } else {
-                        // Devolver a la cola
-                        mensajesNoConfirmados.remove(mensaje.id);
-                        mensaje.entregado = false;
-                        mensajes.add(mensaje);
-                        System.out.println("Message returned to the queue because no consumers are available.");
-                    }
-                }
-            }).start();
+            List<MensajeTimestamp> enviados = consumidor.lote.subList(0, Math.min(loteMaximo, consumidor.lote.size()));
+            sobres = new ArrayList<>(enviados.size());
+            publicados = new long[enviados.size()];
+            for (MensajeTimestamp mensaje : enviados) {
+                publicados[sobres.size()] = mensaje.entregas == 1 ? mensaje.publicadoNanos : 0;
+                sobres.add(crearSobre(mensaje));
+            }
+            enviados.clear();
+            quedan = !consumidor.lote.isEmpty();
+        }
+        if (quedan) {
+            consumidor.carril.enviar(() -> enviarLote(consumidor));
+        }
+        
+        try {
+            ((ConsumerBatchCallback) consumidor.callback).onMessages(sobres);
+            MetricsRegistry.MetricasCola metricasCola = metricas();
+            long ahora = System.nanoTime();
+            for (long publicadoNanos : publicados) {
+                metricasCola.entregado(publicadoNanos, ahora);
+            }
+            BrokerEventBus.getInstance().loteEntregado(nombre, consumidores.indexOf(consumidor), 
+                                                       sobres.size(), consumidor.ventana());
+        } catch (RemoteException e) {
+            System.err.println("Error notifying the consumer: " + e.getMessage());
+            perderConsumidor(consumidor);
+        }
+    }
+    
+    /**
+     * Crea el sobre con el que se entrega un mensaje. El contenido ya codificado se
+     * comparte entre todas las entregas del mensaje.
+     * @param mensaje Mensaje a entregar
+     * @return Sobre del mensaje
+     */
+    private Message crearSobre(MensajeTimestamp mensaje) {
+        int flags = (mensaje.durable ? Message.DURABLE : 0) | (mensaje.entregas > 1 ? Message.REENTREGADO : 0);
+        return new Message(mensaje.idTexto(), nombre, flags, mensaje.timestamp.toEpochMilli(),
+                           mensaje.expira() ? mensaje.vencimiento : 0, mensaje.entregas,
+                           mensaje.cabeceras, mensaje.bytes());
+    }
+    
+    /**
+     * Devuelve al consumidor que lo tenía la unidad de crédito de un mensaje.
+     * Requiere el cerrojo de la cola.
+     */
+    private void devolverCredito(MensajeTimestamp mensaje) {
+        EstadoConsumidor consumidor = mensaje.consumidor;
+        if (consumidor != null) {
+            consumidor.enVuelo--;
+            mensaje.consumidor = null;
+            consumidor.purgarEntregas();
         }
     }
     
@@ -212,26 +704,145 @@ public class MessageQueue implements Serializable {
      * @return true si el mensaje fue confirmado
      */
     public boolean confirmarMensaje(String mensajeId, ConsumerCallback consumidor) {
-        MensajeTimestamp mensaje = mensajesNoConfirmados.remove(mensajeId);
-        if (mensaje != null) {
-            mensaje.acked = true;
-            System.out.println("Message " + mensajeId + " acknowledged (ACK) by consumer.");
-            
-            // En fair dispatch, solo avanzamos round robin cuando hay ACK
-            if (fairDispatch) {
-                synchronized(this) {
-                    currentConsumerIndex = (currentConsumerIndex + 1) % consumidores.size();
+        MensajeTimestamp mensaje;
+        synchronized (this) {
+            mensaje = mensajesNoConfirmados.remove(parsearSecuencia(mensajeId));
+            if (mensaje == null) return false;
+            marcarConfirmado(mensaje);
+            devolverCredito(mensaje);
+        }
+        metricas().confirmado(mensaje.entregadoNanos, System.nanoTime());
+        BrokerEventBus.getInstance().confirmado(nombre, mensajeId, 1);
+        
+        // Si es durable, registrar el ACK en el journal
+        if (mensaje.durable && this.durable) {
+            journal.registrarConfirmacion(mensaje.idTexto(), mensaje.segmento);
+            liberarContenido(mensaje);
+        }
+        
+        // El crédito devuelto permite entregar el siguiente mensaje
+        despachar();
+        return true;
+    }
+    
+    /**
+     * Confirma varios mensajes como una sola transición de estado: un único paso por el
+     * cerrojo de la cola, un único registro en el journal y un único despacho
+     * @param mensajeIds Identificadores de los mensajes
+     * @param consumidor Consumidor que confirma
+     * @return Número de mensajes confirmados
+     */
+    public int confirmarMensajes(List<String> mensajeIds, ConsumerCallback consumidor) {
+        List<MensajeTimestamp> confirmados = new ArrayList<>(mensajeIds.size());
+        synchronized (this) {
+            for (String mensajeId : mensajeIds) {
+                MensajeTimestamp mensaje = mensajesNoConfirmados.remove(parsearSecuencia(mensajeId));
+                if (mensaje != null) {
+                    marcarConfirmado(mensaje);
+                    devolverCredito(mensaje);
+                    confirmados.add(mensaje);
                 }
             }
+        }
+        return finalizarConfirmaciones(confirmados);
+    }
+    
+    /**
+     * Confirma de forma acumulativa todos los mensajes entregados al mismo consumidor
+     * hasta el indicado, inclusive (según el orden de entrega)
+     * @param mensajeId Identificador del último mensaje a confirmar
+     * @param consumidor Consumidor que confirma
+     * @return Número de mensajes confirmados
+     */
+    public int confirmarHasta(String mensajeId, ConsumerCallback consumidor) {
+        List<MensajeTimestamp> confirmados = new ArrayList<>();
+        synchronized (this) {
+            MensajeTimestamp limite = mensajesNoConfirmados.get(parsearSecuencia(mensajeId));
+            if (limite == null || limite.consumidor == null) return 0;
             
-            // Si es durable, actualizar estado persistente
-            if (mensaje.durable && this.durable) {
-                persistirMensajes();
-            }
+            EstadoConsumidor estado = limite.consumidor;
+            if (consumidor != null && !estado.callback.equals(consumidor)) return 0;
             
-            return true;
+            while (!estado.entregas.isEmpty() && estado.entregas.peekFirst().etiqueta <= limite.etiqueta) {
+                Entrega entrega = estado.entregas.pollFirst();
+                if (!entrega.pendiente(estado)) continue;
+                
+                MensajeTimestamp mensaje = entrega.mensaje;
+                mensajesNoConfirmados.remove(mensaje.secuencia);
+                marcarConfirmado(mensaje);
+                mensaje.consumidor = null;
+                estado.enVuelo--;
+                confirmados.add(mensaje);
+            }
+            estado.purgarEntregas();
+        }
+        return finalizarConfirmaciones(confirmados);
+    }
+    
+    /**
+     * Registra en el journal un lote de mensajes ya confirmados y reanuda el despacho
+     * @param confirmados Mensajes confirmados
+     * @return Número de mensajes confirmados
+     */
+    private int finalizarConfirmaciones(List<MensajeTimestamp> confirmados) {
+        if (confirmados.isEmpty()) return 0;
+        MetricsRegistry.MetricasCola metricasCola = metricas();
+        long ahora = System.nanoTime();
+        for (MensajeTimestamp mensaje : confirmados) {
+            metricasCola.confirmado(mensaje.entregadoNanos, ahora);
+        }
+        BrokerEventBus.getInstance().confirmado(nombre, null, confirmados.size());
+        
+        if (this.durable) {
+            List<String> ids = new ArrayList<>(confirmados.size());
+            long[] segmentos = new long[confirmados.size()];
+            for (MensajeTimestamp mensaje : confirmados) {
+                if (mensaje.durable) {
+                    segmentos[ids.size()] = mensaje.segmento;
+                    ids.add(mensaje.idTexto());
+                }
+            }
+            journal.registrarConfirmaciones(ids, Arrays.copyOf(segmentos, ids.size()));
+            for (MensajeTimestamp mensaje : confirmados) {
+                liberarContenido(mensaje);
+            }
+        }
+        
+        despachar();
+        return confirmados.size();
+    }
+    
+    /**
+     * Rechaza varios mensajes devolviéndolos a la cola en una sola transición de estado
+     * @param mensajeIds Identificadores de los mensajes
+     * @param consumidor Consumidor que rechaza
+     * @return Número de mensajes rechazados
+     */
+    public int rechazarMensajes(List<String> mensajeIds, ConsumerCallback consumidor) {
+        int rechazados = 0;
+        List<String> rechazadosDurables = new ArrayList<>();
+        synchronized (this) {
+            for (String mensajeId : mensajeIds) {
+                MensajeTimestamp mensaje = mensajesNoConfirmados.remove(parsearSecuencia(mensajeId));
+                if (mensaje != null) {
+                    devolverCredito(mensaje);
+                    devolverACola(mensaje);
+                    rechazados++;
+                    if (mensaje.durable && this.durable) {
+                        rechazadosDurables.add(mensaje.idTexto());
+                    }
+                }
+            }
+            if (this.durable) {
+                journal.registrarRechazos(rechazadosDurables);
+            }
         }
-        return false;
+        if (rechazados == 0) return 0;
+        metricas().devueltos(rechazados);
+        BrokerEventBus.getInstance().devuelto(nombre, null, rechazados);
+        
+        despachar();
+        return rechazados;
     }
     
     /**
@@ -241,39 +852,52 @@ public class MessageQueue implements Serializable {
      * @return true si el mensaje fue rechazado y devuelto a la cola
      */
     public boolean rechazarMensaje(String mensajeId, ConsumerCallback consumidor) {
-        MensajeTimestamp mensaje = mensajesNoConfirmados.remove(mensajeId);
-        if (mensaje != null) {
-            mensaje.entregado = false;
-            mensajes.add(mensaje);
-            System.out.println("Message " + mensajeId + " rejected (NACK) by consumer and returned to the queue.");
-            
-            // En fair dispatch, avanzamos aún con NACK para evitar bloqueos
-            if (fairDispatch) {
-                synchronized(this) {
-                    currentConsumerIndex = (currentConsumerIndex + 1) % consumidores.size();
-                }
+        synchronized (this) {
+            MensajeTimestamp mensaje = mensajesNoConfirmados.remove(parsearSecuencia(mensajeId));
+            if (mensaje == null) return false;
+            devolverCredito(mensaje);
+            devolverACola(mensaje);
+            if (mensaje.durable && this.durable) {
+                journal.registrarRechazo(mensaje.idTexto());
             }
-            
-            return true;
         }
-        return false;
+        metricas().devueltos(1);
+        BrokerEventBus.getInstance().devuelto(nombre, mensajeId, 1);
+        
+        despachar();
+        return true;
     }
     
     /**
-     * Registra un consumidor para recibir mensajes
+     * Registra un consumidor para recibir mensajes con la ventana de prefetch de la cola
      * @param callback Función de procesamiento de mensajes
      */
     public void registrarConsumidor(ConsumerCallback callback) {
-        consumidores.add(callback);
-        int totalConsumidores = consumidores.size();
+        registrarConsumidor(callback, -1);
+    }
+    
+    /**
+     * Registra un consumidor para recibir mensajes
+     * @param callback Función de procesamiento de mensajes
+     * @param prefetch Máximo de mensajes sin confirmar que puede tener (0 = ilimitado,
+     *                 negativo = usar la ventana de la cola según fair dispatch)
+     */
+    public void registrarConsumidor(ConsumerCallback callback, int prefetch) {
+        EstadoConsumidor estado = new EstadoConsumidor(callback, prefetch);
+        int totalConsumidores;
+        synchronized (this) {
+            consumidores.add(estado);
+            totalConsumidores = consumidores.size();
+        }
         System.out.println("New consumer registered in the queue '" + nombre + 
                          "'. Total consumers: " + totalConsumidores);
         System.out.println("Messages will be distributed using " + 
                          (fairDispatch ? "fair dispatch" : "round robin") + 
-                         " among " + totalConsumidores + " consumers.");
+                         " among " + totalConsumidores + " consumers (prefetch: " + 
+                         describirVentana(estado.ventana()) + ").");
         
         // Intentar procesar mensajes pendientes inmediatamente
-        procesarMensajesPendientes();
+        despachar();
     }
     
     /**
@@ -282,166 +906,434 @@ public class MessageQueue implements Serializable {
      * @return true si se desuscribió correctamente
      */
     public boolean desuscribirConsumidor(ConsumerCallback callback) {
-        boolean removed = consumidores.remove(callback);
+        EstadoConsumidor estado = null;
+        for (EstadoConsumidor consumidor : consumidores) {
+            if (consumidor.callback.equals(callback)) {
+                estado = consumidor;
+                break;
+            }
+        }
+        
+        boolean removed = estado != null && eliminarConsumidor(estado);
         if (removed) {
-            int totalConsumidores = consumidores.size();
             System.out.println("Consumer unsubscribed from the queue '" + nombre + 
-                             "'. Total consumers: " + totalConsumidores);
-            
-            // Ajustar el índice si es necesario
-            synchronized (this) {
-                if (currentConsumerIndex >= consumidores.size() && consumidores.size() > 0) {
-                    currentConsumerIndex = 0;
-                }
-            }
+                             "'. Total consumers: " + consumidores.size());
         }
         return removed;
     }
     
     /**
-     * Procesa los mensajes pendientes en la cola
+     * Quita un consumidor que no está disponible (sus mensajes vuelven a la cola) y avisa
+     * al oyente de la cola, si lo tiene
+     * @param consumidor Consumidor que ha fallado
      */
-    private void procesarMensajesPendientes() {
-        // Procesar mientras haya mensajes y consumidores
-        while (!mensajes.isEmpty() && !consumidores.isEmpty()) {
-            MensajeTimestamp mensaje = mensajes.poll();
-            if (mensaje == null) break;
-            
-            if (mensaje.estaExpirado()) {
-                System.out.println("Expired message discarded: " + mensaje.contenido);
-                continue;
+    private void perderConsumidor(EstadoConsumidor consumidor) {
+        if (eliminarConsumidor(consumidor)) {
+            System.out.println("Consumer removed due to communication error.");
+            java.util.function.Consumer<ConsumerCallback> oyente = alPerderConsumidor;
+            if (oyente != null) {
+                oyente.accept(consumidor.callback);
             }
-            
-            // Enviar mensaje a un consumidor usando round robin
-            enviarMensajeAConsumidor(mensaje);
         }
     }
     
     /**
-     * Elimina mensajes expirados de la cola
+     * Cambia la ventana de prefetch de un consumidor suscrito. La usa la cola particionada
+     * para repartir la ventana de un consumidor entre las particiones que tiene asignadas.
+     * Si la ventana se reduce por debajo de lo que ya tiene en vuelo, no recibe más
+     * mensajes hasta confirmar los que sobran.
+     * @param callback Consumidor
+     * @param prefetch Nueva ventana (0 = ilimitada; -1 = la de la cola)
      */
-    public void eliminarMensajesExpirados() {
-        int contadorEliminados = 0;
-        ConcurrentLinkedQueue<MensajeTimestamp> mensajesValidos = new ConcurrentLinkedQueue<>();
-        
-        for (MensajeTimestamp mensaje : mensajes) {
-            if (!mensaje.estaExpirado()) {
-                mensajesValidos.add(mensaje);
-                System.out.println("Message pending in the queue. '" + nombre + 
-                                 "'. Time remaining: " + mensaje.tiempoRestante() + " seconds.");
-            } else {
-                contadorEliminados++;
-                System.out.println("Expired message removed from the queue. '" + nombre + "': " + mensaje.contenido);
-            }
-        }
-        
-        // Reemplazar la cola con solo los mensajes válidos
-        mensajes.clear();
-        mensajes.addAll(mensajesValidos);
-        
-        if (contadorEliminados > 0) {
-            System.out.println("They were deleted " + contadorEliminados + " expired messages from the queue '" + nombre + "'.");
-            
-            // Si es durable, persistir cambios después de limpieza
-            if (this.durable) {
-                persistirMensajes();
+    void cambiarPrefetch(ConsumerCallback callback, int prefetch) {
+        synchronized (this) {
+            for (EstadoConsumidor consumidor : consumidores) {
+                if (consumidor.callback.equals(callback)) {
+                    consumidor.prefetch = prefetch;
+                }
             }
         }
+        despachar();
     }
     
     /**
-     * Persiste los mensajes durables en disco
+     * Fija el aviso que recibe la cola particionada cuando la partición quita un
+     * consumidor que ha dejado de responder
      */
-    private void persistirMensajes() {
-        if (!durable) return;
-        
-        String filename = "queue_" + nombre + ".dat";
-        try (FileOutputStream fos = new FileOutputStream(filename);
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
+    void setAlPerderConsumidor(java.util.function.Consumer<ConsumerCallback> oyente) {
+        this.alPerderConsumidor = oyente;
+    }
+    
+    /**
+     * Quita un consumidor y devuelve a la cola los mensajes que tenía sin confirmar,
+     * para que los reciban los demás consumidores
+     * @param estado Consumidor a quitar
+     * @return true si el consumidor estaba registrado
+     */
+    private boolean eliminarConsumidor(EstadoConsumidor estado) {
+        synchronized (this) {
+            if (!consumidores.remove(estado)) return false;
+            estado.activo = false;
             
-            // Guardar solo los mensajes durables que no han sido acked
-            ConcurrentLinkedQueue<MensajeTimestamp> mensajesDurables = new ConcurrentLinkedQueue<>();
-            for (MensajeTimestamp msg : mensajes) {
-                if (msg.durable && !msg.acked) {
-                    mensajesDurables.add(msg);
+            // Sus entregas pendientes, en orden de entrega
+            for (Entrega entrega : new ArrayList<>(estado.entregas)) {
+                if (!entrega.pendiente(estado)) continue;
+                MensajeTimestamp mensaje = entrega.mensaje;
+                mensajesNoConfirmados.remove(mensaje.secuencia);
+                devolverCredito(mensaje);
+                devolverACola(mensaje);
+                if (mensaje.durable && this.durable) {
+                    journal.registrarRechazo(mensaje.idTexto());
                 }
             }
             
-            // También guardar los mensajes no confirmados
-            for (MensajeTimestamp msg : mensajesNoConfirmados.values()) {
-                if (msg.durable && !msg.acked) {
-                    mensajesDurables.add(msg);
-                }
+            // Ajustar el índice si es necesario
+            if (currentConsumerIndex >= consumidores.size()) {
+                currentConsumerIndex = 0;
+            }
+        }
+        
+        despachar();
+        return true;
+    }
+    
+    /**
+     * Describe cuándo se eliminará un mensaje que nadie consume
+     * @param ttlMs Tiempo de vida en milisegundos (0 = no expira)
+     * @param sujeto Sujeto de la frase ("It" o "They")
+     */
+    static String describirCaducidad(long ttlMs, String sujeto) {
+        if (ttlMs <= 0) {
+            return sujeto + " will be kept until consumed.";
+        }
+        return sujeto + " will be deleted in " + describirTtl(ttlMs) + " if there is no consumer.";
+    }
+    
+    /**
+     * Describe un TTL en la unidad más legible
+     * @param ttlMs Tiempo de vida en milisegundos (0 = no expira)
+     */
+    public static String describirTtl(long ttlMs) {
+        if (ttlMs <= 0) return "never expires";
+        if (ttlMs % 60_000 == 0) return (ttlMs / 60_000) + " min";
+        if (ttlMs % 1_000 == 0) return (ttlMs / 1_000) + " s";
+        return ttlMs + " ms";
+    }
+    
+    static String describirVentana(int ventana) {
+        return ventana == 0 ? "unlimited" : String.valueOf(ventana);
+    }
+    
+    /**
+     * Métricas de la cola en el registro del broker
+     */
+    private MetricsRegistry.MetricasCola metricas() {
+        if (metricas == null) {
+            metricas = MetricsRegistry.getInstance().cola(nombre);
+        }
+        return metricas;
+    }
+    
+    /**
+     * Añade un mensaje nuevo al final de la cola y programa su expiración en la rueda
+     * de temporización
+     * @param mensaje Mensaje a encolar
+     */
+    private void encolar(MensajeTimestamp mensaje) {
+        if (mensaje.expira()) {
+            mensaje.temporizador = TimingWheel.getInstance().programar(mensaje.vencimiento, () -> expirar(mensaje));
+        }
+        mensajesEnCola.incrementAndGet();
+        mensajes.add(mensaje);
+    }
+    
+    /**
+     * Devuelve a la cabeza de la cola un mensaje entregado sin ACK, en su posición según
+     * la secuencia, de modo que se vuelve a entregar antes que los publicados después
+     * (en una partición, antes que los siguientes de su misma clave). Si venció mientras
+     * estaba en vuelo (su temporizador ya saltó sin efecto), expira en ese momento.
+     * Requiere el cerrojo de la cola.
+     * @param mensaje Mensaje a devolver
+     */
+    private void devolverACola(MensajeTimestamp mensaje) {
+        mensaje.entregado = false;
+        if (mensaje.estaExpirado()) {
+            marcarExpirado(mensaje);
+            BrokerEventBus.getInstance().expirado(nombre, mensaje.contenido);
+            registrarExpiracion(mensaje);
+            return;
+        }
+        mensajesEnCola.incrementAndGet();
+        devueltos.add(mensaje);
+    }
+    
+    /**
+     * Marca un mensaje como confirmado y cancela su expiración. Requiere el cerrojo de la cola.
+     */
+    private void marcarConfirmado(MensajeTimestamp mensaje) {
+        mensaje.acked = true;
+        cancelarExpiracion(mensaje);
+    }
+    
+    /**
+     * Marca un mensaje como expirado y cancela su temporizador si aún no saltó.
+     * Requiere el cerrojo de la cola.
+     */
+    private void marcarExpirado(MensajeTimestamp mensaje) {
+        mensaje.expirado = true;
+        mensajesExpirados.incrementAndGet();
+        cancelarExpiracion(mensaje);
+    }
+    
+    /**
+     * Cancela la expiración programada de un mensaje. Requiere el cerrojo de la cola.
+     */
+    private void cancelarExpiracion(MensajeTimestamp mensaje) {
+        if (mensaje.temporizador != null) {
+            mensaje.temporizador.cancelar();
+            mensaje.temporizador = null;
+        }
+    }
+    
+    /**
+     * Acción de la rueda de temporización al vencer un mensaje. Solo expiran los mensajes
+     * que esperan en la cola: uno en vuelo se comprueba de nuevo si vuelve a ella. El
+     * mensaje no se busca en la cola; queda marcado y se retira al llegar a la cabeza o,
+     * si antes los marcados superan a los vivos, en un barrido de toda la cola. Así el
+     * coste amortizado sigue siendo proporcional a los mensajes expirados y la memoria
+     * de los expirados no queda retenida detrás de un mensaje de TTL largo.
+     * @param mensaje Mensaje vencido
+     */
+    private void expirar(MensajeTimestamp mensaje) {
+        synchronized (this) {
+            mensaje.temporizador = null;
+            if (eliminada || mensaje.expirado || mensaje.acked || mensaje.entregado) return;
+            mensaje.expirado = true;
+            mensajesExpirados.incrementAndGet();
+            mensajesEnCola.decrementAndGet();
+            // Los devueltos son pocos (acotados por las ventanas): se retira directamente
+            if (devueltos.isEmpty() || !devueltos.remove(mensaje)) {
+                expiradosEnCola++;
             }
             
-            oos.writeObject(mensajesDurables);
-            System.out.println("Persisted " + mensajesDurables.size() + 
-                             " durable messages for the queue '" + nombre + "'");
-        } catch (Exception e) {
-            System.err.println("Error persisting messages: " + e.getMessage());
+            // Retirar los expirados que hayan quedado en la cabeza
+            MensajeTimestamp cabeza;
+            while ((cabeza = mensajes.peek()) != null && cabeza.expirado) {
+                mensajes.poll();
+                if (expiradosEnCola > 0) expiradosEnCola--;
+            }
+            // Si hay más expirados que vivos detrás de la cabeza, barrer la cola entera
+            if (expiradosEnCola > mensajesEnCola.get()) {
+                mensajes.removeIf(m -> m.expirado);
+                expiradosEnCola = 0;
+            }
         }
+        BrokerEventBus.getInstance().expirado(nombre, mensaje.contenido);
+        registrarExpiracion(mensaje);
     }
     
     /**
-     * Recupera mensajes durables de disco
+     * Registra en el journal la expiración de un mensaje durable
+     * @param mensaje Mensaje expirado
+     */
+    private void registrarExpiracion(MensajeTimestamp mensaje) {
+        if (mensaje.durable && this.durable) {
+            journal.registrarExpiracion(mensaje.idTexto(), mensaje.segmento);
+            liberarContenido(mensaje);
+        }
+    }
+    
+    /**
+     * Suelta la referencia de un mensaje a su contenido en el PayloadStore, una vez que
+     * su confirmación o expiración ya está en el journal
+     * @param mensaje Mensaje que sale de la cola
+     */
+    private void liberarContenido(MensajeTimestamp mensaje) {
+        SharedPayload compartido = mensaje.compartido;
+        if (compartido != null) {
+            mensaje.compartido = null;
+            compartido.liberar();
+        }
+    }
+    
+    /**
+     * Recupera mensajes durables de disco reproduciendo los segmentos del journal
      */
-    @SuppressWarnings("unchecked")
     private void recuperarMensajesPersistentes() {
-        String filename = "queue_" + nombre + ".dat";
-        File file = new File(filename);
+        // Estado reconstruido: publicados que no tienen ACK ni expiración posterior
+        Map<String, MensajeTimestamp> recuperados = new LinkedHashMap<>();
         
-        if (!file.exists()) {
-            System.out.println("There are no persistence files for the queue '" + nombre + "'");
-            return;
+        journal.reproducir(registro -> {
+            switch (registro.tipo) {
+                case MessageJournal.PUBLICAR:
+                    long secuencia = parsearSecuencia(registro.id);
+                    SharedPayload compartido = null;
+                    if (registro.referencia != 0) {
+                        // Contenido guardado una sola vez en el PayloadStore
+                        compartido = PayloadStore.getInstance().recuperar(registro.referencia);
+                        if (compartido == null) {
+                            System.err.println("Error recovering message " + registro.id + " of the queue '" + nombre + 
+                                             "': shared payload " + registro.referencia + " not found");
+                            break;
+                        }
+                    }
+                    MensajeTimestamp msg = new MensajeTimestamp(secuencia, 
+                            compartido != null ? compartido.getTexto() : registro.contenido,
+                            Instant.ofEpochMilli(registro.timestamp), true, ttlMs);
+                    if (compartido != null) {
+                        msg.bytes = compartido.getBytes();
+                        msg.compartido = compartido;
+                    }
+                    if (secuencia == 0) {
+                        // Registro con identificador UUID de versiones anteriores
+                        msg.id = registro.id;
+                    }
+                    // Los registros antiguos no guardan el vencimiento: se usa el TTL de la cola
+                    if (registro.vencimiento >= 0) {
+                        msg.vencimiento = registro.vencimiento;
+                    }
+                    if (!registro.cabeceras.isEmpty()) {
+                        msg.cabeceras = new LinkedHashMap<>(registro.cabeceras);
+                    }
+                    msg.segmento = registro.segmento;
+                    recuperados.put(registro.id, msg);
+                    break;
+                case MessageJournal.CONFIRMAR:
+                case MessageJournal.EXPIRAR:
+                    recuperados.remove(registro.id);
+                    break;
+                default:
+                    // ENTREGAR/RECHAZAR: los mensajes entregados sin ACK se vuelven a entregar
+                    break;
+            }
+        });
+        
+        migrarSnapshotLegacy(recuperados);
+        
+        // Continuar la secuencia por encima del último identificador recuperado
+        long ultimaRecuperada = 0;
+        for (MensajeTimestamp msg : recuperados.values()) {
+            ultimaRecuperada = Math.max(ultimaRecuperada, msg.secuencia);
+        }
+        ultimaSecuencia.set(inicioSecuencia(ultimaRecuperada) + restoSecuencia);
+        
+        // Agregar los mensajes recuperados a la cola
+        int count = 0;
+        int renumerados = 0;
+        for (MensajeTimestamp msg : recuperados.values()) {
+            // Los mensajes vivos retienen su contenido compartido (los expirados lo sueltan ya)
+            if (msg.compartido != null) {
+                msg.compartido.retener();
+            }
+            if (msg.estaExpirado()) {
+                registrarExpiracion(msg);
+                continue;
+            }
+            if (msg.secuencia == 0) {
+                renumerar(msg);
+                renumerados++;
+            }
+            encolar(msg);
+            count++;
         }
         
-        try (FileInputStream fis = new FileInputStream(filename);
+        System.out.println("Retrieved " + count + " durable messages for the queue '" + nombre + 
+                         "' (journal segments: " + journal.contarSegmentos() + ")");
+        if (renumerados > 0) {
+            System.out.println(renumerados + " messages with UUID identifiers renumbered in the queue '" + nombre + "'");
+        }
+    }
+    
+    /**
+     * Asigna un identificador de secuencia a un mensaje recuperado con identificador UUID:
+     * registra su publicación con el identificador nuevo y da por confirmada la anterior
+     * @param msg Mensaje recuperado
+     */
+    private void renumerar(MensajeTimestamp msg) {
+        String idAnterior = msg.id;
+        long segmentoAnterior = msg.segmento;
+        
+        msg.secuencia = siguienteSecuencia();
+        msg.id = null;
+        msg.segmento = journal.registrarPublicacion(msg.idTexto(), msg.bytes(), 
+                msg.timestamp.toEpochMilli(), msg.vencimiento, msg.cabeceras);
+        journal.registrarConfirmacion(idAnterior, segmentoAnterior);
+    }
+    
+    /**
+     * Importa al journal el snapshot completo del formato anterior (queue_NOMBRE.dat), si existe
+     * @param recuperados Mapa donde se añaden los mensajes importados
+     */
+    @SuppressWarnings("unchecked")
+    private void migrarSnapshotLegacy(Map<String, MensajeTimestamp> recuperados) {
+        File file = journal.ficheroLegacy();
+        if (!file.exists()) return;
+        
+        try (FileInputStream fis = new FileInputStream(file);
              ObjectInputStream ois = new ObjectInputStream(fis)) {
             
-            ConcurrentLinkedQueue<MensajeTimestamp> mensajesRecuperados = 
+            ConcurrentLinkedQueue<MensajeTimestamp> mensajesLegacy = 
                 (ConcurrentLinkedQueue<MensajeTimestamp>) ois.readObject();
             
-            // Agregar los mensajes recuperados a la cola
-            int count = 0;
-            for (MensajeTimestamp msg : mensajesRecuperados) {
-                if (!msg.estaExpirado()) {
-                    mensajes.add(msg);
-                    count++;
+            for (MensajeTimestamp msg : mensajesLegacy) {
+                if (!recuperados.containsKey(msg.id)) {
+                    msg.entregado = false;
+                    // El formato anterior no guardaba el vencimiento
+                    msg.vencimiento = calcularVencimiento(msg.timestamp.toEpochMilli(), ttlMs);
+                    msg.segmento = journal.registrarPublicacion(msg.id, msg.bytes(), 
+                            msg.timestamp.toEpochMilli(), msg.vencimiento, null);
+                    recuperados.put(msg.id, msg);
                 }
             }
-            
-            System.out.println("Retrieved " + count + " durable messages for the queue '" + nombre + "'");
+            System.out.println("Migrated " + mensajesLegacy.size() + " messages from " + file.getName() + " to the journal");
         } catch (Exception e) {
-            System.err.println("Error retrieving persistent messages: " + e.getMessage());
+            System.err.println("Error migrating legacy persistence file: " + e.getMessage());
+            return;
         }
+        
+        file.delete();
     }
     
     /**
      * Elimina la cola y sus recursos asociados
      */
     public void eliminar() {
-        // Limpiar mensajes y consumidores
-        mensajes.clear();
-        mensajesNoConfirmados.clear();
+        // Limpiar mensajes y consumidores, cancelando sus expiraciones pendientes
+        synchronized (this) {
+            eliminada = true;
+            for (MensajeTimestamp mensaje : mensajes) {
+                cancelarExpiracion(mensaje);
+                liberarContenido(mensaje);
+            }
+            for (MensajeTimestamp mensaje : devueltos) {
+                cancelarExpiracion(mensaje);
+                liberarContenido(mensaje);
+            }
+            for (MensajeTimestamp mensaje : mensajesNoConfirmados.valores()) {
+                cancelarExpiracion(mensaje);
+                liberarContenido(mensaje);
+            }
+            mensajes.clear();
+            devueltos.clear();
+            mensajesEnCola.set(0);
+            expiradosEnCola = 0;
+            mensajesNoConfirmados.clear();
+        }
         
         // Notificar a los consumidores que la cola se está eliminando
-        for (ConsumerCallback consumer : consumidores) {
+        for (EstadoConsumidor consumer : consumidores) {
+            consumer.activo = false;
             try {
-                consumer.onMessage("SYSTEM||The queue '" + nombre + "' has been deleted.");
+                consumer.callback.onMessage(Message.sistema(nombre, "The queue '" + nombre + "' has been deleted."));
             } catch (RemoteException e) {
                 // Ignorar errores al notificar
             }
         }
         consumidores.clear();
         
-        // Eliminar archivo de persistencia si existe
+        // Eliminar los segmentos del journal
         if (durable) {
-            String filename = "queue_" + nombre + ".dat";
-            File file = new File(filename);
-            if (file.exists()) {
-                file.delete();
-                System.out.println("Persistence file deleted for the queue '" + nombre + "'");
-            }
+            journal.eliminar();
         }
         
         System.out.println("Queue '" + nombre + "' deleted successfully.");
@@ -452,7 +1344,34 @@ public class MessageQueue implements Serializable {
      * @return Número de mensajes
      */
     public int contarMensajes() {
-        return mensajes.size() + mensajesNoConfirmados.size();
+        // El mapa de no confirmados no es seguro entre hilos: se consulta bajo el cerrojo de la cola
+        synchronized (this) {
+            return mensajesEnCola.get() + mensajesNoConfirmados.size();
+        }
+    }
+    
+    /**
+     * Retorna el número de mensajes expirados en la cola desde el arranque
+     * @return Número de mensajes expirados
+     */
+    public long contarExpirados() {
+        return mensajesExpirados.get();
+    }
+    
+    /**
+     * Retorna el número de entregas encoladas en los carriles de los consumidores
+     * que aún no se han completado
+     * @return Número de entregas pendientes
+     */
+    public int contarEntregasPendientes() {
+        int total = 0;
+        for (EstadoConsumidor consumidor : consumidores) {
+            total += consumidor.carril.contarPendientes();
+            synchronized (consumidor.lote) {
+                total += consumidor.lote.size();
+            }
+        }
+        return total;
     }
     
     /**
@@ -0,0 +1,525 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro de métricas del broker: contadores por cola y por agente e histogramas de
+ * latencia (publicación → entrega, entrega → ACK y evaluación de los agentes).
+ * Los contadores son LongAdder y los histogramas LatencyHistogram, así que registrar
+ * una métrica no toma cerrojos. Se consulta por RMI (MessageBroker.getMetricas) y en
+ * formato de texto de Prometheus desde el endpoint HTTP local del broker.
+ */
+public class MetricsRegistry {
+    private static MetricsRegistry instance;
+    // Límites de los cubos exportados a Prometheus: de 2^10 ns (~1 us) a 2^35 ns (~34 s)
+    private static final int EXPONENTE_MINIMO = 10;
+    private static final int EXPONENTE_MAXIMO = 35;
+
+    /**
+     * Métricas de una cola
+     */
+    public static class MetricasCola {
+        final LongAdder publicados = new LongAdder();
+        final LongAdder rechazados = new LongAdder();   // Rechazados por los agentes
+        final LongAdder entregados = new LongAdder();
+        final LongAdder confirmados = new LongAdder();
+        final LongAdder devueltos = new LongAdder();    // NACK
+        final LatencyHistogram latenciaEntrega = new LatencyHistogram();      // Publicación → entrega
+        final LatencyHistogram latenciaConfirmacion = new LatencyHistogram(); // Entrega → ACK
+
+        public void publicados(int mensajes) {
+            publicados.add(mensajes);
+        }
+
+        public void rechazado() {
+            rechazados.increment();
+        }
+
+        /**
+         * Entrega completada al consumidor
+         * @param publicadoNanos Instante de publicación (System.nanoTime) o 0 si no se conoce
+         */
+        public void entregado(long publicadoNanos, long ahoraNanos) {
+            entregados.increment();
+            if (publicadoNanos != 0) {
+                latenciaEntrega.registrar(ahoraNanos - publicadoNanos);
+            }
+        }
+
+        /**
+         * ACK de un mensaje
+         * @param entregadoNanos Instante de la entrega (System.nanoTime) o 0 si no se conoce
+         */
+        public void confirmado(long entregadoNanos, long ahoraNanos) {
+            confirmados.increment();
+            if (entregadoNanos != 0) {
+                latenciaConfirmacion.registrar(ahoraNanos - entregadoNanos);
+            }
+        }
+
+        public void devueltos(int mensajes) {
+            devueltos.add(mensajes);
+        }
+    }
+
+    /**
+     * Métricas de un agente de filtrado
+     */
+    public static class MetricasAgente {
+        final LongAdder evaluaciones = new LongAdder();
+        final LongAdder rechazos = new LongAdder();
+        final LongAdder errores = new LongAdder();
+        final LongAdder limitesSuperados = new LongAdder();
+        final LongAdder disparos = new LongAdder();
+        final LongAdder omitidos = new LongAdder();
+        final LatencyHistogram latencia = new LatencyHistogram();
+        // Estado del cortacircuitos: 0 cerrado, 1 abierto, 2 semiabierto
+        volatile int estadoCircuito;
+
+        /**
+         * Registra una evaluación del agente
+         * @param nanos Duración de la evaluación
+         * @param aceptado Resultado del agente
+         */
+        public void evaluado(long nanos, boolean aceptado) {
+            evaluaciones.increment();
+            if (!aceptado) rechazos.increment();
+            latencia.registrar(nanos);
+        }
+
+        public void error(long nanos) {
+            evaluaciones.increment();
+            errores.increment();
+            latencia.registrar(nanos);
+        }
+
+        /**
+         * Registra una evaluación abandonada por superar el límite de tiempo del agente
+         * @param nanos Tiempo esperado hasta abandonarla
+         */
+        public void limiteSuperado(long nanos) {
+            evaluaciones.increment();
+            limitesSuperados.increment();
+            latencia.registrar(nanos);
+        }
+
+        public void circuitoAbierto() {
+            disparos.increment();
+        }
+
+        /**
+         * Registra un mensaje que no ha evaluado el agente porque su circuito está abierto
+         */
+        public void omitido() {
+            omitidos.increment();
+        }
+
+        public void estadoCircuito(int estado) {
+            estadoCircuito = estado;
+        }
+    }
+
+    /**
+     * Métricas de la caché de veredictos de los agentes
+     */
+    public static class MetricasCache {
+        final LongAdder aciertos = new LongAdder();
+        final LongAdder fallos = new LongAdder();
+        final LongAdder desalojos = new LongAdder();
+        final LongAdder invalidaciones = new LongAdder();
+        final LongAdder entradas = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        public void acierto() {
+            aciertos.increment();
+        }
+
+        public void fallo() {
+            fallos.increment();
+        }
+
+        public void desalojo() {
+            desalojos.increment();
+        }
+
+        public void invalidacion() {
+            invalidaciones.increment();
+        }
+
+        /**
+         * Ajusta la ocupación de la caché
+         * @param entradas Variación del número de entradas
+         * @param bytes Variación de la memoria estimada
+         */
+        public void ocupacion(long entradas, long bytes) {
+            this.entradas.add(entradas);
+            this.bytes.add(bytes);
+        }
+
+        /**
+         * Porcentaje de búsquedas que encontraron el veredicto
+         */
+        public double tasaAciertos() {
+            long a = aciertos.sum();
+            long total = a + fallos.sum();
+            return total == 0 ? 0 : 100.0 * a / total;
+        }
+    }
+
+    /**
+     * Métricas de un exchange: publicaciones que los agentes rechazan antes de enrutarlas
+     * (los rechazos de las reglas de una cola destino cuentan en esa cola)
+     */
+    public static class MetricasExchange {
+        final LongAdder rechazados = new LongAdder();
+
+        public void rechazado() {
+            rechazados.increment();
+        }
+    }
+
+    /**
+     * Métricas de la publicación asíncrona (búfer de admisión y confirmaciones)
+     */
+    public static class MetricasAdmision {
+        final LongAdder admitidos = new LongAdder();
+        final LongAdder llenos = new LongAdder();       // Rechazados por búfer lleno
+        final LongAdder pendientes = new LongAdder();   // Admitidos aún sin filtrar
+        final LongAdder aceptados = new LongAdder();
+        final LongAdder rechazados = new LongAdder();
+        final LongAdder confirmacionesFallidas = new LongAdder();
+
+        public void admitido() {
+            admitidos.increment();
+            pendientes.increment();
+        }
+
+        public void lleno() {
+            llenos.increment();
+        }
+
+        public void procesado(boolean aceptado) {
+            pendientes.decrement();
+            (aceptado ? aceptados : rechazados).increment();
+        }
+
+        public void confirmacionesFallidas(int confirmaciones) {
+            confirmacionesFallidas.add(confirmaciones);
+        }
+    }
+
+    private final ConcurrentMap<String, MetricasCola> colas = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MetricasAgente> agentes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MetricasExchange> exchanges = new ConcurrentHashMap<>();
+    private final LatencyHistogram evaluacion = new LatencyHistogram(); // Cadena completa de agentes
+    private final MetricasCache cacheVeredictos = new MetricasCache();
+    private final MetricasAdmision admision = new MetricasAdmision();
+    private final long inicioMs = System.currentTimeMillis();
+
+    /**
+     * Obtiene la instancia compartida por el broker (patrón Singleton)
+     */
+    public static synchronized MetricsRegistry getInstance() {
+        if (instance == null) {
+            instance = new MetricsRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Métricas de una cola (se crean la primera vez)
+     * @param nombreCola Nombre de la cola
+     */
+    public MetricasCola cola(String nombreCola) {
+        return colas.computeIfAbsent(nombreCola, nombre -> new MetricasCola());
+    }
+
+    /**
+     * Olvida las métricas de una cola eliminada
+     * @param nombreCola Nombre de la cola
+     */
+    public void eliminarCola(String nombreCola) {
+        colas.remove(nombreCola);
+    }
+
+    /**
+     * Métricas de un exchange (se crean la primera vez)
+     * @param nombreExchange Nombre del exchange
+     */
+    public MetricasExchange exchange(String nombreExchange) {
+        return exchanges.computeIfAbsent(nombreExchange, nombre -> new MetricasExchange());
+    }
+
+    /**
+     * Olvida las métricas de un exchange eliminado
+     * @param nombreExchange Nombre del exchange
+     */
+    public void eliminarExchange(String nombreExchange) {
+        exchanges.remove(nombreExchange);
+    }
+
+    /**
+     * Métricas de un agente (se crean la primera vez)
+     * @param nombreAgente Nombre del agente
+     */
+    public MetricasAgente agente(String nombreAgente) {
+        return agentes.computeIfAbsent(nombreAgente, nombre -> new MetricasAgente());
+    }
+
+    /**
+     * Métricas de la caché de veredictos de los agentes
+     */
+    public MetricasCache cacheVeredictos() {
+        return cacheVeredictos;
+    }
+
+    /**
+     * Métricas de la publicación asíncrona
+     */
+    public MetricasAdmision admision() {
+        return admision;
+    }
+
+    /**
+     * Registra la duración de la evaluación completa de un mensaje por los agentes
+     * @param nanos Duración en nanosegundos
+     */
+    public void evaluacionCompleta(long nanos) {
+        evaluacion.registrar(nanos);
+    }
+
+    /**
+     * Informe legible de todas las métricas
+     * @param colasBroker Colas del broker, para los valores instantáneos (mensajes, consumidores)
+     * @return Informe formateado
+     */
+    public String describir(Collection<MessageQueue> colasBroker) {
+        long segundos = Math.max(1, (System.currentTimeMillis() - inicioMs) / 1000);
+        StringBuilder info = new StringBuilder();
+        info.append("Uptime: ").append(segundos).append(" s\n");
+        for (MessageQueue cola : ordenar(colasBroker)) {
+            MetricasCola m = cola(cola.getNombre());
+            long publicados = m.publicados.sum();
+            info.append("\nQueue: ").append(cola.getNombre()).append("\n");
+            info.append("   Published: ").append(publicados)
+                .append(String.format(" (%.2f msg/s)", publicados / (double) segundos))
+                .append(", rejected by agents: ").append(m.rechazados.sum()).append("\n");
+            info.append("   Delivered: ").append(m.entregados.sum())
+                .append(", acknowledged: ").append(m.confirmados.sum())
+                .append(", rejected (NACK): ").append(m.devueltos.sum())
+                .append(", expired: ").append(cola.contarExpirados()).append("\n");
+            info.append("   Messages: ").append(cola.contarMensajes())
+                .append(", pending deliveries: ").append(cola.contarEntregasPendientes())
+                .append(", consumers: ").append(cola.contarConsumidores()).append("\n");
+            info.append("   Publish -> deliver: ").append(m.latenciaEntrega.describir()).append("\n");
+            info.append("   Deliver -> ack: ").append(m.latenciaConfirmacion.describir()).append("\n");
+        }
+        for (Map.Entry<String, MetricasExchange> entrada : new TreeMap<>(exchanges).entrySet()) {
+            info.append("\nExchange: ").append(entrada.getKey()).append("\n");
+            info.append("   Rejected by agents: ").append(entrada.getValue().rechazados.sum()).append("\n");
+        }
+        info.append("\nAgent evaluation: ").append(evaluacion.describir()).append("\n");
+        for (Map.Entry<String, MetricasAgente> entrada : new TreeMap<>(agentes).entrySet()) {
+            MetricasAgente m = entrada.getValue();
+            info.append("   ").append(entrada.getKey()).append(": ")
+                .append(m.evaluaciones.sum()).append(" evaluations, ")
+                .append(m.rechazos.sum()).append(" rejections, ")
+                .append(m.errores.sum()).append(" errors, ")
+                .append(m.limitesSuperados.sum()).append(" timeouts, ")
+                .append(m.disparos.sum()).append(" circuit trips, ")
+                .append(m.omitidos.sum()).append(" bypassed")
+                .append(m.estadoCircuito == 1 ? " (circuit OPEN)" : m.estadoCircuito == 2 ? " (circuit HALF-OPEN)" : "")
+                .append("; ")
+                .append(m.latencia.describir()).append("\n");
+        }
+        MetricasCache c = cacheVeredictos;
+        info.append("\nVerdict cache: ").append(c.aciertos.sum()).append(" hits, ")
+            .append(c.fallos.sum()).append(" misses")
+            .append(String.format(" (%.1f %% hit rate)", c.tasaAciertos()))
+            .append(", ").append(c.entradas.sum()).append(" entries (")
+            .append(c.bytes.sum() / 1024).append(" KB), ")
+            .append(c.desalojos.sum()).append(" evictions, ")
+            .append(c.invalidaciones.sum()).append(" invalidations\n");
+        info.append("\nAsync publish: ").append(admision.admitidos.sum()).append(" admitted, ")
+            .append(admision.llenos.sum()).append(" refused (intake full), ")
+            .append(admision.pendientes.sum()).append(" pending, ")
+            .append(admision.aceptados.sum()).append(" accepted, ")
+            .append(admision.rechazados.sum()).append(" rejected, ")
+            .append(admision.confirmacionesFallidas.sum()).append(" confirms lost\n");
+        info.append("\nEvents dropped (event buffer full): ")
+            .append(BrokerEventBus.getInstance().contarDescartados()).append("\n");
+        return info.toString();
+    }
+
+    /**
+     * Exporta las métricas en el formato de texto de Prometheus (versión 0.0.4)
+     * @param colasBroker Colas del broker, para los valores instantáneos
+     * @return Texto de exposición
+     */
+    public String exportarPrometheus(Collection<MessageQueue> colasBroker) {
+        List<MessageQueue> ordenadas = ordenar(colasBroker);
+        StringBuilder s = new StringBuilder(4096);
+
+        cabecera(s, "mom_messages_published_total", "counter", "Messages published to the queue");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_messages_published_total", "queue", cola.getNombre(), cola(cola.getNombre()).publicados.sum());
+        }
+        cabecera(s, "mom_messages_rejected_total", "counter", "Messages rejected by the agents");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_messages_rejected_total", "queue", cola.getNombre(), cola(cola.getNombre()).rechazados.sum());
+        }
+        cabecera(s, "mom_exchange_messages_rejected_total", "counter", "Exchange publications rejected by the agents before routing");
+        for (Map.Entry<String, MetricasExchange> entrada : new TreeMap<>(exchanges).entrySet()) {
+            muestra(s, "mom_exchange_messages_rejected_total", "exchange", entrada.getKey(), entrada.getValue().rechazados.sum());
+        }
+        cabecera(s, "mom_messages_delivered_total", "counter", "Messages delivered to consumers");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_messages_delivered_total", "queue", cola.getNombre(), cola(cola.getNombre()).entregados.sum());
+        }
+        cabecera(s, "mom_messages_acked_total", "counter", "Messages acknowledged by consumers");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_messages_acked_total", "queue", cola.getNombre(), cola(cola.getNombre()).confirmados.sum());
+        }
+        cabecera(s, "mom_messages_nacked_total", "counter", "Messages rejected by consumers and returned to the queue");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_messages_nacked_total", "queue", cola.getNombre(), cola(cola.getNombre()).devueltos.sum());
+        }
+        cabecera(s, "mom_messages_expired_total", "counter", "Messages expired since the broker started");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_messages_expired_total", "queue", cola.getNombre(), cola.contarExpirados());
+        }
+        cabecera(s, "mom_queue_messages", "gauge", "Messages waiting in the queue");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_queue_messages", "queue", cola.getNombre(), cola.contarMensajes());
+        }
+        cabecera(s, "mom_queue_pending_deliveries", "gauge", "Deliveries queued for the consumers");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_queue_pending_deliveries", "queue", cola.getNombre(), cola.contarEntregasPendientes());
+        }
+        cabecera(s, "mom_queue_consumers", "gauge", "Consumers subscribed to the queue");
+        for (MessageQueue cola : ordenadas) {
+            muestra(s, "mom_queue_consumers", "queue", cola.getNombre(), cola.contarConsumidores());
+        }
+        cabecera(s, "mom_delivery_latency_seconds", "histogram", "Time from publication to delivery to a consumer");
+        for (MessageQueue cola : ordenadas) {
+            histograma(s, "mom_delivery_latency_seconds", "queue", cola.getNombre(), cola(cola.getNombre()).latenciaEntrega);
+        }
+        cabecera(s, "mom_ack_latency_seconds", "histogram", "Time from delivery to acknowledgement");
+        for (MessageQueue cola : ordenadas) {
+            histograma(s, "mom_ack_latency_seconds", "queue", cola.getNombre(), cola(cola.getNombre()).latenciaConfirmacion);
+        }
+
+        Map<String, MetricasAgente> porAgente = new TreeMap<>(agentes);
+        cabecera(s, "mom_agent_evaluations_total", "counter", "Messages evaluated by the agent");
+        for (Map.Entry<String, MetricasAgente> e : porAgente.entrySet()) {
+            muestra(s, "mom_agent_evaluations_total", "agent", e.getKey(), e.getValue().evaluaciones.sum());
+        }
+        cabecera(s, "mom_agent_rejections_total", "counter", "Messages rejected by the agent");
+        for (Map.Entry<String, MetricasAgente> e : porAgente.entrySet()) {
+            muestra(s, "mom_agent_rejections_total", "agent", e.getKey(), e.getValue().rechazos.sum());
+        }
+        cabecera(s, "mom_agent_errors_total", "counter", "Agent evaluations that failed with an exception");
+        for (Map.Entry<String, MetricasAgente> e : porAgente.entrySet()) {
+            muestra(s, "mom_agent_errors_total", "agent", e.getKey(), e.getValue().errores.sum());
+        }
+        cabecera(s, "mom_agent_timeouts_total", "counter", "Agent evaluations abandoned after exceeding the agent time limit");
+        for (Map.Entry<String, MetricasAgente> e : porAgente.entrySet()) {
+            muestra(s, "mom_agent_timeouts_total", "agent", e.getKey(), e.getValue().limitesSuperados.sum());
+        }
+        cabecera(s, "mom_agent_circuit_trips_total", "counter", "Times the agent circuit breaker has opened");
+        for (Map.Entry<String, MetricasAgente> e : porAgente.entrySet()) {
+            muestra(s, "mom_agent_circuit_trips_total", "agent", e.getKey(), e.getValue().disparos.sum());
+        }
+        cabecera(s, "mom_agent_bypassed_total", "counter", "Messages not evaluated by the agent because its circuit was open");
+        for (Map.Entry<String, MetricasAgente> e : porAgente.entrySet()) {
+            muestra(s, "mom_agent_bypassed_total", "agent", e.getKey(), e.getValue().omitidos.sum());
+        }
+        cabecera(s, "mom_agent_circuit_state", "gauge", "Agent circuit breaker state: 0 closed, 1 open, 2 half-open");
+        for (Map.Entry<String, MetricasAgente> e : porAgente.entrySet()) {
+            muestra(s, "mom_agent_circuit_state", "agent", e.getKey(), e.getValue().estadoCircuito);
+        }
+        cabecera(s, "mom_agent_latency_seconds", "histogram", "Time spent by the agent evaluating a message");
+        for (Map.Entry<String, MetricasAgente> e : porAgente.entrySet()) {
+            histograma(s, "mom_agent_latency_seconds", "agent", e.getKey(), e.getValue().latencia);
+        }
+        cabecera(s, "mom_agent_chain_latency_seconds", "histogram", "Time spent evaluating a message with all the agents");
+        histograma(s, "mom_agent_chain_latency_seconds", null, null, evaluacion);
+
+        cabecera(s, "mom_verdict_cache_hits_total", "counter", "Agent evaluations answered by the verdict cache");
+        muestra(s, "mom_verdict_cache_hits_total", null, null, cacheVeredictos.aciertos.sum());
+        cabecera(s, "mom_verdict_cache_misses_total", "counter", "Verdict cache lookups that had to run the agents");
+        muestra(s, "mom_verdict_cache_misses_total", null, null, cacheVeredictos.fallos.sum());
+        cabecera(s, "mom_verdict_cache_evictions_total", "counter", "Verdicts evicted to keep the cache within its memory limit");
+        muestra(s, "mom_verdict_cache_evictions_total", null, null, cacheVeredictos.desalojos.sum());
+        cabecera(s, "mom_verdict_cache_invalidations_total", "counter", "Times the cache was emptied because the agent pipeline changed");
+        muestra(s, "mom_verdict_cache_invalidations_total", null, null, cacheVeredictos.invalidaciones.sum());
+        cabecera(s, "mom_verdict_cache_entries", "gauge", "Verdicts held in the cache");
+        muestra(s, "mom_verdict_cache_entries", null, null, cacheVeredictos.entradas.sum());
+        cabecera(s, "mom_verdict_cache_bytes", "gauge", "Estimated memory used by the verdict cache");
+        muestra(s, "mom_verdict_cache_bytes", null, null, cacheVeredictos.bytes.sum());
+
+        cabecera(s, "mom_async_publish_admitted_total", "counter", "Async publications admitted into the intake buffer");
+        muestra(s, "mom_async_publish_admitted_total", null, null, admision.admitidos.sum());
+        cabecera(s, "mom_async_publish_refused_total", "counter", "Async publications refused because the intake buffer was full");
+        muestra(s, "mom_async_publish_refused_total", null, null, admision.llenos.sum());
+        cabecera(s, "mom_async_publish_pending", "gauge", "Async publications waiting for the filter workers");
+        muestra(s, "mom_async_publish_pending", null, null, admision.pendientes.sum());
+        cabecera(s, "mom_async_publish_rejected_total", "counter", "Async publications confirmed as rejected");
+        muestra(s, "mom_async_publish_rejected_total", null, null, admision.rechazados.sum());
+        cabecera(s, "mom_async_confirms_lost_total", "counter", "Publish confirms dropped because the producer was unreachable");
+        muestra(s, "mom_async_confirms_lost_total", null, null, admision.confirmacionesFallidas.sum());
+
+        cabecera(s, "mom_events_dropped_total", "counter", "Broker events dropped because the event buffer was full");
+        muestra(s, "mom_events_dropped_total", null, null, BrokerEventBus.getInstance().contarDescartados());
+        return s.toString();
+    }
+
+    private static List<MessageQueue> ordenar(Collection<MessageQueue> colasBroker) {
+        List<MessageQueue> ordenadas = new ArrayList<>(colasBroker);
+        ordenadas.sort((c1, c2) -> c1.getNombre().compareTo(c2.getNombre()));
+        return ordenadas;
+    }
+
+    private static void cabecera(StringBuilder s, String metrica, String tipo, String ayuda) {
+        s.append("# HELP ").append(metrica).append(' ').append(ayuda).append('\n');
+        s.append("# TYPE ").append(metrica).append(' ').append(tipo).append('\n');
+    }
+
+    private static void muestra(StringBuilder s, String metrica, String etiqueta, String valorEtiqueta, long valor) {
+        s.append(metrica);
+        if (etiqueta != null) {
+            s.append('{').append(etiqueta).append("=\"").append(escapar(valorEtiqueta)).append("\"}");
+        }
+        s.append(' ').append(valor).append('\n');
+    }
+
+    /**
+     * Exporta un histograma con cubos acumulados en potencias de 2 de nanosegundos
+     */
+    private static void histograma(StringBuilder s, String metrica, String etiqueta, String valorEtiqueta,
+                                   LatencyHistogram histograma) {
+        String etiquetas = etiqueta != null ? etiqueta + "=\"" + escapar(valorEtiqueta) + "\"," : "";
+        long[] cubos = histograma.copiarCubos();
+        long total = 0;
+        for (long c : cubos) total += c;
+
+        for (int exponente = EXPONENTE_MINIMO; exponente <= EXPONENTE_MAXIMO; exponente++) {
+            s.append(metrica).append("_bucket{").append(etiquetas).append("le=\"")
+             .append((1L << exponente) / 1e9).append("\"} ")
+             .append(LatencyHistogram.contarHasta(exponente, cubos)).append('\n');
+        }
+        s.append(metrica).append("_bucket{").append(etiquetas).append("le=\"+Inf\"} ").append(total).append('\n');
+        String sinComa = etiquetas.isEmpty() ? "" : "{" + etiquetas.substring(0, etiquetas.length() - 1) + "}";
+        s.append(metrica).append("_sum").append(sinComa).append(' ').append(histograma.sumar() / 1e9).append('\n');
+        s.append(metrica).append("_count").append(sinComa).append(' ').append(total).append('\n');
+    }
+
+    private static String escapar(String valor) {
+        return valor.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,12 @@
+/**
+ * Modos de durabilidad del journal de una cola durable.
+ * Determinan cuándo se considera persistida una publicación o un ACK.
+ */
+public enum ModoDurabilidad {
+    // Se entrega al sistema operativo sin sincronizar con el disco
+    NINGUNA,
+    // Group commit: los registros concurrentes se sincronizan juntos con un único force
+    AGRUPADA,
+    // Cada registro se sincroniza con el disco antes de responder
+    POR_MENSAJE
+}
@@ -0,0 +1,491 @@
+import java.rmi.RemoteException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cola particionada: reparte sus mensajes entre N colas (particiones) independientes, cada
+ * una con su propio cerrojo de despacho, su journal y sus consumidores, de modo que una cola
+ * muy cargada puede despachar en varios núcleos a la vez.
+ *
+ * Los mensajes con clave de enrutamiento van siempre a la misma partición (hash de la
+ * clave), y cada partición tiene un único consumidor, así que los mensajes de una misma
+ * clave se entregan en orden. Los mensajes sin clave se reparten en round robin.
+ *
+ * Las particiones se asignan a los consumidores suscritos (la partición i al consumidor
+ * i mod C) y se reasignan cuando un consumidor entra, sale o deja de responder; si hay
+ * más consumidores que particiones, los sobrantes quedan a la espera. Al reasignar, los
+ * mensajes sin confirmar del propietario anterior vuelven a la cabeza de la partición en
+ * su orden de publicación, así que el nuevo propietario los recibe antes que los
+ * siguientes de su misma clave.
+ *
+ * La ventana de prefetch de un consumidor es para toda la cola: se reparte entre las
+ * particiones que tiene asignadas (al menos 1 por partición), así que no acumula más
+ * mensajes sin confirmar que los que pidió salvo que tenga más particiones que ventana.
+ */
+public class PartitionedQueue implements BrokerQueue {
+    // Separador entre el nombre de la cola y el índice de la partición (cola#3)
+    static final char SEPARADOR = '#';
+    // Fichero con el número de particiones de una cola durable
+    private static final String PREFIJO = "queue_";
+    private static final String EXTENSION = ".particiones";
+
+    // Consumidor suscrito a la cola lógica
+    private static class Suscripcion {
+        final ConsumerCallback callback;
+        final int prefetch;
+
+        Suscripcion(ConsumerCallback callback, int prefetch) {
+            this.callback = callback;
+            this.prefetch = prefetch;
+        }
+    }
+
+    private final String nombre;
+    private final boolean durable;
+    private final MessageQueue[] particiones;
+    private final List<MessageQueue> listaParticiones;
+    // Siguiente partición de los mensajes sin clave
+    private final AtomicInteger siguiente = new AtomicInteger();
+    // Consumidores en orden de suscripción y propietario de cada partición (protegidos por this)
+    private final List<Suscripcion> suscripciones = new ArrayList<>();
+    private final Suscripcion[] propietarios;
+    // Parte de la ventana del propietario asignada a cada partición (protegido por this)
+    private final int[] ventanas;
+
+    /**
+     * Constructor
+     * @param nombre Nombre de la cola
+     * @param durable Si la cola debe persistir
+     * @param ttlMs Tiempo de vida de los mensajes en milisegundos (0 = no expiran)
+     * @param numParticiones Número de particiones (entre 2 y MessageQueue.MAXIMO_PARTICIONES)
+     */
+    public PartitionedQueue(String nombre, boolean durable, long ttlMs, int numParticiones) {
+        if (numParticiones < 2 || numParticiones > MessageQueue.MAXIMO_PARTICIONES) {
+            throw new IllegalArgumentException("Partitions must be between 2 and " + MessageQueue.MAXIMO_PARTICIONES);
+        }
+        if (nombre.indexOf(SEPARADOR) >= 0) {
+            throw new IllegalArgumentException("Partitioned queue names cannot contain '" + SEPARADOR + "'");
+        }
+        this.nombre = nombre;
+        this.durable = durable;
+        this.particiones = new MessageQueue[numParticiones];
+        this.propietarios = new Suscripcion[numParticiones];
+        this.ventanas = new int[numParticiones];
+        for (int i = 0; i < numParticiones; i++) {
+            particiones[i] = new MessageQueue(nombreParticion(nombre, i), durable, ttlMs, i);
+            particiones[i].setAlPerderConsumidor(this::consumidorPerdido);
+        }
+        this.listaParticiones = Collections.unmodifiableList(Arrays.asList(particiones));
+
+        if (durable) {
+            guardarNumParticiones();
+        }
+    }
+
+    /**
+     * Nombre de una partición
+     * @param nombreCola Nombre de la cola particionada
+     * @param indice Índice de la partición
+     */
+    static String nombreParticion(String nombreCola, int indice) {
+        return nombreCola + SEPARADOR + indice;
+    }
+
+    /**
+     * Obtiene la cola particionada a la que pertenece una partición
+     * @param nombreParticion Nombre de la partición (cola#3)
+     * @return Nombre de la cola particionada, o null si no es un nombre de partición
+     */
+    static String colaDeParticion(String nombreParticion) {
+        int separador = nombreParticion.lastIndexOf(SEPARADOR);
+        return separador > 0 && indiceDeParticion(nombreParticion) >= 0 ? nombreParticion.substring(0, separador) : null;
+    }
+
+    /**
+     * Obtiene el índice de una partición a partir de su nombre
+     * @param nombreParticion Nombre de la partición (cola#3)
+     * @return Índice, o -1 si no es un nombre de partición
+     */
+    static int indiceDeParticion(String nombreParticion) {
+        int separador = nombreParticion.lastIndexOf(SEPARADOR);
+        if (separador <= 0 || separador == nombreParticion.length() - 1) return -1;
+        try {
+            int indice = Integer.parseInt(nombreParticion.substring(separador + 1));
+            return indice >= 0 && indice < MessageQueue.MAXIMO_PARTICIONES ? indice : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Lee el número de particiones guardado de una cola durable
+     * @param nombreCola Nombre de la cola particionada
+     * @return Número de particiones, o 0 si no hay fichero o no es válido
+     */
+    static int leerNumParticiones(String nombreCola) {
+        File fichero = ficheroParticiones(nombreCola);
+        if (!fichero.exists()) return 0;
+        try {
+            int n = Integer.parseInt(new String(Files.readAllBytes(fichero.toPath()), StandardCharsets.UTF_8).trim());
+            return n >= 2 && n <= MessageQueue.MAXIMO_PARTICIONES ? n : 0;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error reading partitions of queue '" + nombreCola + "': " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Obtiene el nombre de la cola a partir del fichero con su número de particiones
+     * @param nombreFichero Nombre del fichero
+     * @return Nombre de la cola particionada, o null si no es un fichero de particiones
+     */
+    static String colaDeFichero(String nombreFichero) {
+        if (!nombreFichero.startsWith(PREFIJO) || !nombreFichero.endsWith(EXTENSION)) return null;
+        String nombreCola = nombreFichero.substring(PREFIJO.length(), nombreFichero.length() - EXTENSION.length());
+        return nombreCola.isEmpty() ? null : nombreCola;
+    }
+
+    private static File ficheroParticiones(String nombreCola) {
+        return new File(PREFIJO + nombreCola + EXTENSION);
+    }
+
+    private void guardarNumParticiones() {
+        try {
+            Files.write(ficheroParticiones(nombre).toPath(),
+                        Integer.toString(particiones.length).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Error saving partitions of queue '" + nombre + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Partición de una clave de enrutamiento (mezcla los bits altos del hash, como HashMap)
+     */
+    private MessageQueue particionDeClave(String clave) {
+        if (clave == null) {
+            return particiones[Math.floorMod(siguiente.getAndIncrement(), particiones.length)];
+        }
+        int h = clave.hashCode();
+        return particiones[Math.floorMod(h ^ (h >>> 16), particiones.length)];
+    }
+
+    /**
+     * Partición que generó un identificador de mensaje, para enrutar ACK y NACK
+     * @return Partición, o null si el identificador no es de esta cola
+     */
+    private MessageQueue particionDeMensaje(String mensajeId) {
+        int indice = MessageQueue.particionDeMensaje(mensajeId);
+        return indice >= 0 && indice < particiones.length ? particiones[indice] : null;
+    }
+
+    /**
+     * Agrupa identificadores de mensaje por partición
+     */
+    private List<List<String>> agruparPorParticion(List<String> mensajeIds) {
+        List<List<String>> grupos = new ArrayList<>(particiones.length);
+        for (int i = 0; i < particiones.length; i++) grupos.add(null);
+        for (String mensajeId : mensajeIds) {
+            int indice = MessageQueue.particionDeMensaje(mensajeId);
+            if (indice < 0 || indice >= particiones.length) continue;
+            if (grupos.get(indice) == null) grupos.set(indice, new ArrayList<>());
+            grupos.get(indice).add(mensajeId);
+        }
+        return grupos;
+    }
+
+    @Override
+    public String getNombre() {
+        return nombre;
+    }
+
+    @Override
+    public boolean esDurable() {
+        return durable;
+    }
+
+    @Override
+    public long getTtl() {
+        return particiones[0].getTtl();
+    }
+
+    @Override
+    public void setTtl(long ttlMs) {
+        for (MessageQueue particion : particiones) particion.setTtl(ttlMs);
+    }
+
+    @Override
+    public ModoDurabilidad getModoDurabilidad() {
+        return particiones[0].getModoDurabilidad();
+    }
+
+    /**
+     * Número de particiones de la cola
+     */
+    public int contarParticiones() {
+        return particiones.length;
+    }
+
+    @Override
+    public List<MessageQueue> getParticiones() {
+        return listaParticiones;
+    }
+
+    @Override
+    public void publicar(String mensaje, boolean durable, long ttlMs, Map<String, String> cabeceras) {
+        publicar(null, mensaje, durable, ttlMs, cabeceras);
+    }
+
+    @Override
+    public void publicar(String clave, String mensaje, boolean durable, long ttlMs, Map<String, String> cabeceras) {
+        particionDeClave(clave).publicar(mensaje, durable, ttlMs, cabeceras);
+    }
+
+    @Override
+    public void publicarCompartido(String clave, SharedPayload contenido, boolean durable, long ttlMs,
+                                   Map<String, String> cabeceras) {
+        particionDeClave(clave).publicarCompartido(clave, contenido, durable, ttlMs, cabeceras);
+    }
+
+    /**
+     * Publica un lote de mensajes sin clave repartiéndolo en round robin entre las
+     * particiones (un solo paso por el cerrojo de cada partición)
+     */
+    @Override
+    public void publicarLote(List<String> lote, boolean durable) {
+        if (lote.isEmpty()) return;
+        int n = particiones.length;
+        int inicio = siguiente.getAndAdd(lote.size());
+        List<List<String>> porParticion = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) porParticion.add(new ArrayList<>(lote.size() / n + 1));
+        for (int i = 0; i < lote.size(); i++) {
+            porParticion.get(Math.floorMod(inicio + i, n)).add(lote.get(i));
+        }
+        for (int i = 0; i < n; i++) {
+            if (!porParticion.get(i).isEmpty()) particiones[i].publicarLote(porParticion.get(i), durable);
+        }
+    }
+
+    @Override
+    public void registrarConsumidor(ConsumerCallback callback) {
+        registrarConsumidor(callback, -1);
+    }
+
+    @Override
+    public void registrarConsumidor(ConsumerCallback callback, int prefetch) {
+        synchronized (this) {
+            suscripciones.add(new Suscripcion(callback, prefetch));
+            reasignar();
+        }
+    }
+
+    @Override
+    public boolean desuscribirConsumidor(ConsumerCallback callback) {
+        synchronized (this) {
+            if (!quitarSuscripcion(callback)) return false;
+            reasignar();
+        }
+        System.out.println("Consumer unsubscribed from the partitioned queue '" + nombre +
+                         "'. Total consumers: " + contarConsumidores());
+        return true;
+    }
+
+    /**
+     * Aviso de una partición que ha quitado un consumidor que no responde: deja de
+     * contar en la cola y sus particiones pasan a los demás
+     */
+    private void consumidorPerdido(ConsumerCallback callback) {
+        synchronized (this) {
+            if (quitarSuscripcion(callback)) {
+                reasignar();
+            }
+        }
+    }
+
+    private boolean quitarSuscripcion(ConsumerCallback callback) {
+        for (int i = 0; i < suscripciones.size(); i++) {
+            if (suscripciones.get(i).callback.equals(callback)) {
+                suscripciones.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asigna la partición i al consumidor i mod C. Solo cambian las particiones cuyo
+     * propietario es otro: el anterior se desuscribe antes (sus mensajes sin confirmar
+     * vuelven a la cabeza de la partición) para que nunca haya dos consumidores en la
+     * misma partición. La ventana de cada consumidor se reparte entre sus particiones;
+     * si cambia el número de particiones de un consumidor, se ajusta en las que conserva.
+     */
+    private void reasignar() {
+        int consumidores = suscripciones.size();
+        int asignadas = 0;
+        for (int i = 0; i < particiones.length; i++) {
+            Suscripcion nuevo = consumidores > 0 ? suscripciones.get(i % consumidores) : null;
+            Suscripcion anterior = propietarios[i];
+            int ventana = 0;
+            if (nuevo != null) {
+                asignadas++;
+                // El consumidor s tiene las particiones s, s + C, s + 2C...; esta es la i / C-ésima
+                int suyas = particiones.length / consumidores + (i % consumidores < particiones.length % consumidores ? 1 : 0);
+                ventana = repartirVentana(nuevo.prefetch, suyas, i / consumidores);
+            }
+            if (nuevo == anterior) {
+                if (nuevo != null && ventanas[i] != ventana) {
+                    particiones[i].cambiarPrefetch(nuevo.callback, ventana);
+                    ventanas[i] = ventana;
+                }
+                continue;
+            }
+
+            if (anterior != null) {
+                particiones[i].desuscribirConsumidor(anterior.callback);
+            }
+            propietarios[i] = nuevo;
+            ventanas[i] = ventana;
+            if (nuevo != null) {
+                particiones[i].registrarConsumidor(nuevo.callback, ventana);
+            }
+        }
+        System.out.println("Partitioned queue '" + nombre + "': " + asignadas + " of " + particiones.length +
+                         " partitions assigned to " + consumidores + " consumers" +
+                         (consumidores > particiones.length ? " (" + (consumidores - particiones.length) + " idle)" : ""));
+    }
+
+    /**
+     * Parte de una ventana de prefetch que corresponde a una de las particiones de un
+     * consumidor: el reparto es lo más igualado posible y nunca baja de 1
+     * @param prefetch Ventana del consumidor (0 = ilimitada; -1 = la de la cola, no se reparte)
+     * @param suyas Particiones asignadas al consumidor
+     * @param orden Posición de la partición entre las suyas
+     */
+    static int repartirVentana(int prefetch, int suyas, int orden) {
+        if (prefetch <= 0) return prefetch;
+        return Math.max(1, prefetch / suyas + (orden < prefetch % suyas ? 1 : 0));
+    }
+
+    @Override
+    public void setFairDispatch(boolean fairDispatch) {
+        for (MessageQueue particion : particiones) particion.setFairDispatch(fairDispatch);
+    }
+
+    @Override
+    public void setModoDurabilidad(ModoDurabilidad modo) {
+        for (MessageQueue particion : particiones) particion.setModoDurabilidad(modo);
+    }
+
+    @Override
+    public void configurarGroupCommit(long latenciaMaximaMicros, int loteMaximo) {
+        for (MessageQueue particion : particiones) particion.configurarGroupCommit(latenciaMaximaMicros, loteMaximo);
+    }
+
+    @Override
+    public boolean confirmarMensaje(String mensajeId, ConsumerCallback consumidor) {
+        MessageQueue particion = particionDeMensaje(mensajeId);
+        return particion != null && particion.confirmarMensaje(mensajeId, consumidor);
+    }
+
+    @Override
+    public int confirmarMensajes(List<String> mensajeIds, ConsumerCallback consumidor) {
+        List<List<String>> grupos = agruparPorParticion(mensajeIds);
+        int total = 0;
+        for (int i = 0; i < particiones.length; i++) {
+            if (grupos.get(i) != null) total += particiones[i].confirmarMensajes(grupos.get(i), consumidor);
+        }
+        return total;
+    }
+
+    /**
+     * Confirma de forma acumulativa dentro de la partición del mensaje indicado: el orden
+     * de entrega solo existe dentro de cada partición
+     */
+    @Override
+    public int confirmarHasta(String mensajeId, ConsumerCallback consumidor) {
+        MessageQueue particion = particionDeMensaje(mensajeId);
+        return particion != null ? particion.confirmarHasta(mensajeId, consumidor) : 0;
+    }
+
+    @Override
+    public boolean rechazarMensaje(String mensajeId, ConsumerCallback consumidor) {
+        MessageQueue particion = particionDeMensaje(mensajeId);
+        return particion != null && particion.rechazarMensaje(mensajeId, consumidor);
+    }
+
+    @Override
+    public int rechazarMensajes(List<String> mensajeIds, ConsumerCallback consumidor) {
+        List<List<String>> grupos = agruparPorParticion(mensajeIds);
+        int total = 0;
+        for (int i = 0; i < particiones.length; i++) {
+            if (grupos.get(i) != null) total += particiones[i].rechazarMensajes(grupos.get(i), consumidor);
+        }
+        return total;
+    }
+
+    @Override
+    public int contarMensajes() {
+        int total = 0;
+        for (MessageQueue particion : particiones) total += particion.contarMensajes();
+        return total;
+    }
+
+    @Override
+    public long contarExpirados() {
+        long total = 0;
+        for (MessageQueue particion : particiones) total += particion.contarExpirados();
+        return total;
+    }
+
+    @Override
+    public int contarEntregasPendientes() {
+        int total = 0;
+        for (MessageQueue particion : particiones) total += particion.contarEntregasPendientes();
+        return total;
+    }
+
+    @Override
+    public synchronized int contarConsumidores() {
+        return suscripciones.size();
+    }
+
+    /**
+     * Elimina todas las particiones con sus journals y avisa una sola vez a cada
+     * consumidor con el nombre de la cola
+     */
+    @Override
+    public void eliminar() {
+        List<Suscripcion> avisar;
+        synchronized (this) {
+            avisar = new ArrayList<>(suscripciones);
+            suscripciones.clear();
+            for (int i = 0; i < particiones.length; i++) {
+                if (propietarios[i] != null) {
+                    particiones[i].desuscribirConsumidor(propietarios[i].callback);
+                    propietarios[i] = null;
+                }
+            }
+        }
+        for (MessageQueue particion : particiones) {
+            particion.eliminar();
+        }
+        for (Suscripcion suscripcion : avisar) {
+            try {
+                suscripcion.callback.onMessage(Message.sistema(nombre, "The queue '" + nombre + "' has been deleted."));
+            } catch (RemoteException e) {
+                // Ignorar errores al notificar
+            }
+        }
+        if (durable) {
+            ficheroParticiones(nombre).delete();
+        }
+        System.out.println("Partitioned queue '" + nombre + "' deleted successfully.");
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Almacén durable de los contenidos compartidos (SharedPayload) de los mensajes que un
+ * exchange envía a varias colas durables. Cada contenido se escribe una sola vez en su
+ * propio journal (store_payloads.N.journal) y las colas solo registran su referencia,
+ * así que un fanout a muchas colas no multiplica los bytes escritos en disco.
+ *
+ * Al arrancar se leen los contenidos vivos; las colas los reclaman al recuperar sus
+ * mensajes y los que nadie reclama se liberan con purgarNoReferenciados().
+ */
+public class PayloadStore {
+    private static final String NOMBRE = "payloads";
+    private static final String PREFIJO = "store_";
+    private static PayloadStore instance;
+
+    private final MessageJournal journal = new MessageJournal(NOMBRE, PREFIJO);
+    private final AtomicLong ultimoId = new AtomicLong();
+    // Contenidos vivos leídos del journal al arrancar, compartidos por las colas que los reclaman
+    private final Map<Long, SharedPayload> recuperados = new HashMap<>();
+
+    private PayloadStore() {
+        Map<Long, SharedPayload> vivos = new LinkedHashMap<>();
+        long[] maximo = {0};
+        journal.reproducir(registro -> {
+            long id = parsearId(registro.id);
+            if (id == 0) return;
+            maximo[0] = Math.max(maximo[0], id);
+            if (registro.tipo == MessageJournal.PUBLICAR) {
+                vivos.put(id, new SharedPayload(id, registro.segmento, registro.contenido));
+            } else if (registro.tipo == MessageJournal.CONFIRMAR || registro.tipo == MessageJournal.EXPIRAR) {
+                vivos.remove(id);
+            }
+        });
+        recuperados.putAll(vivos);
+        // Los identificadores nuevos siguen al mayor visto, vivo o liberado
+        ultimoId.set(maximo[0]);
+        if (!vivos.isEmpty()) {
+            System.out.println("Payload store: " + vivos.size() + " shared payloads recovered");
+        }
+    }
+
+    /**
+     * Obtiene la instancia única del almacén (patrón Singleton)
+     */
+    public static synchronized PayloadStore getInstance() {
+        if (instance == null) {
+            instance = new PayloadStore();
+        }
+        return instance;
+    }
+
+    private static long parsearId(String id) {
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Genera el identificador de un contenido nuevo
+     */
+    long siguienteId() {
+        return ultimoId.incrementAndGet();
+    }
+
+    /**
+     * Escribe un contenido en el journal del almacén. El almacén usa el modo de
+     * durabilidad más estricto que le haya pedido alguna cola, para que el contenido
+     * nunca sea menos durable que las referencias que apuntan a él.
+     * @param id Identificador del contenido
+     * @param bytes Contenido codificado en UTF-8
+     * @param modo Durabilidad que necesita la cola que lo guarda
+     * @return Segmento en el que quedó registrado
+     */
+    long guardar(long id, byte[] bytes, ModoDurabilidad modo) {
+        synchronized (this) {
+            if (modo.ordinal() > journal.getModoDurabilidad().ordinal()) {
+                journal.setModoDurabilidad(modo);
+            }
+        }
+        return journal.registrarPublicacion(Long.toString(id), bytes, System.currentTimeMillis(), 0, null);
+    }
+
+    /**
+     * Sincroniza con el disco los contenidos guardados hasta ahora. Lo usa una cola que
+     * referencia un contenido que otra cola guardó con una durabilidad menor.
+     */
+    void sincronizar() {
+        journal.sincronizar();
+    }
+
+    /**
+     * Libera un contenido que ya no referencia ninguna cola. No espera al disco: si el
+     * registro se pierde, el contenido queda sin referencias y se libera al arrancar.
+     * @param id Identificador del contenido
+     * @param segmento Segmento en el que se guardó
+     */
+    void liberar(long id, long segmento) {
+        journal.registrarExpiracion(Long.toString(id), segmento);
+    }
+
+    /**
+     * Obtiene un contenido guardado, al recuperar una cola que lo referencia
+     * @param id Identificador del contenido
+     * @return Contenido (la misma instancia para todas las colas), o null si no existe
+     */
+    public synchronized SharedPayload recuperar(long id) {
+        return recuperados.get(id);
+    }
+
+    /**
+     * Libera los contenidos recuperados que ninguna cola ha reclamado (sus mensajes se
+     * confirmaron o expiraron antes de la caída) y da por terminada la recuperación
+     */
+    public void purgarNoReferenciados() {
+        List<SharedPayload> sinReferencias = new ArrayList<>();
+        synchronized (this) {
+            for (SharedPayload contenido : recuperados.values()) {
+                if (contenido.contarReferencias() == 0) {
+                    sinReferencias.add(contenido);
+                }
+            }
+            recuperados.clear();
+        }
+        // Retener y soltar lo libera del journal como cualquier otro contenido
+        for (SharedPayload contenido : sinReferencias) {
+            contenido.retener();
+            contenido.liberar();
+        }
+        if (!sinReferencias.isEmpty()) {
+            System.out.println("Payload store: " + sinReferencias.size() + " unreferenced shared payloads released");
+        }
+    }
+
+    /**
+     * Número de segmentos del journal del almacén
+     */
+    public int contarSegmentos() {
+        return journal.contarSegmentos();
+    }
+}
@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Interfaz remota para el productor.
@@ -11,4 +12,12 @@ public interface Producer extends Remote {
      * @throws RemoteException Si hay error de comunicación RMI
      */
     String getName() throws RemoteException;
+    
+    /**
+     * Recibe las confirmaciones de sus publicaciones asíncronas, en el orden en que el
+     * broker las ha procesado (el mismo en que se publicaron)
+     * @param confirmaciones Resultado de cada mensaje, con su número de secuencia
+     * @throws RemoteException Si hay error de comunicación RMI
+     */
+    void onConfirmaciones(List<PublishConfirm> confirmaciones) throws RemoteException;
 }
\ No newline at end of file
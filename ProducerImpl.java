@@ -1,8 +1,12 @@
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cliente productor que se conecta a un MessageBroker para enviar mensajes a una cola.
@@ -11,6 +15,8 @@ import java.util.Scanner;
 public class ProducerImpl extends UnicastRemoteObject implements Producer {
     // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion    
     private static final long serialVersionUID = 1L;
+    // Número de secuencia de las publicaciones asíncronas
+    private final AtomicLong secuencia = new AtomicLong();
     
     protected ProducerImpl() throws RemoteException {
         super(); // Llamada al constructor de UnicastRemoteObject
@@ -21,6 +27,13 @@ public class ProducerImpl extends UnicastRemoteObject implements Producer {
         return "Producer";
     }
     
+    @Override
+    public void onConfirmaciones(List<PublishConfirm> confirmaciones) throws RemoteException {
+        for (PublishConfirm confirmacion : confirmaciones) {
+            System.out.println("\n[CONFIRM] Message " + confirmacion);
+        }
+    }
+    
     public static void main(String[] args) {
         try {
             // Verificar si se proporcionaron los dos argumentos necesarios
@@ -54,6 +67,9 @@ public class ProducerImpl extends UnicastRemoteObject implements Producer {
                 System.out.println("3. Create new queue");
                 System.out.println("4. Eliminate queue");
                 System.out.println("5. View queue information");
+                System.out.println("6. View broker metrics");
+                System.out.println("7. Bind queue to exchange");
+                System.out.println("8. Publish to exchange");
                 System.out.println("0. Exit");
                 System.out.print("\nSelect one option: ");
                 
@@ -96,6 +112,24 @@ public class ProducerImpl extends UnicastRemoteObject implements Producer {
                         System.out.print("Do you want this message to be durable? (y/n): ");
                         boolean mensajeDurable = scanner.nextLine().trim().equalsIgnoreCase("y");
                         
+                        // TTL propio del mensaje (vacío = el de la cola)
+                        System.out.print("Message TTL in seconds (empty = queue default, 0 = never expires): ");
+                        String ttlTexto = scanner.nextLine().trim();
+                        long ttlMensaje = -1;
+                        if (!ttlTexto.isEmpty()) {
+                            try {
+                                ttlMensaje = Math.max(0, Long.parseLong(ttlTexto)) * 1000;
+                            } catch (NumberFormatException e) {
+                                System.out.println("Invalid value. Using the queue TTL.");
+                            }
+                        }
+                        
+                        // Clave de enrutamiento: en una cola particionada fija la partición y el orden
+                        System.out.print("Routing key (empty = none): ");
+                        String clave = scanner.nextLine().trim();
+                        Map<String, String> cabeceras = clave.isEmpty() ? null 
+                                : Collections.singletonMap(Message.CABECERA_CLAVE, clave);
+                        
                         // Permitir al usuario ingresar el mensaje
                         System.out.print("Enter the message to send to channel '" + canalSeleccionado + "': ");
                         String mensaje = scanner.nextLine();
@@ -104,10 +138,40 @@ public class ProducerImpl extends UnicastRemoteObject implements Producer {
                             mensaje = "Empty Message";
                         }
                         
+                        // Publicación asíncrona: el broker confirma el resultado después
+                        System.out.print("Publish asynchronously and receive a confirm? (y/n): ");
+                        boolean asincrono = scanner.nextLine().trim().equalsIgnoreCase("y");
+                        
+                        // En el sobre, vencimiento 0 es el TTL de la cola: "nunca expira" va en un flag
+                        int flags = (mensajeDurable ? Message.DURABLE : 0) | 
+                                    (ttlMensaje == 0 ? Message.SIN_VENCIMIENTO : 0);
+                        
                         // Publicar el mensaje
                         System.out.println("Publishing message to channel '" + canalSeleccionado + 
                                          "' (durable: " + mensajeDurable + "): " + mensaje);
-                        broker.publicar(canalSeleccionado, mensaje, mensajeDurable);
+                        if (asincrono) {
+                            long numero = producer.secuencia.incrementAndGet();
+                            long ahora = System.currentTimeMillis();
+                            Message sobre = new Message(null, canalSeleccionado, flags,
+                                    ahora, ttlMensaje > 0 ? ahora + ttlMensaje : 0, 0, cabeceras,
+                                    mensaje.getBytes(StandardCharsets.UTF_8));
+                            if (broker.publicarAsincrono(producer, numero, sobre)) {
+                                System.out.println("Message #" + numero + " accepted for filtering, waiting for its confirm");
+                            } else {
+                                System.out.println("The broker could not accept the message now, try again later");
+                            }
+                            break;
+                        }
+                        if (cabeceras != null) {
+                            long ahora = System.currentTimeMillis();
+                            broker.publicar(new Message(null, canalSeleccionado, flags,
+                                    ahora, ttlMensaje > 0 ? ahora + ttlMensaje : 0, 0, cabeceras,
+                                    mensaje.getBytes(StandardCharsets.UTF_8)));
+                        } else if (ttlMensaje >= 0) {
+                            broker.publicar(canalSeleccionado, mensaje, mensajeDurable, ttlMensaje);
+                        } else {
+                            broker.publicar(canalSeleccionado, mensaje, mensajeDurable);
+                        }
                         System.out.println("Message successfully sent to channel '" + canalSeleccionado + "'");
                         break;
                         
@@ -135,9 +199,38 @@ public class ProducerImpl extends UnicastRemoteObject implements Producer {
                         System.out.print("Do you want the queue to be durable? (y/n): ");
                         boolean colaDurable = scanner.nextLine().trim().equalsIgnoreCase("y");
                         
-                        broker.declararCola(nombreCola, colaDurable);
+                        long ttlCola = 300; // TTL por defecto del broker (5 minutos)
+                        System.out.print("Message TTL in seconds for the queue (0 = never expires) [" + ttlCola + "]: ");
+                        String ttlColaTexto = scanner.nextLine().trim();
+                        if (!ttlColaTexto.isEmpty()) {
+                            try {
+                                ttlCola = Math.max(0, Long.parseLong(ttlColaTexto));
+                            } catch (NumberFormatException e) {
+                                System.out.println("Invalid value. Using TTL " + ttlCola + " seconds.");
+                            }
+                        }
+                        
+                        // Particiones: reparten la cola entre varios consumidores manteniendo el orden por clave
+                        int particiones = 1;
+                        System.out.print("Number of partitions (1 = regular queue) [" + particiones + "]: ");
+                        String particionesTexto = scanner.nextLine().trim();
+                        if (!particionesTexto.isEmpty()) {
+                            try {
+                                particiones = Math.max(1, Integer.parseInt(particionesTexto));
+                            } catch (NumberFormatException e) {
+                                System.out.println("Invalid value. Creating a regular queue.");
+                            }
+                        }
+                        
+                        try {
+                            broker.declararCola(nombreCola, colaDurable, ttlCola * 1000, particiones);
+                        } catch (RemoteException e) {
+                            System.out.println("Could not create the queue: " + e.getMessage());
+                            continue;
+                        }
                         System.out.println("Queue '" + nombreCola + "' created successfully (durable: " + 
-                                         colaDurable + ")");
+                                         colaDurable + ", TTL: " + ttlCola + " s" + 
+                                         (particiones > 1 ? ", partitions: " + particiones : "") + ")");
                         break;
                         
                     case 4: // Eliminar cola
@@ -198,6 +291,78 @@ public class ProducerImpl extends UnicastRemoteObject implements Producer {
                         System.out.println(info);
                         break;
                         
+                    case 6: // Ver métricas del broker
+                        System.out.println("\nBROKER METRICS:");
+                        System.out.println(broker.getMetricas());
+                        break;
+                        
+                    case 7: // Enlazar cola con exchange (lo crea si no existe)
+                        System.out.print("Exchange name: ");
+                        String exchangeEnlace = scanner.nextLine().trim();
+                        System.out.print("Exchange type (DIRECTO/FANOUT/TOPIC) [TOPIC]: ");
+                        String tipoTexto = scanner.nextLine().trim().toUpperCase();
+                        Exchange.Tipo tipo;
+                        try {
+                            tipo = tipoTexto.isEmpty() ? Exchange.Tipo.TOPIC : Exchange.Tipo.valueOf(tipoTexto);
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid exchange type. Please try again.");
+                            continue;
+                        }
+                        broker.declararExchange(exchangeEnlace, tipo);
+                        
+                        System.out.print("Queue to bind: ");
+                        String colaEnlace = scanner.nextLine().trim();
+                        System.out.print("Binding key ('*' = one word, '#' = zero or more words): ");
+                        String claveEnlace = scanner.nextLine().trim();
+                        
+                        if (broker.enlazarCola(exchangeEnlace, colaEnlace, claveEnlace)) {
+                            System.out.println("Queue '" + colaEnlace + "' bound to exchange '" + exchangeEnlace + "'.");
+                        } else {
+                            System.out.println("The queue '" + colaEnlace + "' does not exist.");
+                        }
+                        System.out.println(broker.getInfoExchange(exchangeEnlace));
+                        break;
+                        
+                    case 8: // Publicar en exchange
+                        List<String> exchanges = broker.listarExchanges();
+                        if (exchanges.isEmpty()) {
+                            System.out.println("No exchanges defined.");
+                            continue;
+                        }
+                        
+                        System.out.println("\nAvailable exchanges:");
+                        for (int i = 0; i < exchanges.size(); i++) {
+                            System.out.println((i + 1) + ". " + exchanges.get(i));
+                        }
+                        
+                        System.out.print("\nSelect an exchange (1-" + exchanges.size() + "): ");
+                        int exchangeNum = scanner.nextInt();
+                        scanner.nextLine(); // Consumir el salto de línea
+                        
+                        if (exchangeNum < 1 || exchangeNum > exchanges.size()) {
+                            System.out.println("Invalid option. Please try again.");
+                            continue;
+                        }
+                        
+                        String exchangeDestino = exchanges.get(exchangeNum - 1);
+                        System.out.print("Routing key: ");
+                        String claveEnrutamiento = scanner.nextLine().trim();
+                        System.out.print("Do you want this message to be durable? (y/n): ");
+                        boolean durableExchange = scanner.nextLine().trim().equalsIgnoreCase("y");
+                        System.out.print("Enter the message: ");
+                        String mensajeExchange = scanner.nextLine();
+                        
+                        int colasDestino = broker.publicarEnExchange(exchangeDestino, claveEnrutamiento, 
+                                                                     mensajeExchange, durableExchange);
+                        if (colasDestino == MessageBroker.RECHAZADO_POR_AGENTES) {
+                            System.out.println("The message was rejected by the filter agents.");
+                        } else if (colasDestino < 0) {
+                            System.out.println("The exchange no longer exists.");
+                        } else {
+                            System.out.println("Message routed to " + colasDestino + " queues.");
+                        }
+                        break;
+                        
                     default:
                         System.out.println("Invalid option. Please try again.");
                 }
@@ -0,0 +1,50 @@
+import java.io.Serializable;
+
+/**
+ * Confirmación de una publicación asíncrona: indica al productor si el mensaje con su
+ * número de secuencia se aceptó y guardó en la cola o si se rechazó, y por qué.
+ */
+public class PublishConfirm implements Serializable {
+    // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion
+    private static final long serialVersionUID = 1L;
+
+    private final long secuencia;
+    private final String cola;
+    private final boolean aceptado;
+    private final String motivo;
+
+    /**
+     * Constructor
+     * @param secuencia Número de secuencia que el productor dio al mensaje
+     * @param cola Cola destino
+     * @param aceptado true si el mensaje se guardó en la cola
+     * @param motivo Agente que rechazó el mensaje o causa del rechazo (null si se aceptó)
+     */
+    public PublishConfirm(long secuencia, String cola, boolean aceptado, String motivo) {
+        this.secuencia = secuencia;
+        this.cola = cola;
+        this.aceptado = aceptado;
+        this.motivo = motivo;
+    }
+
+    public long getSecuencia() {
+        return secuencia;
+    }
+
+    public String getCola() {
+        return cola;
+    }
+
+    public boolean isAceptado() {
+        return aceptado;
+    }
+
+    public String getMotivo() {
+        return motivo;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + secuencia + " on '" + cola + "': " + (aceptado ? "accepted" : "rejected by " + motivo);
+    }
+}
@@ -0,0 +1,204 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admisión de publicaciones asíncronas. La llamada remota del productor solo deja el
+ * mensaje en un búfer acotado y vuelve; un pool de hilos filtradores evalúa los mensajes
+ * con los agentes, los guarda en su cola y devuelve el resultado al productor como
+ * confirmaciones (PublishConfirm) a través de su objeto remoto Producer.
+ *
+ * El búfer está dividido en particiones, una por hilo filtrador, y cada productor va
+ * siempre a la misma partición, así que sus mensajes se guardan en el orden en que los
+ * publicó. Las confirmaciones de cada productor se envían en orden por su propio carril
+ * del planificador de entregas, agrupando las que se acumulan en una sola llamada remota.
+ *
+ * Configuración (propiedades del sistema):
+ *   mom.admision.hilos      Hilos filtradores (por defecto, número de núcleos)
+ *   mom.admision.capacidad  Mensajes que caben en el búfer de admisión (por defecto, 65536)
+ */
+public class PublishIntake {
+    // Máximo de confirmaciones por llamada remota al productor
+    private static final int CONFIRMACIONES_POR_LLAMADA = 256;
+    // Máximo de mensajes que un hilo filtrador saca del búfer de una vez
+    private static final int MENSAJES_POR_TURNO = 128;
+
+    /**
+     * Publica un mensaje admitido (evaluación de agentes y almacenamiento en la cola)
+     */
+    public interface Procesador {
+        /**
+         * @param mensaje Sobre del mensaje
+         * @return null si el mensaje se aceptó, o el motivo del rechazo
+         */
+        String publicar(Message mensaje);
+    }
+
+    /**
+     * Mensaje a la espera de ser filtrado
+     */
+    private static final class Solicitud {
+        final Producer productor;
+        final long secuencia;
+        final Message mensaje;
+
+        Solicitud(Producer productor, long secuencia, Message mensaje) {
+            this.productor = productor;
+            this.secuencia = secuencia;
+            this.mensaje = mensaje;
+        }
+    }
+
+    /**
+     * Envío ordenado de las confirmaciones de un productor
+     */
+    private final class Confirmador {
+        private final Producer productor;
+        private final DeliveryScheduler.Carril carril = DeliveryScheduler.getInstance().crearCarril();
+        private final ConcurrentLinkedQueue<PublishConfirm> pendientes = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean programado = new AtomicBoolean(false);
+
+        Confirmador(Producer productor) {
+            this.productor = productor;
+        }
+
+        void confirmar(PublishConfirm confirmacion) {
+            pendientes.add(confirmacion);
+            programar();
+        }
+
+        private void programar() {
+            if (!pendientes.isEmpty() && programado.compareAndSet(false, true)) {
+                carril.enviar(this::enviar);
+            }
+        }
+
+        /**
+         * Envía las confirmaciones acumuladas en una llamada remota
+         */
+        private void enviar() {
+            programado.set(false);
+            List<PublishConfirm> lote = new ArrayList<>();
+            PublishConfirm confirmacion;
+            while (lote.size() < CONFIRMACIONES_POR_LLAMADA && (confirmacion = pendientes.poll()) != null) {
+                lote.add(confirmacion);
+            }
+            if (lote.isEmpty()) return;
+            try {
+                productor.onConfirmaciones(lote);
+            } catch (RemoteException e) {
+                // El productor ya no está: se descartan sus confirmaciones
+                System.err.println("Error sending publish confirms to producer: " + e.getMessage());
+                confirmadores.remove(productor, this);
+                metricas.confirmacionesFallidas(lote.size() + pendientes.size());
+                pendientes.clear();
+                return;
+            }
+            programar();
+        }
+    }
+
+    private final List<ArrayBlockingQueue<Solicitud>> particiones = new ArrayList<>();
+    private final ConcurrentMap<Producer, Confirmador> confirmadores = new ConcurrentHashMap<>();
+    private final Procesador procesador;
+    private final int capacidad;
+    private final MetricsRegistry.MetricasAdmision metricas = MetricsRegistry.getInstance().admision();
+
+    /**
+     * Constructor: arranca los hilos filtradores
+     * @param hilos Número de hilos filtradores (y de particiones del búfer)
+     * @param capacidad Mensajes que caben en el búfer de admisión
+     * @param procesador Publicación de los mensajes admitidos
+     */
+    public PublishIntake(int hilos, int capacidad, Procesador procesador) {
+        int particionesTotales = Math.max(1, hilos);
+        this.capacidad = Math.max(particionesTotales, capacidad);
+        this.procesador = procesador;
+        for (int i = 0; i < particionesTotales; i++) {
+            ArrayBlockingQueue<Solicitud> particion = new ArrayBlockingQueue<>(this.capacidad / particionesTotales);
+            particiones.add(particion);
+            Thread filtrador = new Thread(() -> filtrar(particion), "publish-filter-" + (i + 1));
+            filtrador.setDaemon(true);
+            filtrador.start();
+        }
+        System.out.println("Async publish intake started: " + describir());
+    }
+
+    /**
+     * Admite un mensaje para publicarlo de forma asíncrona
+     * @param productor Productor al que se confirmará el resultado
+     * @param secuencia Número de secuencia del mensaje para el productor
+     * @param mensaje Sobre del mensaje
+     * @return true si se admitió; false si el búfer de admisión está lleno
+     */
+    public boolean admitir(Producer productor, long secuencia, Message mensaje) {
+        int particion = Math.floorMod(productor.hashCode(), particiones.size());
+        if (!particiones.get(particion).offer(new Solicitud(productor, secuencia, mensaje))) {
+            metricas.lleno();
+            return false;
+        }
+        metricas.admitido();
+        return true;
+    }
+
+    /**
+     * Número de mensajes admitidos que aún no se han filtrado
+     */
+    public int contarPendientes() {
+        int pendientes = 0;
+        for (ArrayBlockingQueue<Solicitud> particion : particiones) {
+            pendientes += particion.size();
+        }
+        return pendientes;
+    }
+
+    /**
+     * Descripción de la configuración
+     */
+    public String describir() {
+        return particiones.size() + " filter threads, " + capacidad + " slots";
+    }
+
+    /**
+     * Bucle de un hilo filtrador: publica los mensajes de su partición y confirma cada uno
+     */
+    private void filtrar(ArrayBlockingQueue<Solicitud> particion) {
+        List<Solicitud> turno = new ArrayList<>(MENSAJES_POR_TURNO);
+        while (true) {
+            try {
+                Solicitud primera = particion.poll(1, TimeUnit.SECONDS);
+                if (primera == null) continue;
+                turno.add(primera);
+                particion.drainTo(turno, MENSAJES_POR_TURNO - 1);
+                for (Solicitud solicitud : turno) {
+                    procesar(solicitud);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                turno.clear();
+            }
+        }
+    }
+
+    private void procesar(Solicitud solicitud) {
+        String motivo;
+        try {
+            motivo = procesador.publicar(solicitud.mensaje);
+        } catch (Exception e) {
+            System.err.println("Error in async publish: " + e.getMessage());
+            motivo = "broker error";
+        }
+        metricas.procesado(motivo == null);
+        confirmadores.computeIfAbsent(solicitud.productor, Confirmador::new)
+                     .confirmar(new PublishConfirm(solicitud.secuencia, solicitud.mensaje.getCola(),
+                                                   motivo == null, motivo));
+    }
+}
@@ -0,0 +1,107 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contenido de un mensaje compartido por todas las colas a las que lo envía un exchange:
+ * el texto y su codificación UTF-8 existen una sola vez en memoria aunque el mensaje se
+ * guarde en muchas colas.
+ *
+ * Las colas durables que guardan el mensaje como durable lo retienen: el contenido se
+ * escribe una sola vez en el PayloadStore y cada cola registra en su journal solo la
+ * referencia. Cuando la última cola lo confirma, lo expira o se elimina, el contenido
+ * se libera del PayloadStore.
+ */
+public class SharedPayload {
+    private final String texto;
+    private final byte[] bytes;
+    private final AtomicInteger referencias = new AtomicInteger();
+    // Identificador y segmento en el PayloadStore (0 = aún no guardado); protegidos por this
+    private long id;
+    private long segmento;
+    // Durabilidad con la que consta que está en disco (protegida por this)
+    private ModoDurabilidad modo;
+
+    /**
+     * Constructor de un contenido nuevo
+     * @param texto Contenido del mensaje
+     */
+    public SharedPayload(String texto) {
+        this.texto = texto;
+        this.bytes = texto.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Constructor de un contenido recuperado del PayloadStore
+     */
+    SharedPayload(long id, long segmento, String texto) {
+        this(texto);
+        this.id = id;
+        this.segmento = segmento;
+        this.modo = ModoDurabilidad.POR_MENSAJE; // Se ha leído del disco
+    }
+
+    public String getTexto() {
+        return texto;
+    }
+
+    /**
+     * Contenido codificado en UTF-8 (compartido, no debe modificarse)
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Añade una referencia al contenido
+     */
+    public void retener() {
+        referencias.incrementAndGet();
+    }
+
+    /**
+     * Quita una referencia; al quitar la última, el contenido se libera del PayloadStore
+     * si estaba guardado
+     */
+    public void liberar() {
+        if (referencias.decrementAndGet() != 0) return;
+        long liberado;
+        long segmentoLiberado;
+        synchronized (this) {
+            liberado = id;
+            segmentoLiberado = segmento;
+            id = 0;
+        }
+        if (liberado != 0) {
+            PayloadStore.getInstance().liberar(liberado, segmentoLiberado);
+        }
+    }
+
+    /**
+     * Guarda el contenido en el PayloadStore si aún no lo está. Si ya lo guardó una cola
+     * con una durabilidad menor que la pedida, sincroniza antes el almacén con el disco,
+     * para que la referencia de la cola nunca sea más durable que el contenido.
+     * @param modo Durabilidad que necesita la cola que lo guarda
+     * @return Identificador del contenido en el PayloadStore
+     */
+    public synchronized long persistir(ModoDurabilidad modo) {
+        PayloadStore almacen = PayloadStore.getInstance();
+        if (id == 0) {
+            long nuevo = almacen.siguienteId();
+            // Si el journal del almacén falla, el contenido sigue sin guardar
+            segmento = almacen.guardar(nuevo, bytes, modo);
+            id = nuevo;
+            this.modo = modo;
+        } else if (modo.ordinal() > this.modo.ordinal()) {
+            almacen.sincronizar();
+            this.modo = modo;
+        }
+        return id;
+    }
+
+    /**
+     * Número de referencias actuales
+     */
+    public int contarReferencias() {
+        return referencias.get();
+    }
+}
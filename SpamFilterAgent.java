@@ -1,48 +1,143 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 /**
- * Agente que filtra mensajes tipo spam basándose en palabras clave sospechosas
+ * Agente que filtra mensajes tipo spam basándose en palabras clave sospechosas.
+ * Las palabras se compilan en un autómata de Aho-Corasick que recorre el mensaje una sola vez,
+ * sea cual sea el número de palabras; la lista se puede cambiar en caliente sustituyendo el
+ * autómata entero, sin bloquear a los hilos que están filtrando.
  */
 public class SpamFilterAgent implements MessageFilterAgent {
-    // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion        
+    // Ponerlo de forma implicita pq sino da warning y si cambiamos la clase puede fallar la deserializacion
     private static final long serialVersionUID = 1L;
-    
-    // Lista de palabras clave que identifican spam
-    private final List<String> palabrasClaveSospechas = Arrays.asList(
-        "spam", "phishing", "malware", "virus", "hack", 
-        "free reward", "won", "claim now", 
+
+    // Lista de palabras clave que identifican spam por defecto
+    private static final List<String> PALABRAS_CLAVE_POR_DEFECTO = Arrays.asList(
+        "spam", "phishing", "malware", "virus", "hack",
+        "free reward", "won", "claim now",
         "urgent", "click here", "limited offer"
     );
-    
+
+    // Autómata con las palabras actuales; se sustituye entero al cambiar la lista.
+    // No se serializa: viaja la lista de palabras y se recompila al deserializar
+    private transient volatile KeywordAutomaton automata;
+    // Aumenta con cada cambio de lista, para invalidar la caché de veredictos del gestor
+    private transient volatile long version;
+
+    public SpamFilterAgent() {
+        this(PALABRAS_CLAVE_POR_DEFECTO);
+    }
+
+    /**
+     * Crea el agente con una lista de palabras clave propia
+     * @param palabrasClave Palabras que identifican spam
+     */
+    public SpamFilterAgent(Collection<String> palabrasClave) {
+        this.automata = KeywordAutomaton.compilar(palabrasClave);
+    }
+
     @Override
     public boolean aceptarMensaje(String mensaje, String nombreCola) {
-        String mensajeLower = mensaje.toLowerCase();
-        
+        // Se lee una vez: un cambio de lista durante el análisis no afecta a este mensaje
+        KeywordAutomaton actual = automata;
+
         // Rechazar si contiene palabras sospechosas
-        for (String palabra : palabrasClaveSospechas) {
-            if (mensajeLower.contains(palabra.toLowerCase())) {
-                System.out.println("[SPAM FILTER] Message rejected for containing: '" + palabra + "'");
-                return false;
+        int encontrada = actual.buscar(mensaje);
+        if (encontrada >= 0) {
+            BrokerEventBus.getInstance().veredicto("SPAM FILTER", "Message rejected for containing: ",
+                                                   "'" + actual.getPalabra(encontrada) + "'");
+            return false;
+        }
+
+        BrokerEventBus.getInstance().veredicto("SPAM FILTER", "Accepted message: ", mensaje);
+        return true;
+    }
+
+    /**
+     * Sustituye la lista de palabras clave. El autómata nuevo se compila antes de publicarse,
+     * así que los mensajes en curso terminan con la lista anterior y los siguientes usan la nueva.
+     * @param palabrasClave Nuevas palabras que identifican spam
+     */
+    public void setPalabrasClave(Collection<String> palabrasClave) {
+        KeywordAutomaton nuevo = KeywordAutomaton.compilar(palabrasClave);
+        automata = nuevo;
+        version++; // Escritor único en la práctica; basta con que el valor cambie
+        System.out.println("Spam filter updated: " + nuevo.getPalabras().size() + " keywords");
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Palabras clave actuales (en minúsculas)
+     */
+    public List<String> getPalabrasClave() {
+        return automata.getPalabras();
+    }
+
+    /**
+     * Carga la lista de palabras clave de un fichero de texto (una por línea; las líneas
+     * vacías y las que empiezan por # se ignoran) y sustituye la actual
+     * @param fichero Fichero con las palabras clave
+     * @return true si se ha cargado
+     */
+    public boolean cargarPalabrasClave(File fichero) {
+        List<String> palabras = new ArrayList<>();
+        try (BufferedReader lector = new BufferedReader(
+                new InputStreamReader(new FileInputStream(fichero), StandardCharsets.UTF_8))) {
+            String linea;
+            while ((linea = lector.readLine()) != null) {
+                if (!linea.trim().startsWith("#")) {
+                    palabras.add(linea);
+                }
             }
+        } catch (IOException e) {
+            System.err.println("Error loading spam keywords from " + fichero + ": " + e.getMessage());
+            return false;
         }
-        
-        System.out.println("[SPAM FILTER] Accepted message: " + mensaje);
+        setPalabrasClave(palabras);
         return true;
     }
-    
+
+    private void writeObject(ObjectOutputStream salida) throws IOException {
+        salida.defaultWriteObject();
+        salida.writeObject(automata.getPalabras().toArray(new String[0]));
+    }
+
+    private void readObject(ObjectInputStream entrada) throws IOException, ClassNotFoundException {
+        entrada.defaultReadObject();
+        automata = KeywordAutomaton.compilar(Arrays.asList((String[]) entrada.readObject()));
+    }
+
     @Override
     public String getNombre() {
         return "SpamFilterAgent";
     }
-    
+
     @Override
     public String getDescripcion() {
         return "Filters messages containing keywords related to spam";
     }
-    
+
     @Override
     public int getPrioridad() {
         return 10; // Alta prioridad para filtrar spam primero
     }
+    
+    @Override
+    public boolean dependeDeLaCola() {
+        return false; // Solo analiza el contenido
+    }
 }
@@ -1,4 +1,8 @@
 import java.rmi.Naming;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Productor de prueba para demostrar el correcto funcionamiento del sistema de agentes de filtrado
@@ -110,6 +114,31 @@ public class TestAgentsProducer {
             System.out.println("\nReactivating agents system ...");
             broker.setAgentesHabilitados(true);
             
+            // Prueba 10: Lote de mensajes en una sola llamada remota
+            System.out.println("\n━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━");
+            System.out.println("TEST 10: Batch of messages for canal_INFO in one call");
+            System.out.println("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━");
+            List<String> lote = Arrays.asList(
+                "[INFO] Nightly backup completed",
+                "[INFO] Click here to claim now",
+                "Message without the channel tag",
+                "[INFO] Disk usage at 45%"
+            );
+            List<Boolean> resultadosLote = broker.publicarLote("canal_INFO", lote, true);
+            for (int i = 0; i < lote.size(); i++) {
+                System.out.println("  " + (resultadosLote.get(i) ? "ACCEPTED" : "REJECTED") + ": " + lote.get(i));
+            }
+            
+            // Prueba 11: Mensaje con cabeceras (sobre binario)
+            System.out.println("\n━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━");
+            System.out.println("TEST 11: Message envelope with headers for canal_INFO");
+            System.out.println("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━");
+            Map<String, String> cabeceras = new LinkedHashMap<>();
+            cabeceras.put("origen", "TestAgentsProducer");
+            cabeceras.put("tipo", "informe");
+            boolean resultadoSobre = broker.publicar(Message.texto("canal_INFO", "[INFO] Weekly report ready", cabeceras));
+            System.out.println("Result: " + (resultadoSobre ? "ACCEPTED" : "REJECTED"));
+            
         } catch (Exception e) {
             System.err.println("Error in test producer: " + e.getMessage());
             e.printStackTrace();
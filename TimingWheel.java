@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rueda de temporización jerárquica compartida por todas las colas del broker, usada
+ * para expirar los mensajes en su fecha límite sin recorrer las colas.
+ * Cada nivel tiene 64 ranuras; una ranura del nivel N abarca 64^N ticks. Programar y
+ * cancelar un temporizador cuesta O(1), y cada tick solo procesa los temporizadores que
+ * vencen en él (más, cada 64^N ticks, el reparto de una ranura del nivel N al nivel inferior).
+ * Las acciones vencidas se ejecutan en el hilo de la rueda, fuera de su cerrojo.
+ */
+public class TimingWheel {
+    private static TimingWheel instance;
+    private static final int BITS_POR_NIVEL = 6;
+    private static final int RANURAS = 1 << BITS_POR_NIVEL;
+    private static final int MASCARA = RANURAS - 1;
+    private static final int NIVELES = 4; // 64^4 ticks: más de 46 horas con ticks de 10 ms
+    private static final long RESOLUCION_MS = 10;
+
+    private final long tickMs;
+    private final long origenMs;
+    // Cabeza de la lista doblemente enlazada de cada ranura (protegido por el cerrojo de la rueda)
+    private final Temporizador[][] ranuras = new Temporizador[NIVELES][RANURAS];
+    private long tickActual = 0; // Último tick procesado
+    private int programados = 0;
+
+    /**
+     * Temporizador programado en la rueda. Se puede cancelar en O(1) mientras no haya vencido.
+     */
+    public final class Temporizador {
+        private final long vencimiento; // Tick en el que vence
+        private final Runnable accion;
+        private Temporizador anterior;
+        private Temporizador siguiente;
+        private int nivel = -1;          // -1 = fuera de la rueda (vencido o cancelado)
+        private int ranura;
+
+        private Temporizador(long vencimiento, Runnable accion) {
+            this.vencimiento = vencimiento;
+            this.accion = accion;
+        }
+
+        /**
+         * Cancela el temporizador; no tiene efecto si ya venció
+         */
+        public void cancelar() {
+            synchronized (TimingWheel.this) {
+                if (nivel >= 0) {
+                    desenlazar(this);
+                    programados--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param tickMs Resolución de la rueda en milisegundos
+     */
+    public TimingWheel(long tickMs) {
+        this.tickMs = Math.max(1, tickMs);
+        this.origenMs = System.currentTimeMillis();
+        Thread hilo = new Thread(this::avanzar, "expiration-wheel");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Obtiene la instancia compartida por el broker (patrón Singleton)
+     */
+    public static synchronized TimingWheel getInstance() {
+        if (instance == null) {
+            instance = new TimingWheel(RESOLUCION_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * Programa una acción para el instante indicado. Si ya ha pasado, se ejecuta en el
+     * siguiente tick.
+     * @param vencimientoMs Instante de vencimiento (milisegundos desde epoch)
+     * @param accion Acción a ejecutar en el hilo de la rueda
+     * @return Temporizador, para poder cancelarlo
+     */
+    public synchronized Temporizador programar(long vencimientoMs, Runnable accion) {
+        // Redondeo hacia arriba: nunca vence antes de su instante
+        long tick = Math.floorDiv(vencimientoMs - origenMs + tickMs - 1, tickMs);
+        Temporizador temporizador = new Temporizador(Math.max(tick, tickActual + 1), accion);
+        insertar(temporizador);
+        programados++;
+        return temporizador;
+    }
+
+    /**
+     * Número de temporizadores pendientes de vencer
+     * @return Temporizadores programados
+     */
+    public synchronized int contarProgramados() {
+        return programados;
+    }
+
+    /**
+     * Coloca un temporizador en el nivel cuyo alcance cubre su distancia al tick actual.
+     * Requiere el cerrojo de la rueda.
+     */
+    private void insertar(Temporizador temporizador) {
+        long distancia = temporizador.vencimiento - tickActual;
+        int nivel = 0;
+        while (nivel < NIVELES - 1 && distancia >= 1L << (BITS_POR_NIVEL * (nivel + 1))) {
+            nivel++;
+        }
+        long indice = temporizador.vencimiento >> (BITS_POR_NIVEL * nivel);
+        // Más allá del alcance del último nivel: esperar en su ranura más lejana y volver a repartir
+        long maximo = (tickActual >> (BITS_POR_NIVEL * nivel)) + RANURAS;
+        int ranura = (int) (Math.min(indice, maximo) & MASCARA);
+
+        temporizador.nivel = nivel;
+        temporizador.ranura = ranura;
+        temporizador.anterior = null;
+        temporizador.siguiente = ranuras[nivel][ranura];
+        if (temporizador.siguiente != null) {
+            temporizador.siguiente.anterior = temporizador;
+        }
+        ranuras[nivel][ranura] = temporizador;
+    }
+
+    /**
+     * Quita un temporizador de su ranura. Requiere el cerrojo de la rueda.
+     */
+    private void desenlazar(Temporizador temporizador) {
+        if (temporizador.anterior != null) {
+            temporizador.anterior.siguiente = temporizador.siguiente;
+        } else {
+            ranuras[temporizador.nivel][temporizador.ranura] = temporizador.siguiente;
+        }
+        if (temporizador.siguiente != null) {
+            temporizador.siguiente.anterior = temporizador.anterior;
+        }
+        temporizador.anterior = null;
+        temporizador.siguiente = null;
+        temporizador.nivel = -1;
+    }
+
+    /**
+     * Vacía una ranura y devuelve sus temporizadores. Requiere el cerrojo de la rueda.
+     */
+    private Temporizador vaciarRanura(int nivel, int ranura) {
+        Temporizador cabeza = ranuras[nivel][ranura];
+        ranuras[nivel][ranura] = null;
+        return cabeza;
+    }
+
+    /**
+     * Procesa un tick: reparte las ranuras de niveles superiores que empiezan en él y
+     * recoge los temporizadores vencidos. Requiere el cerrojo de la rueda.
+     */
+    private void procesarTick(long tick, List<Runnable> vencidos) {
+        tickActual = tick;
+        for (int nivel = NIVELES - 1; nivel > 0; nivel--) {
+            if ((tick & ((1L << (BITS_POR_NIVEL * nivel)) - 1)) != 0) continue;
+            int ranura = (int) ((tick >> (BITS_POR_NIVEL * nivel)) & MASCARA);
+            Temporizador temporizador = vaciarRanura(nivel, ranura);
+            while (temporizador != null) {
+                Temporizador siguiente = temporizador.siguiente;
+                insertar(temporizador);
+                temporizador = siguiente;
+            }
+        }
+
+        Temporizador temporizador = vaciarRanura(0, (int) (tick & MASCARA));
+        while (temporizador != null) {
+            Temporizador siguiente = temporizador.siguiente;
+            if (temporizador.vencimiento <= tick) {
+                temporizador.nivel = -1;
+                temporizador.anterior = null;
+                temporizador.siguiente = null;
+                programados--;
+                vencidos.add(temporizador.accion);
+            } else {
+                insertar(temporizador);
+            }
+            temporizador = siguiente;
+        }
+    }
+
+    /**
+     * Bucle del hilo de la rueda: avanza un tick por cada intervalo transcurrido y
+     * ejecuta las acciones vencidas
+     */
+    private void avanzar() {
+        List<Runnable> vencidos = new ArrayList<>();
+        while (true) {
+            long objetivo = (System.currentTimeMillis() - origenMs) / tickMs;
+            synchronized (this) {
+                while (tickActual < objetivo) {
+                    procesarTick(tickActual + 1, vencidos);
+                }
+            }
+
+            for (Runnable accion : vencidos) {
+                try {
+                    accion.run();
+                } catch (Throwable t) {
+                    // Un Error de una acción no debe parar el único hilo de la rueda
+                    System.err.println("Error in expiration task: " + t);
+                }
+            }
+            vencidos.clear();
+
+            try {
+                Thread.sleep(tickMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
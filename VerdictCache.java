@@ -0,0 +1,214 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caché de veredictos de los agentes: recuerda, para cada par (mensaje, cola), si la cadena
+ * de agentes lo aceptó o qué agente lo rechazó, para no volver a evaluar los mensajes que
+ * se repiten (plantillas de notificación, reintentos, etc.).
+ *
+ * Está acotada por memoria estimada (el texto del mensaje más un coste fijo por entrada) y
+ * dividida en segmentos LRU con su propio cerrojo para que los hilos que publican no
+ * compitan por uno solo. Cada entrada guarda la generación de la cadena de agentes con la
+ * que se evaluó: al cambiar la cadena se incrementa la generación y se vacía la caché, y un
+ * veredicto calculado con una generación anterior nunca se guarda ni se devuelve.
+ */
+public class VerdictCache {
+    private static final int SEGMENTOS = 16;
+    // Coste estimado de una entrada sin contar el texto: nodo del mapa, clave y veredicto
+    private static final int BYTES_POR_ENTRADA = 128;
+
+    /**
+     * Clave de la caché: mensaje y cola
+     */
+    private static final class Clave {
+        final String mensaje;
+        final String cola;
+        final int hash;
+
+        Clave(String mensaje, String cola) {
+            this.mensaje = mensaje;
+            this.cola = cola;
+            this.hash = mensaje.hashCode() * 31 + cola.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object otro) {
+            if (!(otro instanceof Clave)) return false;
+            Clave clave = (Clave) otro;
+            return hash == clave.hash && mensaje.equals(clave.mensaje) && cola.equals(clave.cola);
+        }
+    }
+
+    /**
+     * Veredicto guardado
+     */
+    public static final class Veredicto {
+        private final MessageFilterAgent rechazo;
+        private final long generacion;
+        private final int bytes;
+
+        Veredicto(MessageFilterAgent rechazo, long generacion, int bytes) {
+            this.rechazo = rechazo;
+            this.generacion = generacion;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Agente que rechazó el mensaje, o null si todos lo aceptaron
+         */
+        public MessageFilterAgent getRechazo() {
+            return rechazo;
+        }
+    }
+
+    /**
+     * Segmento LRU: mapa en orden de acceso con su ocupación en bytes
+     */
+    private static final class Segmento extends LinkedHashMap<Clave, Veredicto> {
+        private static final long serialVersionUID = 1L;
+        long bytes;
+
+        Segmento() {
+            super(16, 0.75f, true);
+        }
+    }
+
+    private final Segmento[] segmentos = new Segmento[SEGMENTOS];
+    private final long bytesPorSegmento;
+    private final int longitudMaxima;
+    private final AtomicLong generacion = new AtomicLong();
+    private final MetricsRegistry.MetricasCache metricas = MetricsRegistry.getInstance().cacheVeredictos();
+
+    /**
+     * Constructor
+     * @param bytesMaximos Memoria máxima estimada de la caché (0 la desactiva)
+     * @param longitudMaxima Longitud máxima de los mensajes que se guardan
+     */
+    public VerdictCache(long bytesMaximos, int longitudMaxima) {
+        this.bytesPorSegmento = Math.max(0, bytesMaximos) / SEGMENTOS;
+        this.longitudMaxima = Math.max(0, longitudMaxima);
+        for (int i = 0; i < SEGMENTOS; i++) {
+            segmentos[i] = new Segmento();
+        }
+    }
+
+    /**
+     * Indica si la caché guarda algo
+     */
+    public boolean isActiva() {
+        return bytesPorSegmento > 0;
+    }
+
+    /**
+     * Generación actual de la cadena de agentes; se lee antes de evaluar un mensaje y se
+     * pasa a guardar para descartar los veredictos de una cadena que ha cambiado entretanto
+     */
+    public long getGeneracion() {
+        return generacion.get();
+    }
+
+    /**
+     * Busca el veredicto de un mensaje
+     * @param mensaje Contenido del mensaje
+     * @param nombreCola Nombre de la cola
+     * @return Veredicto guardado o null si no está
+     */
+    public Veredicto buscar(String mensaje, String nombreCola) {
+        if (!admite(mensaje)) return null;
+        Clave clave = new Clave(mensaje, nombreCola);
+        Segmento segmento = segmento(clave);
+        Veredicto veredicto;
+        synchronized (segmento) {
+            veredicto = segmento.get(clave);
+            if (veredicto != null && veredicto.generacion != generacion.get()) {
+                quitar(segmento, clave, veredicto);
+                veredicto = null;
+            }
+        }
+        if (veredicto != null) {
+            metricas.acierto();
+        } else {
+            metricas.fallo();
+        }
+        return veredicto;
+    }
+
+    /**
+     * Guarda el veredicto de un mensaje, desalojando los menos usados si no cabe
+     * @param mensaje Contenido del mensaje
+     * @param nombreCola Nombre de la cola
+     * @param rechazo Agente que lo rechazó, o null si todos lo aceptaron
+     * @param generacionEvaluada Generación leída antes de evaluar el mensaje
+     */
+    public void guardar(String mensaje, String nombreCola, MessageFilterAgent rechazo, long generacionEvaluada) {
+        if (!admite(mensaje)) return;
+        Clave clave = new Clave(mensaje, nombreCola);
+        int bytes = BYTES_POR_ENTRADA + 2 * mensaje.length();
+        Segmento segmento = segmento(clave);
+        synchronized (segmento) {
+            if (generacionEvaluada != generacion.get()) {
+                return; // La cadena de agentes cambió durante la evaluación
+            }
+            Veredicto anterior = segmento.put(clave, new Veredicto(rechazo, generacionEvaluada, bytes));
+            if (anterior != null) {
+                segmento.bytes -= anterior.bytes;
+                metricas.ocupacion(-1, -anterior.bytes);
+            }
+            segmento.bytes += bytes;
+            metricas.ocupacion(1, bytes);
+            Iterator<Map.Entry<Clave, Veredicto>> antiguos = segmento.entrySet().iterator();
+            while (segmento.bytes > bytesPorSegmento && antiguos.hasNext()) {
+                Veredicto desalojado = antiguos.next().getValue();
+                antiguos.remove();
+                segmento.bytes -= desalojado.bytes;
+                metricas.ocupacion(-1, -desalojado.bytes);
+                metricas.desalojo();
+            }
+        }
+    }
+
+    /**
+     * Olvida todos los veredictos: se llama cuando cambia la cadena de agentes
+     */
+    public void invalidar() {
+        generacion.incrementAndGet();
+        for (Segmento segmento : segmentos) {
+            synchronized (segmento) {
+                metricas.ocupacion(-segmento.size(), -segmento.bytes);
+                segmento.clear();
+                segmento.bytes = 0;
+            }
+        }
+        metricas.invalidacion();
+    }
+
+    /**
+     * Descripción de la configuración de la caché
+     */
+    public String describir() {
+        if (!isActiva()) return "disabled";
+        return (bytesPorSegmento * SEGMENTOS / 1024) + " KB, messages up to " + longitudMaxima + " chars";
+    }
+
+    private boolean admite(String mensaje) {
+        return bytesPorSegmento > 0 && mensaje != null && mensaje.length() <= longitudMaxima;
+    }
+
+    private Segmento segmento(Clave clave) {
+        int h = clave.hash ^ (clave.hash >>> 16);
+        return segmentos[h & (SEGMENTOS - 1)];
+    }
+
+    private void quitar(Segmento segmento, Clave clave, Veredicto veredicto) {
+        segmento.remove(clave);
+        segmento.bytes -= veredicto.bytes;
+        metricas.ocupacion(-1, -veredicto.bytes);
+    }
+}